@@ -29,12 +29,15 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.CompoundButton;
 import android.widget.FilterQueryProvider;
@@ -65,6 +68,10 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
     private ListView lvLog;
     private AdapterLog adapter;
     private MenuItem menuSearch = null;
+    private CancellationSignal searchSignal = null;
+    private long pagingId = -1; // oldest ID of the page being loaded
+    private boolean appending = false;
+    private boolean appendPending = false;
 
     private boolean live;
     private boolean resolve;
@@ -73,6 +80,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
     private InetAddress vpn6 = null;
 
     private static final int REQUEST_PCAP = 1;
+    private static final int PAGE_SIZE = 100;
 
     private DatabaseHelper.LogChangedListener listener = new DatabaseHelper.LogChangedListener() {
         @Override
@@ -80,7 +88,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    updateAdapter();
+                    appendAdapter();
                 }
             });
         }
@@ -131,21 +139,46 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
 
         lvLog = findViewById(R.id.lvLog);
 
-        boolean udp = prefs.getBoolean("proto_udp", true);
-        boolean tcp = prefs.getBoolean("proto_tcp", true);
-        boolean other = prefs.getBoolean("proto_other", true);
-        boolean allowed = prefs.getBoolean("traffic_allowed", true);
-        boolean blocked = prefs.getBoolean("traffic_blocked", true);
-
-        adapter = new AdapterLog(this, DatabaseHelper.getInstance(this).getLog(udp, tcp, other, allowed, blocked), resolve, organization);
+        adapter = new AdapterLog(this, getLog(), resolve, organization);
         adapter.setFilterQueryProvider(new FilterQueryProvider() {
             public Cursor runQuery(CharSequence constraint) {
-                return DatabaseHelper.getInstance(ActivityLog.this).searchLog(constraint.toString());
+                CancellationSignal signal = new CancellationSignal();
+                synchronized (ActivityLog.this) {
+                    searchSignal = signal;
+                }
+
+                Cursor cursor = DatabaseHelper.getInstance(ActivityLog.this).searchLog(constraint.toString(), signal);
+                try {
+                    // Execute the query here so that it can be cancelled
+                    cursor.getCount();
+                    return cursor;
+                } catch (OperationCanceledException ignored) {
+                    Log.i(TAG, "Search cancelled " + constraint);
+                    cursor.close();
+                    return null;
+                } finally {
+                    synchronized (ActivityLog.this) {
+                        if (searchSignal == signal)
+                            searchSignal = null;
+                    }
+                }
             }
         });
 
         lvLog.setAdapter(adapter);
 
+        lvLog.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 4)
+                    pageAdapter();
+            }
+        });
+
         try {
             vpn4 = InetAddress.getByName(prefs.getString("vpn4", "10.1.10.1"));
             vpn6 = InetAddress.getByName(prefs.getString("vpn6", "fd00:1:fd00:1:fd00:1:fd00:1"));
@@ -204,8 +237,17 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
                 final Intent lookupIP = new Intent(Intent.ACTION_VIEW, Uri.parse("https://www.dnslytics.com/whois-lookup/" + ip));
                 if (pm.resolveActivity(lookupIP, 0) == null)
                     popup.getMenu().removeItem(R.id.menu_whois);
-                else
-                    popup.getMenu().findItem(R.id.menu_whois).setTitle(getString(R.string.title_log_whois, ip));
+                else {
+                    // Offline organization
+                    String whois = ip;
+                    OrganizationDatabase odb = OrganizationDatabase.getInstance(ActivityLog.this);
+                    if (odb != null) {
+                        String org = odb.lookup(ip);
+                        if (org != null)
+                            whois += " " + org;
+                    }
+                    popup.getMenu().findItem(R.id.menu_whois).setTitle(getString(R.string.title_log_whois, whois));
+                }
 
                 // Lookup port
                 final Intent lookupPort = new Intent(Intent.ACTION_VIEW, Uri.parse("https://www.speedguide.net/port.php?port=" + port));
@@ -318,6 +360,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
     protected void onDestroy() {
         running = false;
         adapter = null;
+        AddressResolver.getInstance(this).cancelAll();
         PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(this);
         super.onDestroy();
     }
@@ -352,6 +395,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
         searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
             @Override
             public boolean onQueryTextSubmit(String query) {
+                cancelSearch();
                 if (adapter != null)
                     adapter.getFilter().filter(getUidForName(query));
                 return true;
@@ -359,6 +403,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
 
             @Override
             public boolean onQueryTextChange(String newText) {
+                cancelSearch();
                 if (adapter != null)
                     adapter.getFilter().filter(getUidForName(newText));
                 return true;
@@ -367,6 +412,7 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
         searchView.setOnCloseListener(new SearchView.OnCloseListener() {
             @Override
             public boolean onClose() {
+                cancelSearch();
                 if (adapter != null)
                     adapter.getFilter().filter(null);
                 return true;
@@ -519,13 +565,6 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
 
     private void updateAdapter() {
         if (adapter != null) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-            boolean udp = prefs.getBoolean("proto_udp", true);
-            boolean tcp = prefs.getBoolean("proto_tcp", true);
-            boolean other = prefs.getBoolean("proto_other", true);
-            boolean allowed = prefs.getBoolean("traffic_allowed", true);
-            boolean blocked = prefs.getBoolean("traffic_blocked", true);
-
             String query = null;
             if (menuSearch != null && menuSearch.isActionViewExpanded()) {
                 SearchView searchView = (SearchView) menuSearch.getActionView();
@@ -534,12 +573,147 @@ public class ActivityLog extends AppCompatActivity implements SharedPreferences.
             }
 
             if (TextUtils.isEmpty(query))
-                adapter.changeCursor(DatabaseHelper.getInstance(this).getLog(udp, tcp, other, allowed, blocked));
+                adapter.changeCursor(getLog());
             else
-                adapter.changeCursor(DatabaseHelper.getInstance(ActivityLog.this).searchLog(query));
+                adapter.changeCursor(DatabaseHelper.getInstance(ActivityLog.this).searchLog(query, null));
+        }
+    }
+
+    private synchronized void cancelSearch() {
+        if (searchSignal != null) {
+            searchSignal.cancel();
+            searchSignal = null;
         }
     }
 
+    private CursorLog getLog() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        boolean udp = prefs.getBoolean("proto_udp", true);
+        boolean tcp = prefs.getBoolean("proto_tcp", true);
+        boolean other = prefs.getBoolean("proto_other", true);
+        boolean allowed = prefs.getBoolean("traffic_allowed", true);
+        boolean blocked = prefs.getBoolean("traffic_blocked", true);
+
+        return new CursorLog(DatabaseHelper.getInstance(this).getLog(
+                udp, tcp, other, allowed, blocked, -1, -1, -1, PAGE_SIZE), PAGE_SIZE);
+    }
+
+    private void appendAdapter() {
+        if (adapter == null)
+            return;
+
+        // Search results are not paged
+        if (!(adapter.getCursor() instanceof CursorLog)) {
+            updateAdapter();
+            return;
+        }
+
+        // Changes are reported while the newer rows are being loaded
+        if (appending) {
+            appendPending = true;
+            return;
+        }
+        appending = true;
+        appendPending = false;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        final boolean udp = prefs.getBoolean("proto_udp", true);
+        final boolean tcp = prefs.getBoolean("proto_tcp", true);
+        final boolean other = prefs.getBoolean("proto_other", true);
+        final boolean allowed = prefs.getBoolean("traffic_allowed", true);
+        final boolean blocked = prefs.getBoolean("traffic_blocked", true);
+
+        final CursorLog cursor = (CursorLog) adapter.getCursor();
+        final boolean replace = cursor.isFragmented();
+        final long sinceId = (replace ? cursor.getMaxId() : cursor.getNewestId());
+
+        new AsyncTask<Object, Object, Cursor>() {
+            @Override
+            protected Cursor doInBackground(Object... objects) {
+                Cursor page = DatabaseHelper.getInstance(ActivityLog.this).getLogSince(
+                        udp, tcp, other, allowed, blocked, sinceId);
+                // Fill the window here and not on the main thread
+                page.getCount();
+                return page;
+            }
+
+            @Override
+            protected void onPostExecute(Cursor page) {
+                appending = false;
+
+                // The list could have been reloaded in the meantime
+                if (!running || adapter == null || adapter.getCursor() != cursor || cursor.isClosed())
+                    page.close();
+                else {
+                    int added = (replace ? cursor.replaceNewer(page) : cursor.addNewer(page));
+                    if (added > 0 || replace) {
+                        // Keep the visible rows in place when scrolled down
+                        int first = lvLog.getFirstVisiblePosition();
+                        View top = lvLog.getChildAt(0);
+                        adapter.notifyDataSetChanged();
+                        if (first > 0 && top != null)
+                            lvLog.setSelectionFromTop(first + added, top.getTop());
+                    }
+                }
+
+                if (appendPending && running)
+                    appendAdapter();
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void pageAdapter() {
+        if (adapter == null || !(adapter.getCursor() instanceof CursorLog))
+            return;
+
+        final CursorLog cursor = (CursorLog) adapter.getCursor();
+        if (cursor.isExhausted())
+            return;
+
+        // Scrolling reports the end of the list many times while a page is loading
+        final long oldestId = cursor.getOldestId();
+        if (pagingId == oldestId)
+            return;
+        pagingId = oldestId;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        final boolean udp = prefs.getBoolean("proto_udp", true);
+        final boolean tcp = prefs.getBoolean("proto_tcp", true);
+        final boolean other = prefs.getBoolean("proto_other", true);
+        final boolean allowed = prefs.getBoolean("traffic_allowed", true);
+        final boolean blocked = prefs.getBoolean("traffic_blocked", true);
+        final long oldestTime = cursor.getOldestTime();
+
+        new AsyncTask<Object, Object, Cursor>() {
+            @Override
+            protected Cursor doInBackground(Object... objects) {
+                Cursor page = DatabaseHelper.getInstance(ActivityLog.this).getLog(
+                        udp, tcp, other, allowed, blocked,
+                        oldestTime, oldestId, cursor.getMaxId(), cursor.getLimit());
+                // Fill the window here and not on the main thread
+                page.getCount();
+                return page;
+            }
+
+            @Override
+            protected void onPostExecute(Cursor page) {
+                if (pagingId == oldestId)
+                    pagingId = -1;
+
+                // The list could have been reloaded in the meantime
+                if (!running || adapter == null || adapter.getCursor() != cursor || cursor.isClosed()) {
+                    page.close();
+                    return;
+                }
+
+                int added = cursor.addOlder(page);
+                Log.i(TAG, "Log page rows=" + added + " total=" + cursor.getCount());
+                if (added > 0)
+                    adapter.notifyDataSetChanged();
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
     private String getUidForName(String query) {
         if (query != null && query.length() > 0) {
             for (Rule rule : Rule.getRules(true, ActivityLog.this))
@@ -73,6 +73,7 @@ import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.DefaultHandler;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -90,6 +91,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
@@ -104,6 +106,7 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
     private static final int REQUEST_HOSTS = 3;
     private static final int REQUEST_HOSTS_APPEND = 4;
     private static final int REQUEST_CALL = 5;
+    private static final int REQUEST_ORGANIZATION = 6;
 
     private AlertDialog dialogFilter = null;
 
@@ -265,6 +268,9 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
 
         // Watchdog
         screen.findPreference("watchdog").setTitle(getString(R.string.setting_watchdog, prefs.getString("watchdog", "0")));
+        Preference pref_reload_window = screen.findPreference("reload_window");
+        if (pref_reload_window != null)
+            pref_reload_window.setTitle(getString(R.string.setting_reload_window, prefs.getString("reload_window", "500")));
 
         // Show resolved
         Preference pref_show_resolved = screen.findPreference("show_resolved");
@@ -414,6 +420,20 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
             });
         }
 
+        // Handle organization database import
+        Preference pref_organization_import = screen.findPreference("organization_import");
+        String last_organization = prefs.getString("organization_last_import", null);
+        if (last_organization != null && OrganizationDatabase.getFile(this).exists())
+            pref_organization_import.setSummary(getString(R.string.msg_import_last, last_organization));
+        pref_organization_import.setEnabled(getIntentOpenHosts().resolveActivity(getPackageManager()) != null);
+        pref_organization_import.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                startActivityForResult(getIntentOpenHosts(), ActivitySettings.REQUEST_ORGANIZATION);
+                return true;
+            }
+        });
+
         // Development
         if (!Util.isDebuggable(this))
             screen.removePreference(screen.findPreference("screen_development"));
@@ -434,6 +454,24 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         pref_technical_info.setIntent(INTENT_VPN_SETTINGS);
         pref_technical_info.setOnPreferenceClickListener(listener);
         pref_technical_network.setOnPreferenceClickListener(listener);
+
+        // Upcall profile
+        Preference pref_technical_upcalls = screen.findPreference("technical_upcalls");
+        pref_technical_upcalls.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                updateTechnicalInfo();
+                UpcallProfile profile = ServiceSinkhole.getProfile();
+                if (profile != null) {
+                    Intent intent = new Intent(Intent.ACTION_SEND);
+                    intent.setType("text/plain");
+                    intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.setting_technical_upcalls));
+                    intent.putExtra(Intent.EXTRA_TEXT, profile.export());
+                    startActivity(Intent.createChooser(intent, getString(R.string.setting_technical_upcalls)));
+                }
+                return true;
+            }
+        });
         updateTechnicalInfo();
 
         markPro(screen.findPreference("theme"), ActivityPro.SKU_THEME);
@@ -763,6 +801,11 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
             getPreferenceScreen().findPreference(name).setTitle(getString(R.string.setting_watchdog, prefs.getString(name, "0")));
             ServiceSinkhole.reload("changed " + name, this, false);
 
+        } else if ("reload_window".equals(name)) {
+            Preference pref_reload_window = getPreferenceScreen().findPreference(name);
+            if (pref_reload_window != null)
+                pref_reload_window.setTitle(getString(R.string.setting_reload_window, prefs.getString(name, "500")));
+
         } else if ("show_stats".equals(name))
             ServiceSinkhole.reloadStats("changed " + name, this);
 
@@ -777,6 +820,11 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
 
         else if ("loglevel".equals(name))
             ServiceSinkhole.reload("changed " + name, this, false);
+
+        else if ("profile_upcalls".equals(name)) {
+            ServiceSinkhole.setProfile(prefs.getBoolean(name, false));
+            updateTechnicalInfo();
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.M)
@@ -873,6 +921,10 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
 
         pref_technical_info.setSummary(Util.getGeneralInfo(this));
         pref_technical_network.setSummary(Util.getNetworkInfo(this));
+
+        Preference pref_technical_upcalls = screen.findPreference("technical_upcalls");
+        UpcallProfile profile = ServiceSinkhole.getProfile();
+        pref_technical_upcalls.setSummary(profile == null ? null : profile.toString());
     }
 
     @Override
@@ -894,6 +946,10 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
             if (resultCode == RESULT_OK && data != null)
                 handleHosts(data, true);
 
+        } else if (requestCode == REQUEST_ORGANIZATION) {
+            if (resultCode == RESULT_OK && data != null)
+                handleOrganization(data);
+
         } else {
             Log.w(TAG, "Unknown activity result request=" + requestCode);
             super.onActivityResult(requestCode, resultCode, data);
@@ -1045,6 +1101,61 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
+    private void handleOrganization(final Intent data) {
+        new AsyncTask<Object, Object, Throwable>() {
+            @Override
+            protected Throwable doInBackground(Object... objects) {
+                InputStream in = null;
+                try {
+                    Log.i(TAG, "Reading URI=" + data.getData());
+                    ContentResolver resolver = getContentResolver();
+                    String[] streamTypes = resolver.getStreamTypes(data.getData(), "*/*");
+                    String streamType = (streamTypes == null || streamTypes.length == 0 ? "*/*" : streamTypes[0]);
+                    AssetFileDescriptor descriptor = resolver.openTypedAssetFileDescriptor(data.getData(), streamType, null);
+                    in = new BufferedInputStream(descriptor.createInputStream());
+
+                    // Document URIs seldom have the file name, so check for the gzip magic bytes
+                    in.mark(2);
+                    boolean gzip = (in.read() == 0x1f && in.read() == 0x8b);
+                    in.reset();
+                    if (gzip)
+                        in = new GZIPInputStream(in);
+
+                    int ranges = OrganizationDatabase.compile(in, ActivitySettings.this);
+                    if (ranges == 0)
+                        throw new IllegalArgumentException(getString(R.string.msg_organization_invalid));
+
+                    return null;
+                } catch (Throwable ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    return ex;
+                } finally {
+                    if (in != null)
+                        try {
+                            in.close();
+                        } catch (IOException ex) {
+                            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                        }
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Throwable ex) {
+                if (running) {
+                    if (ex == null) {
+                        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ActivitySettings.this);
+                        String last = SimpleDateFormat.getDateTimeInstance().format(new Date().getTime());
+                        prefs.edit().putString("organization_last_import", last).apply();
+
+                        getPreferenceScreen().findPreference("organization_import").setSummary(getString(R.string.msg_import_last, last));
+                        Toast.makeText(ActivitySettings.this, R.string.msg_completed, Toast.LENGTH_LONG).show();
+                    } else
+                        Toast.makeText(ActivitySettings.this, ex.toString(), Toast.LENGTH_LONG).show();
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
     private void handleImport(final Intent data) {
         new AsyncTask<Object, Object, Throwable>() {
             @Override
@@ -1270,6 +1381,7 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         ReceiverAutostart.upgrade(true, this);
 
         DatabaseHelper.clearCache();
+        Rule.clearCache(this);
 
         // Refresh UI
         prefs.edit().putBoolean("imported", true).apply();
@@ -26,7 +26,6 @@ import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Build;
 import android.text.TextUtils;
 import android.util.Log;
@@ -39,7 +38,6 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.core.graphics.drawable.DrawableCompat;
-import androidx.core.view.ViewCompat;
 import androidx.preference.PreferenceManager;
 
 import java.net.InetAddress;
@@ -260,30 +258,17 @@ public class AdapterLog extends CursorAdapter {
         tvSAddr.setText(getKnownAddress(saddr));
 
         // Show destination address
+        AddressResolver resolver = AddressResolver.getInstance(context);
+        resolver.cancel(tvDaddr);
         if (!we && resolve && !isKnownAddress(daddr))
             if (dname == null) {
                 tvDaddr.setText(daddr);
-                new AsyncTask<String, Object, String>() {
+                resolver.resolve(tvDaddr, AddressResolver.TYPE_HOST, daddr, new AddressResolver.Listener() {
                     @Override
-                    protected void onPreExecute() {
-                        ViewCompat.setHasTransientState(tvDaddr, true);
-                    }
-
-                    @Override
-                    protected String doInBackground(String... args) {
-                        try {
-                            return InetAddress.getByName(args[0]).getHostName();
-                        } catch (UnknownHostException ignored) {
-                            return args[0];
-                        }
-                    }
-
-                    @Override
-                    protected void onPostExecute(String name) {
+                    public void onResolved(String address, String name) {
                         tvDaddr.setText(">" + name);
-                        ViewCompat.setHasTransientState(tvDaddr, false);
                     }
-                }.execute(daddr);
+                });
             } else
                 tvDaddr.setText(dname);
         else
@@ -291,33 +276,28 @@ public class AdapterLog extends CursorAdapter {
 
         // Show organization
         tvOrganization.setVisibility(View.GONE);
+        resolver.cancel(tvOrganization);
         if (!we && organization) {
-            if (!isKnownAddress(daddr))
-                new AsyncTask<String, Object, String>() {
-                    @Override
-                    protected void onPreExecute() {
-                        ViewCompat.setHasTransientState(tvOrganization, true);
+            if (!isKnownAddress(daddr)) {
+                // Offline lookups are fast enough for the main thread
+                OrganizationDatabase odb = OrganizationDatabase.getInstance(context);
+                if (odb != null) {
+                    String org = odb.lookup(daddr);
+                    if (org != null) {
+                        tvOrganization.setText(org);
+                        tvOrganization.setVisibility(View.VISIBLE);
                     }
-
-                    @Override
-                    protected String doInBackground(String... args) {
-                        try {
-                            return Util.getOrganization(args[0]);
-                        } catch (Throwable ex) {
-                            Log.w(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                            return null;
-                        }
-                    }
-
-                    @Override
-                    protected void onPostExecute(String organization) {
-                        if (organization != null) {
-                            tvOrganization.setText(organization);
-                            tvOrganization.setVisibility(View.VISIBLE);
+                } else
+                    resolver.resolve(tvOrganization, AddressResolver.TYPE_ORGANIZATION, daddr, new AddressResolver.Listener() {
+                        @Override
+                        public void onResolved(String address, String organization) {
+                            if (organization != null) {
+                                tvOrganization.setText(organization);
+                                tvOrganization.setVisibility(View.VISIBLE);
+                            }
                         }
-                        ViewCompat.setHasTransientState(tvOrganization, false);
-                    }
-                }.execute(daddr);
+                    });
+            }
         }
 
         // Show extra data
@@ -0,0 +1,238 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Reverse DNS and organization lookups for the traffic log
+// Lookups run on a small fixed pool, results are kept in an LRU cache,
+// concurrent lookups of the same address are coalesced
+// and lookups for views which were rebound are cancelled
+public class AddressResolver {
+    private static final String TAG = "NetGuard.Resolver";
+
+    public static final int TYPE_HOST = 1;
+    public static final int TYPE_ORGANIZATION = 2;
+
+    private static final int THREADS = 3;
+    private static final int CACHE_SIZE = 1000;
+    private static final long NEGATIVE_TTL = 5 * 60 * 1000L;
+
+    private static AddressResolver instance = null;
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor executor;
+
+    private final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return (size() > CACHE_SIZE);
+        }
+    };
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final Map<View, Pending> views = new HashMap<>();
+
+    // Guarded by the cache
+    private int lookups = 0;
+    private int hits = 0;
+    private int coalesced = 0;
+    private int cancelled = 0;
+
+    public interface Listener {
+        void onResolved(String address, String result);
+    }
+
+    private static class Entry {
+        String result;
+        long expires;
+    }
+
+    private static class Pending {
+        String key;
+        Future<?> future;
+        Map<View, Listener> listeners = new HashMap<>();
+    }
+
+    public static synchronized AddressResolver getInstance(Context context) {
+        if (instance == null)
+            instance = new AddressResolver(context.getApplicationContext());
+        return instance;
+    }
+
+    private AddressResolver(Context context) {
+        this.context = context;
+        executor = new ThreadPoolExecutor(THREADS, THREADS,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private int count = 0;
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "AddressResolver-" + (++count));
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    // Must be called on the main thread
+    // The listener is called immediately when the result is cached
+    public void resolve(View view, final int type, final String address, Listener listener) {
+        cancel(view);
+
+        final String key = type + "/" + address;
+        synchronized (cache) {
+            lookups++;
+            Entry entry = cache.get(key);
+            if (entry != null)
+                if (entry.expires == 0 || entry.expires > SystemClock.elapsedRealtime()) {
+                    hits++;
+                    listener.onResolved(address, entry.result);
+                    return;
+                } else
+                    cache.remove(key);
+        }
+
+        Pending p = pending.get(key);
+        if (p == null) {
+            final Pending np = new Pending();
+            np.key = key;
+            np.future = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    final String result = lookup(type, address);
+
+                    Entry entry = new Entry();
+                    entry.result = result;
+                    entry.expires = (isNegative(type, address, result) ? SystemClock.elapsedRealtime() + NEGATIVE_TTL : 0);
+                    synchronized (cache) {
+                        cache.put(key, entry);
+                    }
+
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver(np, address, result);
+                        }
+                    });
+                }
+            });
+            pending.put(key, np);
+            p = np;
+        } else
+            synchronized (cache) {
+                coalesced++;
+            }
+
+        p.listeners.put(view, listener);
+        views.put(view, p);
+    }
+
+    // Must be called on the main thread
+    public void cancel(View view) {
+        Pending p = views.remove(view);
+        if (p != null) {
+            p.listeners.remove(view);
+            if (p.listeners.size() == 0 && pending.get(p.key) == p) {
+                pending.remove(p.key);
+                p.future.cancel(false);
+                synchronized (cache) {
+                    cancelled++;
+                }
+            }
+        }
+    }
+
+    // Must be called on the main thread
+    public void cancelAll() {
+        Set<View> all = new HashSet<>(views.keySet());
+        for (View view : all)
+            cancel(view);
+        executor.purge();
+    }
+
+    // The pending lookups are main thread state, so the executor queue is reported instead
+    public String getStatistics() {
+        synchronized (cache) {
+            return "lookups " + lookups + " hits " + hits +
+                    " coalesced " + coalesced + " cancelled " + cancelled +
+                    " cached " + cache.size() + " queued " + executor.getQueue().size();
+        }
+    }
+
+    private void deliver(Pending p, String address, String result) {
+        if (pending.get(p.key) == p)
+            pending.remove(p.key);
+
+        Map<View, Listener> listeners = new HashMap<>(p.listeners);
+        p.listeners.clear();
+        for (View view : listeners.keySet())
+            if (views.get(view) == p)
+                views.remove(view);
+
+        for (Listener listener : listeners.values())
+            try {
+                listener.onResolved(address, result);
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+    }
+
+    private String lookup(int type, String address) {
+        try {
+            if (type == TYPE_HOST)
+                return InetAddress.getByName(address).getHostName();
+            else if (type == TYPE_ORGANIZATION)
+                return Util.getOrganization(address, context);
+            else
+                throw new IllegalArgumentException("Unknown type=" + type);
+        } catch (UnknownHostException ignored) {
+            return (type == TYPE_HOST ? address : null);
+        } catch (Throwable ex) {
+            Log.w(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            return (type == TYPE_HOST ? address : null);
+        }
+    }
+
+    private static boolean isNegative(int type, String address, String result) {
+        return (result == null || (type == TYPE_HOST && result.equals(address)));
+    }
+}
@@ -0,0 +1,97 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+// Allowed rules for each combination of metered, interactive, roaming and lockdown state
+// The sets are computed once per rule list,
+// so that a change of network or screen state only selects another set
+public class AllowedRules {
+    private static final int STATES = 16;
+
+    private final List<Rule> listRule;
+    private final BitSet[] sets = new BitSet[STATES];
+    private final List<Rule>[] lists;
+
+    @SuppressWarnings("unchecked")
+    public AllowedRules(List<Rule> listRule) {
+        this.listRule = listRule;
+        this.lists = new List[STATES];
+
+        for (int state = 0; state < STATES; state++)
+            sets[state] = new BitSet(listRule.size());
+
+        for (int i = 0; i < listRule.size(); i++) {
+            Rule rule = listRule.get(i);
+            for (int state = 0; state < STATES; state++) {
+                boolean metered = ((state & 1) != 0);
+                boolean interactive = ((state & 2) != 0);
+                boolean roaming = ((state & 4) != 0);
+                boolean lockdown = ((state & 8) != 0);
+
+                boolean blocked = (metered ? rule.other_blocked : rule.wifi_blocked);
+                boolean screen = (metered ? rule.screen_other : rule.screen_wifi);
+                if ((!blocked || (screen && interactive)) &&
+                        (!metered || !(rule.roaming && roaming)) &&
+                        (!lockdown || rule.lockdown))
+                    sets[state].set(i);
+            }
+        }
+    }
+
+    private static int getState(boolean metered, boolean interactive, boolean roaming, boolean lockdown) {
+        return (metered ? 1 : 0) | (interactive ? 2 : 0) | (roaming ? 4 : 0) | (lockdown ? 8 : 0);
+    }
+
+    public boolean isFor(List<Rule> listRule) {
+        return (this.listRule == listRule);
+    }
+
+    public synchronized List<Rule> get(boolean metered, boolean interactive, boolean roaming, boolean lockdown) {
+        int state = getState(metered, interactive, roaming, lockdown);
+        if (lists[state] == null) {
+            BitSet set = sets[state];
+            List<Rule> list = new ArrayList<>(set.cardinality());
+            for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1))
+                list.add(listRule.get(i));
+            lists[state] = Collections.unmodifiableList(list);
+        }
+        return lists[state];
+    }
+
+    // Whether the screen state makes a difference in the given state
+    public boolean isInteractiveDependent(boolean metered, boolean roaming, boolean lockdown) {
+        return !sets[getState(metered, false, roaming, lockdown)]
+                .equals(sets[getState(metered, true, roaming, lockdown)]);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("rules=").append(listRule.size()).append(" allowed=");
+        for (int state = 0; state < STATES; state++)
+            sb.append(state == 0 ? "" : "/").append(sets[state].cardinality());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,247 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Concatenation of keyset pages of the log table, ordered by time and ID descending
+// Newer rows are prepended by ID, older rows are appended by (time, ID)
+// Each page holds a cursor window, so the newer pages are replaced by one page when there are too many
+public class CursorLog extends AbstractCursor {
+    private static final int MAX_NEWER_PAGES = 16;
+
+    private final int limit;
+    private final long maxid;
+    private final String[] columns;
+    private final int colTime;
+    private final int colId;
+
+    private final List<Cursor> pages = new ArrayList<>();
+    private int[] offsets = new int[0];
+    private int count = 0;
+    private int newer = 0; // number of pages before the first page
+    private Cursor current = null;
+
+    private long newest;
+    private boolean exhausted;
+
+    public CursorLog(Cursor first, int limit) {
+        this.limit = limit;
+        this.columns = first.getColumnNames();
+        this.colTime = first.getColumnIndex("time");
+        this.colId = first.getColumnIndex("ID");
+        this.newest = getMaxId(first, 0);
+        this.maxid = this.newest;
+        this.exhausted = (first.getCount() < limit);
+        pages.add(first);
+        update();
+    }
+
+    // Rows with an ID above this value were not known when the first page was loaded
+    public long getMaxId() {
+        return maxid;
+    }
+
+    public long getNewestId() {
+        return newest;
+    }
+
+    public long getOldestTime() {
+        return getOldest(colTime);
+    }
+
+    public long getOldestId() {
+        return getOldest(colId);
+    }
+
+    private long getOldest(int column) {
+        Cursor last = pages.get(pages.size() - 1);
+        long value = (last.moveToLast() ? last.getLong(column) : -1);
+        // Force repositioning
+        current = null;
+        mPos = -1;
+        return value;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    // The next newer rows should be all rows since the first page, see replaceNewer
+    public boolean isFragmented() {
+        return (newer >= MAX_NEWER_PAGES);
+    }
+
+    public int addNewer(Cursor page) {
+        int added = page.getCount();
+        if (added == 0)
+            page.close();
+        else {
+            newest = getMaxId(page, newest);
+            pages.add(0, page);
+            newer++;
+            update();
+        }
+        return added;
+    }
+
+    // The page should contain all rows with an ID above getMaxId
+    public int replaceNewer(Cursor page) {
+        int previous = 0;
+        for (int i = 0; i < newer; i++) {
+            Cursor p = pages.remove(0);
+            previous += p.getCount();
+            p.close();
+        }
+        newer = 0;
+
+        int added = page.getCount() - previous;
+        if (page.getCount() == 0)
+            page.close();
+        else {
+            newest = getMaxId(page, maxid);
+            pages.add(0, page);
+            newer = 1;
+        }
+        update();
+        return added;
+    }
+
+    public int addOlder(Cursor page) {
+        int added = page.getCount();
+        if (added < limit)
+            exhausted = true;
+        if (added == 0)
+            page.close();
+        else {
+            pages.add(page);
+            update();
+        }
+        return added;
+    }
+
+    private long getMaxId(Cursor page, long max) {
+        page.moveToPosition(-1);
+        while (page.moveToNext()) {
+            long id = page.getLong(colId);
+            if (id > max)
+                max = id;
+        }
+        return max;
+    }
+
+    private void update() {
+        offsets = new int[pages.size()];
+        count = 0;
+        for (int i = 0; i < pages.size(); i++) {
+            offsets[i] = count;
+            count += pages.get(i).getCount();
+        }
+        current = null;
+        mPos = -1;
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columns;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int lo = 0;
+        int hi = offsets.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= newPosition)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        current = pages.get(lo);
+        return current.moveToPosition(newPosition - offsets[lo]);
+    }
+
+    @Override
+    public int getType(int column) {
+        return current.getType(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        return current.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return current.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return current.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return current.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return current.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return current.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return current.getBlob(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return current.isNull(column);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (Cursor page : pages)
+            page.close();
+        pages.clear();
+        newer = 0;
+    }
+}
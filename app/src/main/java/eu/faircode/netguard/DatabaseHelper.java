@@ -24,8 +24,10 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseCorruptException;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
@@ -34,6 +36,8 @@ import android.util.Log;
 import androidx.preference.PreferenceManager;
 
 import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -46,9 +50,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "NetGuard.Database";
 
     private static final String DB_NAME = "Netguard";
-    private static final int DB_VERSION = 22;
+    private static final int DB_VERSION = 26;
 
-    private static boolean once = true;
+    // The log is stored in a ring of daily partitions behind the log view
+    private static final int LOG_PARTITIONS = 4;
+    private static final long LOG_PARTITION_TIME = 24 * 3600 * 1000L;
+    private static final int LOG_SEARCH_LIMIT = 1000;
+
+    private static boolean once = false;
     private static List<LogChangedListener> logChangedListeners = new ArrayList<>();
     private static List<AccessChangedListener> accessChangedListeners = new ArrayList<>();
     private static List<ForwardChangedListener> forwardChangedListeners = new ArrayList<>();
@@ -64,9 +73,22 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     private final static long SYN_SNI_DELAY = 5000L;
 
+    private Context context;
     private SharedPreferences prefs;
     private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
 
+    // Tables expected at the current version
+    private static final String[] TABLES = new String[]{"log_partition", "access", "dns", "forward", "app", "ipfilter"};
+
+    private boolean pruneLog = false;
+
+    // Changes of the address rules, DNS records and forwarding rules
+    private volatile long rulesVersion = 0;
+
+    // Guarded by the write lock
+    private long[] logPartitionDay = null;
+    private long logNextId = -1;
+
     static {
         hthread = new HandlerThread("DatabaseHelper");
         hthread.start();
@@ -99,22 +121,52 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     private DatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        this.context = context;
         prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
         if (!once) {
             once = true;
 
-            File dbfile = context.getDatabasePath(DB_NAME);
+            // Keep the learned addresses, resolved domain names, forwarding rules and app metadata,
+            // so that filtering works right away after a restart of the process
+            // The database is validated when it is opened, corruption is detected by SQLite on access
+            boolean keep = prefs.getBoolean("keep_db", true);
+            if (keep)
+                pruneLog = prefs.getBoolean("prune_log", false);
+            else
+                deleteDatabase("keep=" + keep);
+        }
+    }
+
+    private void deleteDatabase(String reason) {
+        for (String suffix : new String[]{"", "-journal", "-wal", "-shm"}) {
+            File dbfile = context.getDatabasePath(DB_NAME + suffix);
             if (dbfile.exists()) {
-                Log.w(TAG, "Deleting " + dbfile);
+                Log.w(TAG, "Deleting " + dbfile + " " + reason);
                 dbfile.delete();
             }
+        }
+    }
 
-            File dbjournal = context.getDatabasePath(DB_NAME + "-journal");
-            if (dbjournal.exists()) {
-                Log.w(TAG, "Deleting " + dbjournal);
-                dbjournal.delete();
-            }
+    @Override
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        try {
+            return super.getWritableDatabase();
+        } catch (SQLiteDatabaseCorruptException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            deleteDatabase("corrupt");
+            return super.getWritableDatabase();
+        }
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        try {
+            return super.getReadableDatabase();
+        } catch (SQLiteDatabaseCorruptException ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            deleteDatabase("corrupt");
+            return super.getReadableDatabase();
         }
     }
 
@@ -126,6 +178,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         createTableDns(db);
         createTableForward(db);
         createTableApp(db);
+        createTableIPFilter(db);
     }
 
     @Override
@@ -134,8 +187,88 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         super.onConfigure(db);
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // Older versions are upgraded before being opened
+        for (String table : TABLES)
+            try (Cursor cursor = db.rawQuery(
+                    "SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?",
+                    new String[]{table})) {
+                if (!cursor.moveToFirst())
+                    throw new SQLiteDatabaseCorruptException("Database table=" + table + " missing");
+            }
+
+        if (pruneLog && !db.isReadOnly()) {
+            pruneLog = false;
+            Log.i(TAG, "Pruning log");
+            db.beginTransactionNonExclusive();
+            boolean successful = false;
+            try {
+                loadLogPartitions(db);
+                for (int p = 0; p < LOG_PARTITIONS; p++)
+                    dropLogPartition(db, p);
+                db.setTransactionSuccessful();
+                successful = true;
+            } finally {
+                endLogTransaction(db, successful);
+            }
+        }
+    }
+
     private void createTableLog(SQLiteDatabase db) {
-        Log.i(TAG, "Creating log table");
+        Log.i(TAG, "Creating log partitions");
+        db.execSQL("CREATE TABLE log_partition (" +
+                " part INTEGER PRIMARY KEY" +
+                ", day INTEGER NOT NULL" +
+                ");");
+
+        StringBuilder view = new StringBuilder("CREATE VIEW log AS");
+        for (int p = 0; p < LOG_PARTITIONS; p++) {
+            createTableLogPartition(db, p);
+            db.execSQL("INSERT INTO log_partition (part, day) VALUES (" + p + ", -1)");
+            if (p > 0)
+                view.append(" UNION ALL");
+            view.append(" SELECT * FROM log_").append(p);
+        }
+        db.execSQL(view.toString());
+    }
+
+    private void createTableLogPartition(SQLiteDatabase db, int p) {
+        // The row ID is assigned by insertLog to be unique over all partitions
+        db.execSQL("CREATE TABLE log_" + p + " (" +
+                " ID INTEGER PRIMARY KEY" +
+                ", time INTEGER NOT NULL" +
+                ", version INTEGER" +
+                ", protocol INTEGER" +
+                ", flags TEXT" +
+                ", saddr TEXT" +
+                ", sport INTEGER" +
+                ", daddr TEXT" +
+                ", dport INTEGER" +
+                ", dname TEXT" +
+                ", uid INTEGER" +
+                ", data TEXT" +
+                ", allowed INTEGER" +
+                ", connection INTEGER" +
+                ", interactive INTEGER" +
+                ");");
+        db.execSQL("CREATE INDEX idx_log_" + p + "_time ON log_" + p + "(time)");
+        db.execSQL("CREATE INDEX idx_log_" + p + "_dest ON log_" + p + "(daddr)");
+        db.execSQL("CREATE INDEX idx_log_" + p + "_dname ON log_" + p + "(dname)");
+        db.execSQL("CREATE INDEX idx_log_" + p + "_dport ON log_" + p + "(dport)");
+        db.execSQL("CREATE INDEX idx_log_" + p + "_uid ON log_" + p + "(uid)");
+        createTableLogSearch(db, p);
+    }
+
+    private void createTableLogSearch(SQLiteDatabase db, int p) {
+        // Full text index with the log row ID as document ID
+        db.execSQL("CREATE VIRTUAL TABLE log_fts_" + p + " USING fts4(daddr, dname, data)");
+    }
+
+    // Single log table up to version 22
+    private void createTableLegacyLog(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE log (" +
                 " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
                 ", time INTEGER NOT NULL" +
@@ -214,6 +347,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE TABLE app (" +
                 " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
                 ", package TEXT" +
+                ", version INTEGER" +
+                ", updated INTEGER" +
                 ", label TEXT" +
                 ", system INTEGER  NOT NULL" +
                 ", internet INTEGER NOT NULL" +
@@ -222,6 +357,28 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE UNIQUE INDEX idx_package ON app(package)");
     }
 
+    // Numeric addresses of the address rules, maintained together with the access and dns tables
+    // A row without dns ID is for a rule with a numeric address, which does not expire
+    private void createTableIPFilter(SQLiteDatabase db) {
+        Log.i(TAG, "Creating ipfilter table");
+        db.execSQL("CREATE TABLE ipfilter (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", access INTEGER NOT NULL" +
+                ", dns INTEGER" +
+                ", uid INTEGER NOT NULL" +
+                ", version INTEGER NOT NULL" +
+                ", protocol INTEGER NOT NULL" +
+                ", dport INTEGER NOT NULL" +
+                ", address BLOB NOT NULL" +
+                ", block INTEGER NOT NULL" +
+                ", time INTEGER" +
+                ", ttl INTEGER" +
+                ");");
+        db.execSQL("CREATE INDEX idx_ipfilter_access ON ipfilter(access)");
+        db.execSQL("CREATE INDEX idx_ipfilter_dns ON ipfilter(dns)");
+        db.execSQL("CREATE INDEX idx_ipfilter_uid ON ipfilter(uid)");
+    }
+
     private boolean columnExists(SQLiteDatabase db, String table, String column) {
         Cursor cursor = null;
         try {
@@ -275,7 +432,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             }
             if (oldVersion < 7) {
                 db.execSQL("DROP TABLE log");
-                createTableLog(db);
+                createTableLegacyLog(db);
                 oldVersion = 8;
             }
             if (oldVersion < 8) {
@@ -295,7 +452,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             if (oldVersion < 10) {
                 db.execSQL("DROP TABLE log");
                 db.execSQL("DROP TABLE access");
-                createTableLog(db);
+                createTableLegacyLog(db);
                 createTableAccess(db);
                 oldVersion = 10;
             }
@@ -356,6 +513,47 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 oldVersion = 22;
             }
 
+            if (oldVersion < 23) {
+                boolean legacy;
+                try (Cursor cursor = db.rawQuery(
+                        "SELECT name FROM sqlite_master WHERE type = 'table' AND name = 'log'", null)) {
+                    legacy = cursor.moveToFirst();
+                }
+                if (legacy)
+                    db.execSQL("ALTER TABLE log RENAME TO log_legacy");
+                createTableLog(db);
+                if (legacy) {
+                    copyLegacyLog(db);
+                    db.execSQL("DROP TABLE log_legacy");
+                }
+                oldVersion = 23;
+            }
+
+            if (oldVersion < 24) {
+                for (int p = 0; p < LOG_PARTITIONS; p++) {
+                    db.execSQL("DROP TABLE IF EXISTS log_fts_" + p);
+                    createTableLogSearch(db, p);
+                    db.execSQL("INSERT INTO log_fts_" + p + " (docid, daddr, dname, data)" +
+                            " SELECT ID, daddr, dname, data FROM log_" + p);
+                }
+                oldVersion = 24;
+            }
+
+            if (oldVersion < 25) {
+                if (!columnExists(db, "app", "version"))
+                    db.execSQL("ALTER TABLE app ADD COLUMN version INTEGER");
+                if (!columnExists(db, "app", "updated"))
+                    db.execSQL("ALTER TABLE app ADD COLUMN updated INTEGER");
+                oldVersion = 25;
+            }
+
+            if (oldVersion < 26) {
+                db.execSQL("DROP TABLE IF EXISTS ipfilter");
+                createTableIPFilter(db);
+                updateIPFilter(db, "block >= 0", null);
+                oldVersion = 26;
+            }
+
             if (oldVersion == DB_VERSION) {
                 db.setVersion(oldVersion);
                 db.setTransactionSuccessful();
@@ -370,6 +568,35 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    // Copy the rows of the most recent days of the single log table into the partitions,
+    // older rows would have been cleaned up on the next insert
+    private void copyLegacyLog(SQLiteDatabase db) {
+        long last;
+        try (Cursor cursor = db.rawQuery("SELECT MAX(time) FROM log_legacy", null)) {
+            if (!cursor.moveToFirst() || cursor.isNull(0))
+                return;
+            last = cursor.getLong(0) / LOG_PARTITION_TIME;
+        }
+
+        String columns = "ID, time, version, protocol, flags, saddr, sport, daddr, dport" +
+                ", dname, uid, data, allowed, connection, interactive";
+        for (long day = Math.max(0, last - LOG_PARTITIONS + 1); day <= last; day++) {
+            int p = (int) (day % LOG_PARTITIONS);
+            db.execSQL("INSERT INTO log_" + p + " (" + columns + ")" +
+                            " SELECT " + columns + " FROM log_legacy WHERE time >= ? AND time < ?",
+                    new Object[]{day * LOG_PARTITION_TIME, (day + 1) * LOG_PARTITION_TIME});
+
+            ContentValues cv = new ContentValues();
+            cv.put("day", day);
+            db.update("log_partition", cv, "part = ?", new String[]{Integer.toString(p)});
+            Log.i(TAG, "Copied log partition=" + p + " day=" +
+                    SimpleDateFormat.getDateInstance().format(new Date(day * LOG_PARTITION_TIME)));
+        }
+
+        logPartitionDay = null;
+        logNextId = -1;
+    }
+
     // Log
 
     public void insertLog(Packet packet, String dname, int connection, boolean interactive) {
@@ -377,31 +604,53 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
+            boolean successful = false;
             try {
+                int partition = getLogPartition(db, packet.time / LOG_PARTITION_TIME);
+                if (partition < 0) {
+                    Log.w(TAG, "Log partition expired packet=" + packet);
+                    return;
+                }
+
                 if (packet.protocol == 6 /* TCP */ &&
                         packet.daddr != null &&
                         packet.dport > 0 &&
                         packet.uid > 0 &&
                         "sni".equals(packet.data)) {
-                    int deleted = db.delete("log", "time > ?" +
-                                    " AND protocol = ?" +
-                                    " AND version = ?" +
-                                    " AND flags = ?" +
-                                    " AND daddr = ?" +
-                                    " AND dport = ?" +
-                                    " AND uid = ?",
-                            new String[]{
-                                    Long.toString(packet.time - SYN_SNI_DELAY),
-                                    Integer.toString(packet.protocol),
-                                    Integer.toString(packet.version),
-                                    "S", // SYN
-                                    packet.daddr,
-                                    Integer.toString(packet.dport),
-                                    Integer.toString(packet.uid)
-                            });
+                    String selection = "time > ?" +
+                            " AND protocol = ?" +
+                            " AND version = ?" +
+                            " AND flags = ?" +
+                            " AND daddr = ?" +
+                            " AND dport = ?" +
+                            " AND uid = ?";
+                    String[] selectionArgs = new String[]{
+                            Long.toString(packet.time - SYN_SNI_DELAY),
+                            Integer.toString(packet.protocol),
+                            Integer.toString(packet.version),
+                            "S", // SYN
+                            packet.daddr,
+                            Integer.toString(packet.dport),
+                            Integer.toString(packet.uid)
+                    };
+                    int deleted = 0;
+                    for (int p : getLogPartitions(packet.time - SYN_SNI_DELAY, packet.time)) {
+                        db.execSQL("DELETE FROM log_fts_" + p +
+                                " WHERE docid IN (SELECT ID FROM log_" + p + " WHERE " + selection + ")", selectionArgs);
+                        deleted += db.delete("log_" + p, selection, selectionArgs);
+                    }
                     Log.i(TAG, "Deleted=" + deleted + " packet=" + packet + " dname=" + dname);
                 }
+
+                if (logNextId < 0) {
+                    logNextId = 1;
+                    for (int p = 0; p < LOG_PARTITIONS; p++)
+                        logNextId = Math.max(logNextId,
+                                db.compileStatement("SELECT IFNULL(MAX(ID), 0) + 1 FROM log_" + p).simpleQueryForLong());
+                }
+
                 ContentValues cv = new ContentValues();
+                cv.put("ID", logNextId);
                 cv.put("time", packet.time);
                 cv.put("version", packet.version);
 
@@ -441,12 +690,24 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 cv.put("connection", connection);
                 cv.put("interactive", interactive ? 1 : 0);
 
-                if (db.insert("log", null, cv) == -1)
+                if (db.insert("log_" + partition, null, cv) == -1)
                     Log.e(TAG, "Insert log failed");
+                else {
+                    ContentValues fts = new ContentValues();
+                    fts.put("docid", logNextId);
+                    fts.put("daddr", packet.daddr);
+                    fts.put("dname", dname);
+                    fts.put("data", packet.data);
+                    if (db.insert("log_fts_" + partition, null, fts) == -1)
+                        Log.e(TAG, "Insert log search failed");
+
+                    logNextId++;
+                }
 
                 db.setTransactionSuccessful();
+                successful = true;
             } finally {
-                db.endTransaction();
+                endLogTransaction(db, successful);
             }
         } finally {
             lock.writeLock().unlock();
@@ -460,18 +721,24 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
+            boolean successful = false;
             try {
-                if (uid < 0)
-                    db.delete("log", null, new String[]{});
-                else
-                    db.delete("log", "uid = ?", new String[]{Integer.toString(uid)});
+                loadLogPartitions(db);
+                for (int p = 0; p < LOG_PARTITIONS; p++)
+                    if (uid < 0)
+                        dropLogPartition(db, p);
+                    else {
+                        // There is an index on uid
+                        db.execSQL("DELETE FROM log_fts_" + p +
+                                " WHERE docid IN (SELECT ID FROM log_" + p + " WHERE uid = ?)", new Object[]{uid});
+                        db.delete("log_" + p, "uid = ?", new String[]{Integer.toString(uid)});
+                    }
 
                 db.setTransactionSuccessful();
+                successful = true;
             } finally {
-                db.endTransaction();
+                endLogTransaction(db, successful);
             }
-
-            db.execSQL("VACUUM");
         } finally {
             lock.writeLock().unlock();
         }
@@ -484,65 +751,201 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
+            boolean successful = false;
             try {
-                // There an index on time
-                int rows = db.delete("log", "time < ?", new String[]{Long.toString(time)});
-                Log.i(TAG, "Cleanup log" +
-                        " before=" + SimpleDateFormat.getDateTimeInstance().format(new Date(time)) +
-                        " rows=" + rows);
+                // Drop partitions with only rows before time
+                loadLogPartitions(db);
+                for (int p = 0; p < LOG_PARTITIONS; p++) {
+                    long day = logPartitionDay[p];
+                    if (day >= 0 && (day + 1) * LOG_PARTITION_TIME <= time) {
+                        dropLogPartition(db, p);
+                        Log.i(TAG, "Cleanup log partition=" + p +
+                                " day=" + SimpleDateFormat.getDateInstance().format(new Date(day * LOG_PARTITION_TIME)) +
+                                " before=" + SimpleDateFormat.getDateTimeInstance().format(new Date(time)));
+                    }
+                }
 
                 db.setTransactionSuccessful();
+                successful = true;
             } finally {
-                db.endTransaction();
+                endLogTransaction(db, successful);
             }
         } finally {
             lock.writeLock().unlock();
         }
     }
 
-    public Cursor getLog(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked) {
+    // The cached partition days and next ID are changed inside the transaction,
+    // so they are reloaded from the database if the transaction did not commit
+    private void endLogTransaction(SQLiteDatabase db, boolean successful) {
+        boolean committed = false;
+        try {
+            db.endTransaction();
+            committed = successful;
+        } finally {
+            if (!committed) {
+                logPartitionDay = null;
+                logNextId = -1;
+            }
+        }
+    }
+
+    private void loadLogPartitions(SQLiteDatabase db) {
+        if (logPartitionDay != null)
+            return;
+
+        logPartitionDay = new long[LOG_PARTITIONS];
+        for (int p = 0; p < LOG_PARTITIONS; p++)
+            logPartitionDay[p] = -1;
+        try (Cursor cursor = db.query("log_partition", new String[]{"part", "day"}, null, null, null, null, null)) {
+            while (cursor.moveToNext())
+                logPartitionDay[cursor.getInt(0)] = cursor.getLong(1);
+        }
+    }
+
+    // Returns the partition for the day, reusing the oldest partition for a new day
+    // Returns -1 if the partition was already reused for a later day
+    // A partition for a day after today is stale, for example because the clock was wrong
+    private int getLogPartition(SQLiteDatabase db, long day) {
+        loadLogPartitions(db);
+
+        int p = (int) (day % LOG_PARTITIONS);
+        if (logPartitionDay[p] == day)
+            return p;
+        if (logPartitionDay[p] > day &&
+                logPartitionDay[p] <= System.currentTimeMillis() / LOG_PARTITION_TIME)
+            return -1;
+
+        dropLogPartition(db, p);
+        ContentValues cv = new ContentValues();
+        cv.put("day", day);
+        db.update("log_partition", cv, "part = ?", new String[]{Integer.toString(p)});
+        logPartitionDay[p] = day;
+        Log.i(TAG, "Log partition=" + p + " day=" + SimpleDateFormat.getDateInstance().format(new Date(day * LOG_PARTITION_TIME)));
+
+        return p;
+    }
+
+    private List<Integer> getLogPartitions(long from, long to) {
+        List<Integer> result = new ArrayList<>();
+        for (long day = from / LOG_PARTITION_TIME; day <= to / LOG_PARTITION_TIME; day++) {
+            int p = (int) (day % LOG_PARTITIONS);
+            if (logPartitionDay[p] == day)
+                result.add(p);
+        }
+        return result;
+    }
+
+    private void dropLogPartition(SQLiteDatabase db, int p) {
+        // Without a where clause and triggers SQLite truncates the table and its indexes
+        db.execSQL("DELETE FROM log_" + p);
+        db.execSQL("DROP TABLE log_fts_" + p);
+        createTableLogSearch(db, p);
+
+        ContentValues cv = new ContentValues();
+        cv.put("day", -1);
+        db.update("log_partition", cv, "part = ?", new String[]{Integer.toString(p)});
+        logPartitionDay[p] = -1;
+    }
+
+    public Cursor getLog(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked,
+                         long time, long id, long maxid, int limit) {
         lock.readLock().lock();
         try {
             SQLiteDatabase db = this.getReadableDatabase();
-            // There is an index on time
+            // There is an index on time, which includes the row ID
             // There is no index on protocol/allowed for write performance
             String query = "SELECT ID AS _id, *";
             query += " FROM log";
-            query += " WHERE (0 = 1";
-            if (udp)
-                query += " OR protocol = 17";
-            if (tcp)
-                query += " OR protocol = 6";
-            if (other)
-                query += " OR (protocol <> 6 AND protocol <> 17)";
-            query += ") AND (0 = 1";
-            if (allowed)
-                query += " OR allowed = 1";
-            if (blocked)
-                query += " OR allowed = 0";
-            query += ")";
-            query += " ORDER BY time DESC";
+            query += " WHERE " + getLogFilter(udp, tcp, other, allowed, blocked);
+            if (maxid >= 0)
+                query += " AND ID <= " + maxid;
+            if (time >= 0)
+                query += " AND (time < " + time + " OR (time = " + time + " AND ID < " + id + "))";
+            query += " ORDER BY time DESC, ID DESC";
+            if (limit > 0)
+                query += " LIMIT " + limit;
             return db.rawQuery(query, new String[]{});
         } finally {
             lock.readLock().unlock();
         }
     }
 
-    public Cursor searchLog(String find) {
+    public Cursor getLogSince(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked, long id) {
         lock.readLock().lock();
         try {
             SQLiteDatabase db = this.getReadableDatabase();
-            // There is an index on daddr, dname, dport and uid
+            // There is a primary key on ID
             String query = "SELECT ID AS _id, *";
             query += " FROM log";
-            query += " WHERE daddr LIKE ? OR dname LIKE ? OR dport = ? OR uid = ?";
+            query += " WHERE ID > " + id;
+            query += " AND " + getLogFilter(udp, tcp, other, allowed, blocked);
+            query += " ORDER BY time DESC, ID DESC";
+            return db.rawQuery(query, new String[]{});
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static String getLogFilter(boolean udp, boolean tcp, boolean other, boolean allowed, boolean blocked) {
+        String filter = "(0 = 1";
+        if (udp)
+            filter += " OR protocol = 17";
+        if (tcp)
+            filter += " OR protocol = 6";
+        if (other)
+            filter += " OR (protocol <> 6 AND protocol <> 17)";
+        filter += ") AND (0 = 1";
+        if (allowed)
+            filter += " OR allowed = 1";
+        if (blocked)
+            filter += " OR allowed = 0";
+        filter += ")";
+        return filter;
+    }
+
+    public Cursor searchLog(String find, CancellationSignal cancellationSignal) {
+        lock.readLock().lock();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            // There is a full text index on daddr, dname and data
+            // There is an index on dport and uid
+            String match = getLogMatch(find);
+            List<String> args = new ArrayList<>();
+            String query = "";
+            for (int p = 0; p < LOG_PARTITIONS; p++) {
+                if (p > 0)
+                    query += " UNION ALL ";
+                query += "SELECT ID AS _id, *";
+                query += " FROM log_" + p;
+                query += " WHERE dport = ? OR uid = ?";
+                args.add(find);
+                args.add(find);
+                if (match != null) {
+                    query += " OR ID IN (SELECT docid FROM log_fts_" + p + " WHERE log_fts_" + p + " MATCH ?)";
+                    args.add(match);
+                }
+            }
             query += " ORDER BY time DESC";
-            return db.rawQuery(query, new String[]{"%" + find + "%", "%" + find + "%", find, find});
+            query += " LIMIT " + LOG_SEARCH_LIMIT;
+            return db.rawQuery(query, args.toArray(new String[0]), cancellationSignal);
         } finally {
             lock.readLock().unlock();
         }
     }
 
+    // Tokens as a phrase, with the last token as prefix
+    private static String getLogMatch(String find) {
+        StringBuilder sb = new StringBuilder();
+        for (String token : find.toLowerCase().split("[^\\p{L}\\p{N}]+"))
+            if (token.length() > 0) {
+                if (sb.length() > 0)
+                    sb.append(' ');
+                sb.append(token);
+            }
+        return (sb.length() == 0 ? null : "\"" + sb + "*\"");
+    }
+
     // Access
 
     public boolean updateAccess(Packet packet, String dname, int block) {
@@ -582,6 +985,17 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 } else if (rows != 1)
                     Log.e(TAG, "Update access failed rows=" + rows);
 
+                if (block >= 0) {
+                    updateIPFilter(db, "uid = ? AND version = ? AND protocol = ? AND daddr = ? AND dport = ?",
+                            new String[]{
+                                    Integer.toString(packet.uid),
+                                    Integer.toString(packet.version),
+                                    Integer.toString(packet.protocol),
+                                    dname == null ? packet.daddr : dname,
+                                    Integer.toString(packet.dport)});
+                    rulesVersion++;
+                }
+
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
@@ -590,6 +1004,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             lock.writeLock().unlock();
         }
 
+        // Rows with a rule are counted as hosts
+        if (block >= 0)
+            hostsChanged(packet.uid);
+
         notifyAccessChanged();
         return (rows == 0);
     }
@@ -645,18 +1063,27 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public void setAccess(long id, int block) {
+        int uid = -1;
+
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
+                try (Cursor cursor = db.query("access", new String[]{"uid"}, "ID = ?", new String[]{Long.toString(id)}, null, null, null)) {
+                    if (cursor.moveToNext())
+                        uid = cursor.getInt(0);
+                }
+
                 ContentValues cv = new ContentValues();
                 cv.put("block", block);
                 cv.put("allowed", -1);
 
                 if (db.update("access", cv, "ID = ?", new String[]{Long.toString(id)}) != 1)
                     Log.e(TAG, "Set access failed");
+                updateIPFilter(db, "ID = ?", new String[]{Long.toString(id)});
 
+                rulesVersion++;
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
@@ -665,6 +1092,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             lock.writeLock().unlock();
         }
 
+        if (uid >= 0)
+            hostsChanged(uid);
+
         notifyAccessChanged();
     }
 
@@ -675,7 +1105,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             db.beginTransactionNonExclusive();
             try {
                 db.delete("access", null, null);
+                db.delete("ipfilter", null, null);
 
+                rulesVersion++;
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
@@ -684,6 +1116,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             lock.writeLock().unlock();
         }
 
+        hostsChanged(-1);
+
         notifyAccessChanged();
     }
 
@@ -697,9 +1131,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 // There is an index on block
                 if (keeprules)
                     db.delete("access", "uid = ? AND block < 0", new String[]{Integer.toString(uid)});
-                else
+                else {
                     db.delete("access", "uid = ?", new String[]{Integer.toString(uid)});
+                    db.delete("ipfilter", "uid = ?", new String[]{Integer.toString(uid)});
+                }
 
+                rulesVersion++;
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
@@ -708,6 +1145,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             lock.writeLock().unlock();
         }
 
+        if (!keeprules)
+            hostsChanged(uid);
+
         notifyAccessChanged();
     }
 
@@ -788,6 +1228,18 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    // The host count of a uid changed, of all uids if uid < 0
+    // The rules of the uid are rebuilt, like for a rule change
+    private void hostsChanged(int uid) {
+        synchronized (mapUidHosts) {
+            if (uid < 0)
+                mapUidHosts.clear();
+            else
+                mapUidHosts.remove(uid);
+        }
+        Rule.updateAccess(uid);
+    }
+
     public long getHostCount(int uid, boolean usecache) {
         if (usecache)
             synchronized (mapUidHosts) {
@@ -812,41 +1264,65 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // DNS
 
-    public boolean insertDns(ResourceRecord rr) {
+    // The records of one response are inserted in one transaction
+    // Returns whether a record was inserted or refreshed
+    public boolean insertDns(List<ResourceRecord> listRR) {
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                int ttl = rr.TTL;
-
                 int min = Integer.parseInt(prefs.getString("ttl", "259200"));
-                if (ttl < min)
-                    ttl = min;
 
-                ContentValues cv = new ContentValues();
-                cv.put("time", rr.Time);
-                cv.put("ttl", ttl * 1000L);
-
-                int rows = db.update("dns", cv, "qname = ? AND aname = ? AND resource = ?",
-                        new String[]{rr.QName, rr.AName, rr.Resource});
+                boolean changed = false;
+                for (ResourceRecord rr : listRR) {
+                    int ttl = rr.TTL;
+                    if (ttl < min)
+                        ttl = min;
 
-                if (rows == 0) {
-                    cv.put("qname", rr.QName);
-                    cv.put("aname", rr.AName);
-                    cv.put("resource", rr.Resource);
-                    cv.put("uid", rr.uid);
-
-                    if (db.insert("dns", null, cv) == -1)
-                        Log.e(TAG, "Insert dns failed");
-                    else
-                        rows = 1;
-                } else if (rows != 1)
-                    Log.e(TAG, "Update dns failed rows=" + rows);
+                    ContentValues cv = new ContentValues();
+                    cv.put("time", rr.Time);
+                    cv.put("ttl", ttl * 1000L);
+
+                    int rows = db.update("dns", cv, "qname = ? AND aname = ? AND resource = ?",
+                            new String[]{rr.QName, rr.AName, rr.Resource});
+
+                    if (rows == 0) {
+                        cv.put("qname", rr.QName);
+                        cv.put("aname", rr.AName);
+                        cv.put("resource", rr.Resource);
+                        cv.put("uid", rr.uid);
+
+                        long id = db.insert("dns", null, cv);
+                        if (id == -1)
+                            Log.e(TAG, "Insert dns failed");
+                        else {
+                            changed = true;
+
+                            // There is an index on access.daddr and access.block
+                            try (Cursor cursor = db.query("access",
+                                    new String[]{"ID", "uid", "version", "protocol", "dport", "block"},
+                                    "daddr = ? AND block >= 0", new String[]{rr.QName}, null, null, null)) {
+                                while (cursor.moveToNext())
+                                    insertIPFilter(db, cursor.getLong(0), id,
+                                            cursor.getInt(1), cursor.getInt(2), cursor.getInt(3), cursor.getInt(4),
+                                            cursor.getInt(5), rr.Resource, rr.Time, ttl * 1000L);
+                            }
+                        }
+                    } else if (rows != 1)
+                        Log.e(TAG, "Update dns failed rows=" + rows);
+                    else {
+                        changed = true;
+                        // There is an index on ipfilter.dns
+                        db.execSQL("UPDATE ipfilter SET time = ?, ttl = ?" +
+                                        " WHERE dns IN (SELECT ID FROM dns WHERE qname = ? AND aname = ? AND resource = ?)",
+                                new Object[]{rr.Time, ttl * 1000L, rr.QName, rr.AName, rr.Resource});
+                    }
+                }
 
                 db.setTransactionSuccessful();
 
-                return (rows > 0);
+                return changed;
             } finally {
                 db.endTransaction();
             }
@@ -863,9 +1339,11 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             try {
                 // There is no index on time for write performance
                 long now = new Date().getTime();
+                db.execSQL("DELETE FROM ipfilter WHERE dns IN (SELECT ID FROM dns WHERE time + ttl < " + now + ")");
                 db.execSQL("DELETE FROM dns WHERE time + ttl < " + now);
                 Log.i(TAG, "Cleanup DNS");
 
+                rulesVersion++;
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
@@ -882,7 +1360,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             db.beginTransactionNonExclusive();
             try {
                 db.delete("dns", null, new String[]{});
+                db.delete("ipfilter", "dns IS NOT NULL", null);
 
+                rulesVersion++;
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
@@ -943,22 +1423,22 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    public Cursor getAccessDns(String dname) {
+    public long getRulesVersion() {
+        return rulesVersion;
+    }
+
+    public Cursor getIPFilters(String dname) {
         long now = new Date().getTime();
         lock.readLock().lock();
         try {
             SQLiteDatabase db = this.getReadableDatabase();
 
-            // There is a segmented index on dns.qname
-            // There is an index on access.daddr and access.block
-            String query = "SELECT a.uid, a.version, a.protocol, a.daddr, d.resource, a.dport, a.block, d.time, d.ttl";
-            query += " FROM access AS a";
-            query += " LEFT JOIN dns AS d";
-            query += "   ON d.qname = a.daddr";
-            query += " WHERE a.block >= 0";
-            query += " AND (d.time IS NULL OR d.time + d.ttl >= " + now + ")";
+            // There is an index on access.daddr
+            String query = "SELECT uid, version, protocol, dport, address, block, time, ttl";
+            query += " FROM ipfilter";
+            query += " WHERE (time IS NULL OR time + ttl >= " + now + ")";
             if (dname != null)
-                query += " AND a.daddr = ?";
+                query += " AND access IN (SELECT ID FROM access WHERE daddr = ?)";
 
             return db.rawQuery(query, dname == null ? new String[]{} : new String[]{dname});
         } finally {
@@ -966,6 +1446,72 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    // Rebuild the numeric addresses of the selected access rules
+    private void updateIPFilter(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        try (Cursor cursor = db.query("access",
+                new String[]{"ID", "uid", "version", "protocol", "dport", "block", "daddr"},
+                selection, selectionArgs, null, null, null)) {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                int uid = cursor.getInt(1);
+                int version = cursor.getInt(2);
+                int protocol = cursor.getInt(3);
+                int dport = cursor.getInt(4);
+                int block = cursor.getInt(5);
+                String daddr = cursor.getString(6);
+
+                // There is an index on ipfilter.access
+                db.delete("ipfilter", "access = ?", new String[]{Long.toString(id)});
+                if (block < 0)
+                    continue;
+
+                if (Util.isNumericAddress(daddr))
+                    insertIPFilter(db, id, null, uid, version, protocol, dport, block, daddr, null, null);
+                else
+                    // There is a segmented index on dns.qname
+                    try (Cursor dns = db.query("dns", new String[]{"ID", "resource", "time", "ttl"},
+                            "qname = ?", new String[]{daddr}, null, null, null)) {
+                        while (dns.moveToNext())
+                            insertIPFilter(db, id, dns.getLong(0),
+                                    uid, version, protocol, dport, block,
+                                    dns.getString(1),
+                                    dns.getLong(2),
+                                    dns.isNull(3) ? null : dns.getLong(3));
+                    }
+            }
+        }
+    }
+
+    private void insertIPFilter(SQLiteDatabase db, long access, Long dns,
+                                int uid, int version, int protocol, int dport, int block,
+                                String address, Long time, Long ttl) {
+        byte[] addr;
+        try {
+            if (!Util.isNumericAddress(address))
+                return;
+            addr = InetAddress.getByName(address).getAddress();
+        } catch (UnknownHostException ex) {
+            Log.w(TAG, ex.toString());
+            return;
+        }
+        if (addr.length != (version == 4 ? 4 : 16))
+            return;
+
+        ContentValues cv = new ContentValues();
+        cv.put("access", access);
+        cv.put("dns", dns);
+        cv.put("uid", uid);
+        cv.put("version", version);
+        cv.put("protocol", protocol);
+        cv.put("dport", dport);
+        cv.put("address", addr);
+        cv.put("block", block);
+        cv.put("time", time);
+        cv.put("ttl", ttl);
+        if (db.insert("ipfilter", null, cv) == -1)
+            Log.e(TAG, "Insert ipfilter failed");
+    }
+
     // Forward
 
     public void addForward(int protocol, int dport, String raddr, int rport, int ruid) {
@@ -984,6 +1530,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 if (db.insert("forward", null, cv) < 0)
                     Log.e(TAG, "Insert forward failed");
 
+                rulesVersion++;
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
@@ -1003,6 +1550,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             try {
                 db.delete("forward", null, null);
 
+                rulesVersion++;
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
@@ -1023,6 +1571,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 db.delete("forward", "protocol = ? AND dport = ?",
                         new String[]{Integer.toString(protocol), Integer.toString(dport)});
 
+                rulesVersion++;
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
@@ -1047,7 +1596,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    public void addApp(String packageName, String label, boolean system, boolean internet, boolean enabled) {
+    public void addApp(String packageName, long version, long updated,
+                       String label, boolean system, boolean internet, boolean enabled) {
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
@@ -1055,6 +1605,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             try {
                 ContentValues cv = new ContentValues();
                 cv.put("package", packageName);
+                cv.put("version", version);
+                cv.put("updated", updated);
                 if (label == null)
                     cv.putNull("label");
                 else
@@ -1063,7 +1615,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 cv.put("internet", internet ? 1 : 0);
                 cv.put("enabled", enabled ? 1 : 0);
 
-                if (db.insert("app", null, cv) < 0)
+                // There is a unique index on package
+                if (db.insertWithOnConflict("app", null, cv, SQLiteDatabase.CONFLICT_REPLACE) < 0)
                     Log.e(TAG, "Insert app failed");
 
                 db.setTransactionSuccessful();
@@ -1075,20 +1628,34 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    public Cursor getApp(String packageName) {
+    public Cursor getApps() {
         lock.readLock().lock();
         try {
             SQLiteDatabase db = this.getReadableDatabase();
-
-            // There is an index on package
-            String query = "SELECT * FROM app WHERE package = ?";
-
-            return db.rawQuery(query, new String[]{packageName});
+            String query = "SELECT * FROM app";
+            return db.rawQuery(query, new String[]{});
         } finally {
             lock.readLock().unlock();
         }
     }
 
+    public void clearApp(String packageName) {
+        lock.writeLock().lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                // There is an index on package
+                db.delete("app", "package = ?", new String[]{packageName});
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     public void clearApps() {
         lock.writeLock().lock();
         try {
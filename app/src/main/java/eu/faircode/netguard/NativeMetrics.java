@@ -0,0 +1,180 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+// Snapshot of the counters of the native engine, see jni_get_metrics
+// The counters are cumulative, rates are computed against an earlier snapshot
+public class NativeMetrics {
+    public static final int VERSION = 1;
+
+    public static final String[] HANDLERS = {"tun", "icmp", "udp", "tcp", "sessions"};
+    public static final String[] UPCALLS = {
+            "log_packet", "dns_resolved", "is_domain_blocked", "get_uid_q",
+            "is_address_allowed", "create_packet", "account_usage"};
+    // Upper bounds of the latency buckets in microseconds, the last bucket is open ended
+    public static final int[] BUCKETS = {50, 100, 250, 500, 1000, 2500, 5000};
+
+    private static final int FIXED = 29;
+
+    public long time; // monotonic milliseconds
+    public int icmpSessions;
+    public int udpSessions;
+    public int tcpSessions;
+    public int sockets;
+    public int maxFiles;
+    public long tunInPackets;
+    public long tunInBytes;
+    public long tunOutPackets;
+    public long tunOutBytes;
+    public long epollWakeups;
+    public long epollEvents;
+    public long uidLookups;
+    public long uidCacheHits;
+    public long uidMicros;
+    public long allocs;
+    public long frees;
+    public long dnsQueryBlocked;
+    public long dnsResponseBlocked;
+    public long dnsCacheLookups;
+    public long dnsCacheHits;
+    public long dnsCacheNegative;
+    public long dnsCacheEvicted;
+    public long dnsCacheSaved; // milliseconds
+    public long[] handlerCount;
+    public long[] handlerMicros;
+    public long[] upcallCount;
+    public long[] upcallMicros;
+    public long[][] upcallHistogram;
+
+    // Returns null if the layout of the native library is not known
+    public static NativeMetrics parse(long[] m) {
+        if (m == null || m.length < FIXED || m[0] != VERSION || m[1] != m.length)
+            return null;
+
+        NativeMetrics metrics = new NativeMetrics();
+        metrics.time = m[2];
+        metrics.icmpSessions = (int) m[3];
+        metrics.udpSessions = (int) m[4];
+        metrics.tcpSessions = (int) m[5];
+        metrics.sockets = (int) m[6];
+        metrics.maxFiles = (int) m[7];
+        metrics.tunInPackets = m[8];
+        metrics.tunInBytes = m[9];
+        metrics.tunOutPackets = m[10];
+        metrics.tunOutBytes = m[11];
+        metrics.epollWakeups = m[12];
+        metrics.epollEvents = m[13];
+        metrics.uidLookups = m[14];
+        metrics.uidCacheHits = m[15];
+        metrics.uidMicros = m[16];
+        metrics.allocs = m[17];
+        metrics.frees = m[18];
+        metrics.dnsQueryBlocked = m[19];
+        metrics.dnsResponseBlocked = m[20];
+        metrics.dnsCacheLookups = m[21];
+        metrics.dnsCacheHits = m[22];
+        metrics.dnsCacheNegative = m[23];
+        metrics.dnsCacheEvicted = m[24];
+        metrics.dnsCacheSaved = m[25];
+
+        int handlers = (int) m[26];
+        int upcalls = (int) m[27];
+        int buckets = (int) m[28];
+        if (handlers != HANDLERS.length || upcalls != UPCALLS.length || buckets != BUCKETS.length + 1)
+            return null;
+
+        metrics.handlerCount = new long[handlers];
+        metrics.handlerMicros = new long[handlers];
+        metrics.upcallCount = new long[upcalls];
+        metrics.upcallMicros = new long[upcalls];
+        metrics.upcallHistogram = new long[upcalls][buckets];
+
+        int i = FIXED;
+        for (int h = 0; h < handlers; h++) {
+            metrics.handlerCount[h] = m[i++];
+            metrics.handlerMicros[h] = m[i++];
+        }
+        for (int u = 0; u < upcalls; u++) {
+            metrics.upcallCount[u] = m[i++];
+            metrics.upcallMicros[u] = m[i++];
+            for (int b = 0; b < buckets; b++)
+                metrics.upcallHistogram[u][b] = m[i++];
+        }
+
+        return metrics;
+    }
+
+    public int getSessions() {
+        return icmpSessions + udpSessions + tcpSessions;
+    }
+
+    public long getAllocBalance() {
+        return allocs - frees;
+    }
+
+    // Per second rate of a counter between an earlier snapshot and this one
+    public float rate(NativeMetrics previous, long now, long then) {
+        long dt = time - previous.time;
+        return (dt <= 0 ? 0 : (now - then) * 1000f / dt);
+    }
+
+    // Share of the elapsed time spent in a handler since an earlier snapshot
+    public float getHandlerLoad(NativeMetrics previous, int handler) {
+        long dt = time - previous.time;
+        return (dt <= 0 ? 0 : (handlerMicros[handler] - previous.handlerMicros[handler]) / 1000f / dt);
+    }
+
+    // Bucket upper bound in microseconds below which the given fraction of the upcalls completed
+    public int getUpcallPercentile(int upcall, float fraction) {
+        long[] histogram = upcallHistogram[upcall];
+        long target = (long) Math.ceil(upcallCount[upcall] * fraction);
+        long count = 0;
+        for (int b = 0; b < BUCKETS.length; b++) {
+            count += histogram[b];
+            if (count >= target)
+                return BUCKETS[b];
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("sessions ").append(icmpSessions).append('/').append(udpSessions).append('/').append(tcpSessions);
+        sb.append(" sockets ").append(sockets).append('/').append(maxFiles);
+        sb.append(" tun in ").append(tunInPackets).append('/').append(tunInBytes);
+        sb.append(" out ").append(tunOutPackets).append('/').append(tunOutBytes);
+        sb.append(" epoll ").append(epollWakeups).append('/').append(epollEvents);
+        sb.append(" uid ").append(uidLookups).append(" cached ").append(uidCacheHits)
+                .append(' ').append(uidLookups == 0 ? 0 : uidMicros / uidLookups).append(" us");
+        sb.append(" allocs ").append(getAllocBalance());
+        for (int h = 0; h < handlerCount.length; h++)
+            sb.append(' ').append(HANDLERS[h]).append(' ').append(handlerMicros[h] / 1000).append(" ms");
+        for (int u = 0; u < upcallCount.length; u++)
+            if (upcallCount[u] > 0) {
+                int p99 = getUpcallPercentile(u, 0.99f);
+                sb.append(' ').append(UPCALLS[u]).append(' ').append(upcallCount[u])
+                        .append(" avg ").append(upcallMicros[u] / upcallCount[u]).append(" us")
+                        .append(" p99 ").append(p99 == Integer.MAX_VALUE ? ">" + BUCKETS[BUCKETS.length - 1] : "<" + p99)
+                        .append(" us");
+            }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,351 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Offline IP address to organization database
+// Imported from an ip2asn TSV file (https://iptoasn.com/):
+//   range_start range_end AS_number country_code AS_description
+// and compiled into sorted range tables, which are memory mapped and binary searched
+//
+// Layout (big endian):
+//   header: magic, version, IPv4 count, IPv6 count, name count
+//   IPv4 ranges: start (int), end (int), name (int)
+//   IPv6 ranges: start (2 longs), end (2 longs), name (int)
+//   name offsets: int per name, followed by one offset to the end of the names
+//   names: UTF-8
+public class OrganizationDatabase {
+    private static final String TAG = "NetGuard.Organization";
+
+    private static final String FILE_NAME = "organization.bin";
+    private static final int MAGIC = 0x4E474F52; // NGOR
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 5 * 4;
+    private static final int RANGE4_SIZE = 3 * 4;
+    private static final int RANGE6_SIZE = 4 * 8 + 4;
+
+    private static final Object lock = new Object();
+    private static OrganizationDatabase instance = null;
+    private static boolean loaded = false;
+
+    private final MappedByteBuffer buffer;
+    private final int count4;
+    private final int count6;
+    private final int countNames;
+    private final int base6;
+    private final int baseOffsets;
+    private final int baseNames;
+
+    private OrganizationDatabase(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+            throw new IOException("Invalid organization database");
+        count4 = buffer.getInt(8);
+        count6 = buffer.getInt(12);
+        countNames = buffer.getInt(16);
+        base6 = HEADER_SIZE + count4 * RANGE4_SIZE;
+        baseOffsets = base6 + count6 * RANGE6_SIZE;
+        baseNames = baseOffsets + (countNames + 1) * 4;
+    }
+
+    public static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    public static boolean isAvailable(Context context) {
+        return (getInstance(context) != null);
+    }
+
+    // Returns null if no database was imported
+    public static OrganizationDatabase getInstance(Context context) {
+        synchronized (lock) {
+            if (!loaded) {
+                loaded = true;
+                File file = getFile(context);
+                if (file.exists())
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                        // The mapping remains valid after closing the channel
+                        FileChannel channel = raf.getChannel();
+                        instance = new OrganizationDatabase(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                        Log.i(TAG, "Loaded " + instance);
+                    } catch (Throwable ex) {
+                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                        instance = null;
+                    }
+            }
+            return instance;
+        }
+    }
+
+    public String lookup(String ip) {
+        try {
+            return lookup(InetAddress.getByName(ip));
+        } catch (Throwable ex) {
+            Log.w(TAG, ex.toString());
+            return null;
+        }
+    }
+
+    public String lookup(InetAddress address) {
+        byte[] b = address.getAddress();
+        int name = -1;
+        if (address instanceof Inet4Address) {
+            int ip = ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+            name = find4(ip);
+        } else if (address instanceof Inet6Address) {
+            ByteBuffer bb = ByteBuffer.wrap(b);
+            name = find6(bb.getLong(), bb.getLong());
+        }
+        return (name < 0 ? null : getName(name));
+    }
+
+    private int find4(int ip) {
+        // Unsigned comparison by flipping the sign bit
+        int key = ip ^ Integer.MIN_VALUE;
+        int lo = 0;
+        int hi = count4 - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int start = buffer.getInt(HEADER_SIZE + mid * RANGE4_SIZE) ^ Integer.MIN_VALUE;
+            if (start <= key) {
+                found = mid;
+                lo = mid + 1;
+            } else
+                hi = mid - 1;
+        }
+        if (found < 0)
+            return -1;
+        int pos = HEADER_SIZE + found * RANGE4_SIZE;
+        int end = buffer.getInt(pos + 4) ^ Integer.MIN_VALUE;
+        return (key <= end ? buffer.getInt(pos + 8) : -1);
+    }
+
+    private int find6(long hi64, long lo64) {
+        int lo = 0;
+        int hi = count6 - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int pos = base6 + mid * RANGE6_SIZE;
+            if (compare6(buffer.getLong(pos), buffer.getLong(pos + 8), hi64, lo64) <= 0) {
+                found = mid;
+                lo = mid + 1;
+            } else
+                hi = mid - 1;
+        }
+        if (found < 0)
+            return -1;
+        int pos = base6 + found * RANGE6_SIZE;
+        if (compare6(hi64, lo64, buffer.getLong(pos + 16), buffer.getLong(pos + 24)) <= 0)
+            return buffer.getInt(pos + 32);
+        else
+            return -1;
+    }
+
+    private static int compare6(long hi1, long lo1, long hi2, long lo2) {
+        int c = Long.compare(hi1 ^ Long.MIN_VALUE, hi2 ^ Long.MIN_VALUE);
+        if (c != 0)
+            return c;
+        return Long.compare(lo1 ^ Long.MIN_VALUE, lo2 ^ Long.MIN_VALUE);
+    }
+
+    private String getName(int index) {
+        int start = buffer.getInt(baseOffsets + index * 4);
+        int end = buffer.getInt(baseOffsets + (index + 1) * 4);
+        byte[] name = new byte[end - start];
+        for (int i = 0; i < name.length; i++)
+            name[i] = buffer.get(baseNames + start + i);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "organizations ipv4=" + count4 + " ipv6=" + count6 + " names=" + countNames +
+                " size=" + buffer.capacity();
+    }
+
+    // Compile an ip2asn TSV stream into the database file
+    public static int compile(InputStream in, Context context) throws IOException {
+        List<long[]> ranges4 = new ArrayList<>();
+        List<long[]> ranges6 = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        Map<String, Integer> mapName = new HashMap<>();
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        int lines = 0;
+        while ((line = br.readLine()) != null) {
+            lines++;
+            String[] fields = line.split("\t");
+            if (fields.length < 5)
+                continue;
+
+            // AS 0 is not routed
+            long asn;
+            try {
+                asn = Long.parseLong(fields[2].trim());
+            } catch (NumberFormatException ignored) {
+                continue;
+            }
+            if (asn == 0)
+                continue;
+
+            String organization = "AS" + asn + " " + fields[4].trim();
+            Integer index = mapName.get(organization);
+            if (index == null) {
+                index = names.size();
+                names.add(organization);
+                mapName.put(organization, index);
+            }
+
+            byte[] start;
+            byte[] end;
+            try {
+                if (!Util.isNumericAddress(fields[0].trim()) || !Util.isNumericAddress(fields[1].trim()))
+                    continue;
+                start = InetAddress.getByName(fields[0].trim()).getAddress();
+                end = InetAddress.getByName(fields[1].trim()).getAddress();
+            } catch (Throwable ex) {
+                Log.w(TAG, "Invalid line=" + line);
+                continue;
+            }
+            if (start.length != end.length)
+                continue;
+
+            if (start.length == 4)
+                ranges4.add(new long[]{toLong(start, 0, 4), toLong(end, 0, 4), index});
+            else
+                ranges6.add(new long[]{toLong(start, 0, 8), toLong(start, 8, 8), toLong(end, 0, 8), toLong(end, 8, 8), index});
+        }
+
+        Comparator<long[]> comparator4 = new Comparator<long[]>() {
+            @Override
+            public int compare(long[] r1, long[] r2) {
+                return Long.compare(r1[0], r2[0]);
+            }
+        };
+        Comparator<long[]> comparator6 = new Comparator<long[]>() {
+            @Override
+            public int compare(long[] r1, long[] r2) {
+                return compare6(r1[0], r1[1], r2[0], r2[1]);
+            }
+        };
+        long[][] sorted4 = ranges4.toArray(new long[0][]);
+        long[][] sorted6 = ranges6.toArray(new long[0][]);
+        ranges4.clear();
+        ranges6.clear();
+        Arrays.sort(sorted4, comparator4);
+        Arrays.sort(sorted6, comparator6);
+
+        File file = getFile(context);
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted4.length);
+            out.writeInt(sorted6.length);
+            out.writeInt(names.size());
+
+            for (long[] r : sorted4) {
+                out.writeInt((int) r[0]);
+                out.writeInt((int) r[1]);
+                out.writeInt((int) r[2]);
+            }
+
+            for (long[] r : sorted6) {
+                out.writeLong(r[0]);
+                out.writeLong(r[1]);
+                out.writeLong(r[2]);
+                out.writeLong(r[3]);
+                out.writeInt((int) r[4]);
+            }
+
+            List<byte[]> encoded = new ArrayList<>();
+            int offset = 0;
+            for (String name : names) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                out.writeInt(offset);
+                offset += bytes.length;
+            }
+            out.writeInt(offset);
+
+            for (byte[] bytes : encoded)
+                out.write(bytes);
+        }
+
+        synchronized (lock) {
+            if (file.exists() && !file.delete())
+                Log.w(TAG, "Delete " + file + " failed");
+            if (!tmp.renameTo(file))
+                throw new IOException("Rename " + tmp + " failed");
+            instance = null;
+            loaded = false;
+        }
+
+        Log.i(TAG, "Compiled lines=" + lines +
+                " ipv4=" + sorted4.length + " ipv6=" + sorted6.length + " names=" + names.size());
+        return sorted4.length + sorted6.length;
+    }
+
+    public static void delete(Context context) {
+        synchronized (lock) {
+            File file = getFile(context);
+            if (file.exists() && !file.delete())
+                Log.w(TAG, "Delete " + file + " failed");
+            instance = null;
+            loaded = false;
+        }
+    }
+
+    private static long toLong(byte[] b, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++)
+            value = (value << 8) | (b[offset + i] & 0xFF);
+        return value;
+    }
+}
@@ -36,6 +36,9 @@ public class ReceiverPackageRemoved extends BroadcastReceiver {
 
         String action = (intent == null ? null : intent.getAction());
         if (Intent.ACTION_PACKAGE_FULLY_REMOVED.equals(action)) {
+            if (intent.getData() != null)
+                Rule.updatePackage(intent.getData().getSchemeSpecificPart(), context);
+
             int uid = intent.getIntExtra(Intent.EXTRA_UID, 0);
             if (uid > 0) {
                 DatabaseHelper dh = DatabaseHelper.getInstance(context);
@@ -22,14 +22,17 @@ package eu.faircode.netguard;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.ChangedPackages;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.os.Build;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.core.content.pm.PackageInfoCompat;
 import androidx.preference.PreferenceManager;
 
 import org.xmlpull.v1.XmlPullParser;
@@ -40,9 +43,17 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Rule {
     private static final String TAG = "NetGuard.Rule";
@@ -82,10 +93,32 @@ public class Rule {
     public boolean expanded = false;
 
     private static List<PackageInfo> cachePackageInfo = null;
-    private static Map<PackageInfo, String> cacheLabel = new HashMap<>();
-    private static Map<String, Boolean> cacheSystem = new HashMap<>();
-    private static Map<String, Boolean> cacheInternet = new HashMap<>();
-    private static Map<PackageInfo, Boolean> cacheEnabled = new HashMap<>();
+    private static Map<String, App> cacheApp = null;
+
+    private static final int APP_THREADS = 4;
+
+    // Rule repository, see getSnapshot
+    private static final String[] RULE_PREFERENCES = new String[]{
+            "wifi", "other", "screen_wifi", "screen_other", "roaming", "lockdown", "apply", "notify"};
+    private static final List<String> RULE_DEFAULTS = Arrays.asList(
+            "whitelist_wifi", "whitelist_other", "screen_wifi", "screen_other", "whitelist_roaming",
+            "manage_system", "screen_on");
+
+    private static final Object lockRepository = new Object();
+    private static List<Rule> snapshot = null;
+    private static Predefined predefined = null;
+    private static int packageSequence = 0;
+
+    // Guarded by dirtyPackages
+    private static boolean dirtyClear = false;
+    private static boolean dirtyAll = false;
+    private static final Set<String> dirtyPackages = new HashSet<>();
+    private static final Set<String> changedPackages = new HashSet<>();
+    private static final Set<Integer> dirtyUids = new HashSet<>();
+
+    // Preference listeners are weakly referenced
+    private static SharedPreferences.OnSharedPreferenceChangeListener listenerRules = null;
+    private static SharedPreferences.OnSharedPreferenceChangeListener listenerDefaults = null;
 
     private static List<PackageInfo> getPackages(Context context) {
         if (cachePackageInfo == null) {
@@ -95,47 +128,138 @@ public class Rule {
         return new ArrayList<>(cachePackageInfo);
     }
 
-    private static String getLabel(PackageInfo info, Context context) {
-        if (!cacheLabel.containsKey(info)) {
-            PackageManager pm = context.getPackageManager();
-            cacheLabel.put(info, info.applicationInfo.loadLabel(pm).toString());
+    // Application metadata, persisted in the app table
+    // An entry is valid for the version and update time of the package it was read from
+    private static class App {
+        long version;
+        long updated;
+        String label;
+        boolean system;
+        boolean internet;
+        boolean enabled;
+
+        boolean isFor(PackageInfo info) {
+            return (version == PackageInfoCompat.getLongVersionCode(info) && updated == info.lastUpdateTime);
         }
-        return cacheLabel.get(info);
     }
 
-    private static boolean isSystem(String packageName, Context context) {
-        if (!cacheSystem.containsKey(packageName))
-            cacheSystem.put(packageName, Util.isSystem(packageName, context));
-        return cacheSystem.get(packageName);
+    private static App getApp(PackageInfo info, Context context) {
+        PackageManager pm = context.getPackageManager();
+        App app = new App();
+        app.version = PackageInfoCompat.getLongVersionCode(info);
+        app.updated = info.lastUpdateTime;
+        app.label = info.applicationInfo.loadLabel(pm).toString();
+        app.system = Util.isSystem(info.packageName, context);
+        app.internet = Util.hasInternet(info.packageName, context);
+        app.enabled = Util.isEnabled(info, context);
+        return app;
     }
 
-    private static boolean hasInternet(String packageName, Context context) {
-        if (!cacheInternet.containsKey(packageName))
-            cacheInternet.put(packageName, Util.hasInternet(packageName, context));
-        return cacheInternet.get(packageName);
+    private static boolean isSpecial(int uid) {
+        return (uid == 0 || uid == 1013 || uid == 1020 || uid == 1021 || uid == 1051 || uid == 9999);
     }
 
-    private static boolean isEnabled(PackageInfo info, Context context) {
-        if (!cacheEnabled.containsKey(info))
-            cacheEnabled.put(info, Util.isEnabled(info, context));
-        return cacheEnabled.get(info);
+    // Make sure there is valid metadata for the packages
+    // Only new and updated packages are queried, in parallel
+    private static void loadApps(List<PackageInfo> listPI, DatabaseHelper dh, final Context context) {
+        if (cacheApp == null) {
+            cacheApp = new HashMap<>();
+            try (Cursor cursor = dh.getApps()) {
+                int colPackage = cursor.getColumnIndex("package");
+                int colVersion = cursor.getColumnIndex("version");
+                int colUpdated = cursor.getColumnIndex("updated");
+                int colLabel = cursor.getColumnIndex("label");
+                int colSystem = cursor.getColumnIndex("system");
+                int colInternet = cursor.getColumnIndex("internet");
+                int colEnabled = cursor.getColumnIndex("enabled");
+                while (cursor.moveToNext()) {
+                    // Entries without version were written by an older version
+                    if (cursor.isNull(colVersion) || cursor.isNull(colUpdated))
+                        continue;
+                    App app = new App();
+                    app.version = cursor.getLong(colVersion);
+                    app.updated = cursor.getLong(colUpdated);
+                    app.label = cursor.getString(colLabel);
+                    app.system = (cursor.getInt(colSystem) > 0);
+                    app.internet = (cursor.getInt(colInternet) > 0);
+                    app.enabled = (cursor.getInt(colEnabled) > 0);
+                    cacheApp.put(cursor.getString(colPackage), app);
+                }
+            }
+            Log.i(TAG, "Loaded apps=" + cacheApp.size());
+        }
+
+        List<PackageInfo> listMissing = new ArrayList<>();
+        for (PackageInfo info : listPI)
+            if (!isSpecial(info.applicationInfo.uid)) {
+                App app = cacheApp.get(info.packageName);
+                if (app == null || !app.isFor(info))
+                    listMissing.add(info);
+            }
+        if (listMissing.size() == 0)
+            return;
+
+        long start = SystemClock.elapsedRealtime();
+        List<Callable<App>> listTask = new ArrayList<>();
+        for (final PackageInfo info : listMissing)
+            listTask.add(new Callable<App>() {
+                @Override
+                public App call() {
+                    return getApp(info, context);
+                }
+            });
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(APP_THREADS, listMissing.size()));
+        try {
+            List<Future<App>> listFuture = executor.invokeAll(listTask);
+            for (int i = 0; i < listMissing.size(); i++)
+                try {
+                    PackageInfo info = listMissing.get(i);
+                    App app = listFuture.get(i).get();
+                    cacheApp.put(info.packageName, app);
+                    dh.addApp(info.packageName, app.version, app.updated,
+                            app.label, app.system, app.internet, app.enabled);
+                } catch (ExecutionException ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
+        } catch (InterruptedException ex) {
+            Log.w(TAG, ex.toString());
+        } finally {
+            executor.shutdown();
+        }
+
+        Log.i(TAG, "Queried apps=" + listMissing.size() +
+                " elapsed=" + (SystemClock.elapsedRealtime() - start) + " ms");
     }
 
+    // Rebuild all rules, including the application metadata
     public static void clearCache(Context context) {
         Log.i(TAG, "Clearing cache");
-        synchronized (context.getApplicationContext()) {
-            cachePackageInfo = null;
-            cacheLabel.clear();
-            cacheSystem.clear();
-            cacheInternet.clear();
-            cacheEnabled.clear();
+        synchronized (dirtyPackages) {
+            dirtyClear = true;
+            dirtyAll = true;
         }
+    }
 
-        DatabaseHelper dh = DatabaseHelper.getInstance(context);
-        dh.clearApps();
+    // Rebuild the rules of a uid of which the access rules changed, all uids if uid < 0
+    public static void updateAccess(int uid) {
+        synchronized (dirtyPackages) {
+            if (uid < 0)
+                dirtyAll = true;
+            else
+                dirtyUids.add(uid);
+        }
     }
 
-    private Rule(DatabaseHelper dh, PackageInfo info, Context context) {
+    // Rebuild the rules of the uid of an added, replaced or removed package
+    public static void updatePackage(String packageName, Context context) {
+        Log.i(TAG, "Package changed " + packageName);
+        synchronized (dirtyPackages) {
+            changedPackages.add(packageName);
+        }
+    }
+
+    private Rule(PackageInfo info, Context context) {
         this.uid = info.applicationInfo.uid;
         this.packageName = info.packageName;
         this.icon = info.applicationInfo.icon;
@@ -177,64 +301,58 @@ public class Rule {
             this.enabled = true;
             this.pkg = false;
         } else {
-            Cursor cursor = null;
-            try {
-                cursor = dh.getApp(this.packageName);
-                if (cursor.moveToNext()) {
-                    this.name = cursor.getString(cursor.getColumnIndex("label"));
-                    this.system = cursor.getInt(cursor.getColumnIndex("system")) > 0;
-                    this.internet = cursor.getInt(cursor.getColumnIndex("internet")) > 0;
-                    this.enabled = cursor.getInt(cursor.getColumnIndex("enabled")) > 0;
-                } else {
-                    this.name = getLabel(info, context);
-                    this.system = isSystem(info.packageName, context);
-                    this.internet = hasInternet(info.packageName, context);
-                    this.enabled = isEnabled(info, context);
-
-                    dh.addApp(this.packageName, this.name, this.system, this.internet, this.enabled);
-                }
-            } finally {
-                if (cursor != null)
-                    cursor.close();
-            }
+            App app = cacheApp.get(this.packageName);
+            if (app == null)
+                app = getApp(info, context);
+            this.name = app.label;
+            this.system = app.system;
+            this.internet = app.internet;
+            this.enabled = app.enabled;
         }
     }
 
-    public static List<Rule> getRules(final boolean all, Context context) {
-        synchronized (context.getApplicationContext()) {
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-            SharedPreferences wifi = context.getSharedPreferences("wifi", Context.MODE_PRIVATE);
-            SharedPreferences other = context.getSharedPreferences("other", Context.MODE_PRIVATE);
-            SharedPreferences screen_wifi = context.getSharedPreferences("screen_wifi", Context.MODE_PRIVATE);
-            SharedPreferences screen_other = context.getSharedPreferences("screen_other", Context.MODE_PRIVATE);
-            SharedPreferences roaming = context.getSharedPreferences("roaming", Context.MODE_PRIVATE);
-            SharedPreferences lockdown = context.getSharedPreferences("lockdown", Context.MODE_PRIVATE);
-            SharedPreferences apply = context.getSharedPreferences("apply", Context.MODE_PRIVATE);
-            SharedPreferences notify = context.getSharedPreferences("notify", Context.MODE_PRIVATE);
-
-            // Get settings
-            boolean default_wifi = prefs.getBoolean("whitelist_wifi", true);
-            boolean default_other = prefs.getBoolean("whitelist_other", true);
-            boolean default_screen_wifi = prefs.getBoolean("screen_wifi", false);
-            boolean default_screen_other = prefs.getBoolean("screen_other", false);
-            boolean default_roaming = prefs.getBoolean("whitelist_roaming", true);
-
-            boolean manage_system = prefs.getBoolean("manage_system", false);
-            boolean screen_on = prefs.getBoolean("screen_on", true);
-            boolean show_user = prefs.getBoolean("show_user", true);
-            boolean show_system = prefs.getBoolean("show_system", false);
-            boolean show_nointernet = prefs.getBoolean("show_nointernet", true);
-            boolean show_disabled = prefs.getBoolean("show_disabled", true);
+    private Rule(Rule other) {
+        this.uid = other.uid;
+        this.packageName = other.packageName;
+        this.icon = other.icon;
+        this.name = other.name;
+        this.version = other.version;
+        this.system = other.system;
+        this.internet = other.internet;
+        this.enabled = other.enabled;
+        this.pkg = other.pkg;
+
+        this.wifi_default = other.wifi_default;
+        this.other_default = other.other_default;
+        this.screen_wifi_default = other.screen_wifi_default;
+        this.screen_other_default = other.screen_other_default;
+        this.roaming_default = other.roaming_default;
+
+        this.wifi_blocked = other.wifi_blocked;
+        this.other_blocked = other.other_blocked;
+        this.screen_wifi = other.screen_wifi;
+        this.screen_other = other.screen_other;
+        this.roaming = other.roaming;
+        this.lockdown = other.lockdown;
+
+        this.apply = other.apply;
+        this.notify = other.notify;
+
+        this.relateduids = other.relateduids;
+        this.related = (other.related == null ? null : other.related.clone());
+
+        this.hosts = other.hosts;
+        this.changed = other.changed;
+    }
 
-            default_screen_wifi = default_screen_wifi && screen_on;
-            default_screen_other = default_screen_other && screen_on;
+    private static class Predefined {
+        Map<String, Boolean> wifi_blocked = new HashMap<>();
+        Map<String, Boolean> other_blocked = new HashMap<>();
+        Map<String, Boolean> roaming = new HashMap<>();
+        Map<String, String[]> related = new HashMap<>();
+        Map<String, Boolean> system = new HashMap<>();
 
-            // Get predefined rules
-            Map<String, Boolean> pre_wifi_blocked = new HashMap<>();
-            Map<String, Boolean> pre_other_blocked = new HashMap<>();
-            Map<String, Boolean> pre_roaming = new HashMap<>();
-            Map<String, String[]> pre_related = new HashMap<>();
-            Map<String, Boolean> pre_system = new HashMap<>();
+        Predefined(Context context) {
             try {
                 XmlResourceParser xml = context.getResources().getXml(R.xml.predefined);
                 int eventType = xml.getEventType();
@@ -243,24 +361,25 @@ public class Rule {
                         if ("wifi".equals(xml.getName())) {
                             String pkg = xml.getAttributeValue(null, "package");
                             boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
-                            pre_wifi_blocked.put(pkg, pblocked);
+                            wifi_blocked.put(pkg, pblocked);
 
                         } else if ("other".equals(xml.getName())) {
                             String pkg = xml.getAttributeValue(null, "package");
                             boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
-                            boolean proaming = xml.getAttributeBooleanValue(null, "roaming", default_roaming);
-                            pre_other_blocked.put(pkg, pblocked);
-                            pre_roaming.put(pkg, proaming);
+                            other_blocked.put(pkg, pblocked);
+                            // Without attribute the default roaming setting applies
+                            if (xml.getAttributeValue(null, "roaming") != null)
+                                roaming.put(pkg, xml.getAttributeBooleanValue(null, "roaming", false));
 
                         } else if ("relation".equals(xml.getName())) {
                             String pkg = xml.getAttributeValue(null, "package");
                             String[] rel = xml.getAttributeValue(null, "related").split(",");
-                            pre_related.put(pkg, rel);
+                            related.put(pkg, rel);
 
                         } else if ("type".equals(xml.getName())) {
                             String pkg = xml.getAttributeValue(null, "package");
-                            boolean system = xml.getAttributeBooleanValue(null, "system", true);
-                            pre_system.put(pkg, system);
+                            boolean psystem = xml.getAttributeBooleanValue(null, "system", true);
+                            system.put(pkg, psystem);
                         }
 
 
@@ -269,164 +388,395 @@ public class Rule {
             } catch (Throwable ex) {
                 Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
+        }
+    }
 
-            // Build rule list
-            List<Rule> listRules = new ArrayList<>();
-            List<PackageInfo> listPI = getPackages(context);
-
-            int userId = Process.myUid() / 100000;
-
-            // Add root
-            PackageInfo root = new PackageInfo();
-            root.packageName = "root";
-            root.versionCode = Build.VERSION.SDK_INT;
-            root.versionName = Build.VERSION.RELEASE;
-            root.applicationInfo = new ApplicationInfo();
-            root.applicationInfo.uid = 0;
-            root.applicationInfo.icon = 0;
-            listPI.add(root);
-
-            // Add mediaserver
-            PackageInfo media = new PackageInfo();
-            media.packageName = "android.media";
-            media.versionCode = Build.VERSION.SDK_INT;
-            media.versionName = Build.VERSION.RELEASE;
-            media.applicationInfo = new ApplicationInfo();
-            media.applicationInfo.uid = 1013 + userId * 100000;
-            media.applicationInfo.icon = 0;
-            listPI.add(media);
-
-            // MulticastDNSResponder
-            PackageInfo mdr = new PackageInfo();
-            mdr.packageName = "android.multicast";
-            mdr.versionCode = Build.VERSION.SDK_INT;
-            mdr.versionName = Build.VERSION.RELEASE;
-            mdr.applicationInfo = new ApplicationInfo();
-            mdr.applicationInfo.uid = 1020 + userId * 100000;
-            mdr.applicationInfo.icon = 0;
-            listPI.add(mdr);
-
-            // Add GPS daemon
-            PackageInfo gps = new PackageInfo();
-            gps.packageName = "android.gps";
-            gps.versionCode = Build.VERSION.SDK_INT;
-            gps.versionName = Build.VERSION.RELEASE;
-            gps.applicationInfo = new ApplicationInfo();
-            gps.applicationInfo.uid = 1021 + userId * 100000;
-            gps.applicationInfo.icon = 0;
-            listPI.add(gps);
-
-            // Add DNS daemon
-            PackageInfo dns = new PackageInfo();
-            dns.packageName = "android.dns";
-            dns.versionCode = Build.VERSION.SDK_INT;
-            dns.versionName = Build.VERSION.RELEASE;
-            dns.applicationInfo = new ApplicationInfo();
-            dns.applicationInfo.uid = 1051 + userId * 100000;
-            dns.applicationInfo.icon = 0;
-            listPI.add(dns);
-
-            // Add nobody
-            PackageInfo nobody = new PackageInfo();
-            nobody.packageName = "nobody";
-            nobody.versionCode = Build.VERSION.SDK_INT;
-            nobody.versionName = Build.VERSION.RELEASE;
-            nobody.applicationInfo = new ApplicationInfo();
-            nobody.applicationInfo.uid = 9999;
-            nobody.applicationInfo.icon = 0;
-            listPI.add(nobody);
+    private static class Settings {
+        SharedPreferences wifi;
+        SharedPreferences other;
+        SharedPreferences screen_wifi;
+        SharedPreferences screen_other;
+        SharedPreferences roaming;
+        SharedPreferences lockdown;
+        SharedPreferences apply;
+        SharedPreferences notify;
+
+        boolean default_wifi;
+        boolean default_other;
+        boolean default_screen_wifi;
+        boolean default_screen_other;
+        boolean default_roaming;
+        boolean manage_system;
+        boolean screen_on;
+
+        Settings(Context context) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            wifi = context.getSharedPreferences("wifi", Context.MODE_PRIVATE);
+            other = context.getSharedPreferences("other", Context.MODE_PRIVATE);
+            screen_wifi = context.getSharedPreferences("screen_wifi", Context.MODE_PRIVATE);
+            screen_other = context.getSharedPreferences("screen_other", Context.MODE_PRIVATE);
+            roaming = context.getSharedPreferences("roaming", Context.MODE_PRIVATE);
+            lockdown = context.getSharedPreferences("lockdown", Context.MODE_PRIVATE);
+            apply = context.getSharedPreferences("apply", Context.MODE_PRIVATE);
+            notify = context.getSharedPreferences("notify", Context.MODE_PRIVATE);
+
+            default_wifi = prefs.getBoolean("whitelist_wifi", true);
+            default_other = prefs.getBoolean("whitelist_other", true);
+            default_screen_wifi = prefs.getBoolean("screen_wifi", false);
+            default_screen_other = prefs.getBoolean("screen_other", false);
+            default_roaming = prefs.getBoolean("whitelist_roaming", true);
+
+            manage_system = prefs.getBoolean("manage_system", false);
+            screen_on = prefs.getBoolean("screen_on", true);
+
+            default_screen_wifi = default_screen_wifi && screen_on;
+            default_screen_other = default_screen_other && screen_on;
+        }
+    }
+
+    private static Map<Integer, List<PackageInfo>> getPackagesByUid(Context context) {
+        List<PackageInfo> listPI = getPackages(context);
+
+        int userId = Process.myUid() / 100000;
+
+        // Add root
+        PackageInfo root = new PackageInfo();
+        root.packageName = "root";
+        root.versionCode = Build.VERSION.SDK_INT;
+        root.versionName = Build.VERSION.RELEASE;
+        root.applicationInfo = new ApplicationInfo();
+        root.applicationInfo.uid = 0;
+        root.applicationInfo.icon = 0;
+        listPI.add(root);
+
+        // Add mediaserver
+        PackageInfo media = new PackageInfo();
+        media.packageName = "android.media";
+        media.versionCode = Build.VERSION.SDK_INT;
+        media.versionName = Build.VERSION.RELEASE;
+        media.applicationInfo = new ApplicationInfo();
+        media.applicationInfo.uid = 1013 + userId * 100000;
+        media.applicationInfo.icon = 0;
+        listPI.add(media);
+
+        // MulticastDNSResponder
+        PackageInfo mdr = new PackageInfo();
+        mdr.packageName = "android.multicast";
+        mdr.versionCode = Build.VERSION.SDK_INT;
+        mdr.versionName = Build.VERSION.RELEASE;
+        mdr.applicationInfo = new ApplicationInfo();
+        mdr.applicationInfo.uid = 1020 + userId * 100000;
+        mdr.applicationInfo.icon = 0;
+        listPI.add(mdr);
+
+        // Add GPS daemon
+        PackageInfo gps = new PackageInfo();
+        gps.packageName = "android.gps";
+        gps.versionCode = Build.VERSION.SDK_INT;
+        gps.versionName = Build.VERSION.RELEASE;
+        gps.applicationInfo = new ApplicationInfo();
+        gps.applicationInfo.uid = 1021 + userId * 100000;
+        gps.applicationInfo.icon = 0;
+        listPI.add(gps);
+
+        // Add DNS daemon
+        PackageInfo dns = new PackageInfo();
+        dns.packageName = "android.dns";
+        dns.versionCode = Build.VERSION.SDK_INT;
+        dns.versionName = Build.VERSION.RELEASE;
+        dns.applicationInfo = new ApplicationInfo();
+        dns.applicationInfo.uid = 1051 + userId * 100000;
+        dns.applicationInfo.icon = 0;
+        listPI.add(dns);
+
+        // Add nobody
+        PackageInfo nobody = new PackageInfo();
+        nobody.packageName = "nobody";
+        nobody.versionCode = Build.VERSION.SDK_INT;
+        nobody.versionName = Build.VERSION.RELEASE;
+        nobody.applicationInfo = new ApplicationInfo();
+        nobody.applicationInfo.uid = 9999;
+        nobody.applicationInfo.icon = 0;
+        listPI.add(nobody);
+
+        Map<Integer, List<PackageInfo>> mapUid = new HashMap<>();
+        for (PackageInfo info : listPI) {
+            // Skip self
+            if (info.applicationInfo.uid == Process.myUid())
+                continue;
+
+            List<PackageInfo> list = mapUid.get(info.applicationInfo.uid);
+            if (list == null) {
+                list = new ArrayList<>();
+                mapUid.put(info.applicationInfo.uid, list);
+            }
+            list.add(info);
+        }
+        return mapUid;
+    }
+
+    private static Rule getRule(PackageInfo info, List<PackageInfo> listUid,
+                                Settings settings, Predefined pre, DatabaseHelper dh, Context context) {
+        Rule rule = new Rule(info, context);
+
+        if (pre.system.containsKey(info.packageName))
+            rule.system = pre.system.get(info.packageName);
+
+        rule.wifi_default = (pre.wifi_blocked.containsKey(info.packageName) ? pre.wifi_blocked.get(info.packageName) : settings.default_wifi);
+        rule.other_default = (pre.other_blocked.containsKey(info.packageName) ? pre.other_blocked.get(info.packageName) : settings.default_other);
+        rule.screen_wifi_default = settings.default_screen_wifi;
+        rule.screen_other_default = settings.default_screen_other;
+        rule.roaming_default = (pre.roaming.containsKey(info.packageName) ? pre.roaming.get(info.packageName) : settings.default_roaming);
+
+        rule.wifi_blocked = (!(rule.system && !settings.manage_system) && settings.wifi.getBoolean(info.packageName, rule.wifi_default));
+        rule.other_blocked = (!(rule.system && !settings.manage_system) && settings.other.getBoolean(info.packageName, rule.other_default));
+        rule.screen_wifi = settings.screen_wifi.getBoolean(info.packageName, rule.screen_wifi_default) && settings.screen_on;
+        rule.screen_other = settings.screen_other.getBoolean(info.packageName, rule.screen_other_default) && settings.screen_on;
+        rule.roaming = settings.roaming.getBoolean(info.packageName, rule.roaming_default);
+        rule.lockdown = settings.lockdown.getBoolean(info.packageName, false);
+
+        rule.apply = settings.apply.getBoolean(info.packageName, true);
+        rule.notify = settings.notify.getBoolean(info.packageName, true);
+
+        // Related packages
+        List<String> listPkg = new ArrayList<>();
+        if (pre.related.containsKey(info.packageName))
+            listPkg.addAll(Arrays.asList(pre.related.get(info.packageName)));
+        for (PackageInfo pi : listUid)
+            if (!pi.packageName.equals(rule.packageName)) {
+                rule.relateduids = true;
+                listPkg.add(pi.packageName);
+            }
+        rule.related = listPkg.toArray(new String[0]);
+
+        rule.hosts = dh.getHostCount(rule.uid, true);
+
+        rule.updateChanged(settings.default_wifi, settings.default_other, settings.default_roaming);
+
+        return rule;
+    }
+
+    private static void registerListeners(Context context) {
+        if (listenerRules != null)
+            return;
+
+        listenerRules = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                synchronized (dirtyPackages) {
+                    if (key == null)
+                        dirtyAll = true;
+                    else
+                        dirtyPackages.add(key);
+                }
+            }
+        };
+        for (String name : RULE_PREFERENCES)
+            context.getSharedPreferences(name, Context.MODE_PRIVATE)
+                    .registerOnSharedPreferenceChangeListener(listenerRules);
+
+        listenerDefaults = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                if (key == null || RULE_DEFAULTS.contains(key))
+                    synchronized (dirtyPackages) {
+                        dirtyAll = true;
+                    }
+            }
+        };
+        PreferenceManager.getDefaultSharedPreferences(context)
+                .registerOnSharedPreferenceChangeListener(listenerDefaults);
+    }
+
+    private static void checkChangedPackages(Context context) {
+        // Package broadcasts are missed while no receiver is registered
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+            return;
+
+        ChangedPackages changed = context.getPackageManager().getChangedPackages(packageSequence);
+        if (changed != null) {
+            packageSequence = changed.getSequenceNumber();
+            if (snapshot != null)
+                synchronized (dirtyPackages) {
+                    changedPackages.addAll(changed.getPackageNames());
+                }
+        }
+    }
+
+    // Immutable snapshot of the rules of all packages, sorted by name
+    // The rules must not be modified, use getRules for a modifiable copy
+    public static List<Rule> getSnapshot(Context context) {
+        synchronized (lockRepository) {
+            registerListeners(context);
+            checkChangedPackages(context);
+
+            boolean clear;
+            boolean all;
+            Set<String> dirty = new HashSet<>();
+            Set<String> changed = new HashSet<>();
+            Set<Integer> access = new HashSet<>();
+            synchronized (dirtyPackages) {
+                clear = dirtyClear;
+                all = dirtyAll;
+                dirty.addAll(dirtyPackages);
+                changed.addAll(changedPackages);
+                access.addAll(dirtyUids);
+                dirtyClear = false;
+                dirtyAll = false;
+                dirtyPackages.clear();
+                changedPackages.clear();
+                dirtyUids.clear();
+            }
 
             DatabaseHelper dh = DatabaseHelper.getInstance(context);
-            for (PackageInfo info : listPI)
-                try {
-                    // Skip self
-                    if (info.applicationInfo.uid == Process.myUid())
-                        continue;
 
-                    Rule rule = new Rule(dh, info, context);
-
-                    if (pre_system.containsKey(info.packageName))
-                        rule.system = pre_system.get(info.packageName);
-                    if (info.applicationInfo.uid == Process.myUid())
-                        rule.system = true;
-
-                    if (all ||
-                            ((rule.system ? show_system : show_user) &&
-                                    (show_nointernet || rule.internet) &&
-                                    (show_disabled || rule.enabled))) {
-
-                        rule.wifi_default = (pre_wifi_blocked.containsKey(info.packageName) ? pre_wifi_blocked.get(info.packageName) : default_wifi);
-                        rule.other_default = (pre_other_blocked.containsKey(info.packageName) ? pre_other_blocked.get(info.packageName) : default_other);
-                        rule.screen_wifi_default = default_screen_wifi;
-                        rule.screen_other_default = default_screen_other;
-                        rule.roaming_default = (pre_roaming.containsKey(info.packageName) ? pre_roaming.get(info.packageName) : default_roaming);
-
-                        rule.wifi_blocked = (!(rule.system && !manage_system) && wifi.getBoolean(info.packageName, rule.wifi_default));
-                        rule.other_blocked = (!(rule.system && !manage_system) && other.getBoolean(info.packageName, rule.other_default));
-                        rule.screen_wifi = screen_wifi.getBoolean(info.packageName, rule.screen_wifi_default) && screen_on;
-                        rule.screen_other = screen_other.getBoolean(info.packageName, rule.screen_other_default) && screen_on;
-                        rule.roaming = roaming.getBoolean(info.packageName, rule.roaming_default);
-                        rule.lockdown = lockdown.getBoolean(info.packageName, false);
-
-                        rule.apply = apply.getBoolean(info.packageName, true);
-                        rule.notify = notify.getBoolean(info.packageName, true);
-
-                        // Related packages
-                        List<String> listPkg = new ArrayList<>();
-                        if (pre_related.containsKey(info.packageName))
-                            listPkg.addAll(Arrays.asList(pre_related.get(info.packageName)));
-                        for (PackageInfo pi : listPI)
-                            if (pi.applicationInfo.uid == rule.uid && !pi.packageName.equals(rule.packageName)) {
-                                rule.relateduids = true;
-                                listPkg.add(pi.packageName);
-                            }
-                        rule.related = listPkg.toArray(new String[0]);
-
-                        rule.hosts = dh.getHostCount(rule.uid, true);
-
-                        rule.updateChanged(default_wifi, default_other, default_roaming);
+            if (clear) {
+                cachePackageInfo = null;
+                cacheApp = null;
+                dh.clearApps();
+            } else if (changed.size() > 0) {
+                // Updated packages have a new version or update time,
+                // but the enabled state can change without
+                cachePackageInfo = null;
+                for (String packageName : changed) {
+                    if (cacheApp != null)
+                        cacheApp.remove(packageName);
+                    dh.clearApp(packageName);
+                }
+                dirty.addAll(changed);
+            }
+
+            if (snapshot != null && !all && dirty.size() == 0 && access.size() == 0)
+                return snapshot;
+
+            long start = SystemClock.elapsedRealtime();
+            Settings settings = new Settings(context);
+            if (predefined == null)
+                predefined = new Predefined(context);
+            Map<Integer, List<PackageInfo>> mapUid = getPackagesByUid(context);
 
+            // Determine the uids to rebuild
+            List<Rule> listRules = new ArrayList<>();
+            Set<Integer> uids = new HashSet<>();
+            if (snapshot == null || all)
+                uids.addAll(mapUid.keySet());
+            else {
+                for (Rule rule : snapshot)
+                    if (dirty.contains(rule.packageName) || access.contains(rule.uid))
+                        uids.add(rule.uid);
+                for (Integer uid : mapUid.keySet())
+                    for (PackageInfo info : mapUid.get(uid))
+                        if (dirty.contains(info.packageName))
+                            uids.add(uid);
+                for (Rule rule : snapshot)
+                    if (!uids.contains(rule.uid))
                         listRules.add(rule);
+            }
+
+            List<PackageInfo> listPI = new ArrayList<>();
+            for (Integer uid : uids)
+                if (mapUid.containsKey(uid))
+                    listPI.addAll(mapUid.get(uid));
+            loadApps(listPI, dh, context);
+
+            if (snapshot == null || all) {
+                // Forget removed packages
+                Set<String> installed = new HashSet<>();
+                for (PackageInfo info : listPI)
+                    installed.add(info.packageName);
+                Iterator<String> it = cacheApp.keySet().iterator();
+                while (it.hasNext()) {
+                    String packageName = it.next();
+                    if (!installed.contains(packageName)) {
+                        it.remove();
+                        dh.clearApp(packageName);
                     }
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                 }
+            }
+
+            for (Integer uid : uids) {
+                List<PackageInfo> listUid = mapUid.get(uid);
+                if (listUid != null)
+                    for (PackageInfo info : listUid)
+                        try {
+                            listRules.add(getRule(info, listUid, settings, predefined, dh, context));
+                        } catch (Throwable ex) {
+                            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                        }
+            }
 
             // Sort rule list
             final Collator collator = Collator.getInstance(Locale.getDefault());
             collator.setStrength(Collator.SECONDARY); // Case insensitive, process accents etc
 
-            String sort = prefs.getString("sort", "name");
-            if ("uid".equals(sort))
-                Collections.sort(listRules, new Comparator<Rule>() {
-                    @Override
-                    public int compare(Rule rule, Rule other) {
-                        if (rule.uid < other.uid)
-                            return -1;
-                        else if (rule.uid > other.uid)
-                            return 1;
-                        else {
-                            int i = collator.compare(rule.name, other.name);
-                            return (i == 0 ? rule.packageName.compareTo(other.packageName) : i);
-                        }
-                    }
-                });
-            else
-                Collections.sort(listRules, new Comparator<Rule>() {
-                    @Override
-                    public int compare(Rule rule, Rule other) {
-                        if (all || rule.changed == other.changed) {
-                            int i = collator.compare(rule.name, other.name);
-                            return (i == 0 ? rule.packageName.compareTo(other.packageName) : i);
-                        }
-                        return (rule.changed ? -1 : 1);
-                    }
-                });
+            Collections.sort(listRules, new Comparator<Rule>() {
+                @Override
+                public int compare(Rule rule, Rule other) {
+                    int i = collator.compare(rule.name, other.name);
+                    return (i == 0 ? rule.packageName.compareTo(other.packageName) : i);
+                }
+            });
+
+            snapshot = Collections.unmodifiableList(listRules);
+
+            Log.i(TAG, "Rules " + (all || uids.size() == mapUid.size() ? "built" : "updated") +
+                    " uids=" + uids.size() + "/" + mapUid.size() +
+                    " rules=" + snapshot.size() +
+                    " elapsed=" + (SystemClock.elapsedRealtime() - start) + " ms");
 
-            return listRules;
+            return snapshot;
         }
     }
 
+    // Modifiable copies of the rules
+    public static List<Rule> getRules(final boolean all, Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean show_user = prefs.getBoolean("show_user", true);
+        boolean show_system = prefs.getBoolean("show_system", false);
+        boolean show_nointernet = prefs.getBoolean("show_nointernet", true);
+        boolean show_disabled = prefs.getBoolean("show_disabled", true);
+
+        List<Rule> listRules = new ArrayList<>();
+        for (Rule rule : getSnapshot(context))
+            if (all ||
+                    ((rule.system ? show_system : show_user) &&
+                            (show_nointernet || rule.internet) &&
+                            (show_disabled || rule.enabled)))
+                listRules.add(new Rule(rule));
+
+        // Sort rule list
+        final Collator collator = Collator.getInstance(Locale.getDefault());
+        collator.setStrength(Collator.SECONDARY); // Case insensitive, process accents etc
+
+        String sort = prefs.getString("sort", "name");
+        if ("uid".equals(sort))
+            Collections.sort(listRules, new Comparator<Rule>() {
+                @Override
+                public int compare(Rule rule, Rule other) {
+                    if (rule.uid < other.uid)
+                        return -1;
+                    else if (rule.uid > other.uid)
+                        return 1;
+                    else {
+                        int i = collator.compare(rule.name, other.name);
+                        return (i == 0 ? rule.packageName.compareTo(other.packageName) : i);
+                    }
+                }
+            });
+        else if (!all)
+            // The snapshot is sorted by name
+            Collections.sort(listRules, new Comparator<Rule>() {
+                @Override
+                public int compare(Rule rule, Rule other) {
+                    if (rule.changed == other.changed)
+                        return 0;
+                    return (rule.changed ? -1 : 1);
+                }
+            });
+
+        return listRules;
+    }
+
     private void updateChanged(boolean default_wifi, boolean default_other, boolean default_roaming) {
         changed = (wifi_blocked != default_wifi ||
                 (other_blocked != default_other) ||
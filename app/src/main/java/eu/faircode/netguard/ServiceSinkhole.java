@@ -88,15 +88,17 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.math.BigInteger;
 import java.net.Inet4Address;
-import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -132,6 +134,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private boolean last_connected = false;
     private boolean last_metered = true;
     private boolean last_interactive = false;
+    private boolean last_roaming = false;
+    private boolean last_lockdown = false;
+    private AllowedRules allowedRules = null;
 
     private int last_allowed = -1;
     private int last_blocked = -1;
@@ -141,20 +146,65 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private static long jni_context = 0;
     private Thread tunnelThread = null;
     private ServiceSinkhole.Builder last_builder = null;
+    private List<Rule> last_reload_rules = null;
+    private List<Rule> last_reload_allowed = null;
+    private List<Object> last_reload_state = null;
     private ParcelFileDescriptor vpn = null;
     private boolean temporarilyStopped = false;
 
+    private boolean last_filter_udp = false;
+    private int last_rcode = -1;
+    private volatile boolean networkChanged = false; // DNS answers might be different
     private long last_hosts_modified = 0;
     private long last_malware_modified = 0;
-    private Map<String, Boolean> mapHostsBlocked = new HashMap<>();
+    private HostsList hostsBlocked = new HostsList();
     private Map<String, Boolean> mapMalware = new HashMap<>();
     private Map<Integer, Boolean> mapUidAllowed = new HashMap<>();
     private Map<Integer, Integer> mapUidKnown = new HashMap<>();
-    private final Map<IPKey, Map<InetAddress, IPRule>> mapUidIPFilters = new HashMap<>();
+    private IPFilters ipFilters = new IPFilters();
+    private static volatile String filterStatistics = null;
+    private static final List<NativeMetrics> metricsHistory = new ArrayList<>();
+    private static volatile int reloadCount = 0;
+    private static volatile int reloadCoalesced = 0;
+    private static volatile int reloadSkipped = 0;
     private Map<Integer, Forward> mapForward = new HashMap<>();
     private Map<Integer, Boolean> mapNotify = new HashMap<>();
     private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
 
+    // Rules for Verdict, to be used while holding the lock
+    private final Verdict.Rules rules = new Verdict.Rules() {
+        @Override
+        public boolean isFilterUdp() {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
+            return prefs.getBoolean("filter_udp", false);
+        }
+
+        @Override
+        public boolean isAllowUnknown() {
+            return BuildConfig.PLAY_STORE_RELEASE;
+        }
+
+        @Override
+        public int getSelfUid() {
+            return Process.myUid();
+        }
+
+        @Override
+        public boolean isKnown(int uid) {
+            return mapUidKnown.containsKey(uid);
+        }
+
+        @Override
+        public Boolean isAllowed(int uid) {
+            return mapUidAllowed.get(uid);
+        }
+
+        @Override
+        public IPFilters getIPFilters() {
+            return ipFilters;
+        }
+    };
+
     private volatile Looper commandLooper;
     private volatile Looper logLooper;
     private volatile Looper statsLooper;
@@ -210,12 +260,18 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private native void jni_clear(long context);
 
+    private native void jni_reload(long context, int loglevel, boolean filter_udp, int[] uids, int[] verdicts, boolean clear_dns);
+
     private native int jni_get_mtu();
 
-    private native int[] jni_get_stats(long context);
+    private static native long[] jni_get_metrics(long context);
 
     private static native void jni_pcap(String name, int record_size, int file_size);
 
+    private static native void jni_profile(boolean enabled);
+
+    private static native long[] jni_get_profile();
+
     private native void jni_socks5(String addr, int port, String username, String password);
 
     private native void jni_done(long context);
@@ -247,6 +303,15 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         jni_pcap(pcap == null ? null : pcap.getAbsolutePath(), record_size, file_size);
     }
 
+    // Record the latency of the native upcalls, clears the profile when enabled
+    public static void setProfile(boolean enabled) {
+        jni_profile(enabled);
+    }
+
+    public static UpcallProfile getProfile() {
+        return UpcallProfile.parse(jni_get_profile());
+    }
+
     synchronized private static PowerManager.WakeLock getLock(Context context) {
         if (wlInstance == null) {
             PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
@@ -267,6 +332,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private final class CommandHandler extends Handler {
         public int queue = 0;
 
+        // Reload waiting for the reload window to pass, guarded by this
+        private Intent pendingReload = null;
+
         public CommandHandler(Looper looper) {
             super(looper);
         }
@@ -277,20 +345,64 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             LocalBroadcastManager.getInstance(ServiceSinkhole.this).sendBroadcast(ruleset);
         }
 
+        // Reloads within the reload window are combined into the first one,
+        // which is executed when the window has passed or before any other command
         public void queue(Intent intent) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
+            int window;
+            try {
+                window = Integer.parseInt(prefs.getString("reload_window", "500"));
+            } catch (NumberFormatException ignored) {
+                window = 0;
+            }
+
+            Command cmd = (Command) intent.getSerializableExtra(EXTRA_COMMAND);
             synchronized (this) {
+                if (pendingReload != null)
+                    if (cmd == Command.reload) {
+                        // A full reload includes an interactive reload
+                        boolean interactive = (pendingReload.getBooleanExtra(EXTRA_INTERACTIVE, false) &&
+                                intent.getBooleanExtra(EXTRA_INTERACTIVE, false));
+                        pendingReload.putExtra(EXTRA_INTERACTIVE, interactive);
+                        String reason = intent.getStringExtra(EXTRA_REASON);
+                        String reasons = pendingReload.getStringExtra(EXTRA_REASON);
+                        if (reasons == null || !Arrays.asList(reasons.split(", ")).contains(reason))
+                            pendingReload.putExtra(EXTRA_REASON, reasons == null ? reason : reasons + ", " + reason);
+                        reloadCoalesced++;
+                        Log.i(TAG, "Coalesced reload reason=" + reason + " into " + pendingReload);
+
+                        // Release the wakelock of this intent
+                        PowerManager.WakeLock wl = getLock(ServiceSinkhole.this);
+                        if (wl.isHeld())
+                            wl.release();
+                        return;
+                    } else {
+                        // Keep the order of the commands
+                        removeMessages(Command.reload.ordinal(), pendingReload);
+                        Message msg = obtainMessage(Command.reload.ordinal(), pendingReload);
+                        pendingReload = null;
+                        sendMessage(msg);
+                    }
+
                 queue++;
                 reportQueueSize();
+
+                Message msg = obtainMessage(cmd.ordinal(), intent);
+                if (cmd == Command.reload && window > 0) {
+                    pendingReload = intent;
+                    sendMessageDelayed(msg, window);
+                } else
+                    sendMessage(msg);
             }
-            Command cmd = (Command) intent.getSerializableExtra(EXTRA_COMMAND);
-            Message msg = commandHandler.obtainMessage();
-            msg.obj = intent;
-            msg.what = cmd.ordinal();
-            commandHandler.sendMessage(msg);
         }
 
         @Override
         public void handleMessage(Message msg) {
+            synchronized (this) {
+                if (msg.obj == pendingReload)
+                    pendingReload = null;
+            }
+
             try {
                 synchronized (ServiceSinkhole.this) {
                     handleIntent((Intent) msg.obj);
@@ -511,7 +623,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 state = State.enforcing;
                 Log.d(TAG, "Start foreground state=" + state.toString());
 
-                List<Rule> listRule = Rule.getRules(true, ServiceSinkhole.this);
+                List<Object> reloadState = getReloadState();
+                List<Rule> listRule = Rule.getSnapshot(ServiceSinkhole.this);
                 List<Rule> listAllowed = getAllowedRules(listRule);
 
                 last_builder = getBuilder(listAllowed, listRule);
@@ -523,27 +636,19 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
                 removeWarningNotifications();
                 updateEnforcingNotification(listAllowed.size(), listRule.size());
+                setReloadState(listRule, listAllowed, reloadState);
             }
         }
 
         private void reload(boolean interactive) {
-            List<Rule> listRule = Rule.getRules(true, ServiceSinkhole.this);
+            List<Object> reloadState = getReloadState();
+            List<Rule> listRule = Rule.getSnapshot(ServiceSinkhole.this);
 
             // Check if rules needs to be reloaded
-            if (interactive) {
-                boolean process = false;
-                for (Rule rule : listRule) {
-                    boolean blocked = (last_metered ? rule.other_blocked : rule.wifi_blocked);
-                    boolean screen = (last_metered ? rule.screen_other : rule.screen_wifi);
-                    if (blocked && screen) {
-                        process = true;
-                        break;
-                    }
-                }
-                if (!process) {
-                    Log.i(TAG, "No changed rules on interactive state change");
-                    return;
-                }
+            if (interactive &&
+                    !getAllowedSets(listRule).isInteractiveDependent(last_metered, last_roaming, last_lockdown)) {
+                Log.i(TAG, "No changed rules on interactive state change");
+                return;
             }
 
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
@@ -561,6 +666,20 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             List<Rule> listAllowed = getAllowedRules(listRule);
             ServiceSinkhole.Builder builder = getBuilder(listAllowed, listRule);
 
+            // Check if anything changed since the last reload
+            if (vpn != null &&
+                    !networkChanged &&
+                    builder.equals(last_builder) &&
+                    listRule == last_reload_rules &&
+                    listAllowed == last_reload_allowed &&
+                    reloadState.equals(last_reload_state)) {
+                reloadSkipped++;
+                Log.i(TAG, "Reload skipped, no changes");
+                return;
+            }
+            reloadCount++;
+            last_reload_state = null;
+
             if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1) {
                 last_builder = builder;
                 Log.i(TAG, "Legacy restart");
@@ -578,6 +697,14 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
             } else {
                 if (vpn != null && prefs.getBoolean("filter", false) && builder.equals(last_builder)) {
+                    if (tunnelThread != null && updateNative(listAllowed, listRule)) {
+                        Log.i(TAG, "Native update");
+                        removeWarningNotifications();
+                        updateEnforcingNotification(listAllowed.size(), listRule.size());
+                        setReloadState(listRule, listAllowed, reloadState);
+                        return;
+                    }
+
                     Log.i(TAG, "Native restart");
                     stopNative(vpn);
 
@@ -630,6 +757,26 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
             removeWarningNotifications();
             updateEnforcingNotification(listAllowed.size(), listRule.size());
+            setReloadState(listRule, listAllowed, reloadState);
+        }
+
+        // Everything besides the rules and the builder which is used by startNative
+        private List<Object> getReloadState() {
+            File hosts = new File(getFilesDir(), "hosts.txt");
+            File malware = new File(getFilesDir(), "malware.txt");
+            return Arrays.asList(
+                    PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this).getAll(),
+                    getSharedPreferences("lockdown", Context.MODE_PRIVATE).getAll(),
+                    DatabaseHelper.getInstance(ServiceSinkhole.this).getRulesVersion(),
+                    IAB.isPurchased(ActivityPro.SKU_FILTER, ServiceSinkhole.this),
+                    hosts.lastModified(), hosts.length(),
+                    malware.lastModified(), malware.length());
+        }
+
+        private void setReloadState(List<Rule> listRule, List<Rule> listAllowed, List<Object> reloadState) {
+            last_reload_rules = listRule;
+            last_reload_allowed = listAllowed;
+            last_reload_state = reloadState;
         }
 
         private void stop(boolean temporary) {
@@ -906,6 +1053,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 gt.clear();
                 gtx.clear();
                 grx.clear();
+                synchronized (metricsHistory) {
+                    metricsHistory.clear();
+                }
                 mapUidBytes.clear();
                 stats = true;
                 updateStats();
@@ -945,6 +1095,17 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 grx.remove(0);
             }
 
+            // Sample native metrics
+            NativeMetrics metrics = getMetrics();
+            if (metrics != null)
+                synchronized (metricsHistory) {
+                    // Native time is monotonic and does not include deep sleep
+                    while (metricsHistory.size() > 0 &&
+                            metrics.time - metricsHistory.get(0).time > samples * 1000)
+                        metricsHistory.remove(0);
+                    metricsHistory.add(metrics);
+                }
+
             // Calculate network speed
             float txsec = 0;
             float rxsec = 0;
@@ -1077,6 +1238,31 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             paint.setColor(ContextCompat.getColor(ServiceSinkhole.this, R.color.colorReceive));
             canvas.drawPath(prx, paint);
 
+            // Draw the number of sessions of the native engine, scaled to its own maximum
+            List<NativeMetrics> history = getMetricsHistory();
+            if (history.size() > 1) {
+                NativeMetrics last = history.get(history.size() - 1);
+                int smax = 1;
+                for (NativeMetrics m : history)
+                    if (m.getSessions() > smax)
+                        smax = m.getSessions();
+
+                Path psessions = new Path();
+                for (int i = 0; i < history.size(); i++) {
+                    NativeMetrics m = history.get(i);
+                    float x = width - width * (last.time - m.time) / 1000f / samples;
+                    float ys = height - height * m.getSessions() / (float) smax;
+                    if (i == 0)
+                        psessions.moveTo(x, ys);
+                    else
+                        psessions.lineTo(x, ys);
+                }
+
+                paint.setStrokeWidth(Util.dips2pixels(1, ServiceSinkhole.this));
+                paint.setColor(ContextCompat.getColor(ServiceSinkhole.this, R.color.colorGrayed));
+                canvas.drawPath(psessions, paint);
+            }
+
             // Update remote view
             remoteViews.setImageViewBitmap(R.id.ivTraffic, bitmap);
             if (txsec < 1000 * 1000)
@@ -1095,10 +1281,23 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 remoteViews.setTextViewText(R.id.tvMax, getString(R.string.msg_mbsec, max / 2 / 1000 / 1000));
 
             // Show session/file count
-            if (BuildConfig.DEBUG) {
-                int[] count = jni_get_stats(jni_context);
-                remoteViews.setTextViewText(R.id.tvSessions, count[0] + "/" + count[1] + "/" + count[2]);
-                remoteViews.setTextViewText(R.id.tvFiles, count[3] + "/" + count[4]);
+            if (BuildConfig.DEBUG && metrics != null) {
+                remoteViews.setTextViewText(R.id.tvSessions,
+                        metrics.icmpSessions + "/" + metrics.udpSessions + "/" + metrics.tcpSessions);
+
+                // Packet rate and share of the time spent handling events since the previous sample
+                String load = "";
+                if (history.size() > 1) {
+                    NativeMetrics previous = history.get(history.size() - 2);
+                    float busy = 0;
+                    for (int h = 0; h < NativeMetrics.HANDLERS.length; h++)
+                        busy += metrics.getHandlerLoad(previous, h);
+                    load = String.format(" %.0f/%.0f pps %.0f%%",
+                            metrics.rate(previous, metrics.tunInPackets, previous.tunInPackets),
+                            metrics.rate(previous, metrics.tunOutPackets, previous.tunOutPackets),
+                            busy * 100);
+                }
+                remoteViews.setTextViewText(R.id.tvFiles, metrics.sockets + "/" + metrics.maxFiles + load);
             } else {
                 remoteViews.setTextViewText(R.id.tvSessions, "");
                 remoteViews.setTextViewText(R.id.tvFiles, "");
@@ -1408,26 +1607,19 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             listExclude.add(new IPUtil.CIDR("224.0.0.0", 3));
 
             Collections.sort(listExclude);
+            for (IPUtil.CIDR exclude : listExclude)
+                Log.i(TAG, "Exclude " + exclude.getStart().getHostAddress() + "..." + exclude.getEnd().getHostAddress());
 
             try {
-                InetAddress start = InetAddress.getByName("0.0.0.0");
-                for (IPUtil.CIDR exclude : listExclude) {
-                    Log.i(TAG, "Exclude " + exclude.getStart().getHostAddress() + "..." + exclude.getEnd().getHostAddress());
-                    for (IPUtil.CIDR include : IPUtil.toCIDR(start, IPUtil.minus1(exclude.getStart())))
-                        try {
-                            builder.addRoute(include.address, include.prefix);
-                        } catch (Throwable ex) {
-                            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                        }
-                    start = IPUtil.plus1(exclude.getEnd());
-                }
                 String end = (lan ? "255.255.255.254" : "255.255.255.255");
-                for (IPUtil.CIDR include : IPUtil.toCIDR("224.0.0.0", end))
+                for (IPUtil.CIDR include : IPUtil.getRoutes(listExclude, end)) {
+                    Log.i(TAG, "Include " + include);
                     try {
                         builder.addRoute(include.address, include.prefix);
                     } catch (Throwable ex) {
                         Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                     }
+                }
             } catch (UnknownHostException ex) {
                 Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
@@ -1498,46 +1690,18 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         Log.i(TAG, "Start native log=" + log + "/" + log_app + " filter=" + filter);
 
         // Prepare rules
-        if (filter) {
-            prepareUidAllowed(listAllowed, listRule);
-            prepareHostsBlocked();
-            prepareMalwareList();
-            prepareUidIPFilters(null);
-            prepareForwarding();
-        } else {
-            lock.writeLock().lock();
-            mapUidAllowed.clear();
-            mapUidKnown.clear();
-            mapHostsBlocked.clear();
-            mapMalware.clear();
-            mapUidIPFilters.clear();
-            mapForward.clear();
-            lock.writeLock().unlock();
-        }
-
-        if (log_app)
-            prepareNotify(listRule);
-        else {
-            lock.writeLock().lock();
-            mapNotify.clear();
-            lock.writeLock().unlock();
-        }
+        prepareRules(listAllowed, listRule);
+        last_filter_udp = prefs.getBoolean("filter_udp", false);
 
         if (log || log_app || filter) {
             int prio = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
             final int rcode = Integer.parseInt(prefs.getString("rcode", "3"));
-            if (prefs.getBoolean("socks5_enabled", false))
-                jni_socks5(
-                        prefs.getString("socks5_addr", ""),
-                        Integer.parseInt(prefs.getString("socks5_port", "0")),
-                        prefs.getString("socks5_username", ""),
-                        prefs.getString("socks5_password", ""));
-            else
-                jni_socks5("", 0, "", "");
+            prepareSocks5();
 
             if (tunnelThread == null) {
                 Log.i(TAG, "Starting tunnel thread context=" + jni_context);
                 jni_start(jni_context, prio);
+                last_rcode = rcode;
 
                 tunnelThread = new Thread(new Runnable() {
                     @Override
@@ -1556,6 +1720,144 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     }
 
+    // Publish new rules to the running tunnel thread without dropping sessions
+    // The rules are swapped as a whole under the write lock,
+    // after which the native code re-evaluates only the sessions of the uids with changed rules
+    private boolean updateNative(List<Rule> listAllowed, List<Rule> listRule) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
+        boolean filter_udp = prefs.getBoolean("filter_udp", false);
+
+        int rcode = Integer.parseInt(prefs.getString("rcode", "3"));
+        if (rcode != last_rcode) {
+            // The DNS response code is fixed when the tunnel thread starts
+            Log.i(TAG, "DNS rcode changed");
+            return false;
+        }
+
+        int[] uids;
+        int[] verdicts;
+        lock.writeLock().lock();
+        try {
+            boolean fwd53 = mapForward.containsKey(53);
+            Map<Integer, Boolean> prevAllowed = new HashMap<>(mapUidAllowed);
+            Map<Integer, Integer> prevKnown = new HashMap<>(mapUidKnown);
+            // The filters are replaced, not modified, on preparing the rules
+            IPFilters prevFilters = ipFilters;
+
+            prepareRules(listAllowed, listRule);
+            if (fwd53 != mapForward.containsKey(53)) {
+                // Forwarding of DNS is fixed when the tunnel thread starts
+                Log.i(TAG, "Port 53 forwarding changed");
+                return false;
+            }
+
+            if (filter_udp != last_filter_udp) {
+                // Re-evaluate all sessions
+                uids = null;
+                verdicts = null;
+            } else {
+                Set<Integer> changed = getChangedUids(prevAllowed, prevKnown, prevFilters);
+
+                Set<Integer> filtered = ipFilters.getUids();
+
+                // Sorted by uid for the native merge and lookup
+                uids = new int[changed.size()];
+                int i = 0;
+                for (int uid : changed)
+                    uids[i++] = uid;
+                Arrays.sort(uids);
+
+                // Sessions exist for supported protocols only, which share the verdict of TCP,
+                // except for unfiltered UDP, which the native code allows
+                verdicts = new int[uids.length];
+                for (i = 0; i < uids.length; i++)
+                    verdicts[i] = Verdict.getUidVerdict(rules, uids[i], 6 /* TCP */, filtered);
+            }
+            last_filter_udp = filter_udp;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        int prio = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
+        prepareSocks5();
+
+        boolean clear_dns = networkChanged;
+        networkChanged = false;
+
+        Log.i(TAG, "Reloading tunnel context=" + jni_context +
+                " uids=" + (uids == null ? "all" : Integer.toString(uids.length)) +
+                " clear_dns=" + clear_dns);
+        jni_reload(jni_context, prio, filter_udp, uids, verdicts, clear_dns);
+        return true;
+    }
+
+    // Uids for which the outcome of isAddressAllowed might have changed
+    private Set<Integer> getChangedUids(
+            Map<Integer, Boolean> prevAllowed,
+            Map<Integer, Integer> prevKnown,
+            IPFilters prevFilters) {
+        Set<Integer> changed = new HashSet<>();
+
+        Set<Integer> uids = new HashSet<>(prevAllowed.keySet());
+        uids.addAll(mapUidAllowed.keySet());
+        for (int uid : uids)
+            if (!Objects.equals(prevAllowed.get(uid), mapUidAllowed.get(uid)))
+                changed.add(uid);
+
+        uids = new HashSet<>(prevKnown.keySet());
+        uids.addAll(mapUidKnown.keySet());
+        for (int uid : uids)
+            if (prevKnown.containsKey(uid) != mapUidKnown.containsKey(uid))
+                changed.add(uid);
+
+        changed.addAll(ipFilters.getChangedUids(prevFilters));
+
+        return changed;
+    }
+
+    private void prepareRules(List<Rule> listAllowed, List<Rule> listRule) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
+        boolean log_app = prefs.getBoolean("log_app", false);
+        boolean filter = prefs.getBoolean("filter", false);
+
+        if (filter) {
+            prepareUidAllowed(listAllowed, listRule);
+            prepareHostsBlocked();
+            prepareMalwareList();
+            prepareUidIPFilters(null);
+            prepareForwarding();
+        } else {
+            lock.writeLock().lock();
+            mapUidAllowed.clear();
+            mapUidKnown.clear();
+            hostsBlocked = new HostsList();
+            mapMalware.clear();
+            ipFilters = new IPFilters();
+            mapForward.clear();
+            lock.writeLock().unlock();
+        }
+
+        if (log_app)
+            prepareNotify(listRule);
+        else {
+            lock.writeLock().lock();
+            mapNotify.clear();
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void prepareSocks5() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
+        if (prefs.getBoolean("socks5_enabled", false))
+            jni_socks5(
+                    prefs.getString("socks5_addr", ""),
+                    Integer.parseInt(prefs.getString("socks5_port", "0")),
+                    prefs.getString("socks5_username", ""),
+                    prefs.getString("socks5_password", ""));
+        else
+            jni_socks5("", 0, "", "");
+    }
+
     private void stopNative(ParcelFileDescriptor vpn) {
         Log.i(TAG, "Stop native");
 
@@ -1577,6 +1879,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             tunnelThread = null;
 
             jni_clear(jni_context);
+            networkChanged = false;
 
             Log.i(TAG, "Stopped tunnel thread");
         }
@@ -1586,9 +1889,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         lock.writeLock().lock();
         mapUidAllowed.clear();
         mapUidKnown.clear();
-        mapHostsBlocked.clear();
+        hostsBlocked = new HostsList();
         mapMalware.clear();
-        mapUidIPFilters.clear();
+        ipFilters = new IPFilters();
         mapForward.clear();
         mapNotify.clear();
         lock.writeLock().unlock();
@@ -1615,43 +1918,30 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         if (!use_hosts || !hosts.exists() || !hosts.canRead()) {
             Log.i(TAG, "Hosts file use=" + use_hosts + " exists=" + hosts.exists());
             lock.writeLock().lock();
-            mapHostsBlocked.clear();
+            hostsBlocked = new HostsList();
             lock.writeLock().unlock();
             return;
         }
 
         boolean changed = (hosts.lastModified() != last_hosts_modified);
-        if (!changed && mapHostsBlocked.size() > 0) {
+        if (!changed && hostsBlocked.size() > 0) {
             Log.i(TAG, "Hosts file unchanged");
             return;
         }
         last_hosts_modified = hosts.lastModified();
 
-        lock.writeLock().lock();
-
-        mapHostsBlocked.clear();
-
-        int count = 0;
+        // Compile outside the lock, so that lookups can continue meanwhile
+        HostsList compiled = new HostsList();
         BufferedReader br = null;
         try {
             br = new BufferedReader(new FileReader(hosts));
-            String line;
-            while ((line = br.readLine()) != null) {
-                int hash = line.indexOf('#');
-                if (hash >= 0)
-                    line = line.substring(0, hash);
-                line = line.trim();
-                if (line.length() > 0) {
-                    String[] words = line.split("\\s+");
-                    if (words.length == 2) {
-                        count++;
-                        mapHostsBlocked.put(words[1], true);
-                    } else
-                        Log.i(TAG, "Invalid hosts file line: " + line);
-                }
-            }
-            mapHostsBlocked.put("test.netguard.me", true);
-            Log.i(TAG, count + " hosts read");
+            compiled = HostsList.compile(br, hostsBlocked.size());
+            for (String line : compiled.getInvalidLines())
+                Log.w(TAG, "Invalid hosts file line: " + line);
+            if (compiled.getInvalid() > compiled.getInvalidLines().size())
+                Log.w(TAG, "Invalid hosts file lines not logged: " +
+                        (compiled.getInvalid() - compiled.getInvalidLines().size()));
+            Log.i(TAG, "Hosts file read " + compiled);
         } catch (IOException ex) {
             Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
         } finally {
@@ -1663,6 +1953,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 }
         }
 
+        lock.writeLock().lock();
+        hostsBlocked = compiled;
         lock.writeLock().unlock();
     }
 
@@ -1729,20 +2021,24 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         lock.writeLock().lock();
 
         if (dname == null) {
-            mapUidIPFilters.clear();
+            ipFilters = new IPFilters();
             if (!IAB.isPurchased(ActivityPro.SKU_FILTER, ServiceSinkhole.this)) {
                 lock.writeLock().unlock();
                 return;
             }
         }
 
-        try (Cursor cursor = DatabaseHelper.getInstance(ServiceSinkhole.this).getAccessDns(dname)) {
+        // The addresses are materialized by the database helper
+        long start = SystemClock.elapsedRealtime();
+        int count = 0;
+        boolean lockeddown = isLockedDown(last_metered);
+        Map<Integer, Boolean> mapUidLockdown = new HashMap<>();
+        try (Cursor cursor = DatabaseHelper.getInstance(ServiceSinkhole.this).getIPFilters(dname)) {
             int colUid = cursor.getColumnIndex("uid");
             int colVersion = cursor.getColumnIndex("version");
             int colProtocol = cursor.getColumnIndex("protocol");
-            int colDAddr = cursor.getColumnIndex("daddr");
-            int colResource = cursor.getColumnIndex("resource");
             int colDPort = cursor.getColumnIndex("dport");
+            int colAddress = cursor.getColumnIndex("address");
             int colBlock = cursor.getColumnIndex("block");
             int colTime = cursor.getColumnIndex("time");
             int colTTL = cursor.getColumnIndex("ttl");
@@ -1750,58 +2046,40 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 int uid = cursor.getInt(colUid);
                 int version = cursor.getInt(colVersion);
                 int protocol = cursor.getInt(colProtocol);
-                String daddr = cursor.getString(colDAddr);
-                String dresource = (cursor.isNull(colResource) ? null : cursor.getString(colResource));
                 int dport = cursor.getInt(colDPort);
+                byte[] address = cursor.getBlob(colAddress);
                 boolean block = (cursor.getInt(colBlock) > 0);
                 long time = (cursor.isNull(colTime) ? new Date().getTime() : cursor.getLong(colTime));
                 long ttl = (cursor.isNull(colTTL) ? 7 * 24 * 3600 * 1000L : cursor.getLong(colTTL));
 
-                if (isLockedDown(last_metered)) {
-                    String[] pkg = getPackageManager().getPackagesForUid(uid);
-                    if (pkg != null && pkg.length > 0) {
-                        if (!lockdown.getBoolean(pkg[0], false))
-                            continue;
+                if (lockeddown) {
+                    Boolean allowed = mapUidLockdown.get(uid);
+                    if (allowed == null) {
+                        String[] pkg = getPackageManager().getPackagesForUid(uid);
+                        allowed = (pkg == null || pkg.length == 0 || lockdown.getBoolean(pkg[0], false));
+                        mapUidLockdown.put(uid, allowed);
                     }
+                    if (!allowed)
+                        continue;
                 }
 
-                IPKey key = new IPKey(version, protocol, dport, uid);
-                synchronized (mapUidIPFilters) {
-                    if (!mapUidIPFilters.containsKey(key))
-                        mapUidIPFilters.put(key, new HashMap());
-
-                    try {
-                        String name = (dresource == null ? daddr : dresource);
-                        if (Util.isNumericAddress(name)) {
-                            InetAddress iname = InetAddress.getByName(name);
-                            if (version == 4 && !(iname instanceof Inet4Address))
-                                continue;
-                            if (version == 6 && !(iname instanceof Inet6Address))
-                                continue;
-
-                            boolean exists = mapUidIPFilters.get(key).containsKey(iname);
-                            if (!exists || !mapUidIPFilters.get(key).get(iname).isBlocked()) {
-                                IPRule rule = new IPRule(key, name + "/" + iname, block, time, ttl);
-                                mapUidIPFilters.get(key).put(iname, rule);
-                                if (exists)
-                                    Log.w(TAG, "Address conflict " + key + " " + daddr + "/" + dresource);
-                            } else if (exists) {
-                                mapUidIPFilters.get(key).get(iname).updateExpires(time, ttl);
-                                if (dname != null && ttl > 60 * 1000L)
-                                    Log.w(TAG, "Address updated " + key + " " + daddr + "/" + dresource);
-                            } else {
-                                if (dname != null)
-                                    Log.i(TAG, "Ignored " + key + " " + daddr + "/" + dresource + "=" + block);
-                            }
-                        } else
-                            Log.w(TAG, "Address not numeric " + name);
-                    } catch (UnknownHostException ex) {
-                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                    }
-                }
+                int result = ipFilters.put(uid, version, protocol, dport, address, block, time, ttl);
+                if (result == IPFilters.REPLACED)
+                    Log.w(TAG, "Address conflict uid=" + uid + " " + Util.getIPString(address));
+                else if (result == IPFilters.UPDATED) {
+                    if (dname != null && ttl > 60 * 1000L)
+                        Log.w(TAG, "Address updated uid=" + uid + " " + Util.getIPString(address));
+                } else if (result == IPFilters.IGNORED)
+                    Log.w(TAG, "Address ignored uid=" + uid + " length=" + address.length);
+                count++;
             }
         }
 
+        if (dname == null)
+            Log.i(TAG, "IP filters=" + count + " " + ipFilters +
+                    " elapsed=" + (SystemClock.elapsedRealtime() - start) + " ms");
+        filterStatistics = ipFilters.toString();
+
         lock.writeLock().unlock();
     }
 
@@ -1855,8 +2133,17 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         return lockdown;
     }
 
+    private AllowedRules getAllowedSets(List<Rule> listRule) {
+        AllowedRules sets = allowedRules;
+        if (sets == null || !sets.isFor(listRule)) {
+            sets = new AllowedRules(listRule);
+            allowedRules = sets;
+            Log.i(TAG, "Allowed sets " + sets);
+        }
+        return sets;
+    }
+
     private List<Rule> getAllowedRules(List<Rule> listRule) {
-        List<Rule> listAllowed = new ArrayList<>();
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
         // Check state
@@ -1908,6 +2195,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             roaming = !Util.isEU(this);
         if (roaming && national)
             roaming = !Util.isNational(this);
+        last_roaming = roaming;
+        last_lockdown = lockdown;
 
         Log.i(TAG, "Get allowed" +
                 " connected=" + last_connected +
@@ -1922,15 +2211,11 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 " filter=" + filter +
                 " lockdown=" + lockdown);
 
+        List<Rule> listAllowed;
         if (last_connected)
-            for (Rule rule : listRule) {
-                boolean blocked = (metered ? rule.other_blocked : rule.wifi_blocked);
-                boolean screen = (metered ? rule.screen_other : rule.screen_wifi);
-                if ((!blocked || (screen && last_interactive)) &&
-                        (!metered || !(rule.roaming && roaming)) &&
-                        (!lockdown || rule.lockdown))
-                    listAllowed.add(rule);
-            }
+            listAllowed = getAllowedSets(listRule).get(metered, last_interactive, roaming, lockdown);
+        else
+            listAllowed = new ArrayList<>();
 
         Log.i(TAG, "Allowed " + listAllowed.size() + " of " + listRule.size());
         return listAllowed;
@@ -1969,31 +2254,73 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     }
 
     // Called from native code
-    private void dnsResolved(ResourceRecord rr) {
-        if (DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(rr)) {
-            Log.i(TAG, "New IP " + rr);
-            prepareUidIPFilters(rr.QName);
-        }
-        if (rr.uid > 0 && !TextUtils.isEmpty(rr.AName)) {
-            lock.readLock().lock();
-            boolean malware = (mapMalware.containsKey(rr.AName) && mapMalware.get(rr.AName));
-            lock.readLock().unlock();
-
-            if (malware) {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-                boolean notified = prefs.getBoolean("malware." + rr.uid, false);
-                if (!notified) {
-                    prefs.edit().putBoolean("malware." + rr.uid, true).apply();
-                    notifyNewApplication(rr.uid, true);
-                }
+    // The records of a question, including the CNAME chain, are encoded by put_dns_record
+    // Returns whether the name or a name in the chain is blocked
+    private boolean dnsResolved(String qname, byte[] records, int uid) {
+        long time = new Date().getTime();
+        List<ResourceRecord> listRR = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        names.add(qname);
+
+        ByteBuffer bb = ByteBuffer.wrap(records);
+        while (bb.remaining() > 0) {
+            int qtype = bb.getShort() & 0xFFFF;
+            int ttl = bb.getInt();
+            byte[] name = new byte[bb.get() & 0xFF];
+            bb.get(name);
+            byte[] data = new byte[bb.get() & 0xFF];
+            bb.get(data);
+
+            String aname = new String(name, StandardCharsets.UTF_8);
+            if (qtype == 5 /* CNAME */) {
+                names.add(aname);
+                names.add(new String(data, StandardCharsets.UTF_8));
+            } else {
+                ResourceRecord rr = new ResourceRecord();
+                rr.Time = time;
+                rr.QName = qname;
+                rr.AName = aname;
+                rr.Resource = Util.getIPString(data);
+                rr.TTL = ttl;
+                rr.uid = uid;
+                if (rr.Resource != null)
+                    listRR.add(rr);
+            }
+        }
+
+        if (listRR.size() > 0 && DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(listRR)) {
+            Log.i(TAG, "Resolved " + qname + " records=" + listRR.size());
+            prepareUidIPFilters(qname);
+        }
+
+        boolean blocked = false;
+        boolean malware = false;
+        lock.readLock().lock();
+        for (String name : names)
+            if (hostsBlocked.contains(name))
+                blocked = true;
+        if (uid > 0)
+            for (ResourceRecord rr : listRR)
+                if (!TextUtils.isEmpty(rr.AName) && mapMalware.containsKey(rr.AName) && mapMalware.get(rr.AName))
+                    malware = true;
+        lock.readLock().unlock();
+
+        if (malware) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+            boolean notified = prefs.getBoolean("malware." + uid, false);
+            if (!notified) {
+                prefs.edit().putBoolean("malware." + uid, true).apply();
+                notifyNewApplication(uid, true);
             }
         }
+
+        return blocked;
     }
 
     // Called from native code
     private boolean isDomainBlocked(String name) {
         lock.readLock().lock();
-        boolean blocked = (mapHostsBlocked.containsKey(name) && mapHostsBlocked.get(name));
+        boolean blocked = hostsBlocked.contains(name);
         lock.readLock().unlock();
         return blocked;
     }
@@ -2017,13 +2344,6 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         return uid;
     }
 
-    private boolean isSupported(int protocol) {
-        return (protocol == 1 /* ICMPv4 */ ||
-                protocol == 58 /* ICMPv6 */ ||
-                protocol == 6 /* TCP */ ||
-                protocol == 17 /* UDP */);
-    }
-
     // Called from native code
     private Allowed isAddressAllowed(Packet packet) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
@@ -2032,53 +2352,29 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
         packet.allowed = false;
         if (prefs.getBoolean("filter", false)) {
-            // https://android.googlesource.com/platform/system/core/+/master/include/private/android_filesystem_config.h
-            if (packet.protocol == 17 /* UDP */ && !prefs.getBoolean("filter_udp", false)) {
-                // Allow unfiltered UDP
-                packet.allowed = true;
-                Log.i(TAG, "Allowing UDP " + packet);
-            } else if (packet.uid < 2000 &&
-                    !last_connected && isSupported(packet.protocol) && false) {
-                // Allow system applications in disconnected state
-                packet.allowed = true;
-                Log.w(TAG, "Allowing disconnected system " + packet);
-            } else if ((packet.uid < 2000 || BuildConfig.PLAY_STORE_RELEASE) &&
-                    !mapUidKnown.containsKey(packet.uid) && isSupported(packet.protocol)) {
-                // Allow unknown (system) traffic
-                packet.allowed = true;
-                Log.w(TAG, "Allowing unknown system " + packet);
-            } else if (packet.uid == Process.myUid()) {
-                // Allow self
-                packet.allowed = true;
-                Log.w(TAG, "Allowing self " + packet);
-            } else {
-                boolean filtered = false;
-                IPKey key = new IPKey(packet.version, packet.protocol, packet.dport, packet.uid);
-                if (mapUidIPFilters.containsKey(key))
-                    try {
-                        InetAddress iaddr = InetAddress.getByName(packet.daddr);
-                        Map<InetAddress, IPRule> map = mapUidIPFilters.get(key);
-                        if (map != null && map.containsKey(iaddr)) {
-                            IPRule rule = map.get(iaddr);
-                            if (rule.isExpired())
-                                Log.i(TAG, "DNS expired " + packet + " rule " + rule);
-                            else {
-                                filtered = true;
-                                packet.allowed = !rule.isBlocked();
-                                Log.i(TAG, "Filtering " + packet +
-                                        " allowed=" + packet.allowed + " rule " + rule);
-                            }
-                        }
-                    } catch (UnknownHostException ex) {
-                        Log.w(TAG, "Allowed " + ex.toString() + "\n" + Log.getStackTraceString(ex));
-                    }
-
-                if (!filtered)
-                    if (mapUidAllowed.containsKey(packet.uid))
-                        packet.allowed = mapUidAllowed.get(packet.uid);
-                    else
-                        Log.w(TAG, "No rules for " + packet);
-            }
+            int outcome = Verdict.decide(rules,
+                    packet.uid, packet.version, packet.protocol, packet.dport, packet.daddr);
+            packet.allowed = Verdict.isAllowed(outcome);
+            switch (outcome & ~Verdict.EXPIRED) {
+                case Verdict.UNFILTERED_UDP:
+                    Log.i(TAG, "Allowing UDP " + packet);
+                    break;
+                case Verdict.UNKNOWN_SYSTEM:
+                    Log.w(TAG, "Allowing unknown system " + packet);
+                    break;
+                case Verdict.SELF:
+                    Log.w(TAG, "Allowing self " + packet);
+                    break;
+                case Verdict.ADDRESS_ALLOWED:
+                case Verdict.ADDRESS_BLOCKED:
+                    Log.i(TAG, "Filtering " + packet + " allowed=" + packet.allowed);
+                    break;
+                case Verdict.NO_RULE:
+                    Log.w(TAG, "No rules for " + packet);
+                    break;
+            }
+            if ((outcome & Verdict.EXPIRED) != 0)
+                Log.i(TAG, "DNS expired " + packet);
         }
 
         Allowed allowed = null;
@@ -2221,6 +2517,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             // Reload rules
             Log.i(TAG, "Received " + intent);
             Util.logExtras(intent);
+            networkChanged = true;
             reload("connectivity changed", ServiceSinkhole.this, false);
         }
     };
@@ -2355,7 +2652,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
             try {
                 if (Intent.ACTION_PACKAGE_ADDED.equals(intent.getAction())) {
                     // Application added
-                    Rule.clearCache(context);
+                    Rule.updatePackage(intent.getData().getSchemeSpecificPart(), context);
 
                     if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
                         // Show notification
@@ -2370,7 +2667,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
                 } else if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
                     // Application removed
-                    Rule.clearCache(context);
+                    Rule.updatePackage(intent.getData().getSchemeSpecificPart(), context);
 
                     if (intent.getBooleanExtra(Intent.EXTRA_DATA_REMOVED, false)) {
                         // Remove settings
@@ -2534,6 +2831,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         Log.i(TAG, "Created context=" + jni_context);
         boolean pcap = prefs.getBoolean("pcap", false);
         setPcap(pcap, this);
+        setProfile(prefs.getBoolean("profile_upcalls", false));
 
         prefs.registerOnSharedPreferenceChangeListener(this);
 
@@ -2636,6 +2934,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 last_active = network;
                 last_connected = Util.isConnected(ServiceSinkhole.this);
                 last_metered = Util.isMeteredNetwork(ServiceSinkhole.this);
+                networkChanged = true;
                 reload("network available", ServiceSinkhole.this, false);
             }
 
@@ -2655,6 +2954,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                             "DNS cur=" + TextUtils.join(",", dns) +
                             "DNS prv=" + (last_dns == null ? null : TextUtils.join(",", last_dns)));
                     last_dns = dns;
+                    networkChanged = true;
                     reload("link properties changed", ServiceSinkhole.this, false);
                 }
             }
@@ -2674,8 +2974,10 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
                 String reason = null;
 
-                if (reason == null && !Objects.equals(network, last_network))
+                if (reason == null && !Objects.equals(network, last_network)) {
                     reason = "Network changed";
+                    networkChanged = true;
+                }
 
                 if (reason == null && last_connected != null && !last_connected.equals(connected))
                     reason = "Connected state changed";
@@ -2708,6 +3010,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
                 last_active = null;
                 last_connected = Util.isConnected(ServiceSinkhole.this);
+                networkChanged = true;
                 reload("network lost", ServiceSinkhole.this, false);
             }
 
@@ -3051,7 +3354,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private void updateEnforcingNotification(int allowed, int total) {
         // Update notification
-        Notification notification = getEnforcingNotification(allowed, total - allowed, mapHostsBlocked.size());
+        Notification notification = getEnforcingNotification(allowed, total - allowed, hostsBlocked.size());
         NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         if (Util.canNotify(this))
             nm.notify(NOTIFY_ENFORCING, notification);
@@ -3434,82 +3737,59 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     }
 
-    private class IPKey {
-        int version;
-        int protocol;
-        int dport;
-        int uid;
-
-        public IPKey(int version, int protocol, int dport, int uid) {
-            this.version = version;
-            this.protocol = protocol;
-            // Only TCP (6) and UDP (17) have port numbers
-            this.dport = (protocol == 6 || protocol == 17 ? dport : 0);
-            this.uid = uid;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof IPKey))
-                return false;
-            IPKey other = (IPKey) obj;
-            return (this.version == other.version &&
-                    this.protocol == other.protocol &&
-                    this.dport == other.dport &&
-                    this.uid == other.uid);
-        }
-
-        @Override
-        public int hashCode() {
-            return (version << 40) | (protocol << 32) | (dport << 16) | uid;
-        }
-
-        @Override
-        public String toString() {
-            return "v" + version + " p" + protocol + " port=" + dport + " uid=" + uid;
-        }
+    // Size and memory usage of the address rules in use
+    public static String getFilterStatistics() {
+        return filterStatistics;
     }
 
-    private class IPRule {
-        private IPKey key;
-        private String name;
-        private boolean block;
-        private long time;
-        private long ttl;
-
-        public IPRule(IPKey key, String name, boolean block, long time, long ttl) {
-            this.key = key;
-            this.name = name;
-            this.block = block;
-            this.time = time;
-            this.ttl = ttl;
+    // Snapshot of the native engine counters, cheap enough to poll every second
+    public static NativeMetrics getMetrics() {
+        synchronized (jni_lock) {
+            if (jni_context == 0)
+                return null;
+            NativeMetrics metrics = NativeMetrics.parse(jni_get_metrics(jni_context));
+            if (metrics == null)
+                Log.w(TAG, "Unknown native metrics layout");
+            return metrics;
         }
+    }
 
-        public boolean isBlocked() {
-            return this.block;
+    // Snapshots taken by the traffic notification, oldest first
+    public static List<NativeMetrics> getMetricsHistory() {
+        synchronized (metricsHistory) {
+            return new ArrayList<>(metricsHistory);
         }
+    }
 
-        public boolean isExpired() {
-            return System.currentTimeMillis() > (this.time + this.ttl * 2);
-        }
+    // DNS queries answered from the tunnel and rewritten DNS responses
+    public static String getDnsStatistics() {
+        NativeMetrics metrics = getMetrics();
+        if (metrics == null)
+            return null;
+        return "at query " + metrics.dnsQueryBlocked + " at response " + metrics.dnsResponseBlocked;
+    }
 
-        public void updateExpires(long time, long ttl) {
-            this.time = time;
-            this.ttl = ttl;
-        }
+    // Native DNS answer cache
+    public static String getDnsCacheStatistics() {
+        NativeMetrics metrics = getMetrics();
+        if (metrics == null)
+            return null;
+        long lookups = metrics.dnsCacheLookups;
+        long hits = metrics.dnsCacheHits;
+        return "lookups " + lookups + " hits " + hits +
+                " (" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%)" +
+                " negative " + metrics.dnsCacheNegative + " evicted " + metrics.dnsCacheEvicted +
+                " saved " + metrics.dnsCacheSaved + " ms";
+    }
 
-        @Override
-        public boolean equals(Object obj) {
-            IPRule other = (IPRule) obj;
-            return (this.block == other.block &&
-                    this.time == other.time &&
-                    this.ttl == other.ttl);
-        }
+    // Native engine counters
+    public static String getMetricsStatistics() {
+        NativeMetrics metrics = getMetrics();
+        return (metrics == null ? null : metrics.toString());
+    }
 
-        @Override
-        public String toString() {
-            return this.key + " " + this.name;
-        }
+    public static String getReloadStatistics() {
+        return reloadCount + " coalesced " + reloadCoalesced + " skipped " + reloadSkipped;
     }
 
     public static void run(String reason, Context context) {
@@ -0,0 +1,130 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+// Latency histograms of the native upcalls, see get_profile_bucket
+// Values below 32 microseconds are exact,
+// larger values are within about 6% of the reported bucket bound
+public class UpcallProfile {
+    private static final int SUB_BITS = 4;
+    private static final int BUCKETS = 368;
+
+    private static final float[] PERCENTILES = {0.5f, 0.9f, 0.99f, 0.999f};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+    private final long[][] histogram;
+
+    private UpcallProfile(long[][] histogram) {
+        this.histogram = histogram;
+    }
+
+    // Returns null if the layout of the native library is not known
+    public static UpcallProfile parse(long[] p) {
+        int upcalls = NativeMetrics.UPCALLS.length;
+        if (p == null || p.length != upcalls * BUCKETS)
+            return null;
+
+        long[][] histogram = new long[upcalls][BUCKETS];
+        for (int u = 0; u < upcalls; u++)
+            System.arraycopy(p, u * BUCKETS, histogram[u], 0, BUCKETS);
+        return new UpcallProfile(histogram);
+    }
+
+    private static long getLow(int bucket) {
+        if (bucket < (2 << SUB_BITS))
+            return bucket;
+        int shift = (bucket >> SUB_BITS) - 1;
+        long sub = (1 << SUB_BITS) + (bucket & ((1 << SUB_BITS) - 1));
+        return sub << shift;
+    }
+
+    private static long getHigh(int bucket) {
+        return getLow(bucket + 1) - 1;
+    }
+
+    public long getCount(int upcall) {
+        long count = 0;
+        for (long c : histogram[upcall])
+            count += c;
+        return count;
+    }
+
+    // Upper bound in microseconds of the bucket containing the given fraction of the upcalls
+    public long getPercentile(int upcall, float fraction) {
+        long target = (long) Math.ceil(getCount(upcall) * fraction);
+        long count = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            count += histogram[upcall][b];
+            if (count > 0 && count >= target)
+                return getHigh(b);
+        }
+        return 0;
+    }
+
+    public long getMax(int upcall) {
+        for (int b = BUCKETS - 1; b >= 0; b--)
+            if (histogram[upcall][b] > 0)
+                return getHigh(b);
+        return 0;
+    }
+
+    // One line per upcall which was called
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int u = 0; u < histogram.length; u++) {
+            long count = getCount(u);
+            if (count == 0)
+                continue;
+            sb.append(NativeMetrics.UPCALLS[u]).append(' ').append(count);
+            for (int p = 0; p < PERCENTILES.length; p++)
+                sb.append(' ').append(PERCENTILE_NAMES[p]).append(' ').append(getPercentile(u, PERCENTILES[p]));
+            sb.append(" max ").append(getMax(u)).append(" us\r\n");
+        }
+        if (sb.length() > 2)
+            sb.setLength(sb.length() - 2);
+        return sb.toString();
+    }
+
+    // Percentiles followed by the non empty buckets, comma separated
+    public String export() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("upcall,count");
+        for (String name : PERCENTILE_NAMES)
+            sb.append(',').append(name);
+        sb.append(",max\n");
+        for (int u = 0; u < histogram.length; u++) {
+            sb.append(NativeMetrics.UPCALLS[u]).append(',').append(getCount(u));
+            for (float p : PERCENTILES)
+                sb.append(',').append(getPercentile(u, p));
+            sb.append(',').append(getMax(u)).append('\n');
+        }
+
+        sb.append("\nupcall,low_us,high_us,count\n");
+        for (int u = 0; u < histogram.length; u++)
+            for (int b = 0; b < BUCKETS; b++)
+                if (histogram[u][b] > 0)
+                    sb.append(NativeMetrics.UPCALLS[u])
+                            .append(',').append(getLow(b))
+                            .append(',').append(getHigh(b))
+                            .append(',').append(histogram[u][b]).append('\n');
+        return sb.toString();
+    }
+}
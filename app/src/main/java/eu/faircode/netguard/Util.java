@@ -68,6 +68,7 @@ import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
@@ -321,6 +322,14 @@ public class Util {
         return is_numeric_address(ip);
     }
 
+    public static String getIPString(byte[] address) {
+        try {
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException ignored) {
+            return null;
+        }
+    }
+
     public static boolean isInteractive(Context context) {
         PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT_WATCH)
@@ -623,7 +632,12 @@ public class Util {
 
     private static final Map<String, String> mapIPOrganization = new HashMap<>();
 
-    public static String getOrganization(String ip) throws Exception {
+    public static String getOrganization(String ip, Context context) throws Exception {
+        // Prefer the imported offline database
+        OrganizationDatabase odb = OrganizationDatabase.getInstance(context);
+        if (odb != null)
+            return odb.lookup(ip);
+
         synchronized (mapIPOrganization) {
             if (mapIPOrganization.containsKey(ip))
                 return mapIPOrganization.get(ip);
@@ -773,6 +787,21 @@ public class Util {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
             sb.append(String.format("Data saving %B\r\n", dataSaving(context)));
 
+        String filters = ServiceSinkhole.getFilterStatistics();
+        if (filters != null)
+            sb.append(String.format("IP filters %s\r\n", filters));
+        sb.append(String.format("Reloads %s\r\n", ServiceSinkhole.getReloadStatistics()));
+        String dns = ServiceSinkhole.getDnsStatistics();
+        if (dns != null)
+            sb.append(String.format("DNS blocked %s\r\n", dns));
+        String cache = ServiceSinkhole.getDnsCacheStatistics();
+        if (cache != null)
+            sb.append(String.format("DNS cache %s\r\n", cache));
+        String metrics = ServiceSinkhole.getMetricsStatistics();
+        if (metrics != null)
+            sb.append(String.format("Engine %s\r\n", metrics));
+        sb.append(String.format("Address lookups %s\r\n", AddressResolver.getInstance(context).getStatistics()));
+
         if (sb.length() > 2)
             sb.setLength(sb.length() - 2);
 
@@ -855,7 +884,7 @@ public class Util {
     private static StringBuilder getTrafficLog(Context context) {
         StringBuilder sb = new StringBuilder();
 
-        try (Cursor cursor = DatabaseHelper.getInstance(context).getLog(true, true, true, true, true)) {
+        try (Cursor cursor = DatabaseHelper.getInstance(context).getLog(true, true, true, true, true, -1, -1, -1, 250)) {
 
             int colTime = cursor.getColumnIndex("time");
             int colVersion = cursor.getColumnIndex("version");
@@ -874,8 +903,7 @@ public class Util {
 
             DateFormat format = SimpleDateFormat.getDateTimeInstance();
 
-            int count = 0;
-            while (cursor.moveToNext() && ++count < 250) {
+            while (cursor.moveToNext()) {
                 sb.append(format.format(cursor.getLong(colTime)));
                 sb.append(" v").append(cursor.getInt(colVersion));
                 sb.append(" p").append(cursor.getInt(colProtocol));
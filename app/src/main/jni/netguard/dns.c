@@ -75,53 +75,410 @@ int32_t get_qname(const uint8_t *data, const size_t datalen, uint16_t off, char
     return (c ? off : ptr);
 }
 
-void parse_dns_response(const struct arguments *args, const struct ng_session *s,
-                        const uint8_t *data, size_t *datalen) {
+int get_dns_question(const uint8_t *data, const size_t datalen, struct dns_question *q) {
+    if (datalen < sizeof(struct dns_header) + 1)
+        return 0;
+
+    // Check if standard DNS query with one question
+    const struct dns_header *dns = (struct dns_header *) data;
+    if (dns->qr != 0 || dns->opcode != 0 || ntohs(dns->q_count) != 1)
+        return 0;
+
+    int32_t off = get_qname(data, datalen, sizeof(struct dns_header), q->qname);
+    if (off <= 0 || off + 4 > datalen)
+        return 0;
+    q->qtype = ntohs(*((uint16_t *) (data + off)));
+    q->qclass = ntohs(*((uint16_t *) (data + off + 2)));
+    q->end = off + 4;
+
+    return 1;
+}
+
+int handle_dns_query(const struct arguments *args, const struct udp_session *u,
+                     const uint8_t *data, const size_t datalen) {
+    struct dns_question q;
+    if (!get_dns_question(data, datalen, &q))
+        return 0;
+
+    int rc = block_dns_query(args, u, data, &q);
+    if (rc == 0)
+        rc = check_dns_cache(args, u, data, datalen, &q);
+    return rc;
+}
+
+void log_dns_query(const struct arguments *args, const struct udp_session *u,
+                   const char *qname, uint16_t qtype, int rcode) {
+    char source[INET6_ADDRSTRLEN + 1];
+    char dest[INET6_ADDRSTRLEN + 1];
+    inet_ntop(u->version == 4 ? AF_INET : AF_INET6,
+              (u->version == 4 ? (const void *) &u->saddr.ip4 : (const void *) &u->saddr.ip6),
+              source, sizeof(source));
+    inet_ntop(u->version == 4 ? AF_INET : AF_INET6,
+              (u->version == 4 ? (const void *) &u->daddr.ip4 : (const void *) &u->daddr.ip6),
+              dest, sizeof(dest));
+
+    char name[DNS_QNAME_MAX + 40 + 1];
+    sprintf(name, "qtype %d qname %s rcode %d", qtype, qname, rcode);
+    jobject objPacket = create_packet(
+            args, u->version, IPPROTO_UDP, "",
+            source, ntohs(u->source), dest, ntohs(u->dest),
+            name, 0, 0);
+    log_packet(args, objPacket);
+}
+
+int block_dns_query(const struct arguments *args, const struct udp_session *u,
+                    const uint8_t *data, const struct dns_question *q) {
+    if (!is_domain_blocked(args, q->qname))
+        return 0;
+
+    // Answer from the tunnel without forwarding the query
+    // With rcode NOERROR, address questions are answered with 0.0.0.0 or ::
+    int32_t off = q->end;
+    int answer = (args->rcode == 0 && q->qclass == DNS_QCLASS_IN &&
+                  (q->qtype == DNS_QTYPE_A || q->qtype == DNS_QTYPE_AAAA));
+    uint16_t rdlength = (uint16_t) (q->qtype == DNS_QTYPE_A ? 4 : 16);
+    size_t rlen = (size_t) off + (answer ? sizeof(struct dns_rr) + rdlength : 0);
+    uint8_t *response = ng_malloc(rlen, "dns query response");
+    memcpy(response, data, (size_t) off);
+
+    struct dns_header *rdns = (struct dns_header *) response;
+    rdns->qr = 1;
+    rdns->aa = 0;
+    rdns->tc = 0;
+    rdns->ra = 1;
+    rdns->z = 0;
+    rdns->ad = 0;
+    rdns->cd = 0;
+    rdns->rcode = (uint16_t) args->rcode;
+    rdns->ans_count = htons(answer ? 1 : 0);
+    rdns->auth_count = 0;
+    rdns->add_count = 0;
+
+    if (answer) {
+        struct dns_rr *rr = (struct dns_rr *) (response + off);
+        rr->qname_ptr = htons(0xC000 | sizeof(struct dns_header));
+        rr->qtype = htons(q->qtype);
+        rr->qclass = htons(q->qclass);
+        rr->ttl = htonl(DNS_BLOCK_TTL);
+        rr->rdlength = htons(rdlength);
+        memset(response + off + sizeof(struct dns_rr), 0, rdlength);
+    }
+
+    ssize_t res = write_udp(args, u, response, rlen);
+    ng_free(response, __FILE__, __LINE__);
+
+    args->ctx->dns_query_blocked++;
+
+    log_android(ANDROID_LOG_INFO, "DNS query blocked qtype %d qname %s rcode %d answer %d",
+                q->qtype, q->qname, args->rcode, answer);
+    log_dns_query(args, u, q->qname, q->qtype, args->rcode);
+
+    return (res < 0 ? -1 : 1);
+}
+
+// Walks the resource records of a response
+// Returns the lowest TTL of the answer and authority records, or -1 if there are none
+// For negative responses the TTL is limited by the SOA minimum (RFC 2308)
+// The TTLs are decreased by elapsed seconds, if not zero
+static int32_t walk_dns_ttl(uint8_t *data, const size_t datalen, int32_t off, uint32_t elapsed) {
+    struct dns_header *dns = (struct dns_header *) data;
+    int ancount = ntohs(dns->ans_count);
+    int nscount = ntohs(dns->auth_count);
+    int arcount = ntohs(dns->add_count);
+
+    int32_t lowest = -1;
+    char name[DNS_QNAME_MAX + 1];
+    for (int r = 0; r < ancount + nscount + arcount; r++) {
+        off = get_qname(data, datalen, (uint16_t) off, name);
+        if (off <= 0 || off + 10 > datalen)
+            return -1;
+        uint16_t qtype = ntohs(*((uint16_t *) (data + off)));
+        uint32_t ttl = ntohl(*((uint32_t *) (data + off + 4)));
+        uint16_t rdlength = ntohs(*((uint16_t *) (data + off + 8)));
+        if (off + 10 + rdlength > datalen)
+            return -1;
+
+        // The TTL field of OPT records holds flags
+        if (qtype != DNS_QTYPE_OPT) {
+            if (elapsed)
+                *((uint32_t *) (data + off + 4)) = htonl(ttl > elapsed ? ttl - elapsed : 0);
+
+            if (r < ancount + nscount) {
+                if (qtype == DNS_QTYPE_SOA && rdlength >= 20) {
+                    uint32_t minimum = ntohl(*((uint32_t *) (data + off + 10 + rdlength - 4)));
+                    if (minimum < ttl)
+                        ttl = minimum;
+                }
+                if (lowest < 0 || ttl < lowest)
+                    lowest = (int32_t) (ttl > INT32_MAX ? INT32_MAX : ttl);
+            }
+        }
+
+        off += 10 + rdlength;
+    }
+
+    return lowest;
+}
+
+static int get_dns_cache_key(const char *qname, uint16_t qtype, uint16_t qclass) {
+    // FNV-1a, case insensitive
+    uint32_t hash = 2166136261u;
+    for (const char *c = qname; *c; c++) {
+        hash ^= (uint8_t) tolower(*c);
+        hash *= 16777619u;
+    }
+    hash ^= ((uint32_t) qtype << 16) | qclass;
+    hash *= 16777619u;
+    return (int) (hash == 0 ? 1 : hash);
+}
+
+static struct dns_cache_entry *find_dns_cache(struct context *ctx, const struct dns_question *q) {
+    if (ctx->dns_cache == NULL)
+        return NULL;
+    int key = get_dns_cache_key(q->qname, q->qtype, q->qclass);
+    for (int i = 0; i < DNS_CACHE_SIZE; i++) {
+        struct dns_cache_entry *e = &ctx->dns_cache[i];
+        if (e->key == key && e->qtype == q->qtype && e->qclass == q->qclass &&
+            strcasecmp(e->qname, q->qname) == 0)
+            return e;
+    }
+    return NULL;
+}
+
+static void free_dns_cache_entry(struct dns_cache_entry *e) {
+    if (e->data != NULL)
+        ng_free(e->data, __FILE__, __LINE__);
+    memset(e, 0, sizeof(struct dns_cache_entry));
+}
+
+int check_dns_cache(const struct arguments *args, const struct udp_session *u,
+                    const uint8_t *data, const size_t datalen, const struct dns_question *q) {
+    struct context *ctx = args->ctx;
+    if (q->qclass != DNS_QCLASS_IN ||
+        (q->qtype != DNS_QTYPE_A && q->qtype != DNS_QTYPE_AAAA && q->qtype != DNS_QTYPE_CNAME))
+        return 0;
+
+    ctx->dns_cache_lookups++;
+
+    long long now = get_ms();
+    struct dns_cache_entry *e = find_dns_cache(ctx, q);
+    if (e == NULL)
+        return 0;
+    if (e->expires <= now) {
+        log_android(ANDROID_LOG_DEBUG, "DNS cache expired qtype %d qname %s", q->qtype, q->qname);
+        free_dns_cache_entry(e);
+        return 0;
+    }
+
+    // The question of the query and the cached response are equal, except for the case
+    // Copy the question to keep the case, which might be randomized (DNS 0x20)
+    size_t rlen = e->length;
+    uint8_t *response = ng_malloc(rlen, "dns cache response");
+    memcpy(response, e->data, rlen);
+    memcpy(response, data, sizeof(uint16_t)); // transaction ID
+    if (e->question == q->end)
+        memcpy(response + sizeof(struct dns_header), data + sizeof(struct dns_header),
+               (size_t) (q->end - sizeof(struct dns_header)));
+    ((struct dns_header *) response)->rd = ((struct dns_header *) data)->rd;
+    walk_dns_ttl(response, rlen, e->question, (uint32_t) ((now - e->stored) / 1000));
+
+    e->used = now;
+    ctx->dns_cache_hits++;
+    if (e->negative)
+        ctx->dns_cache_negative++;
+    ctx->dns_cache_saved += e->rtt;
+
+    log_android(ANDROID_LOG_INFO, "DNS cache hit qtype %d qname %s negative %d age %lld",
+                q->qtype, q->qname, e->negative, (now - e->stored) / 1000);
+
+    // Report the addresses and apply the block list again, as if received from upstream
+    struct ng_session s;
+    memset(&s, 0, sizeof(struct ng_session));
+    s.protocol = IPPROTO_UDP;
+    memcpy(&s.udp, u, sizeof(struct udp_session));
+    parse_dns_response(args, &s, response, &rlen);
+
+    ssize_t res = write_udp(args, u, response, rlen);
+    ng_free(response, __FILE__, __LINE__);
+
+    return (res < 0 ? -1 : 1);
+}
+
+void put_dns_cache(const struct arguments *args, const struct udp_session *u,
+                   const uint8_t *data, const size_t datalen) {
+    struct context *ctx = args->ctx;
+    if (datalen < sizeof(struct dns_header) + 1 || datalen > DNS_CACHE_MAX_LENGTH)
+        return;
+
+    // Only complete answers to standard queries with one question
+    const struct dns_header *dns = (struct dns_header *) data;
+    if (dns->qr != 1 || dns->opcode != 0 || dns->tc || ntohs(dns->q_count) != 1)
+        return;
+    int negative;
+    if (dns->rcode == 0)
+        negative = (ntohs(dns->ans_count) == 0);
+    else if (dns->rcode == 3) // NXDOMAIN
+        negative = 1;
+    else
+        return;
+
+    struct dns_question q;
+    int32_t off = get_qname(data, datalen, sizeof(struct dns_header), q.qname);
+    if (off <= 0 || off + 4 > datalen)
+        return;
+    q.qtype = ntohs(*((uint16_t *) (data + off)));
+    q.qclass = ntohs(*((uint16_t *) (data + off + 2)));
+    q.end = off + 4;
+    if (q.qclass != DNS_QCLASS_IN ||
+        (q.qtype != DNS_QTYPE_A && q.qtype != DNS_QTYPE_AAAA && q.qtype != DNS_QTYPE_CNAME))
+        return;
+
+    uint8_t *copy = ng_malloc(datalen, "dns cache data");
+    memcpy(copy, data, datalen);
+    int32_t ttl = walk_dns_ttl(copy, datalen, q.end, 0);
+    if (negative)
+        ttl = (ttl < 0 ? DNS_CACHE_NEG_TTL : (ttl > DNS_CACHE_NEG_TTL ? DNS_CACHE_NEG_TTL : ttl));
+    else if (ttl > DNS_CACHE_MAX_TTL)
+        ttl = DNS_CACHE_MAX_TTL;
+    if (ttl <= 0) {
+        ng_free(copy, __FILE__, __LINE__);
+        return;
+    }
+
+    if (ctx->dns_cache == NULL)
+        ctx->dns_cache = ng_calloc(DNS_CACHE_SIZE, sizeof(struct dns_cache_entry), "dns cache");
+
+    // Replace the same question, a free or expired entry, or else the least recently used entry
+    long long now = get_ms();
+    struct dns_cache_entry *e = find_dns_cache(ctx, &q);
+    if (e == NULL) {
+        struct dns_cache_entry *lru = NULL;
+        for (int i = 0; i < DNS_CACHE_SIZE && e == NULL; i++) {
+            struct dns_cache_entry *c = &ctx->dns_cache[i];
+            if (c->data == NULL || c->expires <= now)
+                e = c;
+            else if (lru == NULL || c->used < lru->used)
+                lru = c;
+        }
+        if (e == NULL) {
+            e = lru;
+            ctx->dns_cache_evicted++;
+            log_android(ANDROID_LOG_DEBUG, "DNS cache evict qname %s", e->qname);
+        }
+    }
+    free_dns_cache_entry(e);
+
+    e->key = get_dns_cache_key(q.qname, q.qtype, q.qclass);
+    strcpy(e->qname, q.qname);
+    e->qtype = q.qtype;
+    e->qclass = q.qclass;
+    e->negative = negative;
+    e->question = q.end;
+    e->stored = now;
+    e->expires = now + ttl * 1000LL;
+    e->used = now;
+    e->rtt = (u->qtime > 0 && u->qtime <= now ? now - u->qtime : 0);
+    e->length = datalen;
+    e->data = copy;
+
+    log_android(ANDROID_LOG_DEBUG, "DNS cache put qtype %d qname %s ttl %d negative %d rtt %lld",
+                q.qtype, q.qname, ttl, negative, e->rtt);
+}
+
+void clear_dns_cache(struct context *ctx) {
+    if (ctx->dns_cache != NULL) {
+        for (int i = 0; i < DNS_CACHE_SIZE; i++)
+            free_dns_cache_entry(&ctx->dns_cache[i]);
+        ng_free(ctx->dns_cache, __FILE__, __LINE__);
+    }
+    ctx->dns_cache = NULL;
+}
+
+size_t put_dns_record(uint8_t *buffer, const struct dns_record *r) {
+    // qtype (2), TTL (4), name length (1), name, data length (1), data
+    size_t namelen = strlen(r->name);
+    size_t len = 2 + 4 + 1 + namelen + 1 + r->length;
+    if (buffer != NULL) {
+        *((uint16_t *) buffer) = htons(r->qtype);
+        *((uint32_t *) (buffer + 2)) = htonl((uint32_t) r->ttl);
+        *(buffer + 6) = (uint8_t) namelen;
+        memcpy(buffer + 7, r->name, namelen);
+        *(buffer + 7 + namelen) = r->length;
+        memcpy(buffer + 8 + namelen, r->data, r->length);
+    }
+    return len;
+}
+
+// Assigns the records of the CNAME chain of a question, starting with the question name
+static void follow_dns_chain(const char *qname, const struct dns_record *records, int count,
+                             int *owner, int q) {
+    for (int r = 0; r < count; r++)
+        if (owner[r] < 0 && strcasecmp(records[r].name, qname) == 0)
+            owner[r] = q;
+
+    int changed = 1;
+    while (changed) {
+        changed = 0;
+        for (int c = 0; c < count; c++)
+            if (owner[c] == q && records[c].qtype == DNS_QTYPE_CNAME)
+                for (int r = 0; r < count; r++)
+                    if (owner[r] < 0 &&
+                        strlen(records[r].name) == records[c].length &&
+                        strncasecmp(records[r].name, (const char *) records[c].data,
+                                    records[c].length) == 0) {
+                        owner[r] = q;
+                        changed = 1;
+                    }
+    }
+}
+
+int parse_dns_response(const struct arguments *args, const struct ng_session *s,
+                       const uint8_t *data, size_t *datalen) {
     if (*datalen < sizeof(struct dns_header) + 1) {
         log_android(ANDROID_LOG_WARN, "DNS response length %d", *datalen);
-        return;
+        return 0;
     }
 
     // Check if standard DNS query
-    // TODO multiple qnames
     struct dns_header *dns = (struct dns_header *) data;
     int qcount = ntohs(dns->q_count);
     int acount = ntohs(dns->ans_count);
     if (dns->qr == 1 && dns->opcode == 0 && qcount > 0 && acount > 0) {
         log_android(ANDROID_LOG_DEBUG, "DNS response qcount %d acount %d", qcount, acount);
-        if (qcount > 1)
+        if (qcount > DNS_QUESTIONS_MAX)
             log_android(ANDROID_LOG_WARN, "DNS response qcount %d acount %d", qcount, acount);
 
         // http://tools.ietf.org/html/rfc1035
         char name[DNS_QNAME_MAX + 1];
         int32_t off = sizeof(struct dns_header);
 
-        uint16_t qtype;
-        uint16_t qclass;
-        char qname[DNS_QNAME_MAX + 1];
-
-        for (int q = 0; q < 1; q++) {
+        int questions = (qcount > DNS_QUESTIONS_MAX ? DNS_QUESTIONS_MAX : qcount);
+        struct dns_question question[DNS_QUESTIONS_MAX];
+        for (int q = 0; q < qcount; q++) {
             off = get_qname(data, *datalen, (uint16_t) off, name);
             if (off > 0 && off + 4 <= *datalen) {
-                // TODO multiple qnames?
-                if (q == 0) {
-                    strcpy(qname, name);
-                    qtype = ntohs(*((uint16_t *) (data + off)));
-                    qclass = ntohs(*((uint16_t *) (data + off + 2)));
+                if (q < questions) {
+                    strcpy(question[q].qname, name);
+                    question[q].qtype = ntohs(*((uint16_t *) (data + off)));
+                    question[q].qclass = ntohs(*((uint16_t *) (data + off + 2)));
                     log_android(ANDROID_LOG_DEBUG,
                                 "DNS question %d qtype %d qclass %d qname %s",
-                                q, qtype, qclass, qname);
+                                q, question[q].qtype, question[q].qclass, question[q].qname);
                 }
                 off += 4;
             } else {
                 log_android(ANDROID_LOG_WARN,
                             "DNS response Q invalid off %d datalen %d", off, *datalen);
-                return;
+                return 0;
             }
         }
 
+        // Collect the addresses and CNAME records in one pass
         short svcb = 0;
         int32_t aoff = off;
+        int count = 0;
+        int records = (acount > DNS_RECORDS_MAX ? DNS_RECORDS_MAX : acount);
+        struct dns_record *record = ng_malloc(sizeof(struct dns_record) * records, "dns records");
         for (int a = 0; a < acount; a++) {
             off = get_qname(data, *datalen, (uint16_t) off, name);
             if (off > 0 && off + 10 <= *datalen) {
@@ -132,26 +489,33 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
                 off += 10;
 
                 if (off + rdlength <= *datalen) {
+                    struct dns_record *r = (count < records ? &record[count] : NULL);
                     if (qclass == DNS_QCLASS_IN &&
-                        (qtype == DNS_QTYPE_A || qtype == DNS_QTYPE_AAAA)) {
-
-                        char rd[INET6_ADDRSTRLEN + 1];
-                        if (qtype == DNS_QTYPE_A) {
-                            if (off + sizeof(__be32) <= *datalen)
-                                inet_ntop(AF_INET, data + off, rd, sizeof(rd));
-                            else
-                                return;
-                        } else if (qclass == DNS_QCLASS_IN && qtype == DNS_QTYPE_AAAA) {
-                            if (off + sizeof(struct in6_addr) <= *datalen)
-                                inet_ntop(AF_INET6, data + off, rd, sizeof(rd));
-                            else
-                                return;
+                        ((qtype == DNS_QTYPE_A && rdlength == sizeof(__be32)) ||
+                         (qtype == DNS_QTYPE_AAAA && rdlength == sizeof(struct in6_addr)))) {
+                        if (r != NULL) {
+                            r->qtype = qtype;
+                            r->ttl = (int32_t) (ttl > INT32_MAX ? INT32_MAX : ttl);
+                            strcpy(r->name, name);
+                            r->length = (uint8_t) rdlength;
+                            memcpy(r->data, data + off, rdlength);
+                            count++;
                         }
-
-                        dns_resolved(args, qname, name, rd, ttl, -1);
                         log_android(ANDROID_LOG_DEBUG,
-                                    "DNS answer %d qname %s qtype %d ttl %d data %s",
-                                    a, name, qtype, ttl, rd);
+                                    "DNS answer %d qname %s qtype %d ttl %d",
+                                    a, name, qtype, ttl);
+                    } else if (qclass == DNS_QCLASS_IN && qtype == DNS_QTYPE_CNAME) {
+                        if (r != NULL &&
+                            get_qname(data, *datalen, (uint16_t) off, (char *) r->data) > 0) {
+                            r->qtype = qtype;
+                            r->ttl = (int32_t) (ttl > INT32_MAX ? INT32_MAX : ttl);
+                            strcpy(r->name, name);
+                            r->length = (uint8_t) strlen((char *) r->data);
+                            count++;
+                            log_android(ANDROID_LOG_DEBUG,
+                                        "DNS answer %d qname %s CNAME %s ttl %d",
+                                        a, name, (char *) r->data, ttl);
+                        }
                     } else if (qclass == DNS_QCLASS_IN &&
                                (qtype == DNS_SVCB || qtype == DNS_HTTPS)) {
                         // https://tools.ietf.org/id/draft-ietf-dnsop-svcb-https-01.html
@@ -168,17 +532,52 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
                     log_android(ANDROID_LOG_WARN,
                                 "DNS response A invalid off %d rdlength %d datalen %d",
                                 off, rdlength, *datalen);
-                    return;
+                    ng_free(record, __FILE__, __LINE__);
+                    return 0;
                 }
             } else {
                 log_android(ANDROID_LOG_WARN,
                             "DNS response A invalid off %d datalen %d", off, *datalen);
-                return;
+                ng_free(record, __FILE__, __LINE__);
+                return 0;
             }
         }
 
-        if (qcount > 0 &&
-            (svcb || is_domain_blocked(args, qname))) {
+        // Assign the records to the questions by following the CNAME chains
+        // Records outside any chain belong to the first question
+        int owner[DNS_RECORDS_MAX];
+        for (int r = 0; r < count; r++)
+            owner[r] = -1;
+        for (int q = 0; q < questions; q++)
+            follow_dns_chain(question[q].qname, record, count, owner, q);
+        for (int r = 0; r < count; r++)
+            if (owner[r] < 0)
+                owner[r] = 0;
+
+        // Deliver the records of each question in one batch
+        // The name of the question and the names in the chain are checked against the block list
+        int blocked = 0;
+        for (int q = 0; q < questions; q++) {
+            size_t length = 0;
+            for (int r = 0; r < count; r++)
+                if (owner[r] == q)
+                    length += put_dns_record(NULL, &record[r]);
+
+            uint8_t *batch = (length ? ng_malloc(length, "dns batch") : NULL);
+            size_t pos = 0;
+            for (int r = 0; r < count; r++)
+                if (owner[r] == q)
+                    pos += put_dns_record(batch + pos, &record[r]);
+
+            if (dns_resolved(args, question[q].qname, batch, length, -1))
+                blocked = 1;
+
+            if (batch != NULL)
+                ng_free(batch, __FILE__, __LINE__);
+        }
+        ng_free(record, __FILE__, __LINE__);
+
+        if (svcb || blocked) {
             dns->qr = 1;
             dns->aa = 0;
             dns->tc = 0;
@@ -193,6 +592,8 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
             dns->add_count = 0;
             *datalen = aoff;
 
+            args->ctx->dns_response_blocked++;
+
             int version;
             char source[INET6_ADDRSTRLEN + 1];
             char dest[INET6_ADDRSTRLEN + 1];
@@ -225,15 +626,20 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
 
             // Log qname
             char name[DNS_QNAME_MAX + 40 + 1];
-            sprintf(name, "qtype %d qname %s rcode %d", qtype, qname, dns->rcode);
+            sprintf(name, "qtype %d qname %s rcode %d",
+                    question[0].qtype, question[0].qname, dns->rcode);
             jobject objPacket = create_packet(
                     args, version, s->protocol, "",
                     source, sport, dest, dport,
                     name, 0, 0);
             log_packet(args, objPacket);
+
+            return 1;
         }
     } else if (acount > 0)
         log_android(ANDROID_LOG_WARN,
                     "DNS response qr %d opcode %d qcount %d acount %d",
                     dns->qr, dns->opcode, qcount, acount);
+
+    return 0;
 }
@@ -38,15 +38,10 @@ int check_icmp_session(const struct arguments *args, struct ng_session *s,
     if (s->icmp.stop || s->icmp.time + timeout < now) {
         char source[INET6_ADDRSTRLEN + 1];
         char dest[INET6_ADDRSTRLEN + 1];
-        if (s->icmp.version == 4) {
-            inet_ntop(AF_INET, &s->icmp.saddr.ip4, source, sizeof(source));
-            inet_ntop(AF_INET, &s->icmp.daddr.ip4, dest, sizeof(dest));
-        } else {
-            inet_ntop(AF_INET6, &s->icmp.saddr.ip6, source, sizeof(source));
-            inet_ntop(AF_INET6, &s->icmp.daddr.ip6, dest, sizeof(dest));
-        }
         log_android(ANDROID_LOG_WARN, "ICMP idle %d/%d sec stop %d from %s to %s",
-                    now - s->icmp.time, timeout, s->icmp.stop, dest, source);
+                    now - s->icmp.time, timeout, s->icmp.stop,
+                    get_address(s->icmp.version, &s->icmp.daddr, dest),
+                    get_address(s->icmp.version, &s->icmp.saddr, source));
 
         if (close(s->socket))
             log_android(ANDROID_LOG_ERROR, "ICMP close %d error %d: %s",
@@ -99,10 +94,6 @@ void check_icmp_socket(const struct arguments *args, const struct epoll_event *e
             } else {
                 // Socket read data
                 char dest[INET6_ADDRSTRLEN + 1];
-                if (s->icmp.version == 4)
-                    inet_ntop(AF_INET, &s->icmp.daddr.ip4, dest, sizeof(dest));
-                else
-                    inet_ntop(AF_INET6, &s->icmp.daddr.ip6, dest, sizeof(dest));
 
                 // cur->id should be equal to icmp->icmp_id
                 // but for some unexplained reason this is not the case
@@ -111,26 +102,30 @@ void check_icmp_socket(const struct arguments *args, const struct epoll_event *e
                 log_android(
                         s->icmp.id == icmp->icmp_id ? ANDROID_LOG_INFO : ANDROID_LOG_WARN,
                         "ICMP recv bytes %d from %s for tun type %d code %d id %x/%x seq %d",
-                        bytes, dest,
+                        bytes, get_address(s->icmp.version, &s->icmp.daddr, dest),
                         icmp->icmp_type, icmp->icmp_code,
                         s->icmp.id, icmp->icmp_id, icmp->icmp_seq);
 
                 // restore original ID
+                uint16_t id = icmp->icmp_id;
                 icmp->icmp_id = s->icmp.id;
-                uint16_t csum = 0;
-                if (s->icmp.version == 6) {
+                if (s->icmp.version == 4)
+                    // No pseudo header, only the ID changed
+                    icmp->icmp_cksum = update_checksum(icmp->icmp_cksum, id, icmp->icmp_id);
+                else {
                     // Untested
+                    // The received pseudo header has the address of the device, not of the tunnel
                     struct ip6_hdr_pseudo pseudo;
                     memset(&pseudo, 0, sizeof(struct ip6_hdr_pseudo));
                     memcpy(&pseudo.ip6ph_src, &s->icmp.daddr.ip6, 16);
                     memcpy(&pseudo.ip6ph_dst, &s->icmp.saddr.ip6, 16);
                     pseudo.ip6ph_len = bytes - sizeof(struct ip6_hdr);
                     pseudo.ip6ph_nxt = IPPROTO_ICMPV6;
-                    csum = calc_checksum(
+                    uint16_t csum = calc_checksum(
                             0, (uint8_t *) &pseudo, sizeof(struct ip6_hdr_pseudo));
+                    icmp->icmp_cksum = 0;
+                    icmp->icmp_cksum = ~calc_checksum(csum, buffer, (size_t) bytes);
                 }
-                icmp->icmp_cksum = 0;
-                icmp->icmp_cksum = ~calc_checksum(csum, buffer, (size_t) bytes);
 
                 // Forward to tun
                 if (write_icmp(args, &s->icmp, buffer, (size_t) bytes) < 0)
@@ -153,19 +148,15 @@ jboolean handle_icmp(const struct arguments *args,
     struct icmp *icmp = (struct icmp *) payload;
     size_t icmplen = length - (payload - pkt);
 
+    const void *saddr = (version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src);
+    const void *daddr = (version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst);
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
-    if (version == 4) {
-        inet_ntop(AF_INET, &ip4->saddr, source, sizeof(source));
-        inet_ntop(AF_INET, &ip4->daddr, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &ip6->ip6_src, source, sizeof(source));
-        inet_ntop(AF_INET6, &ip6->ip6_dst, dest, sizeof(dest));
-    }
 
     if (icmp->icmp_type != ICMP_ECHO) {
         log_android(ANDROID_LOG_WARN, "ICMP type %d code %d from %s to %s not supported",
-                    icmp->icmp_type, icmp->icmp_code, source, dest);
+                    icmp->icmp_type, icmp->icmp_code, get_address(version, saddr, source),
+                    get_address(version, daddr, dest));
         return 0;
     }
 
@@ -182,7 +173,8 @@ jboolean handle_icmp(const struct arguments *args,
 
     // Create new session if needed
     if (cur == NULL) {
-        log_android(ANDROID_LOG_INFO, "ICMP new session from %s to %s", source, dest);
+        log_android(ANDROID_LOG_INFO, "ICMP new session from %s to %s",
+                    get_address(version, saddr, source), get_address(version, daddr, dest));
 
         // Register session
         struct ng_session *s = ng_malloc(sizeof(struct ng_session), "icmp session");
@@ -229,24 +221,14 @@ jboolean handle_icmp(const struct arguments *args,
 
     // Modify ID
     // http://lwn.net/Articles/443051/
+    // The pseudo header of ICMPv6 does not change
+    uint16_t id = icmp->icmp_id;
     icmp->icmp_id = ~icmp->icmp_id;
-    uint16_t csum = 0;
-    if (version == 6) {
-        // Untested
-        struct ip6_hdr_pseudo pseudo;
-        memset(&pseudo, 0, sizeof(struct ip6_hdr_pseudo));
-        memcpy(&pseudo.ip6ph_src, &ip6->ip6_dst, 16);
-        memcpy(&pseudo.ip6ph_dst, &ip6->ip6_src, 16);
-        pseudo.ip6ph_len = ip6->ip6_ctlun.ip6_un1.ip6_un1_plen;
-        pseudo.ip6ph_nxt = ip6->ip6_ctlun.ip6_un1.ip6_un1_nxt;
-        csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ip6_hdr_pseudo));
-    }
-    icmp->icmp_cksum = 0;
-    icmp->icmp_cksum = ~calc_checksum(csum, (uint8_t *) icmp, icmplen);
+    icmp->icmp_cksum = update_checksum(icmp->icmp_cksum, id, icmp->icmp_id);
 
     log_android(ANDROID_LOG_INFO,
                 "ICMP forward from tun %s to %s type %d code %d id %x seq %d data %d",
-                source, dest,
+                get_address(version, saddr, source), get_address(version, daddr, dest),
                 icmp->icmp_type, icmp->icmp_code, icmp->icmp_id, icmp->icmp_seq, icmplen);
 
     cur->icmp.time = time(NULL);
@@ -298,18 +280,17 @@ int open_icmp_socket(const struct arguments *args, const struct icmp_session *cu
 ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
                    uint8_t *data, size_t datalen) {
     size_t len;
-    u_int8_t *buffer;
+    size_t hlen;
+    uint8_t buffer[TUN_HEADER_MAX] __attribute__((aligned(8)));
     struct icmp *icmp = (struct icmp *) data;
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
 
-    // Build packet
+    // Build header, the message is written from where it is
     if (cur->version == 4) {
-        len = sizeof(struct iphdr) + datalen;
-        buffer = ng_malloc(len, "icmp write4");
+        hlen = sizeof(struct iphdr);
+        len = hlen + datalen;
         struct iphdr *ip4 = (struct iphdr *) buffer;
-        if (datalen)
-            memcpy(buffer + sizeof(struct iphdr), data, datalen);
 
         // Build IP4 header
         memset(ip4, 0, sizeof(struct iphdr));
@@ -324,11 +305,9 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
         // Calculate IP4 checksum
         ip4->check = ~calc_checksum(0, (uint8_t *) ip4, sizeof(struct iphdr));
     } else {
-        len = sizeof(struct ip6_hdr) + datalen;
-        buffer = ng_malloc(len, "icmp write6");
+        hlen = sizeof(struct ip6_hdr);
+        len = hlen + datalen;
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
-        if (datalen)
-            memcpy(buffer + sizeof(struct ip6_hdr), data, datalen);
 
         // Build IP6 header
         memset(ip6, 0, sizeof(struct ip6_hdr));
@@ -341,30 +320,17 @@ ssize_t write_icmp(const struct arguments *args, const struct icmp_session *cur,
         memcpy(&(ip6->ip6_dst), &cur->saddr.ip6, 16);
     }
 
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              cur->version == 4 ? (const void *) &cur->saddr.ip4 : (const void *) &cur->saddr.ip6,
-              source, sizeof(source));
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              cur->version == 4 ? (const void *) &cur->daddr.ip4 : (const void *) &cur->daddr.ip6,
-              dest, sizeof(dest));
-
     // Send raw ICMP message
     log_android(ANDROID_LOG_WARN,
                 "ICMP sending to tun %d from %s to %s data %u type %d code %d id %x seq %d",
-                args->tun, dest, source, datalen,
+                args->tun, get_address(cur->version, &cur->daddr, dest),
+                get_address(cur->version, &cur->saddr, source), datalen,
                 icmp->icmp_type, icmp->icmp_code, icmp->icmp_id, icmp->icmp_seq);
 
-    ssize_t res = write(args->tun, buffer, len);
-
-    // Write PCAP record
-    if (res >= 0) {
-        if (pcap_file != NULL)
-            write_pcap_rec(buffer, (size_t) res);
-    } else
+    ssize_t res = write_tun(args, buffer, hlen, data, datalen);
+    if (res < 0)
         log_android(ANDROID_LOG_WARN, "ICMP write error %d: %s", errno, strerror(errno));
 
-    ng_free(buffer, __FILE__, __LINE__);
-
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "write %d/%d", res, len);
         return -1;
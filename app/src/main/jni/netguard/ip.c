@@ -22,6 +22,7 @@
 int max_tun_msg = 0;
 extern int loglevel;
 extern FILE *pcap_file;
+extern struct metrics metrics;
 
 uint16_t get_mtu() {
     return 10000;
@@ -69,6 +70,9 @@ int check_tun(const struct arguments *args,
                 return -1;
             }
         } else if (length > 0) {
+            metrics.tun_in_packets++;
+            metrics.tun_in_bytes += length;
+
             // Write pcap record
             if (pcap_file != NULL)
                 write_pcap_rec(buffer, (size_t) length);
@@ -95,6 +99,27 @@ int check_tun(const struct arguments *args,
     return 0;
 }
 
+// Write a packet of headers and data with one system call, without copying the data
+// A tun device takes one packet per write, so packets cannot be combined
+ssize_t write_tun(const struct arguments *args,
+                  const uint8_t *header, size_t hlen,
+                  const uint8_t *data, size_t datalen) {
+    struct iovec iov[2];
+    iov[0].iov_base = (void *) header;
+    iov[0].iov_len = hlen;
+    iov[1].iov_base = (void *) data;
+    iov[1].iov_len = datalen;
+
+    ssize_t res = writev(args->tun, iov, datalen ? 2 : 1);
+    record_tun_write(res);
+
+    // Write pcap record
+    if (res >= 0 && pcap_file != NULL)
+        write_pcap_packet(header, hlen, data, (size_t) res);
+
+    return res;
+}
+
 // https://en.wikipedia.org/wiki/IPv6_packet#Extension_headers
 // http://www.iana.org/assignments/protocol-numbers/protocol-numbers.xhtml
 int is_lower_layer(int protocol) {
@@ -205,9 +230,6 @@ void handle_ip(const struct arguments *args,
         return;
     }
 
-    inet_ntop(version == 4 ? AF_INET : AF_INET6, saddr, source, sizeof(source));
-    inet_ntop(version == 4 ? AF_INET : AF_INET6, daddr, dest, sizeof(dest));
-
     // Get ports & flags
     int syn = 0;
     uint16_t sport = 0;
@@ -286,6 +308,7 @@ void handle_ip(const struct arguments *args,
     // Get server name
     char server_name[TLS_SNI_LENGTH + 1];
     *server_name = 0;
+    jboolean server_blocked = 0;
     if (protocol == IPPROTO_TCP) {
         const struct tcphdr *tcphdr = (struct tcphdr *) payload;
         const uint8_t tcpoptlen = (uint8_t) ((tcphdr->doff - 5) * 4);
@@ -295,7 +318,16 @@ void handle_ip(const struct arguments *args,
         if (get_sni(data, datalen, server_name)) {
             log_android(ANDROID_LOG_INFO, "TLS server name: %s", server_name);
             uid = get_uid(version, protocol, saddr, sport, daddr, dport);
-            dns_resolved(args, server_name, server_name, dest, -1, uid);
+
+            struct dns_record r;
+            r.qtype = (uint16_t) (version == 4 ? DNS_QTYPE_A : DNS_QTYPE_AAAA);
+            r.ttl = -1;
+            strcpy(r.name, server_name);
+            r.length = (uint8_t) (version == 4 ? 4 : 16);
+            memcpy(r.data, daddr, r.length);
+            uint8_t record[sizeof(struct dns_record) + 8];
+            size_t length = put_dns_record(record, &r);
+            server_blocked = dns_resolved(args, server_name, record, length, uid);
         }
     }
 
@@ -309,12 +341,15 @@ void handle_ip(const struct arguments *args,
         if (args->ctx->sdk <= 28) // Android 9 Pie
             uid = get_uid(version, protocol, saddr, sport, daddr, dport);
         else
-            uid = get_uid_q(args, version, protocol, source, sport, dest, dport);
+            uid = get_uid_q(args, version, protocol,
+                            get_address(version, saddr, source), sport,
+                            get_address(version, daddr, dest), dport);
     }
 
     log_android(ANDROID_LOG_DEBUG,
                 "Packet v%d %s/%u > %s/%u proto %d flags %s uid %d sni %s",
-                version, source, sport, dest, dport, protocol, flags, uid, server_name);
+                version, get_address(version, saddr, source), sport,
+                get_address(version, daddr, dest), dport, protocol, flags, uid, server_name);
 
     // Check if allowed
     int allowed = 0;
@@ -325,12 +360,14 @@ void handle_ip(const struct arguments *args,
         allowed = 1; // assume existing session
     else {
         jobject objPacket = create_packet(
-                args, version, protocol, flags, source, sport, dest, dport, data, uid, 0);
+                args, version, protocol, flags,
+                get_address(version, saddr, source), sport,
+                get_address(version, daddr, dest), dport, data, uid, 0);
         redirect = is_address_allowed(args, objPacket);
         allowed = (redirect != NULL);
         if (redirect != NULL && (*redirect->raddr == 0 || redirect->rport == 0))
             redirect = NULL;
-        if (allowed && *server_name && is_domain_blocked(args, server_name))
+        if (allowed && *server_name && server_blocked)
             allowed = 0;
     }
 
@@ -349,13 +386,14 @@ void handle_ip(const struct arguments *args,
             handle_tcp(args, pkt, length, payload, uid, allowed, redirect, epoll_fd); // RST
 
         log_android(ANDROID_LOG_WARN, "Address v%d p%d %s/%u syn %d not allowed",
-                    version, protocol, dest, dport, syn);
+                    version, protocol, get_address(version, daddr, dest), dport, syn);
     }
 }
 
 jint get_uid(const int version, const int protocol,
              const void *saddr, const uint16_t sport,
              const void *daddr, const uint16_t dport) {
+    long long start = get_us();
     jint uid = -1;
 
     char source[INET6_ADDRSTRLEN + 1];
@@ -399,6 +437,9 @@ jint get_uid(const int version, const int protocol,
         log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d",
                     version, protocol, source, sport, dest, dport, uid);
 
+    metrics.uid_lookups++;
+    metrics.uid_us += get_us() - start;
+
     return uid;
 }
 
@@ -433,6 +474,7 @@ jint get_uid_sub(const int version, const int protocol,
             log_android(ANDROID_LOG_INFO, "uid v%d p%d %s/%u > %s/%u => %d (from cache)",
                         version, protocol, source, sport, dest, dport, uid_cache[i].uid);
 
+            metrics.uid_cache_hits++;
             return uid_cache[i].uid;
         }
 
@@ -0,0 +1,99 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Counters since the library was loaded, the Java side computes rates
+struct metrics metrics;
+
+// Latency profile, enabled from the settings and read without locking
+int profile_enabled = 0;
+uint32_t profile[UPCALL_COUNT][PROFILE_BUCKETS];
+
+// Upper bounds of the histogram buckets, the last bucket is open ended
+static const long long metrics_bucket_us[METRICS_BUCKETS - 1] = {
+        50, 100, 250, 500, 1000, 2500, 5000
+};
+
+#ifdef PROFILE_JNI
+static const char *upcall_names[UPCALL_COUNT] = {
+        "log_packet",
+        "dns_resolved",
+        "is_domain_blocked",
+        "get_uid_q",
+        "is_address_allowed",
+        "create_packet",
+        "account_usage"
+};
+#endif
+
+// Values below 32 us have their own bucket,
+// larger values share a bucket with values of the same top five bits
+int get_profile_bucket(long long us) {
+    if (us < 0)
+        us = 0;
+    if (us > PROFILE_MAX_US)
+        us = PROFILE_MAX_US;
+    if (us < (2 << PROFILE_SUB_BITS))
+        return (int) us;
+
+    int shift = (63 - __builtin_clzll((unsigned long long) us)) - PROFILE_SUB_BITS;
+    int sub = (int) (us >> shift) - (1 << PROFILE_SUB_BITS);
+    return ((shift + 1) << PROFILE_SUB_BITS) + sub;
+}
+
+void set_profile(int enabled) {
+    if (enabled && !__atomic_load_n(&profile_enabled, __ATOMIC_RELAXED))
+        for (int u = 0; u < UPCALL_COUNT; u++)
+            for (int b = 0; b < PROFILE_BUCKETS; b++)
+                __atomic_store_n(&profile[u][b], 0, __ATOMIC_RELAXED);
+    __atomic_store_n(&profile_enabled, enabled, __ATOMIC_RELAXED);
+}
+
+void record_upcall(int upcall, long long start) {
+    long long us = get_us() - start;
+    struct upcall_metrics *m = &metrics.upcall[upcall];
+    m->count++;
+    m->us += us;
+
+    int b = 0;
+    while (b < METRICS_BUCKETS - 1 && us >= metrics_bucket_us[b])
+        b++;
+    m->histogram[b]++;
+
+    if (__atomic_load_n(&profile_enabled, __ATOMIC_RELAXED))
+        __atomic_fetch_add(&profile[upcall][get_profile_bucket(us)], 1, __ATOMIC_RELAXED);
+
+#ifdef PROFILE_JNI
+    if (us > PROFILE_JNI * 1000LL)
+        log_android(ANDROID_LOG_WARN, "%s %f", upcall_names[upcall], us / 1000.0);
+#endif
+}
+
+void record_handler(int handler, long long start) {
+    metrics.handler_count[handler]++;
+    metrics.handler_us[handler] += get_us() - start;
+}
+
+void record_tun_write(ssize_t res) {
+    if (res > 0) {
+        metrics.tun_out_packets++;
+        metrics.tun_out_bytes += res;
+    }
+}
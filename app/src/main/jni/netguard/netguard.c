@@ -39,11 +39,13 @@ extern long pcap_file_size;
 extern int uid_cache_size;
 extern struct uid_cache_entry *uid_cache;
 
+extern struct metrics metrics;
+extern uint32_t profile[UPCALL_COUNT][PROFILE_BUCKETS];
+
 // JNI
 
 jclass clsPacket;
 jclass clsAllowed;
-jclass clsRR;
 jclass clsUsage;
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
@@ -63,10 +65,6 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved) {
     clsAllowed = jniGlobalRef(env, jniFindClass(env, allowed));
     ng_add_alloc(clsAllowed, "clsAllowed");
 
-    const char *rr = "eu/faircode/netguard/ResourceRecord";
-    clsRR = jniGlobalRef(env, jniFindClass(env, rr));
-    ng_add_alloc(clsRR, "clsRR");
-
     const char *usage = "eu/faircode/netguard/Usage";
     clsUsage = jniGlobalRef(env, jniFindClass(env, usage));
     ng_add_alloc(clsUsage, "clsUsage");
@@ -96,11 +94,9 @@ void JNI_OnUnload(JavaVM *vm, void *reserved) {
     else {
         (*env)->DeleteGlobalRef(env, clsPacket);
         (*env)->DeleteGlobalRef(env, clsAllowed);
-        (*env)->DeleteGlobalRef(env, clsRR);
         (*env)->DeleteGlobalRef(env, clsUsage);
         ng_delete_alloc(clsPacket, __FILE__, __LINE__);
         ng_delete_alloc(clsAllowed, __FILE__, __LINE__);
-        ng_delete_alloc(clsRR, __FILE__, __LINE__);
         ng_delete_alloc(clsUsage, __FILE__, __LINE__);
     }
 }
@@ -147,6 +143,11 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1start(
     max_tun_msg = 0;
     ctx->stopping = 0;
 
+    // Terminate existing sessions not allowed anymore
+    clear_reload(ctx);
+    ctx->reload = 1;
+    ctx->reload_all = 1;
+
     log_android(ANDROID_LOG_WARN, "Starting level %d", loglevel);
 
 }
@@ -186,11 +187,80 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1stop(
         log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
 }
 
+int compare_uid_verdict(const void *a, const void *b) {
+    jint ua = ((const struct uid_verdict *) a)->uid;
+    jint ub = ((const struct uid_verdict *) b)->uid;
+    return (ua < ub ? -1 : (ua > ub ? 1 : 0));
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1reload(
+        JNIEnv *env, jobject instance, jlong context, jint loglevel_,
+        jboolean filter_udp, jintArray uids_, jintArray verdicts_, jboolean clear_dns) {
+    struct context *ctx = (struct context *) context;
+
+    loglevel = loglevel_;
+
+    if (pthread_mutex_lock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    if (uids_ == NULL || verdicts_ == NULL) {
+        clear_reload(ctx);
+        ctx->reload_all = 1;
+    } else if (!ctx->reload_all) {
+        // Merge with a pending reload, newer verdicts take precedence
+        // Both lists are sorted by uid
+        jsize count = (*env)->GetArrayLength(env, uids_);
+        jint *uids = (*env)->GetIntArrayElements(env, uids_, NULL);
+        jint *verdicts = (*env)->GetIntArrayElements(env, verdicts_, NULL);
+
+        struct uid_verdict *merged = ng_malloc(
+                (count + ctx->reload_count + 1) * sizeof(struct uid_verdict), "reload");
+        int total = 0;
+        int i = 0;
+        int p = 0;
+        while (i < count || p < ctx->reload_count) {
+            if (p < ctx->reload_count && (i == count || ctx->reload_uid[p].uid < uids[i]))
+                merged[total++] = ctx->reload_uid[p++];
+            else {
+                if (p < ctx->reload_count && ctx->reload_uid[p].uid == uids[i])
+                    p++; // replaced
+                merged[total].uid = uids[i];
+                merged[total].verdict = verdicts[i];
+                total++;
+                i++;
+            }
+        }
+
+        (*env)->ReleaseIntArrayElements(env, uids_, uids, JNI_ABORT);
+        (*env)->ReleaseIntArrayElements(env, verdicts_, verdicts, JNI_ABORT);
+
+        clear_reload(ctx);
+        ctx->reload_count = total;
+        ctx->reload_uid = merged;
+    }
+    ctx->reload_filter_udp = filter_udp;
+    if (clear_dns)
+        ctx->reload_dns = 1; // the network changed
+    ctx->reload = 1;
+
+    log_android(ANDROID_LOG_WARN, "Write pipe reload uids %d dns %d level %d",
+                ctx->reload_all ? -1 : ctx->reload_count, ctx->reload_dns, loglevel);
+
+    if (pthread_mutex_unlock(&ctx->lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    if (write(ctx->pipefds[1], "r", 1) < 0)
+        log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+}
+
 JNIEXPORT void JNICALL
 Java_eu_faircode_netguard_ServiceSinkhole_jni_1clear(
         JNIEnv *env, jobject instance, jlong context) {
     struct context *ctx = (struct context *) context;
     clear(ctx);
+    clear_dns_cache(ctx); // the network might have changed
+    ctx->reload_dns = 0;
 }
 
 JNIEXPORT jint JNICALL
@@ -198,51 +268,109 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1mtu(JNIEnv *env, jobject ins
     return get_mtu();
 }
 
-JNIEXPORT jintArray JNICALL
-Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1stats(
-        JNIEnv *env, jobject instance, jlong context) {
+// Layout version METRICS_VERSION, see NativeMetrics
+#define METRICS_FIXED 29
+#define METRICS_LENGTH (METRICS_FIXED + HANDLER_COUNT * 2 + UPCALL_COUNT * (2 + METRICS_BUCKETS))
+
+JNIEXPORT jlongArray JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1metrics(
+        JNIEnv *env, jclass type, jlong context) {
     struct context *ctx = (struct context *) context;
 
+    jlong m[METRICS_LENGTH];
+    memset(m, 0, sizeof(m));
+    m[0] = METRICS_VERSION;
+    m[1] = METRICS_LENGTH;
+    m[2] = get_ms();
+
+    // The tunnel thread holds the lock while handling events
     if (pthread_mutex_lock(&ctx->lock))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
-    jintArray jarray = (*env)->NewIntArray(env, 5);
-    jint *jcount = (*env)->GetIntArrayElements(env, jarray, NULL);
-
     struct ng_session *s = ctx->ng_session;
     while (s != NULL) {
         if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
             if (!s->icmp.stop)
-                jcount[0]++;
+                m[3]++;
         } else if (s->protocol == IPPROTO_UDP) {
             if (s->udp.state == UDP_ACTIVE)
-                jcount[1]++;
+                m[4]++;
         } else if (s->protocol == IPPROTO_TCP) {
             if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                jcount[2]++;
+                m[5]++;
         }
+        if (s->socket >= 0)
+            m[6]++;
         s = s->next;
     }
 
+    m[8] = metrics.tun_in_packets;
+    m[9] = metrics.tun_in_bytes;
+    m[10] = metrics.tun_out_packets;
+    m[11] = metrics.tun_out_bytes;
+    m[12] = metrics.epoll_wakeups;
+    m[13] = metrics.epoll_events;
+    m[14] = metrics.uid_lookups;
+    m[15] = metrics.uid_cache_hits;
+    m[16] = metrics.uid_us;
+    m[17] = __sync_fetch_and_add(&metrics.allocs, 0);
+    m[18] = __sync_fetch_and_add(&metrics.frees, 0);
+    m[19] = ctx->dns_query_blocked;
+    m[20] = ctx->dns_response_blocked;
+    m[21] = ctx->dns_cache_lookups;
+    m[22] = ctx->dns_cache_hits;
+    m[23] = ctx->dns_cache_negative;
+    m[24] = ctx->dns_cache_evicted;
+    m[25] = ctx->dns_cache_saved;
+
+    int i = METRICS_FIXED;
+    for (int h = 0; h < HANDLER_COUNT; h++) {
+        m[i++] = metrics.handler_count[h];
+        m[i++] = metrics.handler_us[h];
+    }
+    for (int u = 0; u < UPCALL_COUNT; u++) {
+        m[i++] = metrics.upcall[u].count;
+        m[i++] = metrics.upcall[u].us;
+        for (int b = 0; b < METRICS_BUCKETS; b++)
+            m[i++] = metrics.upcall[u].histogram[b];
+    }
+
     if (pthread_mutex_unlock(&ctx->lock))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
 
-    jcount[3] = 0;
-    DIR *d = opendir("/proc/self/fd");
-    if (d) {
-        struct dirent *dir;
-        while ((dir = readdir(d)) != NULL)
-            if (dir->d_type != DT_DIR)
-                jcount[3]++;
-        closedir(d);
-    }
-
     struct rlimit rlim;
     memset(&rlim, 0, sizeof(struct rlimit));
     getrlimit(RLIMIT_NOFILE, &rlim);
-    jcount[4] = (jint) rlim.rlim_cur;
+    m[7] = (jlong) rlim.rlim_cur;
+
+    m[26] = HANDLER_COUNT;
+    m[27] = UPCALL_COUNT;
+    m[28] = METRICS_BUCKETS;
 
-    (*env)->ReleaseIntArrayElements(env, jarray, jcount, 0);
+    jlongArray jarray = (*env)->NewLongArray(env, METRICS_LENGTH);
+    (*env)->SetLongArrayRegion(env, jarray, 0, METRICS_LENGTH, m);
+    return jarray;
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1profile(
+        JNIEnv *env, jclass type, jboolean enabled) {
+    log_android(ANDROID_LOG_WARN, "Upcall profile %d", enabled);
+    set_profile(enabled);
+}
+
+// UPCALL_COUNT rows of PROFILE_BUCKETS counts, see UpcallProfile
+JNIEXPORT jlongArray JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1profile(
+        JNIEnv *env, jclass type) {
+    jlongArray jarray = (*env)->NewLongArray(env, UPCALL_COUNT * PROFILE_BUCKETS);
+    jlong *jprofile = (*env)->GetLongArrayElements(env, jarray, NULL);
+
+    for (int u = 0; u < UPCALL_COUNT; u++)
+        for (int b = 0; b < PROFILE_BUCKETS; b++)
+            jprofile[u * PROFILE_BUCKETS + b] = __atomic_load_n(&profile[u][b], __ATOMIC_RELAXED);
+
+    (*env)->ReleaseLongArrayElements(env, jarray, jprofile, 0);
     return jarray;
 }
 
@@ -338,6 +466,8 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(
     log_android(ANDROID_LOG_INFO, "Done");
 
     clear(ctx);
+    clear_reload(ctx);
+    clear_dns_cache(ctx);
 
     if (pthread_mutex_destroy(&ctx->lock))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
@@ -543,11 +673,7 @@ int jniCheckException(JNIEnv *env) {
 static jmethodID midLogPacket = NULL;
 
 void log_packet(const struct arguments *args, jobject jpacket) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+    long long start = get_us();
 
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
@@ -564,102 +690,52 @@ void log_packet(const struct arguments *args, jobject jpacket) {
     ng_delete_alloc(clsService, __FILE__, __LINE__);
     ng_delete_alloc(jpacket, __FILE__, __LINE__);
 
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
-#endif
+    record_upcall(UPCALL_LOG_PACKET, start);
 }
 
 static jmethodID midDnsResolved = NULL;
-static jmethodID midInitRR = NULL;
-jfieldID fidQTime = NULL;
-jfieldID fidQName = NULL;
-jfieldID fidAName = NULL;
-jfieldID fidResource = NULL;
-jfieldID fidTTL = NULL;
-jfieldID fidDnsUid = NULL;
-
-void dns_resolved(const struct arguments *args,
-                  const char *qname, const char *aname, const char *resource, int ttl, jint uid) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+
+// The records are encoded by put_dns_record
+// Returns whether the name or a name in the CNAME chain is blocked
+jboolean dns_resolved(const struct arguments *args,
+                      const char *qname, const uint8_t *records, size_t length, jint uid) {
+    long long start = get_us();
 
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
 
-    const char *signature = "(Leu/faircode/netguard/ResourceRecord;)V";
+    const char *signature = "(Ljava/lang/String;[BI)Z";
     if (midDnsResolved == NULL)
         midDnsResolved = jniGetMethodID(args->env, clsService, "dnsResolved", signature);
 
-    const char *rr = "eu/faircode/netguard/ResourceRecord";
-    if (midInitRR == NULL)
-        midInitRR = jniGetMethodID(args->env, clsRR, "<init>", "()V");
-
-    jobject jrr = jniNewObject(args->env, clsRR, midInitRR, rr);
-    ng_add_alloc(jrr, "jrr");
-
-    if (fidQTime == NULL) {
-        const char *string = "Ljava/lang/String;";
-        fidQTime = jniGetFieldID(args->env, clsRR, "Time", "J");
-        fidQName = jniGetFieldID(args->env, clsRR, "QName", string);
-        fidAName = jniGetFieldID(args->env, clsRR, "AName", string);
-        fidResource = jniGetFieldID(args->env, clsRR, "Resource", string);
-        fidTTL = jniGetFieldID(args->env, clsRR, "TTL", "I");
-        fidDnsUid = jniGetFieldID(args->env, clsRR, "uid", "I");
-    }
-
-    jlong jtime = time(NULL) * 1000LL;
     jstring jqname = (*args->env)->NewStringUTF(args->env, qname);
-    jstring janame = (*args->env)->NewStringUTF(args->env, aname);
-    jstring jresource = (*args->env)->NewStringUTF(args->env, resource);
+    jbyteArray jrecords = (*args->env)->NewByteArray(args->env, (jsize) length);
     ng_add_alloc(jqname, "jqname");
-    ng_add_alloc(janame, "janame");
-    ng_add_alloc(jresource, "jresource");
-
-    (*args->env)->SetLongField(args->env, jrr, fidQTime, jtime);
-    (*args->env)->SetObjectField(args->env, jrr, fidQName, jqname);
-    (*args->env)->SetObjectField(args->env, jrr, fidAName, janame);
-    (*args->env)->SetObjectField(args->env, jrr, fidResource, jresource);
-    (*args->env)->SetIntField(args->env, jrr, fidTTL, ttl);
-    (*args->env)->SetIntField(args->env, jrr, fidDnsUid, uid);
+    ng_add_alloc(jrecords, "jrecords");
+    if (length > 0)
+        (*args->env)->SetByteArrayRegion(args->env, jrecords, 0, (jsize) length,
+                                         (const jbyte *) records);
 
-    (*args->env)->CallVoidMethod(args->env, args->instance, midDnsResolved, jrr);
+    jboolean jblocked = (*args->env)->CallBooleanMethod(
+            args->env, args->instance, midDnsResolved, jqname, jrecords, uid);
     jniCheckException(args->env);
 
-    (*args->env)->DeleteLocalRef(args->env, jresource);
-    (*args->env)->DeleteLocalRef(args->env, janame);
+    (*args->env)->DeleteLocalRef(args->env, jrecords);
     (*args->env)->DeleteLocalRef(args->env, jqname);
-    (*args->env)->DeleteLocalRef(args->env, jrr);
     (*args->env)->DeleteLocalRef(args->env, clsService);
-    ng_delete_alloc(jresource, __FILE__, __LINE__);
-    ng_delete_alloc(janame, __FILE__, __LINE__);
+    ng_delete_alloc(jrecords, __FILE__, __LINE__);
     ng_delete_alloc(jqname, __FILE__, __LINE__);
-    ng_delete_alloc(jrr, __FILE__, __LINE__);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
 
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
-#endif
+    record_upcall(UPCALL_DNS_RESOLVED, start);
+
+    return jblocked;
 }
 
 static jmethodID midIsDomainBlocked = NULL;
 
 jboolean is_domain_blocked(const struct arguments *args, const char *name) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+    long long start = get_us();
 
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
@@ -680,13 +756,7 @@ jboolean is_domain_blocked(const struct arguments *args, const char *name) {
     ng_delete_alloc(jname, __FILE__, __LINE__);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
 
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "is_domain_blocked %f", mselapsed);
-#endif
+    record_upcall(UPCALL_IS_DOMAIN_BLOCKED, start);
 
     return jallowed;
 }
@@ -697,11 +767,7 @@ jint get_uid_q(const struct arguments *args,
                jint version, jint protocol,
                const char *source, jint sport,
                const char *dest, jint dport) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+    long long start = get_us();
 
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
@@ -727,13 +793,7 @@ jint get_uid_q(const struct arguments *args,
     ng_delete_alloc(jsource, __FILE__, __LINE__);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
 
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "get_uid_q %f", mselapsed);
-#endif
+    record_upcall(UPCALL_GET_UID_Q, start);
 
     return juid;
 }
@@ -744,11 +804,7 @@ jfieldID fidRport = NULL;
 struct allowed allowed;
 
 struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+    long long start = get_us();
 
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
@@ -794,13 +850,7 @@ struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket
     ng_delete_alloc(clsService, __FILE__, __LINE__);
     ng_delete_alloc(jallowed, __FILE__, __LINE__);
 
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "is_address_allowed %f", mselapsed);
-#endif
+    record_upcall(UPCALL_IS_ADDRESS_ALLOWED, start);
 
     return (jallowed == NULL ? NULL : &allowed);
 }
@@ -832,11 +882,7 @@ jobject create_packet(const struct arguments *args,
                       jboolean allowed) {
     JNIEnv *env = args->env;
 
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+    long long start = get_us();
 
     /*
         jbyte b[] = {1,2,3};
@@ -899,13 +945,7 @@ jobject create_packet(const struct arguments *args,
     ng_delete_alloc(jflags, __FILE__, __LINE__);
     // Caller needs to delete reference to packet
 
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "create_packet %f", mselapsed);
-#endif
+    record_upcall(UPCALL_CREATE_PACKET, start);
 
     return jpacket;
 }
@@ -923,11 +963,7 @@ jfieldID fidUsageReceived = NULL;
 
 void account_usage(const struct arguments *args, jint version, jint protocol,
                    const char *daddr, jint dport, jint uid, jlong sent, jlong received) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+    long long start = get_us();
 
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
@@ -978,13 +1014,7 @@ void account_usage(const struct arguments *args, jint version, jint protocol,
     ng_delete_alloc(jusage, __FILE__, __LINE__);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
 
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "log_packet %f", mselapsed);
-#endif
+    record_upcall(UPCALL_ACCOUNT_USAGE, start);
 }
 
 struct alloc_record {
@@ -1068,12 +1098,16 @@ void ng_delete_alloc(void *ptr, const char *file, int line) {
 
 void *ng_malloc(size_t __byte_count, const char *tag) {
     void *ptr = malloc(__byte_count);
+    if (ptr != NULL)
+        __sync_fetch_and_add(&metrics.allocs, 1);
     ng_add_alloc(ptr, tag);
     return ptr;
 }
 
 void *ng_calloc(size_t __item_count, size_t __item_size, const char *tag) {
     void *ptr = calloc(__item_count, __item_size);
+    if (ptr != NULL)
+        __sync_fetch_and_add(&metrics.allocs, 1);
     ng_add_alloc(ptr, tag);
     return ptr;
 }
@@ -1081,11 +1115,15 @@ void *ng_calloc(size_t __item_count, size_t __item_size, const char *tag) {
 void *ng_realloc(void *__ptr, size_t __byte_count, const char *tag) {
     ng_delete_alloc(__ptr, NULL, 0);
     void *ptr = realloc(__ptr, __byte_count);
+    if (__ptr == NULL && ptr != NULL)
+        __sync_fetch_and_add(&metrics.allocs, 1);
     ng_add_alloc(ptr, tag);
     return ptr;
 }
 
 void ng_free(void *__ptr, const char *file, int line) {
+    if (__ptr != NULL)
+        __sync_fetch_and_add(&metrics.frees, 1);
     ng_delete_alloc(__ptr, file, line);
     free(__ptr);
 }
@@ -14,6 +14,7 @@
 #include <sys/types.h>
 #include <sys/ioctl.h>
 #include <sys/socket.h>
+#include <sys/uio.h>
 #include <sys/epoll.h>
 #include <dlfcn.h>
 #include <sys/stat.h>
@@ -39,10 +40,12 @@
 // #define PROFILE_MEMORY
 
 #define EPOLL_TIMEOUT 3600 // seconds
-#define EPOLL_EVENTS 20
+#define EPOLL_EVENTS_MIN 32
+#define EPOLL_EVENTS_MAX 512
 #define EPOLL_MIN_CHECK 100 // milliseconds
 
 #define TUN_YIELD 10 // packets
+#define TUN_HEADER_MAX (40 + 20 + 8) // bytes, IPv6, TCP and the SYN options
 
 #define ICMP4_MAXMSG (IP_MAXPACKET - 20 - 8) // bytes (socket)
 #define ICMP6_MAXMSG (IPV6_MAXPACKET - 40 - 8) // bytes (socket)
@@ -75,12 +78,60 @@
 #define SOCKS5_CONNECT 4
 #define SOCKS5_CONNECTED 5
 
+#define VERDICT_ALLOW 1
+#define VERDICT_BLOCK 2
+#define VERDICT_CHECK 3 // is_address_allowed
+
+#define METRICS_VERSION 1
+#define METRICS_BUCKETS 8 // upcall latency histogram
+
+#define UPCALL_LOG_PACKET 0
+#define UPCALL_DNS_RESOLVED 1
+#define UPCALL_IS_DOMAIN_BLOCKED 2
+#define UPCALL_GET_UID_Q 3
+#define UPCALL_IS_ADDRESS_ALLOWED 4
+#define UPCALL_CREATE_PACKET 5
+#define UPCALL_ACCOUNT_USAGE 6
+#define UPCALL_COUNT 7
+
+// Upcall latency profile, 16 linear sub-buckets per power of two microseconds
+#define PROFILE_SUB_BITS 4
+#define PROFILE_MAX_US ((1 << 26) - 1) // about 67 seconds
+#define PROFILE_BUCKETS 368 // bucket of PROFILE_MAX_US + 1
+
+#define HANDLER_TUN 0
+#define HANDLER_ICMP 1
+#define HANDLER_UDP 2
+#define HANDLER_TCP 3
+#define HANDLER_SESSIONS 4 // session checks
+#define HANDLER_COUNT 5
+
+struct uid_verdict {
+    jint uid;
+    jint verdict;
+};
+
 struct context {
     pthread_mutex_t lock;
     int pipefds[2];
     int stopping;
+    int reload;
+    int reload_all;
+    jboolean reload_filter_udp;
+    int reload_dns; // clear the DNS cache
+    int reload_count;
+    struct uid_verdict *reload_uid; // sorted by uid
     int sdk;
     struct ng_session *ng_session;
+    struct ng_session *monitor; // TCP sessions to update the epoll interest of
+    int dns_query_blocked; // answered from the tunnel
+    int dns_response_blocked; // rewritten upstream responses
+    struct dns_cache_entry *dns_cache; // DNS_CACHE_SIZE entries, tunnel thread only
+    int dns_cache_lookups;
+    int dns_cache_hits;
+    int dns_cache_negative; // hits
+    int dns_cache_evicted;
+    long long dns_cache_saved; // milliseconds of upstream round trips
 };
 
 struct arguments {
@@ -97,6 +148,30 @@ struct allowed {
     uint16_t rport; // host notation
 };
 
+struct upcall_metrics {
+    uint64_t count;
+    uint64_t us;
+    uint64_t histogram[METRICS_BUCKETS];
+};
+
+// Updated by the tunnel thread, except the allocator counters
+struct metrics {
+    uint64_t tun_in_packets;
+    uint64_t tun_in_bytes;
+    uint64_t tun_out_packets;
+    uint64_t tun_out_bytes;
+    uint64_t epoll_wakeups;
+    uint64_t epoll_events;
+    uint64_t uid_lookups;
+    uint64_t uid_cache_hits;
+    uint64_t uid_us;
+    uint64_t allocs;
+    uint64_t frees;
+    uint64_t handler_count[HANDLER_COUNT];
+    uint64_t handler_us[HANDLER_COUNT];
+    struct upcall_metrics upcall[UPCALL_COUNT];
+};
+
 struct segment {
     uint32_t seq;
     uint16_t len;
@@ -139,6 +214,7 @@ struct udp_session {
 
     uint64_t sent;
     uint64_t received;
+    long long qtime; // milliseconds, last DNS query sent
 
     union {
         __be32 ip4; // network notation
@@ -194,6 +270,17 @@ struct tcp_session {
     struct segment *forward;
 };
 
+// Description of a TCP socket or segment for log lines, formatted by get_tcp_label
+struct tcp_label {
+    const struct ng_session *session; // NULL for segments without session
+    const uint8_t *pkt; // NULL for socket events
+    const struct tcphdr *tcphdr;
+    uint16_t datalen;
+    int uid;
+    int state; // append the state of the session
+    char text[250];
+};
+
 struct ng_session {
     uint8_t protocol;
     union {
@@ -204,6 +291,8 @@ struct ng_session {
     jint socket;
     struct epoll_event ev;
     struct ng_session *next;
+    int monitor;
+    struct ng_session *monitor_next;
 };
 
 struct uid_cache_entry {
@@ -270,12 +359,23 @@ int get_sni(
 #define DNS_QCLASS_IN 1
 #define DNS_QTYPE_A 1 // IPv4
 #define DNS_QTYPE_AAAA 28 // IPv6
+#define DNS_QTYPE_CNAME 5
+#define DNS_QTYPE_SOA 6
+#define DNS_QTYPE_OPT 41 // EDNS
 
 #define DNS_SVCB 64
 #define DNS_HTTPS 65
 
 #define DNS_QNAME_MAX 255
+#define DNS_QUESTIONS_MAX 4
+#define DNS_RECORDS_MAX 32 // addresses and CNAMEs per response
 #define DNS_TTL (10 * 60) // seconds
+#define DNS_BLOCK_TTL 60 // seconds, synthesized answers
+
+#define DNS_CACHE_SIZE 256 // entries
+#define DNS_CACHE_MAX_LENGTH 1232 // bytes, EDNS default
+#define DNS_CACHE_MAX_TTL 3600 // seconds
+#define DNS_CACHE_NEG_TTL 60 // seconds, maximum for negative answers
 
 struct dns_header {
     uint16_t id; // identification number
@@ -310,6 +410,36 @@ struct dns_header {
     uint16_t add_count; // number of resource entries
 } __packed;
 
+struct dns_question {
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    uint16_t qclass;
+    int32_t end; // offset after the question
+};
+
+struct dns_record {
+    uint16_t qtype; // A, AAAA or CNAME
+    int32_t ttl; // seconds, -1 if unknown
+    char name[DNS_QNAME_MAX + 1];
+    uint8_t length;
+    uint8_t data[DNS_QNAME_MAX + 1]; // address or CNAME target, not terminated
+};
+
+struct dns_cache_entry {
+    int key; // hash of the question, 0 if unused
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    uint16_t qclass;
+    int negative; // NXDOMAIN or no data
+    int32_t question; // end of the question
+    long long stored; // milliseconds
+    long long expires; // milliseconds
+    long long used; // milliseconds, for LRU eviction
+    long long rtt; // milliseconds, upstream
+    size_t length;
+    uint8_t *data; // response
+};
+
 typedef struct dns_rr {
     __be16 qname_ptr;
     __be16 qtype;
@@ -355,8 +485,14 @@ void report_exit(const struct arguments *args, const char *fmt, ...);
 
 void report_error(const struct arguments *args, jint error, const char *fmt, ...);
 
+jint get_verdict(const struct context *ctx, jint uid, int protocol);
+
 void check_allowed(const struct arguments *args);
 
+void clear_reload(struct context *ctx);
+
+int compare_uid_verdict(const void *a, const void *b);
+
 void clear(struct context *ctx);
 
 int check_icmp_session(const struct arguments *args,
@@ -373,6 +509,10 @@ int check_tcp_session(const struct arguments *args,
 
 int monitor_tcp_session(const struct arguments *args, struct ng_session *s, int epoll_fd);
 
+void mark_tcp_session(struct context *ctx, struct ng_session *s);
+
+void unmark_tcp_session(struct context *ctx, struct ng_session *s);
+
 int get_icmp_timeout(const struct icmp_session *u, int sessions, int maxsessions);
 
 int get_udp_timeout(const struct udp_session *u, int sessions, int maxsessions);
@@ -388,14 +528,39 @@ int check_tun(const struct arguments *args,
               const int epoll_fd,
               int sessions, int maxsessions);
 
+ssize_t write_tun(const struct arguments *args,
+                  const uint8_t *header, size_t hlen,
+                  const uint8_t *data, size_t datalen);
+
 void check_icmp_socket(const struct arguments *args, const struct epoll_event *ev);
 
 void check_udp_socket(const struct arguments *args, const struct epoll_event *ev);
 
 int32_t get_qname(const uint8_t *data, const size_t datalen, uint16_t off, char *qname);
 
-void parse_dns_response(const struct arguments *args, const struct ng_session *session,
-                        const uint8_t *data, size_t *datalen);
+int get_dns_question(const uint8_t *data, const size_t datalen, struct dns_question *q);
+
+int handle_dns_query(const struct arguments *args, const struct udp_session *u,
+                     const uint8_t *data, const size_t datalen);
+
+void log_dns_query(const struct arguments *args, const struct udp_session *u,
+                   const char *qname, uint16_t qtype, int rcode);
+
+int block_dns_query(const struct arguments *args, const struct udp_session *u,
+                    const uint8_t *data, const struct dns_question *q);
+
+int check_dns_cache(const struct arguments *args, const struct udp_session *u,
+                    const uint8_t *data, const size_t datalen, const struct dns_question *q);
+
+void put_dns_cache(const struct arguments *args, const struct udp_session *u,
+                   const uint8_t *data, const size_t datalen);
+
+void clear_dns_cache(struct context *ctx);
+
+size_t put_dns_record(uint8_t *buffer, const struct dns_record *r);
+
+int parse_dns_response(const struct arguments *args, const struct ng_session *session,
+                       const uint8_t *data, size_t *datalen);
 
 uint32_t get_send_window(const struct tcp_session *cur);
 
@@ -440,6 +605,8 @@ int check_dhcp(const struct arguments *args, const struct udp_session *u,
 
 void clear_tcp_data(struct tcp_session *cur);
 
+const char *get_tcp_label(struct tcp_label *label);
+
 jboolean handle_tcp(const struct arguments *args,
                     const uint8_t *pkt, size_t length,
                     const uint8_t *payload,
@@ -448,7 +615,7 @@ jboolean handle_tcp(const struct arguments *args,
 
 void queue_tcp(const struct arguments *args,
                const struct tcphdr *tcphdr,
-               const char *session, struct tcp_session *cur,
+               struct tcp_label *session, struct tcp_session *cur,
                const uint8_t *data, uint16_t datalen);
 
 int open_icmp_socket(const struct arguments *args, const struct icmp_session *cur);
@@ -502,6 +669,8 @@ int protect_socket(const struct arguments *args, int socket);
 
 uint16_t calc_checksum(uint16_t start, const uint8_t *buffer, size_t length);
 
+uint16_t update_checksum(uint16_t check, uint16_t old, uint16_t new);
+
 jobject jniGlobalRef(JNIEnv *env, jobject cls);
 
 jclass jniFindClass(JNIEnv *env, const char *name);
@@ -516,12 +685,21 @@ int jniCheckException(JNIEnv *env);
 
 int sdk_int(JNIEnv *env);
 
-void log_android(int prio, const char *fmt, ...);
+extern int loglevel;
+
+// The arguments are only evaluated for lines which are logged,
+// so descriptions of sessions and packets should be formatted in the arguments
+#define log_android(prio, ...) \
+    do { if ((prio) >= loglevel) print_android((prio), __VA_ARGS__); } while (0)
+
+void print_android(int prio, const char *fmt, ...);
+
+const char *get_address(int version, const void *addr, char *text);
 
 void log_packet(const struct arguments *args, jobject jpacket);
 
-void dns_resolved(const struct arguments *args,
-                  const char *qname, const char *aname, const char *resource, int ttl, jint uid);
+jboolean dns_resolved(const struct arguments *args,
+                      const char *qname, const uint8_t *records, size_t length, jint uid);
 
 jboolean is_domain_blocked(const struct arguments *args, const char *name);
 
@@ -554,6 +732,8 @@ void write_pcap_hdr();
 
 void write_pcap_rec(const uint8_t *buffer, size_t len);
 
+void write_pcap_packet(const uint8_t *header, size_t hlen, const uint8_t *data, size_t length);
+
 void write_pcap(const void *ptr, size_t len);
 
 int compare_u32(uint32_t seq1, uint32_t seq2);
@@ -568,6 +748,18 @@ int is_writable(int fd);
 
 long long get_ms();
 
+long long get_us();
+
+int get_profile_bucket(long long us);
+
+void set_profile(int enabled);
+
+void record_upcall(int upcall, long long start);
+
+void record_handler(int handler, long long start);
+
+void record_tun_write(ssize_t res);
+
 void ng_add_alloc(void *ptr, const char *tag);
 
 void ng_delete_alloc(void *ptr, const char *file, int line);
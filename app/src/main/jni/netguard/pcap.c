@@ -36,6 +36,11 @@ void write_pcap_hdr() {
 }
 
 void write_pcap_rec(const uint8_t *buffer, size_t length) {
+    write_pcap_packet(buffer, length, NULL, length);
+}
+
+// Record of a packet in two parts, a header of hlen bytes and data, length bytes in total
+void write_pcap_packet(const uint8_t *header, size_t hlen, const uint8_t *data, size_t length) {
     struct timespec ts;
     if (clock_gettime(CLOCK_REALTIME, &ts))
         log_android(ANDROID_LOG_ERROR, "clock_gettime error %d: %s", errno, strerror(errno));
@@ -49,7 +54,11 @@ void write_pcap_rec(const uint8_t *buffer, size_t length) {
     pcap_rec->incl_len = (guint32_t) plen;
     pcap_rec->orig_len = (guint32_t) length;
 
-    memcpy(((uint8_t *) pcap_rec) + sizeof(struct pcaprec_hdr_s), buffer, plen);
+    uint8_t *rec = ((uint8_t *) pcap_rec) + sizeof(struct pcaprec_hdr_s);
+    size_t copy = (plen < hlen ? plen : hlen);
+    memcpy(rec, header, copy);
+    if (plen > copy)
+        memcpy(rec + copy, data, plen - copy);
 
     write_pcap(pcap_rec, rlen);
 
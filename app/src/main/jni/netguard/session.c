@@ -19,6 +19,8 @@
 
 #include "netguard.h"
 
+extern struct metrics metrics;
+
 void clear(struct context *ctx) {
     struct ng_session *s = ctx->ng_session;
     while (s != NULL) {
@@ -32,6 +34,15 @@ void clear(struct context *ctx) {
         ng_free(p, __FILE__, __LINE__);
     }
     ctx->ng_session = NULL;
+    ctx->monitor = NULL;
+}
+
+void clear_reload(struct context *ctx) {
+    if (ctx->reload_uid != NULL)
+        ng_free(ctx->reload_uid, __FILE__, __LINE__);
+    ctx->reload_uid = NULL;
+    ctx->reload_count = 0;
+    ctx->reload_all = 0;
 }
 
 void *handle_events(void *a) {
@@ -51,9 +62,6 @@ void *handle_events(void *a) {
                     rlim.rlim_cur, rlim.rlim_max, maxsessions);
     }
 
-    // Terminate existing sessions not allowed anymore
-    check_allowed(args);
-
     // Open epoll file
     int epoll_fd = epoll_create(1);
     if (epoll_fd < 0) {
@@ -86,47 +94,71 @@ void *handle_events(void *a) {
 
     // Loop
     long long last_check = 0;
+    int isessions = 0;
+    int usessions = 0;
+    int tsessions = 0;
+    int sessions = 0;
+    int batch = EPOLL_EVENTS_MIN;
+    struct epoll_event ev[EPOLL_EVENTS_MAX];
     while (!args->ctx->stopping) {
         log_android(ANDROID_LOG_DEBUG, "Loop");
 
+        // Terminate sessions not allowed anymore
+        if (args->ctx->reload) {
+            log_android(ANDROID_LOG_WARN, "Reload rules");
+
+            if (pthread_mutex_lock(&args->ctx->lock))
+                log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+            args->ctx->reload = 0;
+            check_allowed(args);
+
+            // Answers cached on another network might be wrong
+            if (args->ctx->reload_dns) {
+                args->ctx->reload_dns = 0;
+                clear_dns_cache(args->ctx);
+            }
+
+            if (pthread_mutex_unlock(&args->ctx->lock))
+                log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+        }
+
         int recheck = 0;
         int timeout = EPOLL_TIMEOUT;
 
-        // Count sessions
-        int isessions = 0;
-        int usessions = 0;
-        int tsessions = 0;
-        struct ng_session *s = args->ctx->ng_session;
-        while (s != NULL) {
-            if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-                if (!s->icmp.stop)
-                    isessions++;
-            } else if (s->protocol == IPPROTO_UDP) {
-                if (s->udp.state == UDP_ACTIVE)
-                    usessions++;
-            } else if (s->protocol == IPPROTO_TCP) {
-                if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE)
-                    tsessions++;
-                if (s->socket >= 0)
-                    recheck = recheck | monitor_tcp_session(args, s, epoll_fd);
+        // Update the interest of changed TCP sessions only,
+        // sessions waiting for a window or buffer space stay queued
+        struct ng_session *m = args->ctx->monitor;
+        args->ctx->monitor = NULL;
+        while (m != NULL) {
+            struct ng_session *n = m->monitor_next;
+            m->monitor = 0;
+            if (m->socket >= 0 && monitor_tcp_session(args, m, epoll_fd)) {
+                recheck = 1;
+                mark_tcp_session(args->ctx, m);
             }
-            s = s->next;
+            m = n;
         }
-        int sessions = isessions + usessions + tsessions;
 
-        // Check sessions
+        // Check and count sessions
+        // The counts are at most EPOLL_MIN_CHECK old, sessions beyond the limit fail to open a socket
         long long ms = get_ms();
         if (ms - last_check > EPOLL_MIN_CHECK) {
             last_check = ms;
+            long long start = get_us();
 
+            int icount = 0;
+            int ucount = 0;
+            int tcount = 0;
             time_t now = time(NULL);
             struct ng_session *sl = NULL;
-            s = args->ctx->ng_session;
+            struct ng_session *s = args->ctx->ng_session;
             while (s != NULL) {
                 int del = 0;
                 if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
                     del = check_icmp_session(args, s, sessions, maxsessions);
                     if (!s->icmp.stop && !del) {
+                        icount++;
                         int stimeout = s->icmp.time +
                                        get_icmp_timeout(&s->icmp, sessions, maxsessions) - now + 1;
                         if (stimeout > 0 && stimeout < timeout)
@@ -135,6 +167,7 @@ void *handle_events(void *a) {
                 } else if (s->protocol == IPPROTO_UDP) {
                     del = check_udp_session(args, s, sessions, maxsessions);
                     if (s->udp.state == UDP_ACTIVE && !del) {
+                        ucount++;
                         int stimeout = s->udp.time +
                                        get_udp_timeout(&s->udp, sessions, maxsessions) - now + 1;
                         if (stimeout > 0 && stimeout < timeout)
@@ -143,6 +176,7 @@ void *handle_events(void *a) {
                 } else if (s->protocol == IPPROTO_TCP) {
                     del = check_tcp_session(args, s, sessions, maxsessions);
                     if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE && !del) {
+                        tcount++;
                         int stimeout = s->tcp.time +
                                        get_tcp_timeout(&s->tcp, sessions, maxsessions) - now + 1;
                         if (stimeout > 0 && stimeout < timeout)
@@ -158,14 +192,23 @@ void *handle_events(void *a) {
 
                     struct ng_session *c = s;
                     s = s->next;
-                    if (c->protocol == IPPROTO_TCP)
+                    if (c->protocol == IPPROTO_TCP) {
+                        unmark_tcp_session(args->ctx, c);
                         clear_tcp_data(&c->tcp);
+                    }
                     ng_free(c, __FILE__, __LINE__);
                 } else {
                     sl = s;
                     s = s->next;
                 }
             }
+
+            isessions = icount;
+            usessions = ucount;
+            tsessions = tcount;
+            sessions = isessions + usessions + tsessions;
+
+            record_handler(HANDLER_SESSIONS, start);
         } else {
             recheck = 1;
             log_android(ANDROID_LOG_DEBUG, "Skipped session checks");
@@ -176,8 +219,7 @@ void *handle_events(void *a) {
                     isessions, usessions, tsessions, sessions, maxsessions, timeout, recheck);
 
         // Poll
-        struct epoll_event ev[EPOLL_EVENTS];
-        int ready = epoll_wait(epoll_fd, ev, EPOLL_EVENTS,
+        int ready = epoll_wait(epoll_fd, ev, batch,
                                recheck ? EPOLL_MIN_CHECK : timeout * 1000);
 
         if (ready < 0) {
@@ -194,9 +236,18 @@ void *handle_events(void *a) {
             }
         }
 
+        metrics.epoll_wakeups++;
+
+        // Grow the batch while wakeups fill it, shrink it when mostly empty
+        if (ready == batch && batch < EPOLL_EVENTS_MAX)
+            batch *= 2;
+        else if (ready < batch / 4 && batch > EPOLL_EVENTS_MIN)
+            batch /= 2;
+
         if (ready == 0)
             log_android(ANDROID_LOG_DEBUG, "epoll timeout");
         else {
+            metrics.epoll_events += ready;
 
             if (pthread_mutex_lock(&args->ctx->lock))
                 log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
@@ -222,6 +273,7 @@ void *handle_events(void *a) {
                                 (ev[i].events & EPOLLERR) != 0,
                                 (ev[i].events & EPOLLHUP) != 0);
 
+                    long long start = get_us();
                     int count = 0;
                     while (count < TUN_YIELD && !error && !args->ctx->stopping &&
                            is_readable(args->tun)) {
@@ -229,6 +281,7 @@ void *handle_events(void *a) {
                         if (check_tun(args, &ev[i], epoll_fd, sessions, maxsessions) < 0)
                             error = 1;
                     }
+                    record_handler(HANDLER_TUN, start);
 
                 } else {
                     // Check downstream
@@ -242,11 +295,13 @@ void *handle_events(void *a) {
                                 ((struct ng_session *) ev[i].data.ptr)->protocol,
                                 ((struct ng_session *) ev[i].data.ptr)->socket);
 
+                    long long start = get_us();
                     struct ng_session *session = (struct ng_session *) ev[i].data.ptr;
                     if (session->protocol == IPPROTO_ICMP ||
-                        session->protocol == IPPROTO_ICMPV6)
+                        session->protocol == IPPROTO_ICMPV6) {
                         check_icmp_socket(args, &ev[i]);
-                    else if (session->protocol == IPPROTO_UDP) {
+                        record_handler(HANDLER_ICMP, start);
+                    } else if (session->protocol == IPPROTO_UDP) {
                         int count = 0;
                         while (count < UDP_YIELD && !args->ctx->stopping &&
                                !(ev[i].events & EPOLLERR) && (ev[i].events & EPOLLIN) &&
@@ -254,8 +309,11 @@ void *handle_events(void *a) {
                             count++;
                             check_udp_socket(args, &ev[i]);
                         }
-                    } else if (session->protocol == IPPROTO_TCP)
+                        record_handler(HANDLER_UDP, start);
+                    } else if (session->protocol == IPPROTO_TCP) {
                         check_tcp_socket(args, &ev[i], epoll_fd);
+                        record_handler(HANDLER_TCP, start);
+                    }
                 }
 
                 if (error)
@@ -283,15 +341,37 @@ void *handle_events(void *a) {
     return NULL;
 }
 
+jint get_verdict(const struct context *ctx, jint uid, int protocol) {
+    if (ctx->reload_all)
+        return VERDICT_CHECK;
+
+    struct uid_verdict key;
+    key.uid = uid;
+    struct uid_verdict *v = bsearch(&key, ctx->reload_uid, (size_t) ctx->reload_count,
+                                    sizeof(struct uid_verdict), compare_uid_verdict);
+    if (v == NULL)
+        return 0; // Rules not changed
+
+    // Unfiltered UDP is always allowed
+    if (protocol == IPPROTO_UDP && !ctx->reload_filter_udp)
+        return VERDICT_ALLOW;
+
+    return v->verdict;
+}
+
 void check_allowed(const struct arguments *args) {
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
 
+    int checked = 0;
+    int terminated = 0;
+
     struct ng_session *l = NULL;
     struct ng_session *s = args->ctx->ng_session;
     while (s != NULL) {
         if (s->protocol == IPPROTO_ICMP || s->protocol == IPPROTO_ICMPV6) {
-            if (!s->icmp.stop) {
+            jint verdict = (s->icmp.stop ? 0 : get_verdict(args->ctx, s->icmp.uid, s->protocol));
+            if (verdict == VERDICT_CHECK) {
                 if (s->icmp.version == 4) {
                     inet_ntop(AF_INET, &s->icmp.saddr.ip4, source, sizeof(source));
                     inet_ntop(AF_INET, &s->icmp.daddr.ip4, dest, sizeof(dest));
@@ -300,30 +380,44 @@ void check_allowed(const struct arguments *args) {
                     inet_ntop(AF_INET6, &s->icmp.daddr.ip6, dest, sizeof(dest));
                 }
 
+                checked++;
                 jobject objPacket = create_packet(
                         args, s->icmp.version, IPPROTO_ICMP, "",
                         source, 0, dest, 0, "", s->icmp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
-                    s->icmp.stop = 1;
-                    log_android(ANDROID_LOG_WARN, "ICMP terminate %d uid %d",
-                                s->socket, s->icmp.uid);
-                }
+                if (is_address_allowed(args, objPacket) == NULL)
+                    verdict = VERDICT_BLOCK;
+            }
+
+            if (verdict == VERDICT_BLOCK) {
+                terminated++;
+                s->icmp.stop = 1;
+                log_android(ANDROID_LOG_WARN, "ICMP terminate %d uid %d",
+                            s->socket, s->icmp.uid);
             }
 
         } else if (s->protocol == IPPROTO_UDP) {
             if (s->udp.state == UDP_ACTIVE) {
-                if (s->udp.version == 4) {
-                    inet_ntop(AF_INET, &s->udp.saddr.ip4, source, sizeof(source));
-                    inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
-                } else {
-                    inet_ntop(AF_INET6, &s->udp.saddr.ip6, source, sizeof(source));
-                    inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
+                jint verdict = get_verdict(args->ctx, s->udp.uid, s->protocol);
+                if (verdict == VERDICT_CHECK) {
+                    if (s->udp.version == 4) {
+                        inet_ntop(AF_INET, &s->udp.saddr.ip4, source, sizeof(source));
+                        inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
+                    } else {
+                        inet_ntop(AF_INET6, &s->udp.saddr.ip6, source, sizeof(source));
+                        inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
+                    }
+
+                    checked++;
+                    jobject objPacket = create_packet(
+                            args, s->udp.version, IPPROTO_UDP, "",
+                            source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), "",
+                            s->udp.uid, 0);
+                    if (is_address_allowed(args, objPacket) == NULL)
+                        verdict = VERDICT_BLOCK;
                 }
 
-                jobject objPacket = create_packet(
-                        args, s->udp.version, IPPROTO_UDP, "",
-                        source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), "", s->udp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
+                if (verdict == VERDICT_BLOCK) {
+                    terminated++;
                     s->udp.state = UDP_FINISHING;
                     log_android(ANDROID_LOG_WARN, "UDP terminate session socket %d uid %d",
                                 s->socket, s->udp.uid);
@@ -344,19 +438,29 @@ void check_allowed(const struct arguments *args) {
 
         } else if (s->protocol == IPPROTO_TCP) {
             if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE) {
-                if (s->tcp.version == 4) {
-                    inet_ntop(AF_INET, &s->tcp.saddr.ip4, source, sizeof(source));
-                    inet_ntop(AF_INET, &s->tcp.daddr.ip4, dest, sizeof(dest));
-                } else {
-                    inet_ntop(AF_INET6, &s->tcp.saddr.ip6, source, sizeof(source));
-                    inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
+                jint verdict = get_verdict(args->ctx, s->tcp.uid, s->protocol);
+                if (verdict == VERDICT_CHECK) {
+                    if (s->tcp.version == 4) {
+                        inet_ntop(AF_INET, &s->tcp.saddr.ip4, source, sizeof(source));
+                        inet_ntop(AF_INET, &s->tcp.daddr.ip4, dest, sizeof(dest));
+                    } else {
+                        inet_ntop(AF_INET6, &s->tcp.saddr.ip6, source, sizeof(source));
+                        inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
+                    }
+
+                    checked++;
+                    jobject objPacket = create_packet(
+                            args, s->tcp.version, IPPROTO_TCP, "",
+                            source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest), "",
+                            s->tcp.uid, 0);
+                    if (is_address_allowed(args, objPacket) == NULL)
+                        verdict = VERDICT_BLOCK;
                 }
 
-                jobject objPacket = create_packet(
-                        args, s->tcp.version, IPPROTO_TCP, "",
-                        source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest), "", s->tcp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
+                if (verdict == VERDICT_BLOCK) {
+                    terminated++;
                     write_rst(args, &s->tcp);
+                    mark_tcp_session(args->ctx, s);
                     log_android(ANDROID_LOG_WARN, "TCP terminate socket %d uid %d",
                                 s->socket, s->tcp.uid);
                 }
@@ -367,5 +471,9 @@ void check_allowed(const struct arguments *args) {
         l = s;
         s = s->next;
     }
-}
 
+    log_android(ANDROID_LOG_WARN, "Checked sessions all %d uids %d checked %d terminated %d",
+                args->ctx->reload_all, args->ctx->reload_count, checked, terminated);
+
+    clear_reload(args->ctx);
+}
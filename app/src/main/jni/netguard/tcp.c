@@ -36,6 +36,65 @@ void clear_tcp_data(struct tcp_session *cur) {
     }
 }
 
+// Only use in the arguments of log_android, the numbers are those at the time of logging
+const char *get_tcp_label(struct tcp_label *label) {
+    char source[INET6_ADDRSTRLEN + 1];
+    char dest[INET6_ADDRSTRLEN + 1];
+    const struct tcp_session *cur = (label->session == NULL ? NULL : &label->session->tcp);
+
+    int len;
+    if (label->pkt == NULL)
+        len = sprintf(label->text, "TCP socket from %s/%u to %s/%u",
+                      get_address(cur->version, &cur->saddr, source), ntohs(cur->source),
+                      get_address(cur->version, &cur->daddr, dest), ntohs(cur->dest));
+    else {
+        const uint8_t version = (*label->pkt) >> 4;
+        const struct iphdr *ip4 = (struct iphdr *) label->pkt;
+        const struct ip6_hdr *ip6 = (struct ip6_hdr *) label->pkt;
+        const struct tcphdr *tcphdr = label->tcphdr;
+
+        char flags[10];
+        int flen = 0;
+        if (tcphdr->syn)
+            flags[flen++] = 'S';
+        if (tcphdr->ack)
+            flags[flen++] = 'A';
+        if (tcphdr->psh)
+            flags[flen++] = 'P';
+        if (tcphdr->fin)
+            flags[flen++] = 'F';
+        if (tcphdr->rst)
+            flags[flen++] = 'R';
+        if (tcphdr->urg)
+            flags[flen++] = 'U';
+        flags[flen] = 0;
+
+        len = sprintf(label->text,
+                      "TCP %s %s/%u > %s/%u seq %u ack %u data %u win %u uid %d",
+                      flags,
+                      get_address(version, version == 4 ? (const void *) &ip4->saddr
+                                                        : (const void *) &ip6->ip6_src, source),
+                      ntohs(tcphdr->source),
+                      get_address(version, version == 4 ? (const void *) &ip4->daddr
+                                                        : (const void *) &ip6->ip6_dst, dest),
+                      ntohs(tcphdr->dest),
+                      ntohl(tcphdr->seq) - (cur == NULL ? 0 : cur->remote_start),
+                      tcphdr->ack ? ntohl(tcphdr->ack_seq) -
+                                    (cur == NULL ? 0 : cur->local_start) : 0,
+                      label->datalen, ntohs(tcphdr->window), label->uid);
+    }
+
+    if (label->state && cur != NULL)
+        sprintf(label->text + len, " %s loc %u rem %u acked %u socket %d",
+                strstate(cur->state),
+                cur->local_seq - cur->local_start,
+                cur->remote_seq - cur->remote_start,
+                cur->acked - cur->local_start,
+                label->session->socket);
+
+    return label->text;
+}
+
 int get_tcp_timeout(const struct tcp_session *t, int sessions, int maxsessions) {
     int timeout;
     if (t->state == TCP_LISTEN || t->state == TCP_SYN_RECV)
@@ -55,28 +114,15 @@ int check_tcp_session(const struct arguments *args, struct ng_session *s,
                       int sessions, int maxsessions) {
     time_t now = time(NULL);
 
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    if (s->tcp.version == 4) {
-        inet_ntop(AF_INET, &s->tcp.saddr.ip4, source, sizeof(source));
-        inet_ntop(AF_INET, &s->tcp.daddr.ip4, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &s->tcp.saddr.ip6, source, sizeof(source));
-        inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
-    }
-
-    char session[250];
-    sprintf(session, "TCP socket from %s/%u to %s/%u %s socket %d",
-            source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest),
-            strstate(s->tcp.state), s->socket);
+    struct tcp_label session = {.session = s, .state = 1};
 
     int timeout = get_tcp_timeout(&s->tcp, sessions, maxsessions);
 
     // Check session timeout
     if (s->tcp.state != TCP_CLOSING && s->tcp.state != TCP_CLOSE &&
         s->tcp.time + timeout < now) {
-        log_android(ANDROID_LOG_WARN, "%s idle %d/%d sec ", session, now - s->tcp.time,
-                    timeout);
+        log_android(ANDROID_LOG_WARN, "%s idle %d/%d sec ", get_tcp_label(&session),
+                    now - s->tcp.time, timeout);
         if (s->tcp.state == TCP_LISTEN)
             s->tcp.state = TCP_CLOSING;
         else
@@ -89,9 +135,9 @@ int check_tcp_session(const struct arguments *args, struct ng_session *s,
         if (s->socket >= 0) {
             if (close(s->socket))
                 log_android(ANDROID_LOG_ERROR, "%s close error %d: %s",
-                            session, errno, strerror(errno));
+                            get_tcp_label(&session), errno, strerror(errno));
             else
-                log_android(ANDROID_LOG_WARN, "%s close", session);
+                log_android(ANDROID_LOG_WARN, "%s close", get_tcp_label(&session));
             s->socket = -1;
         }
 
@@ -101,8 +147,10 @@ int check_tcp_session(const struct arguments *args, struct ng_session *s,
 
     if ((s->tcp.state == TCP_CLOSING || s->tcp.state == TCP_CLOSE) &&
         (s->tcp.sent || s->tcp.received)) {
+        char dest[INET6_ADDRSTRLEN + 1];
         account_usage(args, s->tcp.version, IPPROTO_TCP,
-                      dest, ntohs(s->tcp.dest), s->tcp.uid, s->tcp.sent, s->tcp.received);
+                      get_address(s->tcp.version, &s->tcp.daddr, dest), ntohs(s->tcp.dest),
+                      s->tcp.uid, s->tcp.sent, s->tcp.received);
         s->tcp.sent = 0;
         s->tcp.received = 0;
     }
@@ -166,6 +214,26 @@ int monitor_tcp_session(const struct arguments *args, struct ng_session *s, int
     return recheck;
 }
 
+void mark_tcp_session(struct context *ctx, struct ng_session *s) {
+    if (!s->monitor) {
+        s->monitor = 1;
+        s->monitor_next = ctx->monitor;
+        ctx->monitor = s;
+    }
+}
+
+void unmark_tcp_session(struct context *ctx, struct ng_session *s) {
+    if (!s->monitor)
+        return;
+
+    struct ng_session **m = &ctx->monitor;
+    while (*m != NULL && *m != s)
+        m = &(*m)->monitor_next;
+    if (*m != NULL)
+        *m = s->monitor_next;
+    s->monitor = 0;
+}
+
 uint32_t get_send_window(const struct tcp_session *cur) {
     uint32_t behind;
     if (cur->acked <= cur->local_seq)
@@ -238,26 +306,13 @@ void check_tcp_socket(const struct arguments *args,
                       const struct epoll_event *ev,
                       const int epoll_fd) {
     struct ng_session *s = (struct ng_session *) ev->data.ptr;
+    mark_tcp_session(args->ctx, s);
 
     int oldstate = s->tcp.state;
     uint32_t oldlocal = s->tcp.local_seq;
     uint32_t oldremote = s->tcp.remote_seq;
 
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    if (s->tcp.version == 4) {
-        inet_ntop(AF_INET, &s->tcp.saddr.ip4, source, sizeof(source));
-        inet_ntop(AF_INET, &s->tcp.daddr.ip4, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &s->tcp.saddr.ip6, source, sizeof(source));
-        inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
-    }
-    char session[250];
-    sprintf(session, "TCP socket from %s/%u to %s/%u %s loc %u rem %u",
-            source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest),
-            strstate(s->tcp.state),
-            s->tcp.local_seq - s->tcp.local_start,
-            s->tcp.remote_seq - s->tcp.remote_start);
+    struct tcp_label session = {.session = s, .state = 1};
 
     // Check socket error
     if (ev->events & EPOLLERR) {
@@ -268,10 +323,10 @@ void check_tcp_socket(const struct arguments *args,
         int err = getsockopt(s->socket, SOL_SOCKET, SO_ERROR, &serr, &optlen);
         if (err < 0)
             log_android(ANDROID_LOG_ERROR, "%s getsockopt error %d: %s",
-                        session, errno, strerror(errno));
+                        get_tcp_label(&session), errno, strerror(errno));
         else if (serr)
             log_android(ANDROID_LOG_ERROR, "%s SO_ERROR %d: %s",
-                        session, serr, strerror(serr));
+                        get_tcp_label(&session), serr, strerror(serr));
 
         write_rst(args, &s->tcp);
 
@@ -307,7 +362,7 @@ void check_tcp_socket(const struct arguments *args,
             // Check socket connect
             if (s->tcp.socks5 == SOCKS5_NONE) {
                 if (ev->events & EPOLLOUT) {
-                    log_android(ANDROID_LOG_INFO, "%s connected", session);
+                    log_android(ANDROID_LOG_INFO, "%s connected", get_tcp_label(&session));
 
                     // https://tools.ietf.org/html/rfc1928
                     // https://tools.ietf.org/html/rfc1929
@@ -323,11 +378,12 @@ void check_tcp_socket(const struct arguments *args,
                     ssize_t bytes = recv(s->socket, buffer, sizeof(buffer), 0);
                     if (bytes < 0) {
                         log_android(ANDROID_LOG_ERROR, "%s recv SOCKS5 error %d: %s",
-                                    session, errno, strerror(errno));
+                                    get_tcp_label(&session), errno, strerror(errno));
                         write_rst(args, &s->tcp);
                     } else {
                         char *h = hex(buffer, (const size_t) bytes);
-                        log_android(ANDROID_LOG_INFO, "%s recv SOCKS5 %s", session, h);
+                        log_android(ANDROID_LOG_INFO, "%s recv SOCKS5 %s",
+                                    get_tcp_label(&session), h);
                         ng_free(h, __FILE__, __LINE__);
 
                         if (s->tcp.socks5 == SOCKS5_HELLO &&
@@ -339,7 +395,7 @@ void check_tcp_socket(const struct arguments *args,
                             else {
                                 s->tcp.socks5 = 0;
                                 log_android(ANDROID_LOG_ERROR, "%s SOCKS5 auth %d not supported",
-                                            session, buffer[1]);
+                                            get_tcp_label(&session), buffer[1]);
                                 write_rst(args, &s->tcp);
                             }
 
@@ -348,11 +404,12 @@ void check_tcp_socket(const struct arguments *args,
                                    (buffer[0] == 1 || buffer[0] == 5)) {
                             if (buffer[1] == 0) {
                                 s->tcp.socks5 = SOCKS5_CONNECT;
-                                log_android(ANDROID_LOG_WARN, "%s SOCKS5 auth OK", session);
+                                log_android(ANDROID_LOG_WARN, "%s SOCKS5 auth OK",
+                                            get_tcp_label(&session));
                             } else {
                                 s->tcp.socks5 = 0;
                                 log_android(ANDROID_LOG_ERROR, "%s SOCKS5 auth error %d",
-                                            session, buffer[1]);
+                                            get_tcp_label(&session), buffer[1]);
                                 write_rst(args, &s->tcp);
                             }
 
@@ -361,11 +418,12 @@ void check_tcp_socket(const struct arguments *args,
                                    buffer[0] == 5) {
                             if (buffer[1] == 0) {
                                 s->tcp.socks5 = SOCKS5_CONNECTED;
-                                log_android(ANDROID_LOG_WARN, "%s SOCKS5 connected", session);
+                                log_android(ANDROID_LOG_WARN, "%s SOCKS5 connected",
+                                            get_tcp_label(&session));
                             } else {
                                 s->tcp.socks5 = 0;
                                 log_android(ANDROID_LOG_ERROR, "%s SOCKS5 connect error %d",
-                                            session, buffer[1]);
+                                            get_tcp_label(&session), buffer[1]);
                                 write_rst(args, &s->tcp);
                                 /*
                                     0x00 = request granted
@@ -383,7 +441,7 @@ void check_tcp_socket(const struct arguments *args,
                         } else {
                             s->tcp.socks5 = 0;
                             log_android(ANDROID_LOG_ERROR, "%s recv SOCKS5 state %d",
-                                        session, s->tcp.socks5);
+                                        get_tcp_label(&session), s->tcp.socks5);
                             write_rst(args, &s->tcp);
                         }
                     }
@@ -394,12 +452,12 @@ void check_tcp_socket(const struct arguments *args,
                 uint8_t buffer[4] = {5, 2, 0, 2};
                 char *h = hex(buffer, sizeof(buffer));
                 log_android(ANDROID_LOG_INFO, "%s sending SOCKS5 hello: %s",
-                            session, h);
+                            get_tcp_label(&session), h);
                 ng_free(h, __FILE__, __LINE__);
                 ssize_t sent = send(s->socket, buffer, sizeof(buffer), MSG_NOSIGNAL);
                 if (sent < 0) {
                     log_android(ANDROID_LOG_ERROR, "%s send SOCKS5 hello error %d: %s",
-                                session, errno, strerror(errno));
+                                get_tcp_label(&session), errno, strerror(errno));
                     write_rst(args, &s->tcp);
                 }
 
@@ -417,13 +475,13 @@ void check_tcp_socket(const struct arguments *args,
 
                 char *h = hex(buffer, len);
                 log_android(ANDROID_LOG_INFO, "%s sending SOCKS5 auth: %s",
-                            session, h);
+                            get_tcp_label(&session), h);
                 ng_free(h, __FILE__, __LINE__);
                 ssize_t sent = send(s->socket, buffer, len, MSG_NOSIGNAL);
                 if (sent < 0) {
                     log_android(ANDROID_LOG_ERROR,
                                 "%s send SOCKS5 connect error %d: %s",
-                                session, errno, strerror(errno));
+                                get_tcp_label(&session), errno, strerror(errno));
                     write_rst(args, &s->tcp);
                 }
 
@@ -445,13 +503,13 @@ void check_tcp_socket(const struct arguments *args,
 
                 char *h = hex(buffer, len);
                 log_android(ANDROID_LOG_INFO, "%s sending SOCKS5 connect: %s",
-                            session, h);
+                            get_tcp_label(&session), h);
                 ng_free(h, __FILE__, __LINE__);
                 ssize_t sent = send(s->socket, buffer, len, MSG_NOSIGNAL);
                 if (sent < 0) {
                     log_android(ANDROID_LOG_ERROR,
                                 "%s send SOCKS5 connect error %d: %s",
-                                session, errno, strerror(errno));
+                                get_tcp_label(&session), errno, strerror(errno));
                     write_rst(args, &s->tcp);
                 }
 
@@ -474,7 +532,7 @@ void check_tcp_socket(const struct arguments *args,
                        s->tcp.forward->seq == s->tcp.remote_seq &&
                        s->tcp.forward->len - s->tcp.forward->sent < buffer_size) {
                     log_android(ANDROID_LOG_DEBUG, "%s fwd %u...%u sent %u",
-                                session,
+                                get_tcp_label(&session),
                                 s->tcp.forward->seq - s->tcp.remote_start,
                                 s->tcp.forward->seq + s->tcp.forward->len - s->tcp.remote_start,
                                 s->tcp.forward->sent);
@@ -487,7 +545,7 @@ void check_tcp_socket(const struct arguments *args,
                                                                         : MSG_MORE)));
                     if (sent < 0) {
                         log_android(ANDROID_LOG_ERROR, "%s send error %d: %s",
-                                    session, errno, strerror(errno));
+                                    get_tcp_label(&session), errno, strerror(errno));
                         if (errno == EINTR || errno == EAGAIN) {
                             // Retry later
                             break;
@@ -511,7 +569,8 @@ void check_tcp_socket(const struct arguments *args,
                         } else {
                             log_android(ANDROID_LOG_WARN,
                                         "%s partial send %u/%u",
-                                        session, s->tcp.forward->sent, s->tcp.forward->len);
+                                        get_tcp_label(&session),
+                                        s->tcp.forward->sent, s->tcp.forward->len);
                             break;
                         }
                     }
@@ -521,7 +580,7 @@ void check_tcp_socket(const struct arguments *args,
                 struct segment *seg = s->tcp.forward;
                 while (seg != NULL) {
                     log_android(ANDROID_LOG_WARN, "%s queued %u...%u sent %u",
-                                session,
+                                get_tcp_label(&session),
                                 seg->seq - s->tcp.remote_start,
                                 seg->seq + seg->len - s->tcp.remote_start,
                                 seg->sent);
@@ -535,12 +594,12 @@ void check_tcp_socket(const struct arguments *args,
             s->tcp.recv_window = window;
             if ((prev == 0 && window > 0) || (prev > 0 && window == 0))
                 log_android(ANDROID_LOG_WARN, "%s recv window %u > %u",
-                            session, prev, window);
+                            get_tcp_label(&session), prev, window);
 
             // Acknowledge forwarded data
             if (fwd || (prev == 0 && window > 0)) {
                 if (fwd && s->tcp.forward == NULL && s->tcp.state == TCP_CLOSE_WAIT) {
-                    log_android(ANDROID_LOG_WARN, "%s confirm FIN", session);
+                    log_android(ANDROID_LOG_WARN, "%s confirm FIN", get_tcp_label(&session));
                     s->tcp.remote_seq++; // remote FIN
                 }
                 if (write_ack(args, &s->tcp) >= 0)
@@ -562,16 +621,17 @@ void check_tcp_socket(const struct arguments *args,
                     if (bytes < 0) {
                         // Socket error
                         log_android(ANDROID_LOG_ERROR, "%s recv error %d: %s",
-                                    session, errno, strerror(errno));
+                                    get_tcp_label(&session), errno, strerror(errno));
 
                         if (errno != EINTR && errno != EAGAIN)
                             write_rst(args, &s->tcp);
                     } else if (bytes == 0) {
-                        log_android(ANDROID_LOG_WARN, "%s recv eof", session);
+                        log_android(ANDROID_LOG_WARN, "%s recv eof", get_tcp_label(&session));
 
                         if (s->tcp.forward == NULL) {
                             if (write_fin_ack(args, &s->tcp) >= 0) {
-                                log_android(ANDROID_LOG_WARN, "%s FIN sent", session);
+                                log_android(ANDROID_LOG_WARN, "%s FIN sent",
+                                            get_tcp_label(&session));
                                 s->tcp.local_seq++; // local FIN
                             }
 
@@ -580,21 +640,24 @@ void check_tcp_socket(const struct arguments *args,
                             else if (s->tcp.state == TCP_CLOSE_WAIT)
                                 s->tcp.state = TCP_LAST_ACK;
                             else
-                                log_android(ANDROID_LOG_ERROR, "%s invalid close", session);
+                                log_android(ANDROID_LOG_ERROR, "%s invalid close",
+                                            get_tcp_label(&session));
                         } else {
                             // There was still data to send
-                            log_android(ANDROID_LOG_ERROR, "%s close with queue", session);
+                            log_android(ANDROID_LOG_ERROR, "%s close with queue",
+                                        get_tcp_label(&session));
                             write_rst(args, &s->tcp);
                         }
 
                         if (close(s->socket))
                             log_android(ANDROID_LOG_ERROR, "%s close error %d: %s",
-                                        session, errno, strerror(errno));
+                                        get_tcp_label(&session), errno, strerror(errno));
                         s->socket = -1;
 
                     } else {
                         // Socket read data
-                        log_android(ANDROID_LOG_DEBUG, "%s recv bytes %d", session, bytes);
+                        log_android(ANDROID_LOG_DEBUG, "%s recv bytes %d",
+                                    get_tcp_label(&session), bytes);
                         s->tcp.received += bytes;
 
                         // Process DNS response
@@ -617,7 +680,7 @@ void check_tcp_socket(const struct arguments *args,
 
     if (s->tcp.state != oldstate || s->tcp.local_seq != oldlocal ||
         s->tcp.remote_seq != oldremote)
-        log_android(ANDROID_LOG_DEBUG, "%s new state", session);
+        log_android(ANDROID_LOG_DEBUG, "%s new state", get_tcp_label(&session));
 }
 
 jboolean handle_tcp(const struct arguments *args,
@@ -647,43 +710,15 @@ jboolean handle_tcp(const struct arguments *args,
                              memcmp(&cur->tcp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
         cur = cur->next;
 
-    // Prepare logging
-    char source[INET6_ADDRSTRLEN + 1];
-    char dest[INET6_ADDRSTRLEN + 1];
-    if (version == 4) {
-        inet_ntop(AF_INET, &ip4->saddr, source, sizeof(source));
-        inet_ntop(AF_INET, &ip4->daddr, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &ip6->ip6_src, source, sizeof(source));
-        inet_ntop(AF_INET6, &ip6->ip6_dst, dest, sizeof(dest));
-    }
+    // Any segment can change the window or the queue
+    if (cur != NULL)
+        mark_tcp_session(args->ctx, cur);
 
-    char flags[10];
-    int flen = 0;
-    if (tcphdr->syn)
-        flags[flen++] = 'S';
-    if (tcphdr->ack)
-        flags[flen++] = 'A';
-    if (tcphdr->psh)
-        flags[flen++] = 'P';
-    if (tcphdr->fin)
-        flags[flen++] = 'F';
-    if (tcphdr->rst)
-        flags[flen++] = 'R';
-    if (tcphdr->urg)
-        flags[flen++] = 'U';
-    flags[flen] = 0;
-
-    char packet[250];
-    sprintf(packet,
-            "TCP %s %s/%u > %s/%u seq %u ack %u data %u win %u uid %d",
-            flags,
-            source, ntohs(tcphdr->source),
-            dest, ntohs(tcphdr->dest),
-            ntohl(tcphdr->seq) - (cur == NULL ? 0 : cur->tcp.remote_start),
-            tcphdr->ack ? ntohl(tcphdr->ack_seq) - (cur == NULL ? 0 : cur->tcp.local_start) : 0,
-            datalen, ntohs(tcphdr->window), uid);
-    log_android(tcphdr->urg ? ANDROID_LOG_WARN : ANDROID_LOG_DEBUG, packet);
+    // Prepare logging
+    struct tcp_label packet = {
+            .session = cur, .pkt = pkt, .tcphdr = tcphdr, .datalen = datalen, .uid = uid};
+    log_android(tcphdr->urg ? ANDROID_LOG_WARN : ANDROID_LOG_DEBUG, "%s",
+                get_tcp_label(&packet));
 
     // Drop URG data
     if (tcphdr->urg)
@@ -720,7 +755,7 @@ jboolean handle_tcp(const struct arguments *args,
             }
 
             log_android(ANDROID_LOG_WARN, "%s new session mss %u ws %u window %u",
-                        packet, mss, ws, ntohs(tcphdr->window) << ws);
+                        get_tcp_label(&packet), mss, ws, ntohs(tcphdr->window) << ws);
 
             // Register session
             struct ng_session *s = ng_malloc(sizeof(struct ng_session), "tcp session");
@@ -757,9 +792,11 @@ jboolean handle_tcp(const struct arguments *args,
             s->tcp.socks5 = SOCKS5_NONE;
             s->tcp.forward = NULL;
             s->next = NULL;
+            s->monitor = 0;
+            s->monitor_next = NULL;
 
             if (datalen) {
-                log_android(ANDROID_LOG_WARN, "%s SYN data", packet);
+                log_android(ANDROID_LOG_WARN, "%s SYN data", get_tcp_label(&packet));
                 s->tcp.forward = ng_malloc(sizeof(struct segment), "syn segment");
                 s->tcp.forward->seq = s->tcp.remote_seq;
                 s->tcp.forward->len = datalen;
@@ -793,13 +830,15 @@ jboolean handle_tcp(const struct arguments *args,
 
             s->next = args->ctx->ng_session;
             args->ctx->ng_session = s;
+            mark_tcp_session(args->ctx, s);
 
             if (!allowed) {
-                log_android(ANDROID_LOG_WARN, "%s resetting blocked session", packet);
+                log_android(ANDROID_LOG_WARN, "%s resetting blocked session",
+                            get_tcp_label(&packet));
                 write_rst(args, &s->tcp);
             }
         } else {
-            log_android(ANDROID_LOG_WARN, "%s unknown session", packet);
+            log_android(ANDROID_LOG_WARN, "%s unknown session", get_tcp_label(&packet));
 
             struct tcp_session rst;
             memset(&rst, 0, sizeof(struct tcp_session));
@@ -822,18 +861,13 @@ jboolean handle_tcp(const struct arguments *args,
             return 0;
         }
     } else {
-        char session[250];
-        sprintf(session,
-                "%s %s loc %u rem %u acked %u",
-                packet,
-                strstate(cur->tcp.state),
-                cur->tcp.local_seq - cur->tcp.local_start,
-                cur->tcp.remote_seq - cur->tcp.remote_start,
-                cur->tcp.acked - cur->tcp.local_start);
+        struct tcp_label session = {
+                .session = cur, .pkt = pkt, .tcphdr = tcphdr, .datalen = datalen, .uid = uid,
+                .state = 1};
 
         // Session found
         if (cur->tcp.state == TCP_CLOSING || cur->tcp.state == TCP_CLOSE) {
-            log_android(ANDROID_LOG_WARN, "%s was closed", session);
+            log_android(ANDROID_LOG_WARN, "%s was closed", get_tcp_label(&session));
             write_rst(args, &cur->tcp);
             return 0;
         } else {
@@ -841,7 +875,7 @@ jboolean handle_tcp(const struct arguments *args,
             uint32_t oldlocal = cur->tcp.local_seq;
             uint32_t oldremote = cur->tcp.remote_seq;
 
-            log_android(ANDROID_LOG_DEBUG, "%s handling", session);
+            log_android(ANDROID_LOG_DEBUG, "%s handling", get_tcp_label(&session));
 
             if (!tcphdr->syn)
                 cur->tcp.time = time(NULL);
@@ -853,33 +887,36 @@ jboolean handle_tcp(const struct arguments *args,
             // Queue data to forward
             if (datalen) {
                 if (cur->socket < 0) {
-                    log_android(ANDROID_LOG_ERROR, "%s data while local closed", session);
+                    log_android(ANDROID_LOG_ERROR, "%s data while local closed",
+                                get_tcp_label(&session));
                     write_rst(args, &cur->tcp);
                     return 0;
                 }
                 if (cur->tcp.state == TCP_CLOSE_WAIT) {
-                    log_android(ANDROID_LOG_ERROR, "%s data while remote closed", session);
+                    log_android(ANDROID_LOG_ERROR, "%s data while remote closed",
+                                get_tcp_label(&session));
                     write_rst(args, &cur->tcp);
                     return 0;
                 }
-                queue_tcp(args, tcphdr, session, &cur->tcp, data, datalen);
+                queue_tcp(args, tcphdr, &session, &cur->tcp, data, datalen);
             }
 
             if (tcphdr->rst /* +ACK */) {
                 // No sequence check
                 // http://tools.ietf.org/html/rfc1122#page-87
-                log_android(ANDROID_LOG_WARN, "%s received reset", session);
+                log_android(ANDROID_LOG_WARN, "%s received reset", get_tcp_label(&session));
                 cur->tcp.state = TCP_CLOSING;
                 return 0;
             } else {
                 if (!tcphdr->ack || ntohl(tcphdr->ack_seq) == cur->tcp.local_seq) {
                     if (tcphdr->syn) {
-                        log_android(ANDROID_LOG_WARN, "%s repeated SYN", session);
+                        log_android(ANDROID_LOG_WARN, "%s repeated SYN", get_tcp_label(&session));
                         // The socket is probably not opened yet
 
                     } else if (tcphdr->fin /* +ACK */) {
                         if (cur->tcp.state == TCP_ESTABLISHED) {
-                            log_android(ANDROID_LOG_WARN, "%s FIN received", session);
+                            log_android(ANDROID_LOG_WARN, "%s FIN received",
+                                        get_tcp_label(&session));
                             if (cur->tcp.forward == NULL) {
                                 cur->tcp.remote_seq++; // remote FIN
                                 if (write_ack(args, &cur->tcp) >= 0)
@@ -887,15 +924,17 @@ jboolean handle_tcp(const struct arguments *args,
                             } else
                                 cur->tcp.state = TCP_CLOSE_WAIT;
                         } else if (cur->tcp.state == TCP_CLOSE_WAIT) {
-                            log_android(ANDROID_LOG_WARN, "%s repeated FIN", session);
+                            log_android(ANDROID_LOG_WARN, "%s repeated FIN",
+                                        get_tcp_label(&session));
                             // The socket is probably not closed yet
                         } else if (cur->tcp.state == TCP_FIN_WAIT1) {
-                            log_android(ANDROID_LOG_WARN, "%s last ACK", session);
+                            log_android(ANDROID_LOG_WARN, "%s last ACK", get_tcp_label(&session));
                             cur->tcp.remote_seq++; // remote FIN
                             if (write_ack(args, &cur->tcp) >= 0)
                                 cur->tcp.state = TCP_CLOSE;
                         } else {
-                            log_android(ANDROID_LOG_ERROR, "%s invalid FIN", session);
+                            log_android(ANDROID_LOG_ERROR, "%s invalid FIN",
+                                        get_tcp_label(&session));
                             return 0;
                         }
 
@@ -915,11 +954,13 @@ jboolean handle_tcp(const struct arguments *args,
                         } else if (cur->tcp.state == TCP_FIN_WAIT1) {
                             // Do nothing
                         } else {
-                            log_android(ANDROID_LOG_ERROR, "%s invalid state", session);
+                            log_android(ANDROID_LOG_ERROR, "%s invalid state",
+                                        get_tcp_label(&session));
                             return 0;
                         }
                     } else {
-                        log_android(ANDROID_LOG_ERROR, "%s unknown packet", session);
+                        log_android(ANDROID_LOG_ERROR, "%s unknown packet",
+                                    get_tcp_label(&session));
                         return 0;
                     }
                 } else {
@@ -931,29 +972,30 @@ jboolean handle_tcp(const struct arguments *args,
                             if (setsockopt(cur->socket, SOL_SOCKET, SO_KEEPALIVE, &on, sizeof(on)))
                                 log_android(ANDROID_LOG_ERROR,
                                             "%s setsockopt SO_KEEPALIVE error %d: %s",
-                                            session, errno, strerror(errno));
+                                            get_tcp_label(&session), errno, strerror(errno));
                             else
-                                log_android(ANDROID_LOG_WARN, "%s enabled keep alive", session);
+                                log_android(ANDROID_LOG_WARN, "%s enabled keep alive",
+                                            get_tcp_label(&session));
                         } else
-                            log_android(ANDROID_LOG_WARN, "%s keep alive", session);
+                            log_android(ANDROID_LOG_WARN, "%s keep alive", get_tcp_label(&session));
 
                     } else if (compare_u32(ack, cur->tcp.local_seq) < 0) {
                         if (compare_u32(ack, cur->tcp.acked) <= 0)
                             log_android(
                                     ack == cur->tcp.acked ? ANDROID_LOG_WARN : ANDROID_LOG_ERROR,
                                     "%s repeated ACK %u/%u",
-                                    session,
+                                    get_tcp_label(&session),
                                     ack - cur->tcp.local_start,
                                     cur->tcp.acked - cur->tcp.local_start);
                         else {
                             log_android(ANDROID_LOG_WARN, "%s previous ACK %u",
-                                        session, ack - cur->tcp.local_seq);
+                                        get_tcp_label(&session), ack - cur->tcp.local_seq);
                             cur->tcp.acked = ack;
                         }
 
                         return 1;
                     } else {
-                        log_android(ANDROID_LOG_ERROR, "%s future ACK", session);
+                        log_android(ANDROID_LOG_ERROR, "%s future ACK", get_tcp_label(&session));
                         write_rst(args, &cur->tcp);
                         return 0;
                     }
@@ -963,8 +1005,11 @@ jboolean handle_tcp(const struct arguments *args,
             if (cur->tcp.state != oldstate ||
                 cur->tcp.local_seq != oldlocal ||
                 cur->tcp.remote_seq != oldremote)
-                log_android(ANDROID_LOG_INFO, "%s > %s loc %u rem %u",
-                            session,
+                log_android(ANDROID_LOG_INFO, "%s %s loc %u rem %u > %s loc %u rem %u",
+                            get_tcp_label(&packet),
+                            strstate(oldstate),
+                            oldlocal - cur->tcp.local_start,
+                            oldremote - cur->tcp.remote_start,
                             strstate(cur->tcp.state),
                             cur->tcp.local_seq - cur->tcp.local_start,
                             cur->tcp.remote_seq - cur->tcp.remote_start);
@@ -976,12 +1021,12 @@ jboolean handle_tcp(const struct arguments *args,
 
 void queue_tcp(const struct arguments *args,
                const struct tcphdr *tcphdr,
-               const char *session, struct tcp_session *cur,
+               struct tcp_label *session, struct tcp_session *cur,
                const uint8_t *data, uint16_t datalen) {
     uint32_t seq = ntohl(tcphdr->seq);
     if (compare_u32(seq, cur->remote_seq) < 0)
         log_android(ANDROID_LOG_WARN, "%s already forwarded %u..%u",
-                    session,
+                    get_tcp_label(session),
                     seq - cur->remote_start, seq + datalen - cur->remote_start);
     else {
         struct segment *p = NULL;
@@ -993,7 +1038,7 @@ void queue_tcp(const struct arguments *args,
 
         if (s == NULL || compare_u32(s->seq, seq) > 0) {
             log_android(ANDROID_LOG_DEBUG, "%s queuing %u...%u",
-                        session,
+                        get_tcp_label(session),
                         seq - cur->remote_start, seq + datalen - cur->remote_start);
             struct segment *n = ng_malloc(sizeof(struct segment), "tcp segment");
             n->seq = seq;
@@ -1010,11 +1055,11 @@ void queue_tcp(const struct arguments *args,
         } else if (s != NULL && s->seq == seq) {
             if (s->len == datalen)
                 log_android(ANDROID_LOG_WARN, "%s segment already queued %u..%u",
-                            session,
+                            get_tcp_label(session),
                             s->seq - cur->remote_start, s->seq + s->len - cur->remote_start);
             else if (s->len < datalen) {
                 log_android(ANDROID_LOG_WARN, "%s segment smaller %u..%u > %u",
-                            session,
+                            get_tcp_label(session),
                             s->seq - cur->remote_start, s->seq + s->len - cur->remote_start,
                             s->seq + datalen - cur->remote_start);
                 ng_free(s->data, __FILE__, __LINE__);
@@ -1023,7 +1068,7 @@ void queue_tcp(const struct arguments *args,
                 memcpy(s->data, data, datalen);
             } else {
                 log_android(ANDROID_LOG_ERROR, "%s segment larger %u..%u < %u",
-                            session,
+                            get_tcp_label(session),
                             s->seq - cur->remote_start, s->seq + s->len - cur->remote_start,
                             s->seq + datalen - cur->remote_start);
                 ng_free(s->data, __FILE__, __LINE__);
@@ -1177,23 +1222,21 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                   const uint8_t *data, size_t datalen,
                   int syn, int ack, int fin, int rst) {
     size_t len;
-    u_int8_t *buffer;
+    size_t hlen;
+    uint8_t buffer[TUN_HEADER_MAX] __attribute__((aligned(8)));
     struct tcphdr *tcp;
     uint16_t csum;
-    char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
 
-    // Build packet
+    // Build headers, the data is written from where it is
     int optlen = (syn ? 4 + 3 + 1 : 0);
     uint8_t *options;
     if (cur->version == 4) {
-        len = sizeof(struct iphdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = ng_malloc(len, "tcp write4");
+        hlen = sizeof(struct iphdr) + sizeof(struct tcphdr) + optlen;
+        len = hlen + datalen;
         struct iphdr *ip4 = (struct iphdr *) buffer;
         tcp = (struct tcphdr *) (buffer + sizeof(struct iphdr));
         options = buffer + sizeof(struct iphdr) + sizeof(struct tcphdr);
-        if (datalen)
-            memcpy(buffer + sizeof(struct iphdr) + sizeof(struct tcphdr) + optlen, data, datalen);
 
         // Build IP4 header
         memset(ip4, 0, sizeof(struct iphdr));
@@ -1218,13 +1261,11 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
 
         csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
     } else {
-        len = sizeof(struct ip6_hdr) + sizeof(struct tcphdr) + optlen + datalen;
-        buffer = ng_malloc(len, "tcp write 6");
+        hlen = sizeof(struct ip6_hdr) + sizeof(struct tcphdr) + optlen;
+        len = hlen + datalen;
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         tcp = (struct tcphdr *) (buffer + sizeof(struct ip6_hdr));
         options = buffer + sizeof(struct ip6_hdr) + sizeof(struct tcphdr);
-        if (datalen)
-            memcpy(buffer + sizeof(struct ip6_hdr) + sizeof(struct tcphdr) + optlen, data, datalen);
 
         // Build IP6 header
         memset(ip6, 0, sizeof(struct ip6_hdr));
@@ -1282,13 +1323,6 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
     csum = calc_checksum(csum, data, datalen);
     tcp->check = ~csum;
 
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              cur->version == 4 ? (const void *) &cur->saddr.ip4 : (const void *) &cur->saddr.ip6,
-              source, sizeof(source));
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              cur->version == 4 ? (const void *) &cur->daddr.ip4 : (const void *) &cur->daddr.ip6,
-              dest, sizeof(dest));
-
     // Send packet
     log_android(ANDROID_LOG_DEBUG,
                 "TCP sending%s%s%s%s to tun %s/%u seq %u ack %u data %u",
@@ -1296,18 +1330,13 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                 (tcp->ack ? " ACK" : ""),
                 (tcp->fin ? " FIN" : ""),
                 (tcp->rst ? " RST" : ""),
-                dest, ntohs(tcp->dest),
+                get_address(cur->version, &cur->daddr, dest), ntohs(tcp->dest),
                 ntohl(tcp->seq) - cur->local_start,
                 ntohl(tcp->ack_seq) - cur->remote_start,
                 datalen);
 
-    ssize_t res = write(args->tun, buffer, len);
-
-    // Write pcap record
-    if (res >= 0) {
-        if (pcap_file != NULL)
-            write_pcap_rec(buffer, (size_t) res);
-    } else
+    ssize_t res = write_tun(args, buffer, hlen, data, datalen);
+    if (res < 0)
         log_android(ANDROID_LOG_ERROR, "TCP write%s%s%s%s data %d error %d: %s",
                     (tcp->syn ? " SYN" : ""),
                     (tcp->ack ? " ACK" : ""),
@@ -1316,8 +1345,6 @@ ssize_t write_tcp(const struct arguments *args, const struct tcp_session *cur,
                     datalen,
                     errno, strerror((errno)));
 
-    ng_free(buffer, __FILE__, __LINE__);
-
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "TCP write %d/%d", res, len);
         return -1;
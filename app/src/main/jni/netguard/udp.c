@@ -36,27 +36,23 @@ int check_udp_session(const struct arguments *args, struct ng_session *s,
 
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
-    if (s->udp.version == 4) {
-        inet_ntop(AF_INET, &s->udp.saddr.ip4, source, sizeof(source));
-        inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &s->udp.saddr.ip6, source, sizeof(source));
-        inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
-    }
 
     // Check session timeout
     int timeout = get_udp_timeout(&s->udp, sessions, maxsessions);
     if (s->udp.state == UDP_ACTIVE && s->udp.time + timeout < now) {
         log_android(ANDROID_LOG_WARN, "UDP idle %d/%d sec state %d from %s/%u to %s/%u",
                     now - s->udp.time, timeout, s->udp.state,
-                    source, ntohs(s->udp.source), dest, ntohs(s->udp.dest));
+                    get_address(s->udp.version, &s->udp.saddr, source), ntohs(s->udp.source),
+                    get_address(s->udp.version, &s->udp.daddr, dest), ntohs(s->udp.dest));
         s->udp.state = UDP_FINISHING;
     }
 
     // Check finished sessions
     if (s->udp.state == UDP_FINISHING) {
         log_android(ANDROID_LOG_INFO, "UDP close from %s/%u to %s/%u socket %d",
-                    source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), s->socket);
+                    get_address(s->udp.version, &s->udp.saddr, source), ntohs(s->udp.source),
+                    get_address(s->udp.version, &s->udp.daddr, dest), ntohs(s->udp.dest),
+                    s->socket);
 
         if (close(s->socket))
             log_android(ANDROID_LOG_ERROR, "UDP close %d error %d: %s",
@@ -69,7 +65,8 @@ int check_udp_session(const struct arguments *args, struct ng_session *s,
 
     if (s->udp.state == UDP_CLOSED && (s->udp.sent || s->udp.received)) {
         account_usage(args, s->udp.version, IPPROTO_UDP,
-                      dest, ntohs(s->udp.dest), s->udp.uid, s->udp.sent, s->udp.received);
+                      get_address(s->udp.version, &s->udp.daddr, dest), ntohs(s->udp.dest),
+                      s->udp.uid, s->udp.sent, s->udp.received);
         s->udp.sent = 0;
         s->udp.received = 0;
     }
@@ -120,18 +117,17 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
             } else {
                 // Socket read data
                 char dest[INET6_ADDRSTRLEN + 1];
-                if (s->udp.version == 4)
-                    inet_ntop(AF_INET, &s->udp.daddr.ip4, dest, sizeof(dest));
-                else
-                    inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
                 log_android(ANDROID_LOG_INFO, "UDP recv bytes %d from %s/%u for tun",
-                            bytes, dest, ntohs(s->udp.dest));
+                            bytes, get_address(s->udp.version, &s->udp.daddr, dest),
+                            ntohs(s->udp.dest));
 
                 s->udp.received += bytes;
 
                 // Process DNS response
+                // Blocked responses are not cached, because the rules can change
                 if (ntohs(s->udp.dest) == 53)
-                    parse_dns_response(args, s, buffer, (size_t *) &bytes);
+                    if (!parse_dns_response(args, s, buffer, (size_t *) &bytes))
+                        put_dns_cache(args, &s->udp, buffer, (size_t) bytes);
 
                 // Forward to tun
                 if (write_udp(args, &s->udp, buffer, (size_t) bytes) < 0)
@@ -182,18 +178,14 @@ void block_udp(const struct arguments *args,
     const struct ip6_hdr *ip6 = (struct ip6_hdr *) pkt;
     const struct udphdr *udphdr = (struct udphdr *) payload;
 
+    const void *saddr = (version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src);
+    const void *daddr = (version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst);
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
-    if (version == 4) {
-        inet_ntop(AF_INET, &ip4->saddr, source, sizeof(source));
-        inet_ntop(AF_INET, &ip4->daddr, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &ip6->ip6_src, source, sizeof(source));
-        inet_ntop(AF_INET6, &ip6->ip6_dst, dest, sizeof(dest));
-    }
 
     log_android(ANDROID_LOG_INFO, "UDP blocked session from %s/%u to %s/%u",
-                source, ntohs(udphdr->source), dest, ntohs(udphdr->dest));
+                get_address(version, saddr, source), ntohs(udphdr->source),
+                get_address(version, daddr, dest), ntohs(udphdr->dest));
 
     // Register session
     struct ng_session *s = ng_malloc(sizeof(struct ng_session), "udp session block");
@@ -245,26 +237,44 @@ jboolean handle_udp(const struct arguments *args,
                              memcmp(&cur->udp.daddr.ip6, &ip6->ip6_dst, 16) == 0)))
         cur = cur->next;
 
+    const void *saddr = (version == 4 ? (const void *) &ip4->saddr : (const void *) &ip6->ip6_src);
+    const void *daddr = (version == 4 ? (const void *) &ip4->daddr : (const void *) &ip6->ip6_dst);
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
-    if (version == 4) {
-        inet_ntop(AF_INET, &ip4->saddr, source, sizeof(source));
-        inet_ntop(AF_INET, &ip4->daddr, dest, sizeof(dest));
-    } else {
-        inet_ntop(AF_INET6, &ip6->ip6_src, source, sizeof(source));
-        inet_ntop(AF_INET6, &ip6->ip6_dst, dest, sizeof(dest));
-    }
 
     if (cur != NULL && cur->udp.state != UDP_ACTIVE) {
         log_android(ANDROID_LOG_INFO, "UDP ignore session from %s/%u to %s/%u state %d",
-                    source, ntohs(udphdr->source), dest, ntohs(udphdr->dest), cur->udp.state);
+                    get_address(version, saddr, source), ntohs(udphdr->source),
+                    get_address(version, daddr, dest), ntohs(udphdr->dest), cur->udp.state);
         return 0;
     }
 
+    // Answer queries for blocked domains and cached answers without opening an upstream socket
+    if (ntohs(udphdr->dest) == 53) {
+        struct udp_session u;
+        memset(&u, 0, sizeof(struct udp_session));
+        u.uid = uid;
+        u.version = version;
+        if (version == 4) {
+            u.saddr.ip4 = (__be32) ip4->saddr;
+            u.daddr.ip4 = (__be32) ip4->daddr;
+        } else {
+            memcpy(&u.saddr.ip6, &ip6->ip6_src, 16);
+            memcpy(&u.daddr.ip6, &ip6->ip6_dst, 16);
+        }
+        u.source = udphdr->source;
+        u.dest = udphdr->dest;
+
+        int rc = handle_dns_query(args, &u, data, datalen);
+        if (rc != 0)
+            return (jboolean) (rc > 0);
+    }
+
     // Create new session if needed
     if (cur == NULL) {
         log_android(ANDROID_LOG_INFO, "UDP new session from %s/%u to %s/%u",
-                    source, ntohs(udphdr->source), dest, ntohs(udphdr->dest));
+                    get_address(version, saddr, source), ntohs(udphdr->source),
+                    get_address(version, daddr, dest), ntohs(udphdr->dest));
 
         // Register session
         struct ng_session *s = ng_malloc(sizeof(struct ng_session), "udp session");
@@ -283,6 +293,7 @@ jboolean handle_udp(const struct arguments *args,
 
         s->udp.sent = 0;
         s->udp.received = 0;
+        s->udp.qtime = 0;
 
         if (version == 4) {
             s->udp.saddr.ip4 = (__be32) ip4->saddr;
@@ -326,7 +337,8 @@ jboolean handle_udp(const struct arguments *args,
     }
 
     log_android(ANDROID_LOG_INFO, "UDP forward from tun %s/%u to %s/%u data %d",
-                source, ntohs(udphdr->source), dest, ntohs(udphdr->dest), datalen);
+                get_address(version, saddr, source), ntohs(udphdr->source),
+                get_address(version, daddr, dest), ntohs(udphdr->dest), datalen);
 
     cur->udp.time = time(NULL);
 
@@ -369,8 +381,11 @@ jboolean handle_udp(const struct arguments *args,
             cur->udp.state = UDP_FINISHING;
             return 0;
         }
-    } else
+    } else {
         cur->udp.sent += datalen;
+        if (ntohs(cur->udp.dest) == 53)
+            cur->udp.qtime = get_ms();
+    }
 
     return 1;
 }
@@ -438,20 +453,19 @@ int open_udp_socket(const struct arguments *args,
 ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
                   uint8_t *data, size_t datalen) {
     size_t len;
-    u_int8_t *buffer;
+    size_t hlen;
+    uint8_t buffer[TUN_HEADER_MAX] __attribute__((aligned(8)));
     struct udphdr *udp;
     uint16_t csum;
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
 
-    // Build packet
+    // Build headers, the data is written from where it is
     if (cur->version == 4) {
-        len = sizeof(struct iphdr) + sizeof(struct udphdr) + datalen;
-        buffer = ng_malloc(len, "udp write4");
+        hlen = sizeof(struct iphdr) + sizeof(struct udphdr);
+        len = hlen + datalen;
         struct iphdr *ip4 = (struct iphdr *) buffer;
         udp = (struct udphdr *) (buffer + sizeof(struct iphdr));
-        if (datalen)
-            memcpy(buffer + sizeof(struct iphdr) + sizeof(struct udphdr), data, datalen);
 
         // Build IP4 header
         memset(ip4, 0, sizeof(struct iphdr));
@@ -476,12 +490,10 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
 
         csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
     } else {
-        len = sizeof(struct ip6_hdr) + sizeof(struct udphdr) + datalen;
-        buffer = ng_malloc(len, "udp write6");
+        hlen = sizeof(struct ip6_hdr) + sizeof(struct udphdr);
+        len = hlen + datalen;
         struct ip6_hdr *ip6 = (struct ip6_hdr *) buffer;
         udp = (struct udphdr *) (buffer + sizeof(struct ip6_hdr));
-        if (datalen)
-            memcpy(buffer + sizeof(struct ip6_hdr) + sizeof(struct udphdr), data, datalen);
 
         // Build IP6 header
         memset(ip6, 0, sizeof(struct ip6_hdr));
@@ -515,31 +527,16 @@ ssize_t write_udp(const struct arguments *args, const struct udp_session *cur,
     csum = calc_checksum(csum, data, datalen);
     udp->check = ~csum;
 
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              (cur->version == 4 ? (const void *) &cur->saddr.ip4 : (const void *) &cur->saddr.ip6),
-              source,
-              sizeof(source));
-    inet_ntop(cur->version == 4 ? AF_INET : AF_INET6,
-              (cur->version == 4 ? (const void *) &cur->daddr.ip4 : (const void *) &cur->daddr.ip6),
-              dest,
-              sizeof(dest));
-
     // Send packet
     log_android(ANDROID_LOG_DEBUG,
                 "UDP sending to tun %d from %s/%u to %s/%u data %u",
-                args->tun, dest, ntohs(cur->dest), source, ntohs(cur->source), len);
+                args->tun, get_address(cur->version, &cur->daddr, dest), ntohs(cur->dest),
+                get_address(cur->version, &cur->saddr, source), ntohs(cur->source), len);
 
-    ssize_t res = write(args->tun, buffer, len);
-
-    // Write PCAP record
-    if (res >= 0) {
-        if (pcap_file != NULL)
-            write_pcap_rec(buffer, (size_t) res);
-    } else
+    ssize_t res = write_tun(args, buffer, hlen, data, datalen);
+    if (res < 0)
         log_android(ANDROID_LOG_WARN, "UDP write error %d: %s", errno, strerror(errno));
 
-    ng_free(buffer, __FILE__, __LINE__);
-
     if (res != len) {
         log_android(ANDROID_LOG_ERROR, "write %d/%d", res, len);
         return -1;
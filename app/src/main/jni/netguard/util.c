@@ -19,27 +19,64 @@
 
 #include "netguard.h"
 
-extern int loglevel;
+static inline uint64_t add_carry(uint64_t sum, uint64_t value) {
+    sum += value;
+    return sum + (sum < value); // end around carry
+}
 
+// Sums 64 bit words, which is congruent to the sum of the 16 bit words modulo 0xFFFF
+// The result is the same as summing 16 bit words, including the odd last byte
 uint16_t calc_checksum(uint16_t start, const uint8_t *buffer, size_t length) {
-    register uint32_t sum = start;
-    register uint16_t *buf = (uint16_t *) buffer;
-    register size_t len = length;
+    uint64_t sum = start;
+    uint64_t word[4];
+
+    while (length >= sizeof(word)) {
+        memcpy(word, buffer, sizeof(word));
+        sum = add_carry(sum, word[0]);
+        sum = add_carry(sum, word[1]);
+        sum = add_carry(sum, word[2]);
+        sum = add_carry(sum, word[3]);
+        buffer += sizeof(word);
+        length -= sizeof(word);
+    }
+
+    while (length >= sizeof(uint64_t)) {
+        memcpy(word, buffer, sizeof(uint64_t));
+        sum = add_carry(sum, word[0]);
+        buffer += sizeof(uint64_t);
+        length -= sizeof(uint64_t);
+    }
 
-    while (len > 1) {
-        sum += *buf++;
-        len -= 2;
+    while (length > 1) {
+        uint16_t half;
+        memcpy(&half, buffer, sizeof(uint16_t));
+        sum = add_carry(sum, half);
+        buffer += sizeof(uint16_t);
+        length -= sizeof(uint16_t);
     }
 
-    if (len > 0)
-        sum += *((uint8_t *) buf);
+    if (length > 0)
+        sum = add_carry(sum, *buffer);
 
+    sum = (sum & 0xFFFFFFFF) + (sum >> 32);
+    sum = (sum & 0xFFFFFFFF) + (sum >> 32);
     while (sum >> 16)
         sum = (sum & 0xFFFF) + (sum >> 16);
 
     return (uint16_t) sum;
 }
 
+// RFC 1624 equation 3: checksum after a 16 bit field changed from old to new
+// All values in the same byte order
+uint16_t update_checksum(uint16_t check, uint16_t old, uint16_t new) {
+    uint32_t sum = (uint16_t) ~check;
+    sum += (uint16_t) ~old;
+    sum += new;
+    sum = (sum & 0xFFFF) + (sum >> 16);
+    sum = (sum & 0xFFFF) + (sum >> 16);
+    return (uint16_t) ~sum;
+}
+
 int compare_u32(uint32_t s1, uint32_t s2) {
     // https://tools.ietf.org/html/rfc1982
     if (s1 == s2)
@@ -60,15 +97,19 @@ int sdk_int(JNIEnv *env) {
     return (*env)->GetStaticIntField(env, clsVersion, fid);
 }
 
-void log_android(int prio, const char *fmt, ...) {
-    if (prio >= loglevel) {
-        char line[1024];
-        va_list argptr;
-        va_start(argptr, fmt);
-        vsprintf(line, fmt, argptr);
-        __android_log_print(prio, TAG, "%s", line);
-        va_end(argptr);
-    }
+void print_android(int prio, const char *fmt, ...) {
+    char line[1024];
+    va_list argptr;
+    va_start(argptr, fmt);
+    vsprintf(line, fmt, argptr);
+    __android_log_print(prio, TAG, "%s", line);
+    va_end(argptr);
+}
+
+// The size of text should be at least INET6_ADDRSTRLEN + 1
+const char *get_address(int version, const void *addr, char *text) {
+    inet_ntop(version == 4 ? AF_INET : AF_INET6, addr, text, INET6_ADDRSTRLEN + 1);
+    return text;
 }
 
 uint8_t char2nible(const char c) {
@@ -180,3 +221,9 @@ long long get_ms() {
     clock_gettime(CLOCK_MONOTONIC, &ts);
     return ts.tv_sec * 1000LL + ts.tv_nsec / 1e6;
 }
+
+long long get_us() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000LL + ts.tv_nsec / 1000;
+}
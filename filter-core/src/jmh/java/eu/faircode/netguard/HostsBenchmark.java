@@ -0,0 +1,114 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Compiling a hosts file and looking up names in it
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HostsBenchmark {
+    private static final int LOOKUPS = 1024;
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    private String text;
+    private HostsList hosts;
+    private String[] hits;
+    private String[] misses;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder();
+        sb.append("# Generated hosts file\n");
+        String[] names = new String[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = "host" + i + ".tracker" + random.nextInt(1000) + ".example.com";
+            sb.append("0.0.0.0 ").append(names[i]);
+            if (i % 10 == 0)
+                sb.append(" # comment");
+            sb.append('\n');
+        }
+        text = sb.toString();
+
+        try {
+            hosts = HostsList.compile(new BufferedReader(new StringReader(text)), size);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        hits = new String[LOOKUPS];
+        misses = new String[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            // New instances, so that the hash code is not cached
+            hits[i] = new String(names[random.nextInt(size)]);
+            misses[i] = "www" + i + ".example.org";
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public HostsList compile() throws IOException {
+        return HostsList.compile(new BufferedReader(new StringReader(text)), size);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int lookupHit() {
+        int found = 0;
+        for (String name : hits)
+            if (hosts.contains(name))
+                found++;
+        return found;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int lookupMiss() {
+        int found = 0;
+        for (String name : misses)
+            if (hosts.contains(name))
+                found++;
+        return found;
+    }
+}
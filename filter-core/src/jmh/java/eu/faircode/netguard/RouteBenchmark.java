@@ -0,0 +1,95 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Computing the routes of the tunnel
+// The exclusions are those of the service builder with and without the carrier ranges
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RouteBenchmark {
+    @Param({"false", "true"})
+    public boolean carriers;
+
+    private List<IPUtil.CIDR> listExclude;
+
+    @Setup
+    public void setup() {
+        listExclude = new ArrayList<>();
+        listExclude.add(new IPUtil.CIDR("127.0.0.0", 8));
+        listExclude.add(new IPUtil.CIDR("192.168.42.0", 23));
+        listExclude.add(new IPUtil.CIDR("192.168.44.0", 24));
+        listExclude.add(new IPUtil.CIDR("192.168.49.0", 24));
+        listExclude.add(new IPUtil.CIDR("10.0.0.0", 8));
+        listExclude.add(new IPUtil.CIDR("172.16.0.0", 12));
+        listExclude.add(new IPUtil.CIDR("192.168.0.0", 16));
+        listExclude.add(new IPUtil.CIDR("8.8.8.8", 32));
+        listExclude.add(new IPUtil.CIDR("8.8.4.4", 32));
+        if (carriers) {
+            listExclude.add(new IPUtil.CIDR("66.94.2.0", 24));
+            listExclude.add(new IPUtil.CIDR("66.94.6.0", 23));
+            listExclude.add(new IPUtil.CIDR("66.94.8.0", 22));
+            listExclude.add(new IPUtil.CIDR("208.54.0.0", 16));
+            listExclude.add(new IPUtil.CIDR("66.174.0.0", 16));
+            listExclude.add(new IPUtil.CIDR("66.82.0.0", 15));
+            listExclude.add(new IPUtil.CIDR("69.96.0.0", 13));
+            listExclude.add(new IPUtil.CIDR("70.192.0.0", 11));
+            listExclude.add(new IPUtil.CIDR("97.128.0.0", 9));
+            listExclude.add(new IPUtil.CIDR("174.192.0.0", 9));
+            listExclude.add(new IPUtil.CIDR("72.96.0.0", 9));
+            listExclude.add(new IPUtil.CIDR("75.192.0.0", 9));
+            listExclude.add(new IPUtil.CIDR("97.0.0.0", 10));
+            listExclude.add(new IPUtil.CIDR("10.151.0.0", 24));
+        }
+        listExclude.add(new IPUtil.CIDR("224.0.0.0", 3));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<IPUtil.CIDR> routes() throws UnknownHostException {
+        return IPUtil.getRoutes(listExclude, "255.255.255.255");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<IPUtil.CIDR> toCIDR() throws UnknownHostException {
+        return IPUtil.toCIDR("0.0.0.1", "126.255.255.254");
+    }
+}
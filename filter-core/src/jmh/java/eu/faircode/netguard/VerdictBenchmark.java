@@ -0,0 +1,181 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Deciding on new connections with rule sets of various sizes
+// The number of address rules is a multiple of the number of apps
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class VerdictBenchmark {
+    private static final int PACKETS = 1024;
+    private static final int FIRST_UID = 10000;
+
+    @Param({"100", "1000"})
+    public int apps;
+
+    @Param({"0", "10", "100"})
+    public int addressesPerApp;
+
+    private Snapshot snapshot;
+    private int[] uid;
+    private int[] version;
+    private int[] dport;
+    private String[] daddr;
+
+    private static class Snapshot implements Verdict.Rules {
+        private final Map<Integer, Boolean> allowed = new HashMap<>();
+        private final Set<Integer> known = new HashSet<>();
+        private final IPFilters filters = new IPFilters();
+
+        @Override
+        public boolean isFilterUdp() {
+            return true;
+        }
+
+        @Override
+        public boolean isAllowUnknown() {
+            return false;
+        }
+
+        @Override
+        public int getSelfUid() {
+            return FIRST_UID - 1;
+        }
+
+        @Override
+        public boolean isKnown(int uid) {
+            return known.contains(uid);
+        }
+
+        @Override
+        public Boolean isAllowed(int uid) {
+            return allowed.get(uid);
+        }
+
+        @Override
+        public IPFilters getIPFilters() {
+            return filters;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        snapshot = new Snapshot();
+
+        List<List<String>> filtered = new ArrayList<>();
+        for (int a = 0; a < apps; a++) {
+            int u = FIRST_UID + a;
+            snapshot.known.add(u);
+            if (random.nextBoolean())
+                snapshot.allowed.put(u, true);
+
+            List<String> addresses = new ArrayList<>();
+            for (int i = 0; i < addressesPerApp; i++) {
+                byte[] address;
+                if (random.nextInt(4) == 0) {
+                    address = new byte[16];
+                    address[0] = 0x20;
+                    address[1] = 0x01;
+                    for (int b = 2; b < 16; b++)
+                        address[b] = (byte) random.nextInt(256);
+                } else {
+                    address = ipv4(random);
+                    addresses.add(toString(address));
+                }
+                snapshot.filters.put(u, address.length == 4 ? 4 : 6, 6, 443, address,
+                        random.nextBoolean(), 0, 0);
+            }
+            filtered.add(addresses);
+        }
+
+        // Half of the packets go to a filtered IPv4 address, if any
+        uid = new int[PACKETS];
+        version = new int[PACKETS];
+        dport = new int[PACKETS];
+        daddr = new String[PACKETS];
+        for (int i = 0; i < PACKETS; i++) {
+            int a = random.nextInt(apps);
+            List<String> addresses = filtered.get(a);
+            uid[i] = FIRST_UID + a;
+            version[i] = 4;
+            dport[i] = 443;
+            if (i % 2 == 0 && addresses.size() > 0)
+                daddr[i] = addresses.get(random.nextInt(addresses.size()));
+            else
+                daddr[i] = toString(ipv4(random));
+        }
+    }
+
+    private static byte[] ipv4(Random random) {
+        return new byte[]{(byte) (1 + random.nextInt(223)), (byte) random.nextInt(256),
+                (byte) random.nextInt(256), (byte) random.nextInt(256)};
+    }
+
+    private static String toString(byte[] address) {
+        return (address[0] & 0xFF) + "." + (address[1] & 0xFF) + "." + (address[2] & 0xFF) + "." + (address[3] & 0xFF);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int decide() {
+        int allowed = 0;
+        for (int i = 0; i < PACKETS; i++)
+            if (Verdict.isAllowed(Verdict.decide(snapshot, uid[i], version[i], 6, dport[i], daddr[i])))
+                allowed++;
+        return allowed;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int uidVerdicts() {
+        Set<Integer> filtered = snapshot.filters.getUids();
+        int check = 0;
+        for (int a = 0; a < apps; a++)
+            if (Verdict.getUidVerdict(snapshot, FIRST_UID + a, 6, filtered) == Verdict.VERDICT_CHECK)
+                check++;
+        return check;
+    }
+}
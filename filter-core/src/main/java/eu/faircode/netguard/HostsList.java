@@ -0,0 +1,96 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Domain names blocked by a hosts file
+// Lines have the format "address name", everything after a # is a comment
+public class HostsList {
+    public static final String TEST_NAME = "test.netguard.me";
+    public static final int MAX_INVALID_LINES = 10;
+
+    private final Set<String> names;
+    private final List<String> invalidLines = new ArrayList<>();
+    private int invalid = 0;
+
+    public HostsList() {
+        this.names = new HashSet<>();
+    }
+
+    private HostsList(int capacity) {
+        this.names = new HashSet<>(capacity);
+    }
+
+    public static HostsList compile(BufferedReader br) throws IOException {
+        return compile(br, 16);
+    }
+
+    // The expected number of names avoids rehashing large lists
+    public static HostsList compile(BufferedReader br, int expected) throws IOException {
+        HostsList hosts = new HostsList(expected * 4 / 3 + 1);
+
+        String line;
+        while ((line = br.readLine()) != null) {
+            int hash = line.indexOf('#');
+            if (hash >= 0)
+                line = line.substring(0, hash);
+            line = line.trim();
+            if (line.length() > 0) {
+                String[] words = line.split("\\s+");
+                if (words.length == 2)
+                    hosts.names.add(words[1]);
+                else if (hosts.invalid++ < MAX_INVALID_LINES)
+                    hosts.invalidLines.add(line);
+            }
+        }
+        hosts.names.add(TEST_NAME);
+
+        return hosts;
+    }
+
+    public boolean contains(String name) {
+        return names.contains(name);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    // Number of lines which were not in the "address name" format
+    public int getInvalid() {
+        return invalid;
+    }
+
+    // The first invalid lines, at most MAX_INVALID_LINES, to be logged by the caller
+    public List<String> getInvalidLines() {
+        return invalidLines;
+    }
+
+    @Override
+    public String toString() {
+        return "hosts=" + names.size() + " invalid=" + invalid;
+    }
+}
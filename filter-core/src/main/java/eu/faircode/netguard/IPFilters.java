@@ -0,0 +1,409 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Address rules by uid, IP version, protocol, port and address
+// Stored in open addressing tables of primitives with linear probing,
+// IPv4 addresses as int and IPv6 addresses as two longs,
+// so that a lookup does not allocate
+public class IPFilters {
+    public static final int NONE = 0;
+    public static final int ALLOWED = 1;
+    public static final int BLOCKED = 2;
+    public static final int EXPIRED = 3;
+
+    public static final int ADDED = 0;
+    public static final int REPLACED = 1;
+    public static final int UPDATED = 2;
+    public static final int IGNORED = 3; // neither an IPv4 nor an IPv6 address
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long USED = 1L << 63;
+
+    private int size4 = 0;
+    private long[] keys4 = new long[INITIAL_CAPACITY];
+    private int[] addr4 = new int[INITIAL_CAPACITY];
+    private long[] expires4 = new long[INITIAL_CAPACITY];
+    private boolean[] block4 = new boolean[INITIAL_CAPACITY];
+
+    private int size6 = 0;
+    private long[] keys6 = new long[INITIAL_CAPACITY];
+    private long[] hi6 = new long[INITIAL_CAPACITY];
+    private long[] lo6 = new long[INITIAL_CAPACITY];
+    private long[] expires6 = new long[INITIAL_CAPACITY];
+    private boolean[] block6 = new boolean[INITIAL_CAPACITY];
+
+    // uid (32 bits), version (1 bit), protocol (8 bits), port (16 bits)
+    private static long getKey(int uid, int version, int protocol, int dport) {
+        // Only TCP (6) and UDP (17) have port numbers
+        if (protocol != 6 && protocol != 17)
+            dport = 0;
+        return USED |
+                ((uid & 0xFFFFFFFFL) << 25) |
+                ((version == 6 ? 1L : 0L) << 24) |
+                ((protocol & 0xFFL) << 16) |
+                (dport & 0xFFFFL);
+    }
+
+    private static int getUid(long key) {
+        return (int) (key >>> 25);
+    }
+
+    private static int hash(long key, long hi, long lo) {
+        long h = key * 0x9E3779B97F4A7C15L ^ hi * 0xC2B2AE3D27D4EB4FL ^ lo;
+        h ^= (h >>> 33);
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= (h >>> 33);
+        return (int) h;
+    }
+
+    // The (time + 2 x TTL) expiry is the same as for the DNS records
+    public int put(int uid, int version, int protocol, int dport, byte[] address,
+                   boolean block, long time, long ttl) {
+        long key = getKey(uid, version, protocol, dport);
+        long expires = time + ttl * 2;
+
+        if (address.length == 4) {
+            if ((size4 + 1) * 2 > keys4.length)
+                resize4(keys4.length * 2);
+            int addr = (int) getLong(address, 0, 4);
+            int mask = keys4.length - 1;
+            int i = hash(key, addr, 0) & mask;
+            while (keys4[i] != 0) {
+                if (keys4[i] == key && addr4[i] == addr)
+                    if (block4[i]) {
+                        expires4[i] = expires;
+                        return UPDATED;
+                    } else {
+                        block4[i] = block;
+                        expires4[i] = expires;
+                        return REPLACED;
+                    }
+                i = (i + 1) & mask;
+            }
+            keys4[i] = key;
+            addr4[i] = addr;
+            block4[i] = block;
+            expires4[i] = expires;
+            size4++;
+            return ADDED;
+
+        } else if (address.length == 16) {
+            if ((size6 + 1) * 2 > keys6.length)
+                resize6(keys6.length * 2);
+            long hi = getLong(address, 0, 8);
+            long lo = getLong(address, 8, 8);
+            int mask = keys6.length - 1;
+            int i = hash(key, hi, lo) & mask;
+            while (keys6[i] != 0) {
+                if (keys6[i] == key && hi6[i] == hi && lo6[i] == lo)
+                    if (block6[i]) {
+                        expires6[i] = expires;
+                        return UPDATED;
+                    } else {
+                        block6[i] = block;
+                        expires6[i] = expires;
+                        return REPLACED;
+                    }
+                i = (i + 1) & mask;
+            }
+            keys6[i] = key;
+            hi6[i] = hi;
+            lo6[i] = lo;
+            block6[i] = block;
+            expires6[i] = expires;
+            size6++;
+            return ADDED;
+
+        } else
+            return IGNORED;
+    }
+
+    // Address in the textual form of the native code
+    public int check(int uid, int version, int protocol, int dport, String address) {
+        long key = getKey(uid, version, protocol, dport);
+        long now = System.currentTimeMillis();
+
+        if (version == 4)
+            return (size4 == 0 ? NONE : check4(key, parse4(address, 0, address.length()), now));
+        else if (version == 6)
+            return (size6 == 0 ? NONE : check6(key, parse6(address, true), parse6(address, false), now));
+        else
+            return NONE;
+    }
+
+    private int check4(long key, int addr, long now) {
+        int mask = keys4.length - 1;
+        int i = hash(key, addr, 0) & mask;
+        while (keys4[i] != 0) {
+            if (keys4[i] == key && addr4[i] == addr)
+                return (now > expires4[i] ? EXPIRED : block4[i] ? BLOCKED : ALLOWED);
+            i = (i + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private int check6(long key, long hi, long lo, long now) {
+        int mask = keys6.length - 1;
+        int i = hash(key, hi, lo) & mask;
+        while (keys6[i] != 0) {
+            if (keys6[i] == key && hi6[i] == hi && lo6[i] == lo)
+                return (now > expires6[i] ? EXPIRED : block6[i] ? BLOCKED : ALLOWED);
+            i = (i + 1) & mask;
+        }
+        return NONE;
+    }
+
+    public Set<Integer> getUids() {
+        Set<Integer> uids = new HashSet<>();
+        for (long key : keys4)
+            if (key != 0)
+                uids.add(getUid(key));
+        for (long key : keys6)
+            if (key != 0)
+                uids.add(getUid(key));
+        return uids;
+    }
+
+    // Uids with different rules or a different expiry state than in the other filters
+    public Set<Integer> getChangedUids(IPFilters other) {
+        long now = System.currentTimeMillis();
+        Set<Integer> changed = new HashSet<>();
+        Map<Integer, Integer> count = new HashMap<>();
+
+        for (int i = 0; i < keys4.length; i++)
+            if (keys4[i] != 0) {
+                int uid = getUid(keys4[i]);
+                Integer c = count.get(uid);
+                count.put(uid, c == null ? 1 : c + 1);
+                int state = (now > expires4[i] ? EXPIRED : block4[i] ? BLOCKED : ALLOWED);
+                if (other.check4(keys4[i], addr4[i], now) != state)
+                    changed.add(uid);
+            }
+
+        for (int i = 0; i < keys6.length; i++)
+            if (keys6[i] != 0) {
+                int uid = getUid(keys6[i]);
+                Integer c = count.get(uid);
+                count.put(uid, c == null ? 1 : c + 1);
+                int state = (now > expires6[i] ? EXPIRED : block6[i] ? BLOCKED : ALLOWED);
+                if (other.check6(keys6[i], hi6[i], lo6[i], now) != state)
+                    changed.add(uid);
+            }
+
+        // Rules which were removed
+        for (long key : other.keys4)
+            if (key != 0)
+                count.put(getUid(key), (count.containsKey(getUid(key)) ? count.get(getUid(key)) : 0) - 1);
+        for (long key : other.keys6)
+            if (key != 0)
+                count.put(getUid(key), (count.containsKey(getUid(key)) ? count.get(getUid(key)) : 0) - 1);
+        for (Integer uid : count.keySet())
+            if (count.get(uid) != 0)
+                changed.add(uid);
+
+        return changed;
+    }
+
+    public int size() {
+        return size4 + size6;
+    }
+
+    // Approximate size of the tables in bytes
+    public long getMemory() {
+        return keys4.length * (8L + 4 + 8 + 1) + keys6.length * (8L + 8 + 8 + 8 + 1);
+    }
+
+    private void resize4(int capacity) {
+        long[] okeys = keys4;
+        int[] oaddr = addr4;
+        long[] oexpires = expires4;
+        boolean[] oblock = block4;
+
+        keys4 = new long[capacity];
+        addr4 = new int[capacity];
+        expires4 = new long[capacity];
+        block4 = new boolean[capacity];
+
+        int mask = capacity - 1;
+        for (int o = 0; o < okeys.length; o++)
+            if (okeys[o] != 0) {
+                int i = hash(okeys[o], oaddr[o], 0) & mask;
+                while (keys4[i] != 0)
+                    i = (i + 1) & mask;
+                keys4[i] = okeys[o];
+                addr4[i] = oaddr[o];
+                expires4[i] = oexpires[o];
+                block4[i] = oblock[o];
+            }
+    }
+
+    private void resize6(int capacity) {
+        long[] okeys = keys6;
+        long[] ohi = hi6;
+        long[] olo = lo6;
+        long[] oexpires = expires6;
+        boolean[] oblock = block6;
+
+        keys6 = new long[capacity];
+        hi6 = new long[capacity];
+        lo6 = new long[capacity];
+        expires6 = new long[capacity];
+        block6 = new boolean[capacity];
+
+        int mask = capacity - 1;
+        for (int o = 0; o < okeys.length; o++)
+            if (okeys[o] != 0) {
+                int i = hash(okeys[o], ohi[o], olo[o]) & mask;
+                while (keys6[i] != 0)
+                    i = (i + 1) & mask;
+                keys6[i] = okeys[o];
+                hi6[i] = ohi[o];
+                lo6[i] = olo[o];
+                expires6[i] = oexpires[o];
+                block6[i] = oblock[o];
+            }
+    }
+
+    private static long getLong(byte[] b, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++)
+            value = (value << 8) | (b[offset + i] & 0xFF);
+        return value;
+    }
+
+    // Dotted quad without allocations
+    static int parse4(String s, int start, int end) {
+        int addr = 0;
+        int octets = 0;
+        int value = -1;
+        for (int i = start; i <= end; i++) {
+            char c = (i < end ? s.charAt(i) : '.');
+            if (c == '.') {
+                if (value < 0 || ++octets > 4)
+                    throw new IllegalArgumentException(s);
+                addr = (addr << 8) | value;
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255)
+                    throw new IllegalArgumentException(s);
+            } else
+                throw new IllegalArgumentException(s);
+        }
+        if (octets != 4)
+            throw new IllegalArgumentException(s);
+        return addr;
+    }
+
+    // High or low 64 bits of a textual IPv6 address without allocations
+    static long parse6(String s, boolean high) {
+        int len = s.length();
+        int gap = s.indexOf("::");
+
+        // Number of groups after the gap, an embedded dotted quad counts as two groups
+        int tail = 0;
+        if (gap >= 0 && gap + 2 < len) {
+            tail = 1;
+            for (int i = gap + 2; i < len; i++) {
+                char c = s.charAt(i);
+                if (c == ':')
+                    tail++;
+                else if (c == '.') {
+                    tail++;
+                    break;
+                }
+            }
+        }
+
+        long hi = 0;
+        long lo = 0;
+        int index = 0;
+        int i = 0;
+        while (i < len) {
+            if (i == gap) {
+                index = 8 - tail;
+                i += 2;
+                continue;
+            }
+
+            int start = i;
+            int group = 0;
+            boolean dotted = false;
+            while (i < len && s.charAt(i) != ':') {
+                char c = s.charAt(i);
+                int digit = Character.digit(c, 16);
+                if (c == '.') {
+                    dotted = true;
+                    break;
+                } else if (digit < 0 || i - start >= 4)
+                    throw new IllegalArgumentException(s);
+                group = (group << 4) | digit;
+                i++;
+            }
+
+            if (dotted) {
+                if (index > 6)
+                    throw new IllegalArgumentException(s);
+                int addr = parse4(s, start, len);
+                if (index < 4)
+                    hi |= ((addr >>> 16) & 0xFFFFL) << (16 * (3 - index));
+                else
+                    lo |= ((addr >>> 16) & 0xFFFFL) << (16 * (7 - index));
+                index++;
+                if (index < 4)
+                    hi |= (addr & 0xFFFFL) << (16 * (3 - index));
+                else
+                    lo |= (addr & 0xFFFFL) << (16 * (7 - index));
+                index++;
+                break;
+            }
+
+            if (i == start || index > 7)
+                throw new IllegalArgumentException(s);
+            if (index < 4)
+                hi |= (long) group << (16 * (3 - index));
+            else
+                lo |= (long) group << (16 * (7 - index));
+            index++;
+
+            // Skip a single separator, but not the start of the gap
+            if (i < len && i != gap)
+                i++;
+        }
+
+        if (index != 8)
+            throw new IllegalArgumentException(s);
+
+        return (high ? hi : lo);
+    }
+
+    @Override
+    public String toString() {
+        return "ipv4=" + size4 + "/" + keys4.length +
+                " ipv6=" + size6 + "/" + keys6.length +
+                " memory=" + (getMemory() / 1024) + " KiB";
+    }
+}
@@ -19,18 +19,13 @@ package eu.faircode.netguard;
     Copyright 2015-2024 by Marcel Bokhorst (M66B)
 */
 
-import android.util.Log;
-
-import androidx.annotation.NonNull;
-
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class IPUtil {
-    private static final String TAG = "NetGuard.IPUtil";
-
     public static List<CIDR> toCIDR(String start, String end) throws UnknownHostException {
         return toCIDR(InetAddress.getByName(start), InetAddress.getByName(end));
     }
@@ -38,8 +33,6 @@ public class IPUtil {
     public static List<CIDR> toCIDR(InetAddress start, InetAddress end) throws UnknownHostException {
         List<CIDR> listResult = new ArrayList<>();
 
-        Log.i(TAG, "toCIDR(" + start.getHostAddress() + "," + end.getHostAddress() + ")");
-
         long from = inet2long(start);
         long to = inet2long(end);
         while (to >= from) {
@@ -60,12 +53,26 @@ public class IPUtil {
             from += Math.pow(2, (32 - prefix));
         }
 
-        for (CIDR cidr : listResult)
-            Log.i(TAG, cidr.toString());
-
         return listResult;
     }
 
+    // IPv4 routes for the address space outside the excluded ranges
+    // The range from 224.0.0.0 up to the end is always routed
+    public static List<CIDR> getRoutes(List<CIDR> listExclude, String end) throws UnknownHostException {
+        List<CIDR> listSorted = new ArrayList<>(listExclude);
+        Collections.sort(listSorted);
+
+        List<CIDR> listInclude = new ArrayList<>();
+        InetAddress start = InetAddress.getByName("0.0.0.0");
+        for (CIDR exclude : listSorted) {
+            listInclude.addAll(toCIDR(start, minus1(exclude.getStart())));
+            start = plus1(exclude.getEnd());
+        }
+        listInclude.addAll(toCIDR("224.0.0.0", end));
+
+        return listInclude;
+    }
+
     private static long prefix2mask(int bits) {
         return (0xFFFFFFFF00000000L >> bits) & 0xFFFFFFFFL;
     }
@@ -108,12 +115,13 @@ public class IPUtil {
             this.prefix = prefix;
         }
 
+        // The address should be numeric
         public CIDR(String ip, int prefix) {
             try {
                 this.address = InetAddress.getByName(ip);
                 this.prefix = prefix;
             } catch (UnknownHostException ex) {
-                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                throw new IllegalArgumentException(ip, ex);
             }
         }
 
@@ -131,7 +139,7 @@ public class IPUtil {
         }
 
         @Override
-        public int compareTo(@NonNull CIDR other) {
+        public int compareTo(CIDR other) {
             Long lcidr = IPUtil.inet2long(this.address);
             Long lother = IPUtil.inet2long(other.address);
             return lcidr.compareTo(lother);
@@ -0,0 +1,163 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.Set;
+
+// Decides whether a new connection is allowed
+// The rules are read through a snapshot, which should not change during a decision
+// https://android.googlesource.com/platform/system/core/+/master/include/private/android_filesystem_config.h
+public class Verdict {
+    // Outcomes of decide
+    public static final int UNFILTERED_UDP = 1;
+    public static final int UNKNOWN_SYSTEM = 2;
+    public static final int SELF = 3;
+    public static final int ADDRESS_ALLOWED = 4;
+    public static final int ADDRESS_BLOCKED = 5;
+    public static final int RULE_ALLOWED = 6;
+    public static final int RULE_BLOCKED = 7;
+    public static final int NO_RULE = 8;
+
+    // Combined with a rule outcome when an address rule expired
+    public static final int EXPIRED = 0x100;
+
+    // Per uid session verdicts after a rule update, see netguard.h
+    public static final int VERDICT_ALLOW = 1;
+    public static final int VERDICT_BLOCK = 2;
+    public static final int VERDICT_CHECK = 3;
+
+    public interface Rules {
+        boolean isFilterUdp();
+
+        // Allow unknown traffic of all uids, not only of system uids
+        boolean isAllowUnknown();
+
+        int getSelfUid();
+
+        boolean isKnown(int uid);
+
+        // Returns null if there is no rule for the uid
+        Boolean isAllowed(int uid);
+
+        IPFilters getIPFilters();
+    }
+
+    public static boolean isSupported(int protocol) {
+        return (protocol == 1 /* ICMPv4 */ ||
+                protocol == 58 /* ICMPv6 */ ||
+                protocol == 6 /* TCP */ ||
+                protocol == 17 /* UDP */);
+    }
+
+    public static boolean isAllowed(int outcome) {
+        switch (outcome & ~EXPIRED) {
+            case UNFILTERED_UDP:
+            case UNKNOWN_SYSTEM:
+            case SELF:
+            case ADDRESS_ALLOWED:
+            case RULE_ALLOWED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static int decide(Rules rules, int uid, int version, int protocol, int dport, String daddr) {
+        if (protocol == 17 /* UDP */ && !rules.isFilterUdp())
+            return UNFILTERED_UDP;
+        else if ((uid < 2000 || rules.isAllowUnknown()) &&
+                !rules.isKnown(uid) && isSupported(protocol))
+            return UNKNOWN_SYSTEM;
+        else if (uid == rules.getSelfUid())
+            return SELF;
+
+        int expired = 0;
+        IPFilters filters = rules.getIPFilters();
+        if (filters != null)
+            try {
+                int state = filters.check(uid, version, protocol, dport, daddr);
+                if (state == IPFilters.ALLOWED)
+                    return ADDRESS_ALLOWED;
+                else if (state == IPFilters.BLOCKED)
+                    return ADDRESS_BLOCKED;
+                else if (state == IPFilters.EXPIRED)
+                    expired = EXPIRED;
+            } catch (IllegalArgumentException ignored) {
+                // Not a numeric address, fall back to the rule
+            }
+
+        Boolean allowed = rules.isAllowed(uid);
+        if (allowed == null)
+            return NO_RULE | expired;
+        else
+            return (allowed ? RULE_ALLOWED : RULE_BLOCKED) | expired;
+    }
+
+    // Mirrors decide for the sessions of a uid using a protocol
+    // Address rules can only be evaluated per session
+    public static int getUidVerdict(Rules rules, int uid, int protocol, Set<Integer> filtered) {
+        if (protocol == 17 /* UDP */ && !rules.isFilterUdp())
+            return VERDICT_ALLOW;
+        else if ((uid < 2000 || rules.isAllowUnknown()) &&
+                !rules.isKnown(uid) && isSupported(protocol))
+            return VERDICT_ALLOW;
+        else if (uid == rules.getSelfUid())
+            return VERDICT_ALLOW;
+        else if (filtered.contains(uid))
+            return VERDICT_CHECK;
+        else {
+            Boolean allowed = rules.isAllowed(uid);
+            return (allowed != null && allowed ? VERDICT_ALLOW : VERDICT_BLOCK);
+        }
+    }
+
+    public static String toString(int outcome) {
+        String name;
+        switch (outcome & ~EXPIRED) {
+            case UNFILTERED_UDP:
+                name = "unfiltered UDP";
+                break;
+            case UNKNOWN_SYSTEM:
+                name = "unknown system";
+                break;
+            case SELF:
+                name = "self";
+                break;
+            case ADDRESS_ALLOWED:
+                name = "address allowed";
+                break;
+            case ADDRESS_BLOCKED:
+                name = "address blocked";
+                break;
+            case RULE_ALLOWED:
+                name = "rule allowed";
+                break;
+            case RULE_BLOCKED:
+                name = "rule blocked";
+                break;
+            case NO_RULE:
+                name = "no rule";
+                break;
+            default:
+                name = Integer.toString(outcome);
+        }
+        return ((outcome & EXPIRED) == 0 ? name : name + " expired");
+    }
+}
@@ -0,0 +1,121 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// The per uid verdicts of a reload should agree with decide for every connection
+public class VerdictTest {
+    private static final int SELF_UID = 10002;
+    private static final int[] UIDS = {0, 1000, 1999, 2000, 10001, SELF_UID};
+    private static final int[] PROTOCOLS = {0, 1, 6, 17, 47, 58};
+    private static final Boolean[] ALLOWED = {null, true, false};
+
+    private static class TestRules implements Verdict.Rules {
+        boolean filterUdp;
+        boolean allowUnknown;
+        boolean known;
+        Boolean allowed;
+
+        @Override
+        public boolean isFilterUdp() {
+            return filterUdp;
+        }
+
+        @Override
+        public boolean isAllowUnknown() {
+            return allowUnknown;
+        }
+
+        @Override
+        public int getSelfUid() {
+            return SELF_UID;
+        }
+
+        @Override
+        public boolean isKnown(int uid) {
+            return known;
+        }
+
+        @Override
+        public Boolean isAllowed(int uid) {
+            return allowed;
+        }
+
+        @Override
+        public IPFilters getIPFilters() {
+            // No address rule matches, see the filtered uids below
+            return null;
+        }
+    }
+
+    @Test
+    public void uidVerdictMatchesDecide() {
+        TestRules rules = new TestRules();
+        int cases = 0;
+        for (boolean filterUdp : new boolean[]{false, true})
+            for (boolean allowUnknown : new boolean[]{false, true})
+                for (boolean known : new boolean[]{false, true})
+                    for (Boolean allowed : ALLOWED)
+                        for (int uid : UIDS)
+                            for (boolean isFiltered : new boolean[]{false, true})
+                                for (int protocol : PROTOCOLS) {
+                                    rules.filterUdp = filterUdp;
+                                    rules.allowUnknown = allowUnknown;
+                                    rules.known = known;
+                                    rules.allowed = allowed;
+                                    Set<Integer> filtered = (isFiltered
+                                            ? Collections.singleton(uid)
+                                            : Collections.<Integer>emptySet());
+
+                                    int verdict = Verdict.getUidVerdict(rules, uid, protocol, filtered);
+                                    int outcome = Verdict.decide(rules, uid, 4, protocol, 443, "192.0.2.1");
+                                    String message = "filter_udp=" + filterUdp +
+                                            " allow_unknown=" + allowUnknown +
+                                            " known=" + known +
+                                            " allowed=" + allowed +
+                                            " uid=" + uid +
+                                            " filtered=" + isFiltered +
+                                            " protocol=" + protocol +
+                                            " verdict=" + verdict +
+                                            " outcome=" + Verdict.toString(outcome);
+
+                                    if (verdict == Verdict.VERDICT_CHECK) {
+                                        // decide reaches the address rules
+                                        assertTrue(message, isFiltered);
+                                        int rule = outcome & ~Verdict.EXPIRED;
+                                        assertTrue(message, rule == Verdict.RULE_ALLOWED ||
+                                                rule == Verdict.RULE_BLOCKED ||
+                                                rule == Verdict.NO_RULE);
+                                    } else
+                                        assertEquals(message,
+                                                Verdict.isAllowed(outcome) ? Verdict.VERDICT_ALLOW : Verdict.VERDICT_BLOCK,
+                                                verdict);
+                                    cases++;
+                                }
+        assertEquals(2 * 2 * 2 * ALLOWED.length * UIDS.length * 2 * PROTOCOLS.length, cases);
+    }
+}
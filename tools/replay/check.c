@@ -0,0 +1,127 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+// Checks of engine routines against straightforward implementations
+
+#include "replay.h"
+
+#define CHECK_LENGTH 2048
+#define CHECK_ROUNDS 64
+#define CHECK_SPEED_LENGTH 1500
+#define CHECK_SPEED_ROUNDS 1000000
+
+// Sum of 16 bit words, as calc_checksum was before summing 64 bit words
+static uint16_t reference_checksum(uint16_t start, const uint8_t *buffer, size_t length) {
+    uint32_t sum = start;
+    while (length > 1) {
+        uint16_t word;
+        memcpy(&word, buffer, sizeof(uint16_t));
+        sum += word;
+        buffer += sizeof(uint16_t);
+        length -= sizeof(uint16_t);
+    }
+    if (length > 0)
+        sum += *buffer;
+    while (sum >> 16)
+        sum = (sum & 0xFFFF) + (sum >> 16);
+    return (uint16_t) sum;
+}
+
+static void fill(uint8_t *buffer, size_t length, int pattern) {
+    for (size_t i = 0; i < length; i++)
+        buffer[i] = (uint8_t) (pattern == 0 ? 0 : pattern == 1 ? 0xFF : rand());
+}
+
+static int check_sum(uint8_t *data) {
+    int failed = 0;
+    long cases = 0;
+    for (int pattern = 0; pattern < 3; pattern++)
+        for (int round = 0; round < (pattern == 2 ? CHECK_ROUNDS : 1); round++)
+            for (size_t offset = 0; offset < 8; offset++)
+                for (size_t length = 0; length <= CHECK_LENGTH; length++) {
+                    uint16_t start = (uint16_t) (round == 0 ? 0 : rand());
+                    fill(data + offset, length, pattern);
+                    uint16_t expected = reference_checksum(start, data + offset, length);
+                    uint16_t actual = calc_checksum(start, data + offset, length);
+                    cases++;
+                    if (actual != expected && failed++ < 10)
+                        fprintf(stderr, "calc_checksum start %u offset %zu length %zu "
+                                        "%04x expected %04x\n",
+                                start, offset, length, actual, expected);
+                }
+    printf("calc_checksum %ld cases %d failed\n", cases, failed);
+    return failed;
+}
+
+// Change a 16 bit field and compare the updated checksum with the recomputed one
+static int check_update(uint8_t *data) {
+    int failed = 0;
+    long cases = 0;
+    for (int round = 0; round < CHECK_ROUNDS * 1024; round++) {
+        size_t length = 4 + 2 * (size_t) (rand() % (CHECK_LENGTH / 2 - 2));
+        int pattern = (round % 16 == 0 ? 1 : 2);
+        fill(data, length, pattern);
+
+        uint16_t *check = (uint16_t *) data;
+        *check = 0;
+        *check = ~calc_checksum(0, data, length);
+
+        uint16_t *field = (uint16_t *) data + 1 + rand() % (length / 2 - 1);
+        uint16_t old = *field;
+        *field = (uint16_t) (round % 8 == 0 ? ~old : rand());
+        uint16_t updated = update_checksum(*check, old, *field);
+
+        *check = 0;
+        uint16_t expected = ~calc_checksum(0, data, length);
+        cases++;
+        // Both zeros are valid when all other data is zero, RFC 1624 section 3
+        int zero = ((updated == 0 || updated == 0xFFFF) &&
+                    (uint16_t) (updated ^ expected) == 0xFFFF);
+        if (updated != expected && !zero && failed++ < 10)
+            fprintf(stderr, "update_checksum length %zu %04x expected %04x\n",
+                    length, updated, expected);
+    }
+    printf("update_checksum %ld cases %d failed\n", cases, failed);
+    return failed;
+}
+
+static double get_mbs(uint16_t (*sum)(uint16_t, const uint8_t *, size_t), const uint8_t *data) {
+    struct timespec start, end;
+    volatile uint16_t result = 0;
+    clock_gettime(CLOCK_MONOTONIC, &start);
+    for (int i = 0; i < CHECK_SPEED_ROUNDS; i++)
+        result += sum((uint16_t) i, data, CHECK_SPEED_LENGTH);
+    clock_gettime(CLOCK_MONOTONIC, &end);
+    double s = (end.tv_sec - start.tv_sec) + (end.tv_nsec - start.tv_nsec) / 1e9;
+    return CHECK_SPEED_ROUNDS * (double) CHECK_SPEED_LENGTH / s / 1e6;
+}
+
+int check() {
+    uint8_t *data = malloc(CHECK_LENGTH + 8);
+    srand(1);
+
+    int failed = check_sum(data) + check_update(data);
+
+    fill(data, CHECK_SPEED_LENGTH, 2);
+    printf("checksum %d bytes reference %.0f MB/s calc_checksum %.0f MB/s\n",
+           CHECK_SPEED_LENGTH, get_mbs(reference_checksum, data), get_mbs(calc_checksum, data));
+
+    free(data);
+    return (failed ? 1 : 0);
+}
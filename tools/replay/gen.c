@@ -0,0 +1,231 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+// Scenario captures in the format of write_pcap_rec
+// The server side is only recorded for the SYN/ACK, which the replay uses to translate acks
+
+#include "replay.h"
+
+void put_pcap_hdr(FILE *out) {
+    struct pcap_hdr_s hdr;
+    hdr.magic_number = 0xa1b2c3d4;
+    hdr.version_major = 2;
+    hdr.version_minor = 4;
+    hdr.thiszone = 0;
+    hdr.sigfigs = 0;
+    hdr.snaplen = REPLAY_SNAPLEN;
+    hdr.network = LINKTYPE_RAW;
+    fwrite(&hdr, sizeof(hdr), 1, out);
+}
+
+void put_pcap_rec(FILE *out, const uint8_t *pkt, size_t len, long long us) {
+    struct pcaprec_hdr_s rec;
+    rec.ts_sec = (guint32_t) (us / 1000000);
+    rec.ts_usec = (guint32_t) (us % 1000000);
+    rec.incl_len = (guint32_t) len;
+    rec.orig_len = (guint32_t) len;
+    fwrite(&rec, sizeof(rec), 1, out);
+    fwrite(pkt, len, 1, out);
+}
+
+void set_ip4_checksums(uint8_t *pkt, size_t len) {
+    struct iphdr *ip4 = (struct iphdr *) pkt;
+    size_t hlen = ip4->ihl * 4;
+    ip4->check = 0;
+    ip4->check = ~calc_checksum(0, pkt, hlen);
+
+    struct ippseudo pseudo;
+    memset(&pseudo, 0, sizeof(struct ippseudo));
+    pseudo.ippseudo_src.s_addr = ip4->saddr;
+    pseudo.ippseudo_dst.s_addr = ip4->daddr;
+    pseudo.ippseudo_p = ip4->protocol;
+    pseudo.ippseudo_len = htons(len - hlen);
+
+    uint16_t *check;
+    if (ip4->protocol == IPPROTO_TCP)
+        check = &((struct tcphdr *) (pkt + hlen))->check;
+    else if (ip4->protocol == IPPROTO_UDP)
+        check = &((struct udphdr *) (pkt + hlen))->check;
+    else
+        return;
+
+    *check = 0;
+    uint16_t csum = calc_checksum(0, (uint8_t *) &pseudo, sizeof(struct ippseudo));
+    *check = ~calc_checksum(csum, pkt + hlen, len - hlen);
+}
+
+static long long now_us = 0;
+static uint16_t ip_id = 0;
+
+static size_t put_ip4(uint8_t *pkt, uint8_t protocol, const char *saddr, const char *daddr,
+                      size_t payload) {
+    struct iphdr *ip4 = (struct iphdr *) pkt;
+    memset(ip4, 0, sizeof(struct iphdr));
+    ip4->version = 4;
+    ip4->ihl = sizeof(struct iphdr) >> 2;
+    ip4->tot_len = htons(sizeof(struct iphdr) + payload);
+    ip4->id = htons(ip_id++);
+    ip4->ttl = 64;
+    ip4->protocol = protocol;
+    inet_pton(AF_INET, saddr, &ip4->saddr);
+    inet_pton(AF_INET, daddr, &ip4->daddr);
+    return sizeof(struct iphdr) + payload;
+}
+
+static void put_tcp(FILE *out, int server, uint16_t cport,
+                    uint32_t seq, uint32_t ack, int syn, int fin, int psh,
+                    const char *data) {
+    uint8_t pkt[256];
+    size_t datalen = (data == NULL ? 0 : strlen(data));
+    size_t optlen = (syn ? 8 : 0);
+    size_t len = put_ip4(pkt, IPPROTO_TCP,
+                         server ? "127.0.0.1" : REPLAY_CLIENT4,
+                         server ? REPLAY_CLIENT4 : "127.0.0.1",
+                         sizeof(struct tcphdr) + optlen + datalen);
+
+    struct tcphdr *tcp = (struct tcphdr *) (pkt + sizeof(struct iphdr));
+    memset(tcp, 0, sizeof(struct tcphdr));
+    tcp->source = htons(server ? REPLAY_TCP_PORT : cport);
+    tcp->dest = htons(server ? cport : REPLAY_TCP_PORT);
+    tcp->seq = htonl(seq);
+    tcp->ack_seq = htonl(ack);
+    tcp->doff = (sizeof(struct tcphdr) + optlen) >> 2;
+    tcp->syn = (syn != 0);
+    tcp->ack = (!syn || server);
+    tcp->fin = (fin != 0);
+    tcp->psh = (psh != 0);
+    tcp->window = htons(65535);
+
+    uint8_t *options = pkt + sizeof(struct iphdr) + sizeof(struct tcphdr);
+    if (syn) {
+        options[0] = 2; // MSS
+        options[1] = 4;
+        *((uint16_t *) (options + 2)) = htons(REPLAY_MSS);
+        options[4] = 1; // NOP
+        options[5] = 3; // window scale
+        options[6] = 3;
+        options[7] = REPLAY_WSCALE;
+    }
+    if (datalen)
+        memcpy(options + optlen, data, datalen);
+
+    set_ip4_checksums(pkt, len);
+    put_pcap_rec(out, pkt, len, now_us++);
+}
+
+// Download size bytes: handshake, request, an ack every REPLAY_ACK_EVERY bytes and close
+static void put_download(FILE *out, uint16_t cport, long size) {
+    uint32_t c = 1000000 + cport * 1000;
+    uint32_t s = 0;
+    char request[32];
+    sprintf(request, "GET %ld\n", size);
+
+    put_tcp(out, 0, cport, c, 0, 1, 0, 0, NULL);
+    put_tcp(out, 1, cport, s, c + 1, 1, 0, 0, NULL);
+    put_tcp(out, 0, cport, c + 1, s + 1, 0, 0, 0, NULL);
+    put_tcp(out, 0, cport, c + 1, s + 1, 0, 0, 1, request);
+    c += 1 + strlen(request);
+
+    for (long acked = REPLAY_ACK_EVERY; acked < size; acked += REPLAY_ACK_EVERY)
+        put_tcp(out, 0, cport, c, s + 1 + acked, 0, 0, 0, NULL);
+
+    // Acknowledge the data and the FIN of the server
+    put_tcp(out, 0, cport, c, s + 1 + size + 1, 0, 1, 0, NULL);
+}
+
+static void put_dns_query(FILE *out, uint16_t id, uint16_t sport, const char *name) {
+    uint8_t pkt[512];
+    uint8_t *dns = pkt + sizeof(struct iphdr) + sizeof(struct udphdr);
+
+    struct dns_header *h = (struct dns_header *) dns;
+    memset(h, 0, sizeof(struct dns_header));
+    h->id = htons(id);
+    h->rd = 1;
+    h->q_count = htons(1);
+
+    size_t off = sizeof(struct dns_header);
+    const char *label = name;
+    while (*label) {
+        const char *dot = strchr(label, '.');
+        size_t llen = (dot == NULL ? strlen(label) : dot - label);
+        dns[off++] = (uint8_t) llen;
+        memcpy(dns + off, label, llen);
+        off += llen;
+        label += llen + (dot == NULL ? 0 : 1);
+    }
+    dns[off++] = 0;
+    *((uint16_t *) (dns + off)) = htons(DNS_QTYPE_A);
+    *((uint16_t *) (dns + off + 2)) = htons(DNS_QCLASS_IN);
+    off += 4;
+
+    size_t len = put_ip4(pkt, IPPROTO_UDP, REPLAY_CLIENT4, "127.0.0.1",
+                         sizeof(struct udphdr) + off);
+    struct udphdr *udp = (struct udphdr *) (pkt + sizeof(struct iphdr));
+    udp->source = htons(sport);
+    udp->dest = htons(REPLAY_DNS_PORT);
+    udp->len = htons(sizeof(struct udphdr) + off);
+
+    set_ip4_checksums(pkt, len);
+    put_pcap_rec(out, pkt, len, now_us++);
+}
+
+int generate(const char *scenario, int count, long size, int unique, FILE *out) {
+    put_pcap_hdr(out);
+
+    if (!strcmp(scenario, "bulk")) {
+        // Bulk TCP download, size defaults to 64 MiB
+        for (int i = 0; i < (count ? count : 1); i++)
+            put_download(out, (uint16_t) (40000 + i), size ? size : 64L * 1024 * 1024);
+
+    } else if (!strcmp(scenario, "flows")) {
+        // Many short TCP flows
+        for (int i = 0; i < (count ? count : 1000); i++)
+            put_download(out, (uint16_t) (20000 + i % 20000), size ? size : 1000);
+
+    } else if (!strcmp(scenario, "idle")) {
+        // Short TCP flows next to idle connections, which are left open
+        // The engine allows SESSION_MAX sessions, which is 409
+        int n = (count ? count : 300);
+        for (int i = 0; i < n; i++) {
+            uint16_t cport = (uint16_t) (1024 + i % 18976);
+            uint32_t c = 1000000 + cport * 1000;
+            put_tcp(out, 0, cport, c, 0, 1, 0, 0, NULL);
+            put_tcp(out, 1, cport, 0, c + 1, 1, 0, 0, NULL);
+            put_tcp(out, 0, cport, c + 1, 1, 0, 0, 0, NULL);
+        }
+        for (int i = 0; i < 1000; i++)
+            put_download(out, (uint16_t) (20000 + i), size ? size : 1000);
+
+    } else if (!strcmp(scenario, "dns")) {
+        // DNS storm, unique names defaults to the number of queries, so nothing is cached
+        int n = (count ? count : 10000);
+        int u = (unique ? unique : n);
+        for (int i = 0; i < n; i++) {
+            char name[64];
+            sprintf(name, "host%d.replay.test", i % u);
+            put_dns_query(out, (uint16_t) i, (uint16_t) (1024 + i % 64000), name);
+        }
+
+    } else {
+        fprintf(stderr, "Unknown scenario %s\n", scenario);
+        return -1;
+    }
+
+    return 0;
+}
@@ -0,0 +1,25 @@
+// Definitions provided by the Android NDK (bionic) but not by glibc
+// Included before every source file of the host build
+
+#define _GNU_SOURCE
+
+#include <stdint.h>
+#include <signal.h>
+#include <sys/time.h>
+#include <netinet/in.h>
+#include <linux/types.h>
+#include <linux/sockios.h>
+
+#define __packed __attribute__((packed))
+
+#define IPV6_MAXPACKET 65535
+#define IPV6_VERSION 0x60
+#define IPV6_VERSION_MASK 0xf0
+
+struct ippseudo {
+    struct in_addr ippseudo_src;
+    struct in_addr ippseudo_dst;
+    uint8_t ippseudo_pad;
+    uint8_t ippseudo_p;
+    uint16_t ippseudo_len;
+};
@@ -0,0 +1,13 @@
+// Host replacement of the NDK logging header, see jni.c
+
+#include <stdarg.h>
+
+#define ANDROID_LOG_VERBOSE 2
+#define ANDROID_LOG_DEBUG 3
+#define ANDROID_LOG_INFO 4
+#define ANDROID_LOG_WARN 5
+#define ANDROID_LOG_ERROR 6
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...);
+
+int __android_log_vprint(int prio, const char *tag, const char *fmt, va_list ap);
@@ -0,0 +1 @@
+// Bionic only header, glibc declares everything in netinet/in.h
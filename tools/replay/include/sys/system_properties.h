@@ -0,0 +1,5 @@
+// Host replacement of the NDK system properties header, see jni.c
+
+#define PROP_VALUE_MAX 92
+
+int __system_property_get(const char *name, char *value);
@@ -0,0 +1,269 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+// Minimal JNI environment and Android runtime for running the engine on a desktop
+// Every address is allowed, no name is blocked and every packet belongs to REPLAY_UID,
+// so the numbers exclude the cost of the Java side of the upcalls
+
+#include "replay.h"
+
+int replay_verbose = 0;
+int replay_exited = 0;
+
+static int dummy;
+#define DUMMY ((void *) &dummy)
+
+// Method IDs are indexes into this list plus one
+static const char *methods[] = {
+        "logPacket", "dnsResolved", "isDomainBlocked", "getUidQ", "isAddressAllowed",
+        "accountUsage", "protect", "nativeExit", "nativeError", "<init>"
+};
+
+#define METHOD_COUNT (sizeof(methods) / sizeof(methods[0]))
+
+// Strings live in a ring, the engine deletes its local references right after use
+#define STRINGS 64
+static char *strings[STRINGS];
+static int string_next = 0;
+static pthread_mutex_t string_lock = PTHREAD_MUTEX_INITIALIZER;
+
+static const char *get_method(jmethodID mid) {
+    intptr_t m = (intptr_t) mid;
+    return (m > 0 && m <= METHOD_COUNT ? methods[m - 1] : "?");
+}
+
+static jclass GetObjectClass(JNIEnv *env, jobject obj) {
+    return DUMMY;
+}
+
+static jclass FindClass(JNIEnv *env, const char *name) {
+    return DUMMY;
+}
+
+static jmethodID GetMethodID(JNIEnv *env, jclass clazz, const char *name, const char *sig) {
+    for (int m = 0; m < METHOD_COUNT; m++)
+        if (!strcmp(methods[m], name))
+            return (jmethodID) (intptr_t) (m + 1);
+    fprintf(stderr, "Unknown method %s%s\n", name, sig);
+    return NULL;
+}
+
+static jfieldID GetFieldID(JNIEnv *env, jclass clazz, const char *name, const char *sig) {
+    return DUMMY;
+}
+
+static jfieldID GetStaticFieldID(JNIEnv *env, jclass clazz, const char *name, const char *sig) {
+    return DUMMY;
+}
+
+static void CallVoidMethod(JNIEnv *env, jobject obj, jmethodID mid, ...) {
+    const char *name = get_method(mid);
+    if (!strcmp(name, "nativeExit") || !strcmp(name, "nativeError")) {
+        va_list ap;
+        va_start(ap, mid);
+        if (!strcmp(name, "nativeError"))
+            va_arg(ap, jint);
+        const char *reason = (const char *) va_arg(ap, jstring);
+        va_end(ap);
+        fprintf(stderr, "%s: %s\n", name, reason);
+        if (!strcmp(name, "nativeExit"))
+            replay_exited = 1;
+    }
+}
+
+static jboolean CallBooleanMethod(JNIEnv *env, jobject obj, jmethodID mid, ...) {
+    // protect succeeds, nothing is blocked
+    return (jboolean) !strcmp(get_method(mid), "protect");
+}
+
+static jint CallIntMethod(JNIEnv *env, jobject obj, jmethodID mid, ...) {
+    return REPLAY_UID; // getUidQ
+}
+
+static jobject CallObjectMethod(JNIEnv *env, jobject obj, jmethodID mid, ...) {
+    return DUMMY; // isAddressAllowed
+}
+
+static jobject NewObject(JNIEnv *env, jclass clazz, jmethodID mid, ...) {
+    return DUMMY;
+}
+
+static jobject NewGlobalRef(JNIEnv *env, jobject obj) {
+    return obj;
+}
+
+static void DeleteRef(JNIEnv *env, jobject obj) {
+}
+
+static jthrowable ExceptionOccurred(JNIEnv *env) {
+    return NULL;
+}
+
+static void ExceptionVoid(JNIEnv *env) {
+}
+
+static jstring NewStringUTF(JNIEnv *env, const char *utf) {
+    char *copy = strdup(utf);
+    pthread_mutex_lock(&string_lock);
+    free(strings[string_next]);
+    strings[string_next] = copy;
+    string_next = (string_next + 1) % STRINGS;
+    pthread_mutex_unlock(&string_lock);
+    return (jstring) copy;
+}
+
+static const char *GetStringUTFChars(JNIEnv *env, jstring str, jboolean *isCopy) {
+    return (const char *) str;
+}
+
+static void ReleaseStringUTFChars(JNIEnv *env, jstring str, const char *chars) {
+}
+
+// The engine only passes arrays to Java, except for the reload and metrics calls,
+// which the harness does not use
+static jbyteArray NewByteArray(JNIEnv *env, jsize len) {
+    return DUMMY;
+}
+
+static jlongArray NewLongArray(JNIEnv *env, jsize len) {
+    return DUMMY;
+}
+
+static void SetByteArrayRegion(JNIEnv *env, jbyteArray array, jsize start, jsize len,
+                               const jbyte *buf) {
+}
+
+static void SetLongArrayRegion(JNIEnv *env, jlongArray array, jsize start, jsize len,
+                               const jlong *buf) {
+}
+
+static jsize GetArrayLength(JNIEnv *env, jarray array) {
+    return 0;
+}
+
+static jint *GetIntArrayElements(JNIEnv *env, jintArray array, jboolean *isCopy) {
+    return NULL;
+}
+
+static void ReleaseIntArrayElements(JNIEnv *env, jintArray array, jint *elems, jint mode) {
+}
+
+static jlong *GetLongArrayElements(JNIEnv *env, jlongArray array, jboolean *isCopy) {
+    return NULL;
+}
+
+static void ReleaseLongArrayElements(JNIEnv *env, jlongArray array, jlong *elems, jint mode) {
+}
+
+static jobject GetObjectField(JNIEnv *env, jobject obj, jfieldID fid) {
+    return NULL; // no redirection
+}
+
+static jint GetIntField(JNIEnv *env, jobject obj, jfieldID fid) {
+    return 0;
+}
+
+static jint GetStaticIntField(JNIEnv *env, jclass clazz, jfieldID fid) {
+    return 0;
+}
+
+static void SetObjectField(JNIEnv *env, jobject obj, jfieldID fid, jobject val) {
+}
+
+static void SetBooleanField(JNIEnv *env, jobject obj, jfieldID fid, jboolean val) {
+}
+
+static void SetIntField(JNIEnv *env, jobject obj, jfieldID fid, jint val) {
+}
+
+static void SetLongField(JNIEnv *env, jobject obj, jfieldID fid, jlong val) {
+}
+
+static struct JNINativeInterface_ functions;
+static JNIEnv env_instance;
+
+JNIEnv *get_replay_env() {
+    if (env_instance == NULL) {
+        functions.GetObjectClass = GetObjectClass;
+        functions.FindClass = FindClass;
+        functions.GetMethodID = GetMethodID;
+        functions.GetFieldID = GetFieldID;
+        functions.GetStaticFieldID = GetStaticFieldID;
+        functions.CallVoidMethod = CallVoidMethod;
+        functions.CallBooleanMethod = CallBooleanMethod;
+        functions.CallIntMethod = CallIntMethod;
+        functions.CallObjectMethod = CallObjectMethod;
+        functions.NewObject = NewObject;
+        functions.NewGlobalRef = NewGlobalRef;
+        functions.DeleteGlobalRef = DeleteRef;
+        functions.DeleteLocalRef = DeleteRef;
+        functions.ExceptionOccurred = ExceptionOccurred;
+        functions.ExceptionDescribe = ExceptionVoid;
+        functions.ExceptionClear = ExceptionVoid;
+        functions.NewStringUTF = NewStringUTF;
+        functions.GetStringUTFChars = GetStringUTFChars;
+        functions.ReleaseStringUTFChars = ReleaseStringUTFChars;
+        functions.NewByteArray = NewByteArray;
+        functions.NewLongArray = NewLongArray;
+        functions.SetByteArrayRegion = SetByteArrayRegion;
+        functions.SetLongArrayRegion = SetLongArrayRegion;
+        functions.GetArrayLength = GetArrayLength;
+        functions.GetIntArrayElements = GetIntArrayElements;
+        functions.ReleaseIntArrayElements = ReleaseIntArrayElements;
+        functions.GetLongArrayElements = GetLongArrayElements;
+        functions.ReleaseLongArrayElements = ReleaseLongArrayElements;
+        functions.GetObjectField = GetObjectField;
+        functions.GetIntField = GetIntField;
+        functions.GetStaticIntField = GetStaticIntField;
+        functions.SetObjectField = SetObjectField;
+        functions.SetBooleanField = SetBooleanField;
+        functions.SetIntField = SetIntField;
+        functions.SetLongField = SetLongField;
+        env_instance = &functions;
+    }
+    return &env_instance;
+}
+
+jobject get_replay_instance() {
+    return DUMMY;
+}
+
+// Android runtime
+
+int __android_log_vprint(int prio, const char *tag, const char *fmt, va_list ap) {
+    if (!replay_verbose)
+        return 0;
+    fprintf(stderr, "%d %s: ", prio, tag);
+    int len = vfprintf(stderr, fmt, ap);
+    fputc('\n', stderr);
+    return len;
+}
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...) {
+    va_list ap;
+    va_start(ap, fmt);
+    int len = __android_log_vprint(prio, tag, fmt, ap);
+    va_end(ap);
+    return len;
+}
+
+int __system_property_get(const char *name, char *value) {
+    *value = 0;
+    return 0;
+}
@@ -0,0 +1,815 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+// Replays the device side of a capture into the engine through a socket pair standing in for tun
+// Upstream connections go to servers on the loopback interface:
+//   TCP: "GET <n>\n" is answered with n bytes and a FIN, anything else is echoed
+//   UDP: port 53 answers A and AAAA questions, other ports echo
+// TCP acks of the capture are translated to the sequence numbers of the engine
+// and are held back until the engine sent the acknowledged data
+
+#include "replay.h"
+
+JNIEXPORT jlong JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1init(JNIEnv *env, jobject instance, jint sdk);
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1start(
+        JNIEnv *env, jobject instance, jlong context, jint loglevel_);
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1run(
+        JNIEnv *env, jobject instance, jlong context, jint tun, jboolean fwd53, jint rcode);
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1stop(JNIEnv *env, jobject instance, jlong context);
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(JNIEnv *env, jobject instance, jlong context);
+
+extern struct metrics metrics;
+
+#define FLOWS 65536 // power of two
+#define QUIET_MS 500 // end of the replay without engine output
+
+struct flow {
+    int used;
+    uint8_t version;
+    uint8_t protocol;
+    uint8_t caddr[16];
+    uint8_t saddr[16];
+    uint16_t cport;
+    uint16_t sport;
+    int orig_known; // server ISN in the capture
+    uint32_t orig_isn;
+    int isn_known; // server ISN of the engine
+    uint32_t isn;
+    uint32_t next; // end of the data the engine sent
+    long long sent_us; // pending request for the latency
+};
+
+struct info {
+    uint8_t version;
+    uint8_t protocol;
+    uint8_t *saddr;
+    uint8_t *daddr;
+    uint8_t *l4;
+    size_t l4len;
+    uint16_t sport;
+    uint16_t dport;
+};
+
+static struct flow *flows;
+static pthread_mutex_t flow_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t flow_cond;
+
+static uint8_t client[16];
+static int client_version = 0;
+
+static long long *latency = NULL;
+static size_t latency_count = 0;
+static size_t latency_size = 0;
+
+static uint64_t rx_packets = 0;
+static uint64_t rx_bytes = 0;
+static long long rx_last_us = 0;
+static int reading = 1;
+
+static int parse_packet(uint8_t *pkt, size_t len, struct info *pi) {
+    memset(pi, 0, sizeof(struct info));
+    if (len < 1)
+        return -1;
+
+    pi->version = (uint8_t) (*pkt >> 4);
+    size_t hlen;
+    if (pi->version == 4) {
+        struct iphdr *ip4 = (struct iphdr *) pkt;
+        hlen = ip4->ihl * 4;
+        if (len < sizeof(struct iphdr) || len < hlen)
+            return -1;
+        pi->protocol = ip4->protocol;
+        pi->saddr = (uint8_t *) &ip4->saddr;
+        pi->daddr = (uint8_t *) &ip4->daddr;
+    } else if (pi->version == 6) {
+        struct ip6_hdr *ip6 = (struct ip6_hdr *) pkt;
+        hlen = sizeof(struct ip6_hdr);
+        if (len < hlen)
+            return -1;
+        pi->protocol = ip6->ip6_nxt;
+        pi->saddr = (uint8_t *) &ip6->ip6_src;
+        pi->daddr = (uint8_t *) &ip6->ip6_dst;
+    } else
+        return -1;
+
+    pi->l4 = pkt + hlen;
+    pi->l4len = len - hlen;
+    if (pi->protocol == IPPROTO_TCP && pi->l4len >= sizeof(struct tcphdr)) {
+        struct tcphdr *tcp = (struct tcphdr *) pi->l4;
+        pi->sport = ntohs(tcp->source);
+        pi->dport = ntohs(tcp->dest);
+    } else if (pi->protocol == IPPROTO_UDP && pi->l4len >= sizeof(struct udphdr)) {
+        struct udphdr *udp = (struct udphdr *) pi->l4;
+        pi->sport = ntohs(udp->source);
+        pi->dport = ntohs(udp->dest);
+    } else if (pi->protocol == IPPROTO_TCP || pi->protocol == IPPROTO_UDP)
+        return -1;
+
+    return 0;
+}
+
+static int is_client(const struct info *pi, const uint8_t *addr) {
+    return (pi->version == client_version &&
+            !memcmp(addr, client, pi->version == 4 ? 4 : 16));
+}
+
+// Caller holds flow_lock
+static struct flow *get_flow(uint8_t version, uint8_t protocol,
+                             const uint8_t *caddr, uint16_t cport,
+                             const uint8_t *saddr, uint16_t sport, int create) {
+    size_t alen = (version == 4 ? 4 : 16);
+    uint32_t h = 2166136261u;
+    h = (h ^ protocol) * 16777619u;
+    h = (h ^ cport) * 16777619u;
+    h = (h ^ sport) * 16777619u;
+    for (size_t i = 0; i < alen; i++)
+        h = (h ^ saddr[i]) * 16777619u;
+
+    for (uint32_t i = 0; i < FLOWS; i++) {
+        struct flow *f = &flows[(h + i) & (FLOWS - 1)];
+        if (!f->used) {
+            if (!create)
+                return NULL;
+            f->used = 1;
+            f->version = version;
+            f->protocol = protocol;
+            memcpy(f->caddr, caddr, alen);
+            memcpy(f->saddr, saddr, alen);
+            f->cport = cport;
+            f->sport = sport;
+            return f;
+        }
+        if (f->version == version && f->protocol == protocol &&
+            f->cport == cport && f->sport == sport &&
+            !memcmp(f->caddr, caddr, alen) && !memcmp(f->saddr, saddr, alen))
+            return f;
+    }
+
+    fprintf(stderr, "Flow table full\n");
+    exit(1);
+}
+
+// Caller holds flow_lock
+static void add_latency(long long us) {
+    if (latency_count >= latency_size) {
+        latency_size = (latency_size ? latency_size * 2 : 4096);
+        latency = realloc(latency, latency_size * sizeof(long long));
+    }
+    latency[latency_count++] = us;
+}
+
+static int wait_flow(struct flow *f, int *known, uint32_t *reached, uint32_t ack, int timeout) {
+    struct timespec deadline;
+    clock_gettime(CLOCK_MONOTONIC, &deadline);
+    deadline.tv_sec += timeout / 1000;
+    deadline.tv_nsec += (timeout % 1000) * 1000000L;
+    if (deadline.tv_nsec >= 1000000000L) {
+        deadline.tv_sec++;
+        deadline.tv_nsec -= 1000000000L;
+    }
+
+    while (known ? !*known : compare_u32(*reached, ack) < 0)
+        if (pthread_cond_timedwait(&flow_cond, &flow_lock, &deadline) == ETIMEDOUT)
+            return -1;
+    return 0;
+}
+
+static void *read_tun(void *arg) {
+    int fd = *((int *) arg);
+    uint8_t buffer[65536];
+
+    while (reading) {
+        struct pollfd pfd = {fd, POLLIN, 0};
+        if (poll(&pfd, 1, 100) <= 0)
+            continue;
+
+        ssize_t len = recv(fd, buffer, sizeof(buffer), 0);
+        if (len <= 0)
+            break;
+
+        struct info pi;
+        if (parse_packet(buffer, (size_t) len, &pi))
+            continue;
+
+        long long now = get_us();
+
+        pthread_mutex_lock(&flow_lock);
+        rx_packets++;
+        rx_bytes += len;
+        rx_last_us = now;
+
+        struct flow *f = get_flow(pi.version, pi.protocol,
+                                  pi.daddr, pi.dport, pi.saddr, pi.sport, 0);
+        if (f != NULL) {
+            if (pi.protocol == IPPROTO_TCP) {
+                struct tcphdr *tcp = (struct tcphdr *) pi.l4;
+                uint32_t seq = ntohl(tcp->seq);
+                uint32_t end = seq + (uint32_t) (pi.l4len - tcp->doff * 4) + tcp->syn + tcp->fin;
+                if (tcp->syn) {
+                    f->isn = seq;
+                    f->isn_known = 1;
+                    f->next = end;
+                } else if (f->isn_known && compare_u32(end, f->next) > 0)
+                    f->next = end;
+            }
+            if (f->sent_us) {
+                add_latency(now - f->sent_us);
+                f->sent_us = 0;
+            }
+        }
+
+        pthread_cond_broadcast(&flow_cond);
+        pthread_mutex_unlock(&flow_lock);
+    }
+
+    return NULL;
+}
+
+// Servers
+
+static int open_server(int family, int type, uint16_t port) {
+    int s = socket(family, type, 0);
+    int on = 1;
+    setsockopt(s, SOL_SOCKET, SO_REUSEADDR, &on, sizeof(on));
+    if (family == AF_INET6)
+        setsockopt(s, IPPROTO_IPV6, IPV6_V6ONLY, &on, sizeof(on));
+
+    struct sockaddr_storage ss;
+    memset(&ss, 0, sizeof(ss));
+    socklen_t sslen;
+    if (family == AF_INET) {
+        struct sockaddr_in *a = (struct sockaddr_in *) &ss;
+        a->sin_family = AF_INET;
+        a->sin_port = htons(port);
+        a->sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+        sslen = sizeof(struct sockaddr_in);
+    } else {
+        struct sockaddr_in6 *a = (struct sockaddr_in6 *) &ss;
+        a->sin6_family = AF_INET6;
+        a->sin6_port = htons(port);
+        a->sin6_addr = in6addr_loopback;
+        sslen = sizeof(struct sockaddr_in6);
+    }
+
+    if (bind(s, (struct sockaddr *) &ss, sslen) ||
+        (type == SOCK_STREAM && listen(s, 1024))) {
+        fprintf(stderr, "Server %s/%u %s: %s\n",
+                family == AF_INET ? "127.0.0.1" : "::1", port,
+                type == SOCK_STREAM ? "tcp" : "udp", strerror(errno));
+        close(s);
+        return -1;
+    }
+
+    fcntl(s, F_SETFL, fcntl(s, F_GETFL, 0) | O_NONBLOCK);
+    return s;
+}
+
+struct connection {
+    int fd;
+    int listener; // 0 tcp connection, 1 tcp listener, 2 dns, 3 udp echo
+    char request[64];
+    size_t length;
+    long remaining;
+};
+
+static void answer_dns(int fd) {
+    uint8_t buffer[512];
+    struct sockaddr_storage from;
+    socklen_t fromlen = sizeof(from);
+    ssize_t len = recvfrom(fd, buffer, sizeof(buffer) - 32, 0, (struct sockaddr *) &from, &fromlen);
+    if (len < (ssize_t) sizeof(struct dns_header))
+        return;
+
+    struct dns_header *h = (struct dns_header *) buffer;
+    uint8_t *q = buffer + sizeof(struct dns_header);
+    while (q < buffer + len && *q)
+        q += *q + 1;
+    if (q + 5 > buffer + len)
+        return;
+    uint16_t qtype = ntohs(*((uint16_t *) (q + 1)));
+    size_t off = q + 5 - buffer;
+
+    h->qr = 1;
+    h->ra = 1;
+    h->ans_count = 0;
+    h->auth_count = 0;
+    h->add_count = 0;
+    if (qtype == DNS_QTYPE_A || qtype == DNS_QTYPE_AAAA) {
+        uint16_t rdlength = (uint16_t) (qtype == DNS_QTYPE_A ? 4 : 16);
+        h->ans_count = htons(1);
+        buffer[off++] = 0xc0; // name at the question
+        buffer[off++] = sizeof(struct dns_header);
+        *((uint16_t *) (buffer + off)) = htons(qtype);
+        *((uint16_t *) (buffer + off + 2)) = htons(DNS_QCLASS_IN);
+        *((uint32_t *) (buffer + off + 4)) = htonl(300);
+        *((uint16_t *) (buffer + off + 8)) = htons(rdlength);
+        off += 10;
+        if (qtype == DNS_QTYPE_A)
+            *((uint32_t *) (buffer + off)) = htonl(INADDR_LOOPBACK);
+        else
+            memcpy(buffer + off, &in6addr_loopback, 16);
+        off += rdlength;
+    }
+
+    sendto(fd, buffer, off, 0, (struct sockaddr *) &from, fromlen);
+}
+
+static void *serve(void *arg) {
+    static uint8_t payload[65536];
+    int epoll_fd = epoll_create(1);
+
+    int ports[3] = {REPLAY_TCP_PORT, REPLAY_DNS_PORT, REPLAY_UDP_PORT};
+    int types[3] = {SOCK_STREAM, SOCK_DGRAM, SOCK_DGRAM};
+    for (int i = 0; i < 3; i++)
+        for (int family = 0; family < 2; family++) {
+            int fd = open_server(family ? AF_INET6 : AF_INET, types[i], (uint16_t) ports[i]);
+            if (fd < 0)
+                continue;
+            struct connection *c = calloc(1, sizeof(struct connection));
+            c->fd = fd;
+            c->listener = i + 1;
+            struct epoll_event ev = {EPOLLIN, {.ptr = c}};
+            epoll_ctl(epoll_fd, EPOLL_CTL_ADD, fd, &ev);
+        }
+
+    struct epoll_event ev[64];
+    while (1) {
+        int ready = epoll_wait(epoll_fd, ev, 64, -1);
+        for (int i = 0; i < ready; i++) {
+            struct connection *c = ev[i].data.ptr;
+            if (c->listener == 1) {
+                int fd;
+                while ((fd = accept4(c->fd, NULL, NULL, SOCK_NONBLOCK)) >= 0) {
+                    struct connection *n = calloc(1, sizeof(struct connection));
+                    n->fd = fd;
+                    struct epoll_event nev = {EPOLLIN, {.ptr = n}};
+                    epoll_ctl(epoll_fd, EPOLL_CTL_ADD, fd, &nev);
+                }
+            } else if (c->listener == 2)
+                answer_dns(c->fd);
+            else if (c->listener == 3) {
+                struct sockaddr_storage from;
+                socklen_t fromlen = sizeof(from);
+                ssize_t len = recvfrom(c->fd, payload, sizeof(payload), 0,
+                                       (struct sockaddr *) &from, &fromlen);
+                if (len > 0)
+                    sendto(c->fd, payload, (size_t) len, 0, (struct sockaddr *) &from, fromlen);
+            } else {
+                if (ev[i].events & EPOLLIN) {
+                    uint8_t buffer[4096];
+                    ssize_t len = read(c->fd, buffer, sizeof(buffer));
+                    if (len == 0 || (len < 0 && errno != EAGAIN)) {
+                        close(c->fd);
+                        free(c);
+                        continue;
+                    }
+                    if (len > 0) {
+                        if (c->length < sizeof(c->request) - 1 && c->remaining == 0) {
+                            size_t n = (size_t) len;
+                            if (n > sizeof(c->request) - 1 - c->length)
+                                n = sizeof(c->request) - 1 - c->length;
+                            memcpy(c->request + c->length, buffer, n);
+                            c->length += n;
+                            c->request[c->length] = 0;
+                        }
+                        if (!strncmp(c->request, "GET ", 4) && strchr(c->request, '\n')) {
+                            if (c->remaining == 0 && c->length < sizeof(c->request)) {
+                                c->remaining = atol(c->request + 4);
+                                c->length = sizeof(c->request); // answered
+                                struct epoll_event mev = {EPOLLIN | EPOLLOUT, {.ptr = c}};
+                                epoll_ctl(epoll_fd, EPOLL_CTL_MOD, c->fd, &mev);
+                            }
+                        } else if (strncmp(c->request, "GET ", 4))
+                            write(c->fd, buffer, (size_t) len);
+                    }
+                }
+                if ((ev[i].events & EPOLLOUT) && c->remaining > 0) {
+                    size_t n = (c->remaining < sizeof(payload) ? (size_t) c->remaining : sizeof(payload));
+                    ssize_t sent = write(c->fd, payload, n);
+                    if (sent > 0)
+                        c->remaining -= sent;
+                    if (c->remaining == 0) {
+                        shutdown(c->fd, SHUT_WR);
+                        struct epoll_event mev = {EPOLLIN, {.ptr = c}};
+                        epoll_ctl(epoll_fd, EPOLL_CTL_MOD, c->fd, &mev);
+                    }
+                }
+            }
+        }
+    }
+
+    return NULL;
+}
+
+// Engine
+
+struct engine {
+    jlong context;
+    int tun;
+};
+
+static void *run_engine(void *arg) {
+    struct engine *e = (struct engine *) arg;
+    Java_eu_faircode_netguard_ServiceSinkhole_jni_1run(
+            get_replay_env(), get_replay_instance(), e->context, e->tun, 0, 3);
+    return NULL;
+}
+
+static long long get_cpu_us(pthread_t thread) {
+    clockid_t cid;
+    struct timespec ts;
+    if (pthread_getcpuclockid(thread, &cid) || clock_gettime(cid, &ts))
+        return 0;
+    return ts.tv_sec * 1000000LL + ts.tv_nsec / 1000;
+}
+
+static void rewrite(uint8_t *pkt, size_t len, struct info *pi, int from_client) {
+    uint8_t *addr = (from_client ? pi->daddr : pi->saddr);
+    if (pi->version == 4)
+        *((uint32_t *) addr) = htonl(INADDR_LOOPBACK);
+    else
+        memcpy(addr, &in6addr_loopback, 16);
+
+    uint16_t port = 0;
+    if (pi->protocol == IPPROTO_TCP)
+        port = REPLAY_TCP_PORT;
+    else if (pi->protocol == IPPROTO_UDP)
+        port = (uint16_t) ((from_client ? pi->dport : pi->sport) == 53 ? 53 : REPLAY_UDP_PORT);
+
+    if (port) {
+        uint16_t *p = (uint16_t *) (pi->l4 + (from_client ? 2 : 0));
+        *p = htons(port);
+        if (from_client)
+            pi->dport = port;
+        else
+            pi->sport = port;
+    }
+
+    if (pi->version == 4)
+        set_ip4_checksums(pkt, len);
+}
+
+static int compare_latency(const void *a, const void *b) {
+    long long la = *((const long long *) a);
+    long long lb = *((const long long *) b);
+    return (la < lb ? -1 : (la > lb ? 1 : 0));
+}
+
+static long long get_percentile(float fraction) {
+    if (latency_count == 0)
+        return 0;
+    size_t i = (size_t) (latency_count * fraction);
+    return latency[i < latency_count ? i : latency_count - 1];
+}
+
+static void usage() {
+    fprintf(stderr,
+            "Usage:\n"
+            "  replay gen bulk|flows|dns|idle [-n count] [-s size] [-u unique] > file.pcap\n"
+            "  replay run [-c client] [-r] [-t timeout ms] [-l loglevel] [-k sdk] [-v] file.pcap\n"
+            "  replay check\n");
+    exit(2);
+}
+
+static int replay(int argc, char *argv[]) {
+    const char *caddr = NULL;
+    int rewriting = 0;
+    int timeout = 2000;
+    int level = ANDROID_LOG_WARN;
+    int sdk = REPLAY_SDK;
+
+    int opt;
+    while ((opt = getopt(argc, argv, "c:rt:l:k:v")) != -1)
+        switch (opt) {
+            case 'c':
+                caddr = optarg;
+                break;
+            case 'r':
+                rewriting = 1;
+                break;
+            case 't':
+                timeout = atoi(optarg);
+                break;
+            case 'l':
+                level = atoi(optarg);
+                break;
+            case 'k':
+                sdk = atoi(optarg);
+                break;
+            case 'v':
+                replay_verbose = 1;
+                break;
+            default:
+                usage();
+        }
+    if (optind != argc - 1)
+        usage();
+
+    // Read capture
+    const char *name = argv[optind];
+    FILE *in = fopen(name, "r");
+    struct pcap_hdr_s hdr;
+    if (in == NULL || fread(&hdr, sizeof(hdr), 1, in) != 1 ||
+        hdr.magic_number != 0xa1b2c3d4 || hdr.network != LINKTYPE_RAW) {
+        fprintf(stderr, "%s: not a raw IP capture\n", name);
+        return 1;
+    }
+
+    if (caddr != NULL) {
+        client_version = (strchr(caddr, ':') ? 6 : 4);
+        if (inet_pton(client_version == 4 ? AF_INET : AF_INET6, caddr, client) != 1)
+            usage();
+    }
+
+    signal(SIGPIPE, SIG_IGN);
+    flows = calloc(FLOWS, sizeof(struct flow));
+
+    pthread_condattr_t attr;
+    pthread_condattr_init(&attr);
+    pthread_condattr_setclock(&attr, CLOCK_MONOTONIC);
+    pthread_cond_init(&flow_cond, &attr);
+
+    pthread_t server;
+    pthread_create(&server, NULL, serve, NULL);
+
+    int fds[2];
+    if (socketpair(AF_UNIX, SOCK_SEQPACKET, 0, fds)) {
+        perror("socketpair");
+        return 1;
+    }
+    int bufsize = 4 * 1024 * 1024;
+    for (int i = 0; i < 2; i++) {
+        setsockopt(fds[i], SOL_SOCKET, SO_SNDBUF, &bufsize, sizeof(bufsize));
+        setsockopt(fds[i], SOL_SOCKET, SO_RCVBUF, &bufsize, sizeof(bufsize));
+    }
+
+    JNIEnv *env = get_replay_env();
+    jobject instance = get_replay_instance();
+    struct engine e;
+    e.context = Java_eu_faircode_netguard_ServiceSinkhole_jni_1init(env, instance, sdk);
+    e.tun = fds[1];
+    Java_eu_faircode_netguard_ServiceSinkhole_jni_1start(env, instance, e.context, level);
+
+    pthread_t engine;
+    pthread_t reader;
+    pthread_create(&engine, NULL, run_engine, &e);
+    pthread_create(&reader, NULL, read_tun, &fds[0]);
+    usleep(100 * 1000); // servers and engine
+
+    struct metrics before = metrics;
+    long long cpu_before = get_cpu_us(engine);
+    uint64_t tx_packets = 0;
+    uint64_t tx_bytes = 0;
+    uint64_t skipped = 0;
+    uint64_t timeouts = 0;
+    long long start = get_us();
+
+    uint8_t *pkt = malloc(REPLAY_SNAPLEN + 1);
+    struct pcaprec_hdr_s rec;
+    while (!replay_exited && fread(&rec, sizeof(rec), 1, in) == 1) {
+        if (rec.incl_len > REPLAY_SNAPLEN || rec.orig_len > REPLAY_SNAPLEN ||
+            fread(pkt, rec.incl_len, 1, in) != 1)
+            break;
+
+        // Captures of the app are truncated to the record size, the payload is lost
+        size_t len = rec.orig_len;
+        if (rec.incl_len < len)
+            memset(pkt + rec.incl_len, 0, len - rec.incl_len);
+
+        struct info pi;
+        if (parse_packet(pkt, len, &pi)) {
+            skipped++;
+            continue;
+        }
+
+        if (client_version == 0) {
+            client_version = pi.version;
+            memcpy(client, pi.saddr, pi.version == 4 ? 4 : 16);
+        }
+
+        int from_client = is_client(&pi, pi.saddr);
+        if (!from_client && !is_client(&pi, pi.daddr)) {
+            skipped++;
+            continue;
+        }
+        if (rewriting)
+            rewrite(pkt, len, &pi, from_client);
+
+        pthread_mutex_lock(&flow_lock);
+        struct flow *f = (from_client
+                          ? get_flow(pi.version, pi.protocol, pi.saddr, pi.sport, pi.daddr, pi.dport, 1)
+                          : get_flow(pi.version, pi.protocol, pi.daddr, pi.dport, pi.saddr, pi.sport, 1));
+
+        if (!from_client) {
+            // Only used to translate the acks of the client
+            if (pi.protocol == IPPROTO_TCP) {
+                struct tcphdr *tcp = (struct tcphdr *) pi.l4;
+                if (tcp->syn && tcp->ack) {
+                    f->orig_isn = ntohl(tcp->seq);
+                    f->orig_known = 1;
+                }
+            }
+            pthread_mutex_unlock(&flow_lock);
+            continue;
+        }
+
+        int syn = 0;
+        if (pi.protocol == IPPROTO_TCP) {
+            struct tcphdr *tcp = (struct tcphdr *) pi.l4;
+            if (tcp->syn && !tcp->ack) {
+                syn = 1;
+                f->orig_known = 0;
+                f->isn_known = 0;
+                f->sent_us = get_us();
+            } else if (tcp->ack && f->orig_known) {
+                if (wait_flow(f, &f->isn_known, NULL, 0, timeout))
+                    timeouts++;
+                else {
+                    uint32_t ack = ntohl(tcp->ack_seq) - f->orig_isn + f->isn;
+                    if (wait_flow(f, NULL, &f->next, ack, timeout)) {
+                        timeouts++;
+                        ack = f->next;
+                    }
+                    tcp->ack_seq = htonl(ack);
+                    if (pi.version == 4)
+                        set_ip4_checksums(pkt, len);
+                }
+            }
+        } else if (!f->sent_us)
+            f->sent_us = get_us();
+        pthread_mutex_unlock(&flow_lock);
+
+        if (send(fds[0], pkt, len, 0) < 0) {
+            perror("send");
+            break;
+        }
+        tx_packets++;
+        tx_bytes += len;
+
+        // Wait for the SYN/ACK, so that the ack of the handshake can be translated
+        if (syn) {
+            pthread_mutex_lock(&flow_lock);
+            if (wait_flow(f, &f->isn_known, NULL, 0, timeout))
+                timeouts++;
+            pthread_mutex_unlock(&flow_lock);
+        }
+    }
+    fclose(in);
+    free(pkt);
+
+    // Wait until the engine is quiet
+    long long end;
+    while (1) {
+        usleep(QUIET_MS * 1000 / 10);
+        pthread_mutex_lock(&flow_lock);
+        end = (rx_last_us > 0 ? rx_last_us : get_us());
+        pthread_mutex_unlock(&flow_lock);
+        if (get_us() - end > QUIET_MS * 1000LL)
+            break;
+    }
+    if (end < start)
+        end = get_us();
+    struct metrics after = metrics;
+    long long cpu = get_cpu_us(engine) - cpu_before;
+
+    Java_eu_faircode_netguard_ServiceSinkhole_jni_1stop(env, instance, e.context);
+    pthread_join(engine, NULL);
+    reading = 0;
+    pthread_join(reader, NULL);
+    Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(env, instance, e.context);
+
+    // Report
+    double seconds = (end - start) / 1e6;
+    uint64_t in_packets = after.tun_in_packets - before.tun_in_packets;
+    uint64_t out_packets = after.tun_out_packets - before.tun_out_packets;
+    uint64_t in_bytes = after.tun_in_bytes - before.tun_in_bytes;
+    uint64_t out_bytes = after.tun_out_bytes - before.tun_out_bytes;
+    uint64_t packets = in_packets + out_packets;
+    uint64_t allocs = after.allocs - before.allocs;
+    long long balance = (long long) (metrics.allocs - metrics.frees);
+
+    qsort(latency, latency_count, sizeof(long long), compare_latency);
+
+    printf("capture %s replayed %llu packets %llu bytes skipped %llu timeouts %llu\n",
+           name, (unsigned long long) tx_packets, (unsigned long long) tx_bytes,
+           (unsigned long long) skipped, (unsigned long long) timeouts);
+    printf("tun in %llu packets %llu bytes out %llu packets %llu bytes received %llu\n",
+           (unsigned long long) in_packets, (unsigned long long) in_bytes,
+           (unsigned long long) out_packets, (unsigned long long) out_bytes,
+           (unsigned long long) rx_packets);
+    printf("elapsed %.3f s %.0f packets/s %.2f MB/s\n",
+           seconds, packets / seconds, (in_bytes + out_bytes) / seconds / 1e6);
+    printf("engine cpu %.3f s %.2f us/packet\n",
+           cpu / 1e6, packets ? cpu / (double) packets : 0);
+
+    uint64_t wakeups = after.epoll_wakeups - before.epoll_wakeups;
+    uint64_t events = after.epoll_events - before.epoll_events;
+    printf("epoll %llu wakeups %llu events %.2f/wakeup\n",
+           (unsigned long long) wakeups, (unsigned long long) events,
+           wakeups ? events / (double) wakeups : 0);
+
+    static const char *handlers[HANDLER_COUNT] = {"tun", "icmp", "udp", "tcp", "sessions"};
+    printf("handlers");
+    for (int h = 0; h < HANDLER_COUNT; h++) {
+        uint64_t us = after.handler_us[h] - before.handler_us[h];
+        printf(" %s %.3f s", handlers[h], us / 1e6);
+    }
+    printf(" tun %.2f us/packet\n", in_packets ? (after.handler_us[HANDLER_TUN] -
+                                                  before.handler_us[HANDLER_TUN]) /
+                                                 (double) in_packets : 0);
+
+    printf("latency %zu samples p50 %lld p90 %lld p99 %lld max %lld us\n",
+           latency_count, get_percentile(0.5f), get_percentile(0.9f), get_percentile(0.99f),
+           latency_count ? latency[latency_count - 1] : 0);
+    printf("allocs %llu %.2f/packet balance %lld\n",
+           (unsigned long long) allocs, packets ? allocs / (double) packets : 0, balance);
+
+    static const char *upcalls[UPCALL_COUNT] = {
+            "log_packet", "dns_resolved", "is_domain_blocked", "get_uid_q",
+            "is_address_allowed", "create_packet", "account_usage"};
+    printf("upcalls");
+    for (int u = 0; u < UPCALL_COUNT; u++) {
+        uint64_t count = after.upcall[u].count - before.upcall[u].count;
+        if (count)
+            printf(" %s %llu", upcalls[u], (unsigned long long) count);
+    }
+    printf(" uid lookups %llu\n", (unsigned long long) (after.uid_lookups - before.uid_lookups));
+
+    // One line for comparing releases
+    printf("result packets_s=%.0f bytes_s=%.0f cpu_us=%.2f tun_us=%.2f p50_us=%lld p99_us=%lld"
+           " allocs_packet=%.2f\n",
+           packets / seconds, (in_bytes + out_bytes) / seconds,
+           packets ? cpu / (double) packets : 0,
+           in_packets ? (after.handler_us[HANDLER_TUN] - before.handler_us[HANDLER_TUN]) /
+                        (double) in_packets : 0,
+           get_percentile(0.5f), get_percentile(0.99f),
+           packets ? allocs / (double) packets : 0);
+
+    return (replay_exited ? 1 : 0);
+}
+
+static int gen(int argc, char *argv[]) {
+    if (argc < 2)
+        usage();
+    const char *scenario = argv[1];
+    int count = 0;
+    long size = 0;
+    int unique = 0;
+
+    optind = 2;
+    int opt;
+    while ((opt = getopt(argc, argv, "n:s:u:")) != -1)
+        switch (opt) {
+            case 'n':
+                count = atoi(optarg);
+                break;
+            case 's':
+                size = atol(optarg);
+                break;
+            case 'u':
+                unique = atoi(optarg);
+                break;
+            default:
+                usage();
+        }
+
+    return (generate(scenario, count, size, unique, stdout) ? 2 : 0);
+}
+
+int main(int argc, char *argv[]) {
+    if (argc < 2)
+        usage();
+    if (!strcmp(argv[1], "gen"))
+        return gen(argc - 1, argv + 1);
+    if (!strcmp(argv[1], "run"))
+        return replay(argc - 1, argv + 1);
+    if (!strcmp(argv[1], "check"))
+        return check();
+    usage();
+    return 2;
+}
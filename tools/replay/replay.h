@@ -0,0 +1,57 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2024 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+#define REPLAY_UID 10000
+#define REPLAY_SDK 29 // uids from getUidQ, use -k 28 to scan /proc/net
+
+#define REPLAY_CLIENT4 "10.1.10.1" // default VPN address
+#define REPLAY_TCP_PORT 8080
+#define REPLAY_UDP_PORT 7777 // echo
+#define REPLAY_DNS_PORT 53
+
+#define REPLAY_MSS 9960 // tun MTU minus headers
+#define REPLAY_WSCALE 7
+#define REPLAY_ACK_EVERY 65536 // bytes
+
+#define REPLAY_SNAPLEN 65535
+
+extern int replay_verbose;
+extern int replay_exited;
+
+JNIEnv *get_replay_env();
+
+jobject get_replay_instance();
+
+// check.c
+
+int check();
+
+// gen.c
+
+int generate(const char *scenario, int count, long size, int unique, FILE *out);
+
+// pcap helpers
+
+void put_pcap_hdr(FILE *out);
+
+void put_pcap_rec(FILE *out, const uint8_t *pkt, size_t len, long long us);
+
+void set_ip4_checksums(uint8_t *pkt, size_t len);